@@ -3,6 +3,8 @@ package deepnetts.data;
 import java.io.File;
 import java.io.IOException;
 import deepnetts.util.DeepNettsException;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -35,6 +37,27 @@ public class DataSets {
      *  TODO: should I wrap IO with DeepNetts Exception?
      */
     public static BasicDataSet readCsv(File csvFile, int inputsNum, int outputsNum, boolean hasColumnNames, String delimiter) throws FileNotFoundException, IOException {
+        return readCsv(csvFile, inputsNum, outputsNum, hasColumnNames, delimiter, StorageType.HEAP);
+    }
+
+    /**
+     * Creates and returns data set from specified CSV file, keeping inputs in
+     * specified type of storage. Use {@link StorageType#SPARSE} for inputs which
+     * are mostly zeros (like one-hot encoded columns), so that fully connected
+     * layer after input layer only uses non zero inputs.
+     *
+     * @param csvFile CSV file
+     * @param inputsNum number of input values in a row
+     * @param outputsNum number of output values in a row
+     * @param hasColumnNames true if first row contains column names
+     * @param delimiter delimiter used to separate values
+     * @param inputStorage type of storage for input tensors
+     * @return instance of data set with values loaded from file
+     *
+     * @throws FileNotFoundException if file was not found
+     * @throws IOException if there was an error reading file
+     */
+    public static BasicDataSet readCsv(File csvFile, int inputsNum, int outputsNum, boolean hasColumnNames, String delimiter, StorageType inputStorage) throws FileNotFoundException, IOException {
         BasicDataSet dataSet = new BasicDataSet(inputsNum, outputsNum);
         BufferedReader br = new BufferedReader(new FileReader(csvFile));
         String line=null;
@@ -80,7 +103,9 @@ public class DataSets {
                 throw new DeepNettsException("Error parsing csv, number expected line in " + (dataSet.size() + 1) + ": " + nex.getMessage(), nex);
             }
 
-            dataSet.add(new BasicDataSetItem(in, out));
+            final Tensor input = new Tensor(in);
+            input.convertTo(inputStorage);
+            dataSet.add(new BasicDataSetItem(input, out));
         }
 
         return dataSet;
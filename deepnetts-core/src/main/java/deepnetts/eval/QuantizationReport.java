@@ -0,0 +1,98 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ * This file is part of DeepNetts.
+ *
+ * DeepNetts is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.package
+ * deepnetts.core;
+ */
+
+package deepnetts.eval;
+
+/**
+ * Compares classification performance of a network before and after int8 quantization.
+ * Contains performance measures from {@link ClassifierEvaluator} for both float and
+ * quantized network, the share of test items for which both networks predict the same
+ * class, and memory used by weights.
+ *
+ * @see deepnetts.net.Quantizer
+ * @author Zoran Sevarac
+ */
+public class QuantizationReport {
+
+    private final PerformanceMeasure floatPerformance;
+    private final PerformanceMeasure quantizedPerformance;
+    private final float agreement;
+    private final long floatWeightsBytes;
+    private final long quantizedWeightsBytes;
+
+    public QuantizationReport(PerformanceMeasure floatPerformance, PerformanceMeasure quantizedPerformance, float agreement,
+                              long floatWeightsBytes, long quantizedWeightsBytes) {
+        this.floatPerformance = floatPerformance;
+        this.quantizedPerformance = quantizedPerformance;
+        this.agreement = agreement;
+        this.floatWeightsBytes = floatWeightsBytes;
+        this.quantizedWeightsBytes = quantizedWeightsBytes;
+    }
+
+    public PerformanceMeasure getFloatPerformance() {
+        return floatPerformance;
+    }
+
+    public PerformanceMeasure getQuantizedPerformance() {
+        return quantizedPerformance;
+    }
+
+    /**
+     * Returns share of test items (0 to 1) for which float and quantized network predict the same class.
+     *
+     * @return agreement between float and quantized network
+     */
+    public float getAgreement() {
+        return agreement;
+    }
+
+    /**
+     * Returns accuracy of float network minus accuracy of quantized network.
+     *
+     * @return accuracy lost by quantization
+     */
+    public float getAccuracyLoss() {
+        return floatPerformance.get(PerformanceMeasure.ACCURACY) - quantizedPerformance.get(PerformanceMeasure.ACCURACY);
+    }
+
+    public long getFloatWeightsBytes() {
+        return floatWeightsBytes;
+    }
+
+    public long getQuantizedWeightsBytes() {
+        return quantizedWeightsBytes;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        final String nl = System.lineSeparator();
+        sb.append(String.format("%-12s %12s %12s", "", "float", "int8")).append(nl);
+        for (String measure : new String[]{PerformanceMeasure.ACCURACY, PerformanceMeasure.PRECISION, PerformanceMeasure.RECALL, PerformanceMeasure.F1SCORE}) {
+            sb.append(String.format("%-12s %12.4f %12.4f", measure, floatPerformance.get(measure), quantizedPerformance.get(measure))).append(nl);
+        }
+        sb.append(String.format("%-12s %12d %12d", "WeightBytes", floatWeightsBytes, quantizedWeightsBytes)).append(nl);
+        sb.append(String.format("Agreement: %.4f, AccuracyLoss: %.4f", agreement, getAccuracyLoss())).append(nl);
+        return sb.toString();
+    }
+
+}
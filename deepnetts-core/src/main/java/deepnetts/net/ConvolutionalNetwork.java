@@ -22,9 +22,15 @@
 package deepnetts.net;
 
 import deepnetts.net.layers.AbstractLayer;
+import deepnetts.net.layers.AveragePoolingLayer;
 import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.layers.ConvolutionAlgorithm;
+import deepnetts.net.layers.ConvolutionTuner;
 import deepnetts.net.layers.ConvolutionalLayer;
+import deepnetts.net.layers.DepthwiseConvolutionalLayer;
 import deepnetts.net.layers.FullyConnectedLayer;
+import deepnetts.net.layers.GlobalAveragePoolingLayer;
+import deepnetts.net.layers.GroupedConvolutionalLayer;
 import deepnetts.net.layers.InputLayer;
 import deepnetts.net.layers.MaxPoolingLayer;
 import deepnetts.net.layers.OutputLayer;
@@ -37,6 +43,8 @@ import deepnetts.net.loss.MeanSquaredErrorLoss;
 import deepnetts.net.train.BackpropagationTrainer;
 import deepnetts.util.DeepNettsException;
 import deepnetts.util.RandomGenerator;
+import deepnetts.util.Layout;
+import deepnetts.util.StorageType;
 import deepnetts.util.Tensor;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
@@ -67,6 +75,10 @@ public class ConvolutionalNetwork extends NeuralNetwork<BackpropagationTrainer>
         private ActivationType defaultActivationType = ActivationType.RELU;
         private Class<CrossEntropyLoss> defaultLossFunction = CrossEntropyLoss.class;
         private boolean setDefaultActivation = false;
+        private StorageType storageType = StorageType.HEAP;
+        private Layout layout = Layout.NCHW;
+        private ConvolutionAlgorithm convolutionAlgorithm;
+        private boolean autoTune = false;
 
         /**
          * Input layer with specified width and height, and 3 channels by
@@ -204,6 +216,77 @@ public class ConvolutionalNetwork extends NeuralNetwork<BackpropagationTrainer>
             return this;
         }
 
+        /**
+         * Adds convolutional layer which uses specified algorithm to calculate convolution.
+         *
+         * @param filterWidth filter width
+         * @param filterHeight filter height
+         * @param stride filter stride
+         * @param channels number of channels (filters)
+         * @param activationType activation function
+         * @param algorithm convolution algorithm for this layer
+         * @return builder instance
+         * @see ConvolutionAlgorithm
+         */
+        public Builder addConvolutionalLayer(int filterWidth, int filterHeight, int stride, int channels, ActivationType activationType, ConvolutionAlgorithm algorithm) {
+            ConvolutionalLayer convolutionalLayer = new ConvolutionalLayer(filterWidth, filterHeight, stride, channels, activationType);
+            convolutionalLayer.setAlgorithm(algorithm);
+            neuralNet.addLayer(convolutionalLayer);
+            return this;
+        }
+
+        /**
+         * Adds grouped convolutional layer, where channels of this and previous layer are divided
+         * into groups, and each channel is convolved only with input channels of its own group.
+         *
+         * @param filterWidth filter width
+         * @param filterHeight filter height
+         * @param stride filter stride
+         * @param channels number of channels (filters), divisible by groups
+         * @param groups number of groups, depth of previous layer must be divisible by it
+         * @param activationType activation function
+         * @return builder instance
+         * @see GroupedConvolutionalLayer
+         */
+        public Builder addGroupedConvolutionalLayer(int filterWidth, int filterHeight, int stride, int channels, int groups, ActivationType activationType) {
+            GroupedConvolutionalLayer groupedLayer = new GroupedConvolutionalLayer(filterWidth, filterHeight, stride, channels, groups, activationType);
+            neuralNet.addLayer(groupedLayer);
+            return this;
+        }
+
+        /**
+         * Adds depthwise convolutional layer, which convolves each channel of previous layer with its own filter.
+         *
+         * @param filterWidth filter width
+         * @param filterHeight filter height
+         * @param stride filter stride
+         * @param activationType activation function
+         * @return builder instance
+         * @see DepthwiseConvolutionalLayer
+         */
+        public Builder addDepthwiseConvolutionalLayer(int filterWidth, int filterHeight, int stride, ActivationType activationType) {
+            DepthwiseConvolutionalLayer depthwiseLayer = new DepthwiseConvolutionalLayer(filterWidth, filterHeight, stride, activationType);
+            neuralNet.addLayer(depthwiseLayer);
+            return this;
+        }
+
+        /**
+         * Adds depthwise separable convolution: depthwise convolutional layer with specified filter,
+         * followed by convolutional layer with 1x1 filters which combines channels.
+         * Needs about filterWidth * filterHeight times less multiply-adds than convolutional layer with the same filter.
+         *
+         * @param filterWidth filter width of depthwise layer
+         * @param filterHeight filter height of depthwise layer
+         * @param stride filter stride of depthwise layer
+         * @param channels number of channels of 1x1 convolutional layer
+         * @param activationType activation function of both layers
+         * @return builder instance
+         */
+        public Builder addDepthwiseSeparableConvolutionalLayer(int filterWidth, int filterHeight, int stride, int channels, ActivationType activationType) {
+            addDepthwiseConvolutionalLayer(filterWidth, filterHeight, stride, activationType);
+            return addConvolutionalLayer(1, 1, 1, channels, activationType);
+        }
+
         public Builder addMaxPoolingLayer(int filterSize, int stride) {
             MaxPoolingLayer poolingLayer = new MaxPoolingLayer(filterSize, filterSize, stride);
             neuralNet.addLayer(poolingLayer);
@@ -216,6 +299,30 @@ public class ConvolutionalNetwork extends NeuralNetwork<BackpropagationTrainer>
             return this;
         }
 
+        public Builder addAveragePoolingLayer(int filterSize, int stride) {
+            AveragePoolingLayer poolingLayer = new AveragePoolingLayer(filterSize, filterSize, stride);
+            neuralNet.addLayer(poolingLayer);
+            return this;
+        }
+
+        public Builder addAveragePoolingLayer(int filterWidth, int filterHeight, int stride) {
+            AveragePoolingLayer poolingLayer = new AveragePoolingLayer(filterWidth, filterHeight, stride);
+            neuralNet.addLayer(poolingLayer);
+            return this;
+        }
+
+        /**
+         * Adds global average pooling layer, which outputs average of each channel of previous layer.
+         * Fully connected layer after it has one input per channel, instead of all outputs of previous layer.
+         *
+         * @return builder instance
+         */
+        public Builder addGlobalAveragePoolingLayer() {
+            GlobalAveragePoolingLayer poolingLayer = new GlobalAveragePoolingLayer();
+            neuralNet.addLayer(poolingLayer);
+            return this;
+        }
+
         public Builder hiddenActivationFunction(ActivationType activationType) {
             this.defaultActivationType = activationType;
             setDefaultActivation = true;
@@ -261,6 +368,62 @@ public class ConvolutionalNetwork extends NeuralNetwork<BackpropagationTrainer>
             return this;
         }
 
+        /**
+         * Sets where to keep weights and activations of all layers.
+         * Use off-heap storage for big networks, and close the network when it is no longer needed.
+         *
+         * @param storageType heap (default) or off-heap storage
+         * @return builder instance
+         * @see StorageType
+         */
+        public Builder storageType(StorageType storageType) {
+            this.storageType = storageType;
+            return this;
+        }
+
+        /**
+         * Sets memory layout of convolutional (including grouped and depthwise) and pooling layers.
+         * NHWC is usually faster for layers with many channels, so both
+         * layouts can be tried for specific network.
+         *
+         * @param layout NCHW (default) or NHWC
+         * @return builder instance
+         * @see Layout
+         */
+        public Builder layout(Layout layout) {
+            this.layout = layout;
+            return this;
+        }
+
+        /**
+         * Sets algorithm used to calculate convolution in all convolutional layers
+         * which were not added with specific algorithm. By default algorithm is chosen
+         * by shape of each layer.
+         *
+         * @param algorithm convolution algorithm
+         * @return builder instance
+         * @see ConvolutionAlgorithm
+         */
+        public Builder convolutionAlgorithm(ConvolutionAlgorithm algorithm) {
+            this.convolutionAlgorithm = algorithm;
+            return this;
+        }
+
+        /**
+         * Enables measuring of convolution algorithms when network is built, so each
+         * convolutional layer which was not added with specific algorithm uses the
+         * fastest algorithm for its shape on this machine. Chosen algorithms are kept
+         * in tuning cache file, so later builds of the same shapes are not measured again.
+         *
+         * @param autoTune true to measure algorithms, false (default) to choose them by layer shape
+         * @return builder instance
+         * @see ConvolutionTuner
+         */
+        public Builder autoTune(boolean autoTune) {
+            this.autoTune = autoTune;
+            return this;
+        }
+
         public ConvolutionalNetwork build() {
             // connect and init layers, weights matrices etc.
             AbstractLayer prevLayer = null;
@@ -270,6 +433,14 @@ public class ConvolutionalNetwork extends NeuralNetwork<BackpropagationTrainer>
                  if (setDefaultActivation && !(layer instanceof InputLayer) && !(layer instanceof OutputLayer)) { // ne za izlazni layer
                     layer.setActivationType(defaultActivationType); // ali ovo ne treba ovako!!! ako je vec nesto setovano onda nemoj to d agazis
                 }
+                layer.setStorageType(storageType);
+                if (layer instanceof ConvolutionalLayer || layer instanceof GroupedConvolutionalLayer || layer instanceof MaxPoolingLayer || layer instanceof AveragePoolingLayer) {
+                    layer.setLayout(layout);
+                }
+                if (convolutionAlgorithm != null && layer instanceof ConvolutionalLayer
+                        && ((ConvolutionalLayer) layer).getAlgorithm() == ConvolutionAlgorithm.AUTO) {
+                    ((ConvolutionalLayer) layer).setAlgorithm(convolutionAlgorithm);
+                }
                 layer.setPrevLayer(prevLayer);
                 if (prevLayer != null) {
                     prevLayer.setNextlayer(layer);
@@ -282,6 +453,14 @@ public class ConvolutionalNetwork extends NeuralNetwork<BackpropagationTrainer>
                 layer.init();
             });
 
+            if (autoTune) {
+                for (AbstractLayer layer : neuralNet.getLayers()) {
+                    if (layer instanceof ConvolutionalLayer && ((ConvolutionalLayer) layer).getAlgorithm() == ConvolutionAlgorithm.AUTO) {
+                        ConvolutionTuner.tune((ConvolutionalLayer) layer);
+                    }
+                }
+            }
+
             // if loss is not set use default loss function
             if (neuralNet.getLossFunction() == null) {
                 Builder.this.lossFunction(defaultLossFunction);
@@ -296,6 +475,7 @@ public class ConvolutionalNetwork extends NeuralNetwork<BackpropagationTrainer>
      * TODO; for convolutional layer get filter weights
      *
      * @return
+     * @see #writeWeights(java.nio.channels.WritableByteChannel) for faster binary format
      */
     public List<String> getWeights() {
         List weightsList = new ArrayList();
@@ -304,6 +484,10 @@ public class ConvolutionalNetwork extends NeuralNetwork<BackpropagationTrainer>
                 Tensor[] filters = ((ConvolutionalLayer)layer).getFilters();
                 String filterStr = Tensor.valuesAsString(filters);
                 weightsList.add(filterStr);
+            } else if (layer instanceof GroupedConvolutionalLayer) {
+                weightsList.add(Tensor.valuesAsString(((GroupedConvolutionalLayer)layer).getFilters()));
+            } else if (layer instanceof FullyConnectedLayer) {
+                weightsList.add(((FullyConnectedLayer)layer).getWeightsAsString());
             } else {
                 weightsList.add(layer.getDeltaWeight().toString());
             }
@@ -311,6 +495,12 @@ public class ConvolutionalNetwork extends NeuralNetwork<BackpropagationTrainer>
         return weightsList;
     }
 
+    /**
+     * Sets weights of all layers from list of strings.
+     *
+     * @param weights weights of each layer as string
+     * @see #readWeights(java.nio.channels.ReadableByteChannel) for faster binary format
+     */
     public void setWeights(List<String> weights) {
         int weightsIdx=0;
 
@@ -319,6 +509,9 @@ public class ConvolutionalNetwork extends NeuralNetwork<BackpropagationTrainer>
             if (layer instanceof ConvolutionalLayer) {
                 ((ConvolutionalLayer)layer).setFilters(weights.get(weightsIdx));
                 weightsIdx++;
+            } else if (layer instanceof GroupedConvolutionalLayer) {
+                ((GroupedConvolutionalLayer)layer).setFilters(weights.get(weightsIdx));
+                weightsIdx++;
             } else if (layer instanceof FullyConnectedLayer || layer instanceof OutputLayer) {
                 layer.setWeights(weights.get(weightsIdx));
                 weightsIdx++;
@@ -34,6 +34,7 @@ import deepnetts.net.loss.LossType;
 import deepnetts.net.loss.MeanSquaredErrorLoss;
 import deepnetts.net.train.BackpropagationTrainer;
 import deepnetts.util.RandomGenerator;
+import deepnetts.util.StorageType;
 import deepnetts.util.Tensor;
 import deepnetts.util.WeightsInit;
 import java.lang.reflect.InvocationTargetException;
@@ -93,6 +94,7 @@ public class FeedForwardNetwork extends NeuralNetwork<BackpropagationTrainer> {
         private final FeedForwardNetwork network = new FeedForwardNetwork();
         private ActivationType defaultActivationType = ActivationType.TANH;
         private boolean setDefaultActivation = false;
+        private StorageType storageType = StorageType.HEAP;
 
         /**
          * Adds input addLayer with specified width to the network.
@@ -258,6 +260,19 @@ public class FeedForwardNetwork extends NeuralNetwork<BackpropagationTrainer> {
             return this;
         }
 
+        /**
+         * Sets where to keep weights and activations of all layers.
+         * Use off-heap storage for big networks, and close the network when it is no longer needed.
+         *
+         * @param storageType heap (default) or off-heap storage
+         * @return builder instance
+         * @see StorageType
+         */
+        public Builder storageType(StorageType storageType) {
+            this.storageType = storageType;
+            return this;
+        }
+
         public FeedForwardNetwork build() {
 
             // prodji kroz celu mrezu i inicijalizuj matrice tezina / konekcije
@@ -270,6 +285,7 @@ public class FeedForwardNetwork extends NeuralNetwork<BackpropagationTrainer> {
                 if (setDefaultActivation && !(layer instanceof InputLayer) && !(layer instanceof OutputLayer)) { // ne za izlazni layer
                     layer.setActivationType(defaultActivationType); // ali ovo ne treba ovako!!! ako je vec nesto setovano onda nemoj to d agazis
                 }
+                layer.setStorageType(storageType);
                 layer.setPrevLayer(prevLayer);
                 if (prevLayer != null) {
                     prevLayer.setNextlayer(layer);
@@ -34,8 +34,15 @@ import deepnetts.net.loss.LossType;
 import deepnetts.net.loss.MeanSquaredErrorLoss;
 import deepnetts.net.train.Trainer;
 import deepnetts.net.train.TrainerProvider;
+import deepnetts.util.StorageType;
 import deepnetts.util.Tensor;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -49,7 +56,7 @@ import java.util.List;
  * @see LossFunction
  * @author Zoran Sevarac
  */
-public class NeuralNetwork<T extends Trainer> implements TrainerProvider<T>, Serializable {
+public class NeuralNetwork<T extends Trainer> implements TrainerProvider<T>, Serializable, AutoCloseable {
 
     private static final long serialVersionUID = 1L;
 
@@ -86,6 +93,11 @@ public class NeuralNetwork<T extends Trainer> implements TrainerProvider<T>, Ser
 
     private String label;
 
+    /**
+     * Number of samples in the last batch set as input.
+     */
+    private transient int batchCount;
+
     protected NeuralNetwork() {
         layers = new ArrayList();
     }
@@ -113,6 +125,85 @@ public class NeuralNetwork<T extends Trainer> implements TrainerProvider<T>, Ser
         outputLayer.setOutputErrors(outputErrors);
     }
 
+    /**
+     * Sets a batch of inputs with shape [samples, ...shape of a single input]
+     * and triggers forward pass for all samples in a batch.
+     * Outputs for each sample are available through {@link #getOutput(int)}.
+     *
+     * @param batch batch of inputs
+     * @throws IllegalStateException if some layer does not support batch processing
+     * @see #isBatchSupported()
+     */
+    public void setInputBatch(Tensor batch) {
+        final int count = batch.getShape()[0];
+        for (AbstractLayer layer : layers) {
+            layer.initBatch(count);
+        }
+        inputLayer.setInputBatch(batch);
+        batchCount = count;
+
+        try {
+            for (int i = 1; i < layers.size(); i++) {
+                layers.get(i).forwardBatch(count);
+            }
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Returns network's output for specified sample in the last batch.
+     *
+     * @param sample index of sample in a batch
+     * @return network's output for sample
+     */
+    public float[] getOutput(int sample) {
+        return outputLayer.getOutputs(sample);
+    }
+
+    /**
+     * Sets output error for specified sample in the last batch.
+     *
+     * @param sample index of sample in a batch
+     * @param outputErrors output error for sample
+     */
+    public void setOutputError(int sample, float[] outputErrors) {
+        outputLayer.setOutputErrors(sample, outputErrors);
+    }
+
+    /**
+     * Backward pass for all samples in the last batch, which adds up weight
+     * changes of all samples. Can be used only with layers in batch mode.
+     */
+    public void backwardBatch() {
+        try {
+            for (int i = layers.size() - 1; i > 0; i--) {
+                layers.get(i).backwardBatch(batchCount);
+            }
+        } finally {
+            endBatch();
+        }
+    }
+
+    private void endBatch() {
+        layers.forEach((layer) -> layer.endBatch());
+    }
+
+    /**
+     * Returns true if all layers can process batches of samples,
+     * which requires heap storage.
+     *
+     * @return true if batch processing is supported
+     */
+    public boolean isBatchSupported() {
+        for (AbstractLayer layer : layers) {
+            if (!layer.isBatchSupported()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void train(DataSet<?> trainingSet) {
         trainer.train(trainingSet);
     }
@@ -197,6 +288,78 @@ public class NeuralNetwork<T extends Trainer> implements TrainerProvider<T>, Ser
         }
     }
 
+    /**
+     * Moves weights and activations of all layers to specified type of storage.
+     * Can be used after network is loaded from file, for example to run inference
+     * with 16 bit weights.
+     *
+     * @param storageType storage type to use
+     * @see StorageType
+     */
+    public void setStorageType(StorageType storageType) {
+        layers.forEach((layer) -> layer.setStorageType(storageType));
+    }
+
+    /**
+     * Writes weights and biases of all layers to channel in compact binary format,
+     * which is much faster and smaller than weights as strings.
+     *
+     * @param channel channel to write to
+     * @throws IOException if writing fails
+     * @see deepnetts.util.TensorIO
+     */
+    public void writeWeights(WritableByteChannel channel) throws IOException {
+        for (AbstractLayer layer : layers) {
+            layer.writeWeights(channel);
+        }
+    }
+
+    /**
+     * Reads weights and biases of all layers from channel. Network must have
+     * the same architecture as the network which wrote the weights.
+     *
+     * @param channel channel to read from
+     * @throws IOException if reading fails or data is corrupted
+     */
+    public void readWeights(ReadableByteChannel channel) throws IOException {
+        for (AbstractLayer layer : layers) {
+            layer.readWeights(channel);
+        }
+    }
+
+    /**
+     * Writes weights and biases of all layers to specified file.
+     *
+     * @param file file to write to
+     * @throws IOException if writing fails
+     */
+    public void writeWeights(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeWeights(channel);
+        }
+    }
+
+    /**
+     * Reads weights and biases of all layers from specified file.
+     *
+     * @param file file to read from
+     * @throws IOException if reading fails or data is corrupted
+     */
+    public void readWeights(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            readWeights(channel);
+        }
+    }
+
+    /**
+     * Releases storage used by all layers (off-heap memory if network was built
+     * with off-heap storage). Network can not be used after this.
+     */
+    @Override
+    public void close() {
+        layers.forEach((layer) -> layer.close());
+    }
+
     public String getLabel() {
         return label;
     }
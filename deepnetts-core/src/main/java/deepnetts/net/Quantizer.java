@@ -0,0 +1,187 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net;
+
+import deepnetts.data.DataSet;
+import deepnetts.data.DataSetItem;
+import deepnetts.eval.ClassifierEvaluator;
+import deepnetts.eval.PerformanceMeasure;
+import deepnetts.eval.QuantizationReport;
+import deepnetts.net.layers.AbstractLayer;
+import deepnetts.net.layers.ConvolutionalLayer;
+import deepnetts.net.layers.FullyConnectedLayer;
+import deepnetts.net.layers.GroupedConvolutionalLayer;
+import deepnetts.util.QuantizedStorage;
+import deepnetts.util.Tensor;
+import java.util.List;
+
+/**
+ * Post training int8 quantization of convolutional and fully connected layers,
+ * for faster inference with less memory.
+ *
+ * Weights are quantized with symmetric scale for each filter (convolutional layer)
+ * or neuron (fully connected layer). Inputs of each quantized layer are quantized
+ * with scale and zero point calibrated from the range of its inputs, which is found
+ * by running the network on calibration data set (usually part of training set).
+ * Inputs of a layer use one scale for all channels, so sums of products of int8
+ * inputs and weights can be accumulated as int32 over all channels.
+ *
+ * Output layer and grouped convolutional layers are not quantized, they keep float
+ * weights and filters. Quantized layers can be used only for inference,
+ * and they can be moved back to float weights with {@link NeuralNetwork#setStorageType}.
+ *
+ * <pre>
+ * QuantizationReport report = Quantizer.quantize(neuralNet, trainingSet, testSet);
+ * System.out.println(report);
+ * </pre>
+ *
+ * @see QuantizedStorage
+ * @author Zoran Sevarac
+ */
+public final class Quantizer {
+
+    private Quantizer() { }
+
+    /**
+     * Quantizes convolutional and fully connected layers of specified network to int8,
+     * calibrating input ranges on specified data set.
+     *
+     * @param neuralNet network to quantize
+     * @param calibrationSet data used to find ranges of layer inputs
+     */
+    public static void quantize(NeuralNetwork<?> neuralNet, DataSet<?> calibrationSet) {
+        if (calibrationSet.size() == 0) {
+            throw new IllegalArgumentException("Calibration set cannot be empty!");
+        }
+        final List<AbstractLayer> layers = neuralNet.getLayers();
+        // ranges always include zero, so zero (padding) is quantized exactly
+        final float[] min = new float[layers.size()];
+        final float[] max = new float[layers.size()];
+
+        for (DataSetItem item : calibrationSet) {
+            neuralNet.setInput(item.getInput());
+            for (int i = 1; i < layers.size(); i++) {
+                if (isQuantizable(layers.get(i))) {
+                    final Tensor inputs = layers.get(i - 1).getOutputs();
+                    for (int k = 0; k < inputs.size(); k++) {
+                        final float val = inputs.get(k);
+                        min[i] = Math.min(min[i], val);
+                        max[i] = Math.max(max[i], val);
+                    }
+                }
+            }
+        }
+
+        for (int i = 1; i < layers.size(); i++) {
+            final AbstractLayer layer = layers.get(i);
+            if (!isQuantizable(layer)) continue;
+
+            final float scale = max[i] > min[i] ? (max[i] - min[i]) / 255 : 1;
+            final int zeroPoint = Math.max(-128, Math.min(127, -128 - Math.round(min[i] / scale)));
+            if (layer instanceof ConvolutionalLayer) {
+                ((ConvolutionalLayer) layer).quantize(scale, zeroPoint);
+            } else {
+                ((FullyConnectedLayer) layer).quantize(scale, zeroPoint);
+            }
+        }
+    }
+
+    /**
+     * Quantizes specified network and compares its classification performance
+     * on test set before and after quantization, using {@link ClassifierEvaluator}.
+     *
+     * @param neuralNet network to quantize
+     * @param calibrationSet data used to find ranges of layer inputs
+     * @param testSet data used to compare float and quantized network
+     * @return report with performance of float and quantized network
+     */
+    public static QuantizationReport quantize(NeuralNetwork<?> neuralNet, DataSet<?> calibrationSet, DataSet<?> testSet) {
+        final long floatBytes = weightsBytes(neuralNet);
+        final PerformanceMeasure floatPerformance = new ClassifierEvaluator().evaluatePerformance(neuralNet, testSet);
+        final int[] floatPredictions = predictions(neuralNet, testSet);
+
+        quantize(neuralNet, calibrationSet);
+
+        final PerformanceMeasure quantizedPerformance = new ClassifierEvaluator().evaluatePerformance(neuralNet, testSet);
+        final int[] quantizedPredictions = predictions(neuralNet, testSet);
+        int same = 0;
+        for (int i = 0; i < floatPredictions.length; i++) {
+            if (floatPredictions[i] == quantizedPredictions[i]) {
+                same++;
+            }
+        }
+
+        return new QuantizationReport(floatPerformance, quantizedPerformance, same / (float) floatPredictions.length,
+                                      floatBytes, weightsBytes(neuralNet));
+    }
+
+    private static boolean isQuantizable(AbstractLayer layer) {
+        return (layer instanceof ConvolutionalLayer || layer instanceof FullyConnectedLayer) && layer.getPrevlayer() != null;
+    }
+
+    /**
+     * Returns predicted class (index of max output, or 0/1 for single output) for each test item.
+     */
+    private static int[] predictions(NeuralNetwork<?> neuralNet, DataSet<?> testSet) {
+        final int[] predictions = new int[testSet.size()];
+        int i = 0;
+        for (DataSetItem item : testSet) {
+            neuralNet.setInput(item.getInput());
+            final float[] output = neuralNet.getOutput();
+            int maxIdx = 0;
+            for (int k = 1; k < output.length; k++) {
+                if (output[k] > output[maxIdx]) {
+                    maxIdx = k;
+                }
+            }
+            predictions[i++] = output.length == 1 ? (output[0] >= 0.5f ? 1 : 0) : maxIdx;
+        }
+        return predictions;
+    }
+
+    /**
+     * Returns number of bytes used by weights and filters of all layers, including
+     * float filters of grouped convolutional layers which are not quantized.
+     */
+    private static long weightsBytes(NeuralNetwork<?> neuralNet) {
+        long bytes = 0;
+        for (AbstractLayer layer : neuralNet.getLayers()) {
+            if (layer instanceof ConvolutionalLayer) {
+                bytes += filtersBytes(((ConvolutionalLayer) layer).getFilters());
+            } else if (layer instanceof GroupedConvolutionalLayer) {
+                bytes += filtersBytes(((GroupedConvolutionalLayer) layer).getFilters());
+            } else if (layer.getWeights() != null) {
+                bytes += (long) layer.getWeights().size() * layer.getWeights().getStorageType().getBytesPerValue();
+            }
+        }
+        return bytes;
+    }
+
+    private static long filtersBytes(Tensor[] filters) {
+        long bytes = 0;
+        for (Tensor filter : filters) {
+            bytes += (long) filter.size() * filter.getStorageType().getBytesPerValue();
+        }
+        return bytes;
+    }
+
+}
@@ -21,10 +21,21 @@
  */
 package deepnetts.net.layers;
 
+import deepnetts.net.layers.activation.ActivationFunctions;
 import deepnetts.net.layers.activation.ActivationType;
 import deepnetts.net.train.opt.OptimizerType;
+import deepnetts.net.train.opt.Optimizers;
+import deepnetts.util.Kernels;
+import deepnetts.util.Layout;
+import deepnetts.util.LinearAlgebra;
+import deepnetts.util.StorageType;
 import deepnetts.util.Tensor;
+import deepnetts.util.TensorExpression;
+import deepnetts.util.TensorIO;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import deepnetts.net.layers.activation.ActivationFunction;
 
 /**
@@ -111,6 +122,34 @@ public abstract class AbstractLayer implements Layer, Serializable {
     protected float[] biases;
     protected float[] deltaBiases;
 
+    /**
+     * Where to keep weights and activations of this layer (heap or off-heap)
+     */
+    protected StorageType storageType = StorageType.HEAP;
+
+    /**
+     * Memory layout of 3D outputs, deltas and filters, used by convolutional and max pooling layers.
+     */
+    protected Layout layout = Layout.NCHW;
+
+    /**
+     * Outputs and deltas for all samples in a batch, with shape [samples, ...shape of a single sample].
+     * Created when layer processes a batch for the first time.
+     */
+    protected transient Tensor batchOutputs, batchDeltas;
+
+    /**
+     * Own arrays with outputs and deltas for a single sample, which are used again after a batch is processed.
+     */
+    private transient float[] sampleOutputs, sampleDeltas;
+
+    /**
+     * Fused expression which adds bias changes for current deltas, and deltaBiases
+     * it writes to. Created on first use and evaluated in each backward pass.
+     */
+    private transient TensorExpression deltaBiasesExpr;
+    private transient Tensor deltaBiasesTensor;
+
 
     /**
      * This method should implement layer initialization when layer is added to
@@ -212,8 +251,39 @@ public abstract class AbstractLayer implements Layer, Serializable {
         weights.setValuesFromString(weightStr);
     }
 
+    /**
+     * Writes weights and biases of this layer to channel in binary format.
+     * Does nothing for layers without weights.
+     *
+     * @param channel channel to write to
+     * @throws IOException if writing fails
+     * @see TensorIO
+     */
+    public void writeWeights(WritableByteChannel channel) throws IOException {
+        if (weights != null) {
+            TensorIO.write(weights, channel);
+            TensorIO.write(new Tensor(biases), channel);
+        }
+    }
+
+    /**
+     * Reads weights and biases of this layer from channel, in the format
+     * written by {@link #writeWeights(WritableByteChannel)}. Values are read
+     * into existing weights, so they keep their storage type.
+     *
+     * @param channel channel to read from
+     * @throws IOException if reading fails
+     */
+    public void readWeights(ReadableByteChannel channel) throws IOException {
+        if (weights != null) {
+            TensorIO.read(channel, weights);
+            TensorIO.read(channel, new Tensor(biases));
+        }
+    }
+
     public final void setDeltas(Tensor deltas) {
         this.deltas = deltas;
+        this.deltaBiasesExpr = null;
     }
 
     public ActivationFunction getActivation() {
@@ -281,6 +351,364 @@ public abstract class AbstractLayer implements Layer, Serializable {
         this.activationType = activationType;
     }
 
+    public StorageType getStorageType() {
+        return storageType;
+    }
+
+    /**
+     * Sets storage type for tensors of this layer. If layer is already initialized
+     * (for example network loaded from file) its values are moved to the new storage.
+     * Deltas and weight changes are always kept with float precision.
+     *
+     * @param storageType heap, off-heap or 16 bit storage
+     */
+    public void setStorageType(StorageType storageType) {
+        if (storageType == StorageType.INT8) {
+            throw new IllegalArgumentException("INT8 storage is used only for weights of quantized layers, see Quantizer");
+        }
+        this.storageType = storageType;
+        batchOutputs = null; // created again with new storage, if needed
+        batchDeltas = null;
+        if (outputs != null) {
+            convertStorage();
+        }
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Sets memory layout of 3D outputs, deltas and filters of this layer.
+     * Convolutional and max pooling layers have faster kernels for NHWC layout
+     * when they have many channels, and inputs in other layout are converted.
+     * Other layers use the layout of their inputs.
+     *
+     * @param layout NCHW (default) or NHWC
+     * @throws IllegalStateException if layer is already initialized
+     * @see Layout
+     */
+    public void setLayout(Layout layout) {
+        if (outputs != null && layout != this.layout) {
+            throw new IllegalStateException("Layout can be set only before layer is initialized");
+        }
+        this.layout = layout;
+    }
+
+    /**
+     * Moves values of all layer tensors to storage of current storage type.
+     */
+    protected void convertStorage() {
+        final StorageType accumulatorType = storageType.getAccumulatorType();
+        convertAll(storageType, weights, outputs);
+        convertAll(accumulatorType, deltas, deltaWeights, gradients);
+    }
+
+    protected static void convertAll(StorageType storageType, Tensor... tensors) {
+        for (Tensor t : tensors) {
+            if (t != null) {
+                t.convertTo(storageType);
+            }
+        }
+    }
+
+    /**
+     * Creates tensor with specified shape using storage type of this layer.
+     *
+     * @param shape tensor shape, from slowest to fastest changing dimension
+     * @return new tensor filled with zeros
+     */
+    protected final Tensor createTensor(int... shape) {
+        return Tensor.create(storageType, shape);
+    }
+
+    /**
+     * Creates tensor for values which are accumulated during training (deltas,
+     * gradients and weight changes), which always have float precision.
+     *
+     * @param shape tensor shape, from slowest to fastest changing dimension
+     * @return new tensor filled with zeros
+     * @see StorageType#getAccumulatorType()
+     */
+    protected final Tensor createAccumulatorTensor(int... shape) {
+        return Tensor.create(storageType.getAccumulatorType(), shape);
+    }
+
+    /**
+     * Creates tensor with specified shape using storage type and specified layout.
+     *
+     * @param layout order of values in storage
+     * @param shape tensor shape, from slowest to fastest changing dimension
+     * @return new tensor filled with zeros
+     */
+    protected final Tensor createTensor(Layout layout, int... shape) {
+        return Tensor.create(storageType, layout, shape);
+    }
+
+    /**
+     * Creates tensor for accumulated values with specified layout.
+     *
+     * @param layout order of values in storage
+     * @param shape tensor shape, from slowest to fastest changing dimension
+     * @return new tensor filled with zeros
+     */
+    protected final Tensor createAccumulatorTensor(Layout layout, int... shape) {
+        return Tensor.create(storageType.getAccumulatorType(), layout, shape);
+    }
+
+    /**
+     * Releases storage used by tensors of this layer.
+     * Layer can not be used after this.
+     */
+    public void close() {
+        closeAll(weights, deltaWeights, gradients, outputs, deltas, prevGradSqrSum, prevBiasSqrSum, prevDeltaWeightSqrSum, prevDeltaBiasSqrSum);
+    }
+
+    /**
+     * Adds weighted sum of inputs to outputs, for layers with 2D weights [inputs][outputs]:
+     * outputs += transposed(weights) * inputs
+     */
+    protected final void addWeightedInputs() {
+        final int outCols = outputs.getCols();
+        final int inCols = inputs.getCols();
+
+        if (outputs.hasArray() && inputs.hasArray() && weights.hasArray()) {
+            LinearAlgebra.sgemv(true, inCols, outCols, 1, weights.getValues(), weights.getOffset(), outCols,
+                                inputs.getValues(), inputs.getOffset(), 1, outputs.getValues(), outputs.getOffset());
+        } else { // accumulate in float, and store once, since outputs can have lower precision
+            for (int outCol = 0; outCol < outCols; outCol++) {
+                float sum = outputs.get(outCol);
+                for (int inCol = 0; inCol < inCols; inCol++) {
+                    sum += inputs.get(inCol) * weights.get(inCol, outCol);
+                }
+                outputs.set(outCol, sum);
+            }
+        }
+    }
+
+    /**
+     * Multiplies deltas with derivatives of activation function at outputs, once deltas
+     * are propagated from the next layer.
+     */
+    protected final void multiplyDeltasByDerivatives() {
+        if (deltas.hasArray() && outputs.hasArray() && deltas.isContiguous() && outputs.isContiguous() && deltas.getLayout() == outputs.getLayout()) {
+            final float[] deltaVals = deltas.getValues();
+            final float[] outVals = outputs.getValues();
+            final int deltaOff = deltas.getOffset(), outOff = outputs.getOffset();
+            for (int i = 0; i < deltas.size(); i++) {
+                deltaVals[deltaOff + i] *= ActivationFunctions.prime(activationType, outVals[outOff + i]);
+            }
+        } else {
+            for (int i = 0; i < deltas.size(); i++) {
+                deltas.set(i, deltas.get(i) * ActivationFunctions.prime(activationType, outputs.get(i)));
+            }
+        }
+    }
+
+    /**
+     * Calculates gradients for 2D weights [inputs][outputs] as outer product of inputs and deltas,
+     * and adds SGD weight changes to deltaWeights.
+     */
+    protected final void addDeltaWeights() {
+        final int outCols = deltas.getCols();
+        final int inCols = inputs.getCols();
+
+        if (deltas.hasArray() && inputs.hasArray() && gradients.hasArray() && deltaWeights.hasArray()) {
+            final float[] inVals = inputs.getValues();
+            final float[] deltaVals = deltas.getValues();
+            LinearAlgebra.outer(inCols, outCols, inVals, inputs.getOffset(), deltaVals, deltas.getOffset(), gradients.getValues(), gradients.getOffset(), outCols);
+            LinearAlgebra.sger(inCols, outCols, -learningRate, inVals, inputs.getOffset(), deltaVals, deltas.getOffset(), deltaWeights.getValues(), deltaWeights.getOffset(), outCols);
+        } else {
+            for (int outCol = 0; outCol < outCols; outCol++) {
+                for (int inCol = 0; inCol < inCols; inCol++) {
+                    final float grad = deltas.get(outCol) * inputs.get(inCol);
+                    gradients.set(inCol, outCol, grad);
+                    deltaWeights.add(inCol, outCol, Optimizers.sgd(learningRate, grad));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds SGD bias changes for current deltas to deltaBiases, in one pass over deltas.
+     */
+    protected final void addDeltaBiases() {
+        if (deltaBiasesExpr == null || deltaBiasesTensor.getValues() != deltaBiases) {
+            deltaBiasesTensor = new Tensor(deltaBiases, deltaBiases.length);
+            deltaBiasesExpr = deltaBiasesTensor.expr().zipWith(deltas, (deltaBias, delta) -> deltaBias + Optimizers.sgd(learningRate, delta));
+        }
+        deltaBiasesExpr.evaluateInto(deltaBiasesTensor);
+    }
+
+    /**
+     * Returns true if this layer can process a batch of samples, which
+     * requires outputs and deltas in heap storage.
+     *
+     * @return true if batch processing is supported
+     */
+    public boolean isBatchSupported() {
+        return outputs.hasArray() && (deltas == null || deltas.hasArray());
+    }
+
+    /**
+     * Prepares this layer for processing batches with up to specified number of samples.
+     *
+     * @param capacity max number of samples in a batch
+     * @throws IllegalStateException if layer does not use heap storage
+     */
+    public void initBatch(int capacity) {
+        if (batchOutputs != null && batchOutputs.getShape()[0] >= capacity) {
+            return;
+        }
+        if (!isBatchSupported()) {
+            throw new IllegalStateException("Batch processing requires heap storage, layer uses " + storageType);
+        }
+        batchOutputs = Tensor.create(StorageType.HEAP, outputs.getLayout(), batchShape(capacity, outputs));
+        if (deltas != null) {
+            batchDeltas = Tensor.create(StorageType.HEAP, deltas.getLayout(), batchShape(capacity, deltas));
+        }
+    }
+
+    private static int[] batchShape(final int capacity, final Tensor sample) {
+        final int[] shape = sample.getShape();
+        final int[] batchShape = new int[shape.length + 1];
+        batchShape[0] = capacity;
+        System.arraycopy(shape, 0, batchShape, 1, shape.length);
+        return batchShape;
+    }
+
+    /**
+     * Points outputs and deltas of this layer to the values of specified sample in a batch.
+     * Since inputs of the next layer are outputs of this layer, they point to the same sample.
+     * Samples are stored one after another, so after selecting the first sample,
+     * values of all samples are available from outputs (or deltas) array, starting at its offset.
+     *
+     * @param sample index of sample in a batch
+     */
+    public void selectSample(int sample) {
+        if (sampleOutputs == null) {
+            sampleOutputs = outputs.getValues();
+            sampleDeltas = deltas != null ? deltas.getValues() : null;
+        }
+        outputs.setValues(batchOutputs.getValues(), sample * outputs.size());
+        if (deltas != null) {
+            deltas.setValues(batchDeltas.getValues(), sample * deltas.size());
+        }
+    }
+
+    /**
+     * Points outputs and deltas back to the values of a single sample, after a batch is processed.
+     */
+    public void endBatch() {
+        if (sampleOutputs != null) {
+            outputs.setValues(sampleOutputs);
+            if (deltas != null) {
+                deltas.setValues(sampleDeltas);
+            }
+            sampleOutputs = null;
+            sampleDeltas = null;
+        }
+    }
+
+    /**
+     * Forward pass for all samples in a batch, which are already in the previous layer.
+     * Processes samples one by one, layers which can process the whole batch
+     * at once (using matrix multiplication) override this.
+     *
+     * @param count number of samples in a batch
+     */
+    public void forwardBatch(int count) {
+        for (int sample = 0; sample < count; sample++) {
+            prevLayer.selectSample(sample);
+            selectSample(sample);
+            forward();
+        }
+    }
+
+    /**
+     * Backward pass for all samples in a batch. Weight changes of all samples are
+     * added up, like in batch mode training, so this can be used only in batch mode.
+     * Processes samples one by one, layers which can process the whole batch
+     * at once (using matrix multiplication) override this.
+     *
+     * @param count number of samples in a batch
+     * @throws IllegalStateException if layer is not in batch mode
+     */
+    public void backwardBatch(int count) {
+        checkBatchMode();
+        for (int sample = 0; sample < count; sample++) {
+            prevLayer.selectSample(sample);
+            selectSample(sample);
+            if (nextLayer != null) {
+                nextLayer.selectSample(sample);
+            }
+            backward();
+        }
+    }
+
+    protected final void checkBatchMode() {
+        if (!batchMode) {
+            throw new IllegalStateException("Backward pass for a batch can be used only in batch mode");
+        }
+    }
+
+    /**
+     * Adds weighted sum of inputs to outputs for all samples in a batch, for layers
+     * with 2D weights [inputs][outputs]: outputs[samples] += inputs[samples] * weights
+     *
+     * @param count number of samples in a batch
+     */
+    protected final void addWeightedInputs(final int count) {
+        prevLayer.selectSample(0);
+        selectSample(0);
+        final int outCols = outputs.getCols();
+        final int inCols = inputs.getCols();
+        LinearAlgebra.sgemm(false, false, count, outCols, inCols, 1, inputs.getValues(), inputs.getOffset(), inCols,
+                            weights.getValues(), weights.getOffset(), outCols, 1, outputs.getValues(), outputs.getOffset(), outCols);
+    }
+
+    /**
+     * Calculates gradients for 2D weights [inputs][outputs] summed over all samples
+     * in a batch, and adds SGD weight changes to deltaWeights:
+     * gradients = transposed(inputs[samples]) * deltas[samples]
+     *
+     * @param count number of samples in a batch
+     */
+    protected final void addDeltaWeights(final int count) {
+        prevLayer.selectSample(0);
+        selectSample(0);
+        final int outCols = deltas.getCols();
+        final int inCols = inputs.getCols();
+        LinearAlgebra.sgemm(true, false, inCols, outCols, count, 1, inputs.getValues(), inputs.getOffset(), inCols,
+                            deltas.getValues(), deltas.getOffset(), outCols, 0, gradients.getValues(), gradients.getOffset(), outCols);
+        Kernels.axpy(-learningRate, gradients.getValues(), gradients.getOffset(), deltaWeights.getValues(), deltaWeights.getOffset(), inCols * outCols);
+    }
+
+    /**
+     * Adds SGD bias changes for all samples in a batch to deltaBiases.
+     *
+     * @param count number of samples in a batch
+     */
+    protected final void addDeltaBiases(final int count) {
+        selectSample(0);
+        final float[] deltaVals = deltas.getValues();
+        final int deltaOff = deltas.getOffset();
+        final int outCols = deltas.getCols();
+        for (int sample = 0; sample < count; sample++) {
+            for (int outCol = 0; outCol < outCols; outCol++) {
+                deltaBiases[outCol] += Optimizers.sgd(learningRate, deltaVals[deltaOff + sample * outCols + outCol]);
+            }
+        }
+    }
+
+    protected static void closeAll(Tensor... tensors) {
+        for (Tensor t : tensors) {
+            if (t != null) {
+                t.close();
+            }
+        }
+    }
+
     public float getL1Norm() {
         return weights.sumAbs();
     }
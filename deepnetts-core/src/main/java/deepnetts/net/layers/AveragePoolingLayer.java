@@ -0,0 +1,235 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.util.Tensor;
+
+/**
+ * This class represents Average Pooling layer in convolutional neural network.
+ * This layer is downsizing output from prev layer by taking average of outputs from small predefined filter areas.
+ * Unlike max pooling, all inputs in filter area get equal share of the delta in backward pass,
+ * so nothing has to be remembered from forward pass.
+ *
+ * @author Zoran Sevarac
+ */
+public class AveragePoolingLayer extends AbstractLayer {
+
+    /**
+     * Filter dimensions.
+     *
+     * Commonly used 2x2 with stride 2
+     */
+    final int filterWidth, filterHeight;
+
+    /**
+     * Filter step.
+     *
+     * Commonly used 2
+     */
+    final int stride;
+
+    /**
+     * Share of each input in the average, 1 / (filterWidth * filterHeight).
+     */
+    private final float scale;
+
+    /**
+     * Creates a new average pooling layer with specified filter dimensions and stride.
+     *
+     * @param filterWidth width of the filter square
+     * @param filterHeight height of the filter square
+     * @param stride filter step
+     */
+    public AveragePoolingLayer(int filterWidth, int filterHeight, int stride) {
+        if (filterWidth < 1 || filterHeight < 1 || stride < 1) {
+            throw new IllegalArgumentException("Filter dimensions and stride must be positive!");
+        }
+        this.filterWidth = filterWidth;
+        this.filterHeight = filterHeight;
+        this.stride = stride;
+        this.scale = 1f / (filterWidth * filterHeight);
+    }
+
+    @Override
+    final public void init() {
+        // average pooling layer can be only after Convolutional Layer
+        if (!(prevLayer instanceof ConvolutionalLayer || prevLayer instanceof GroupedConvolutionalLayer)) throw new RuntimeException("Illegal network architecture! AveragePooling can be only after convolutional layer!");
+
+        inputs = prevLayer.outputs;
+
+        width = (inputs.getCols() - filterWidth) / stride + 1;
+        height = (inputs.getRows() - filterHeight) / stride + 1;
+        depth = prevLayer.getDepth(); // depth of pooling layer is always same as in previous convolutional layer
+
+        outputs = createTensor(layout, depth, height, width);
+        deltas = createAccumulatorTensor(layout, depth, height, width);
+    }
+
+    /**
+     * Average pooling forward pass outputs the average value for each filter position.
+     */
+    @Override
+    public void forward() {
+        if (GemmConvolution.isNchwArray(inputs) && GemmConvolution.isNchwArray(outputs)) {
+            for (int ch = 0; ch < depth; ch++) {
+                forwardChannel(ch);
+            }
+            return;
+        }
+
+        for (int ch = 0; ch < depth; ch++) {
+            for (int outRow = 0; outRow < height; outRow++) {
+                for (int outCol = 0; outCol < width; outCol++) {
+                    final int inRow = outRow * stride, inCol = outCol * stride;
+                    float sum = 0;
+                    for (int fr = 0; fr < filterHeight; fr++) {
+                        for (int fc = 0; fc < filterWidth; fc++) {
+                            sum += inputs.get(inRow + fr, inCol + fc, ch);
+                        }
+                    }
+                    outputs.set(outRow, outCol, ch, sum * scale);
+                }
+            }
+        }
+    }
+
+    /**
+     * Average pooling of channel ch, with inputs and outputs in NCHW heap arrays.
+     * Common 2x2 filter with stride 2 adds two pairs of consecutive inputs from two input rows.
+     */
+    private void forwardChannel(final int ch) {
+        final float[] in = inputs.getValues();
+        final float[] out = outputs.getValues();
+        final int inCols = inputs.getCols();
+        final int inPlane = inputs.getOffset() + ch * inputs.getRows() * inCols;
+        final int outPlane = outputs.getOffset() + ch * height * width;
+
+        if (filterWidth == 2 && filterHeight == 2 && stride == 2) {
+            for (int outRow = 0; outRow < height; outRow++) {
+                final int row0 = inPlane + 2 * outRow * inCols;
+                final int row1 = row0 + inCols;
+                final int outIdx = outPlane + outRow * width;
+                for (int outCol = 0; outCol < width; outCol++) {
+                    final int c = 2 * outCol;
+                    out[outIdx + outCol] = (in[row0 + c] + in[row0 + c + 1] + in[row1 + c] + in[row1 + c + 1]) * scale;
+                }
+            }
+            return;
+        }
+
+        for (int outRow = 0; outRow < height; outRow++) {
+            final int outIdx = outPlane + outRow * width;
+            for (int outCol = 0; outCol < width; outCol++) {
+                final int first = inPlane + outRow * stride * inCols + outCol * stride;
+                float sum = 0;
+                for (int fr = 0; fr < filterHeight; fr++) {
+                    final int rowIdx = first + fr * inCols;
+                    for (int fc = 0; fc < filterWidth; fc++) {
+                        sum += in[rowIdx + fc];
+                    }
+                }
+                out[outIdx + outCol] = sum * scale;
+            }
+        }
+    }
+
+    /**
+     * Takes deltas from next layer. Previous convolutional layer then spreads them
+     * over its outputs, using {@link #backwardInputs(Tensor)}.
+     */
+    @Override
+    public void backward() {
+        deltas.fill(0);
+        if (nextLayer instanceof FullyConnectedLayer) {
+            ((FullyConnectedLayer) nextLayer).backwardInputs(deltas);
+        } else if (nextLayer instanceof ConvolutionalLayer) {
+            ((ConvolutionalLayer) nextLayer).backwardInputs(deltas);
+        } else if (nextLayer instanceof GroupedConvolutionalLayer) {
+            ((GroupedConvolutionalLayer) nextLayer).backwardInputs(deltas);
+        } else if (nextLayer instanceof GlobalAveragePoolingLayer) {
+            ((GlobalAveragePoolingLayer) nextLayer).backwardInputs(deltas);
+        }
+    }
+
+    /**
+     * Spreads deltas of this layer evenly over the inputs in each filter area,
+     * and adds them to deltas of previous layer.
+     *
+     * @param inputDeltas deltas of previous layer
+     */
+    void backwardInputs(Tensor inputDeltas) {
+        if (GemmConvolution.isNchwArray(inputDeltas) && GemmConvolution.isNchwArray(deltas)) {
+            final float[] inDeltaVals = inputDeltas.getValues();
+            final float[] deltaVals = deltas.getValues();
+            final int inCols = inputDeltas.getCols();
+            for (int ch = 0; ch < depth; ch++) {
+                final int inPlane = inputDeltas.getOffset() + ch * inputDeltas.getRows() * inCols;
+                final int deltaPlane = deltas.getOffset() + ch * height * width;
+                for (int dr = 0; dr < height; dr++) {
+                    for (int dc = 0; dc < width; dc++) {
+                        final float delta = deltaVals[deltaPlane + dr * width + dc] * scale;
+                        final int first = inPlane + dr * stride * inCols + dc * stride;
+                        for (int fr = 0; fr < filterHeight; fr++) {
+                            final int rowIdx = first + fr * inCols;
+                            for (int fc = 0; fc < filterWidth; fc++) {
+                                inDeltaVals[rowIdx + fc] += delta;
+                            }
+                        }
+                    }
+                }
+            }
+            return;
+        }
+
+        for (int ch = 0; ch < depth; ch++) {
+            for (int dr = 0; dr < height; dr++) {
+                for (int dc = 0; dc < width; dc++) {
+                    final float delta = deltas.get(dr, dc, ch) * scale;
+                    for (int fr = 0; fr < filterHeight; fr++) {
+                        for (int fc = 0; fc < filterWidth; fc++) {
+                            inputDeltas.add(dr * stride + fr, dc * stride + fc, ch, delta);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Does nothing for pooling layer since it does not have weights
+     */
+    @Override
+    public void applyWeightChanges() {    }
+
+    public int getFilterWidth() {
+        return filterWidth;
+    }
+
+    public int getFilterHeight() {
+        return filterHeight;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+}
@@ -0,0 +1,73 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+/**
+ * Algorithms used by convolutional layer to calculate convolution in forward and backward pass.
+ * Algorithm can be selected for each layer, since the fastest one depends on
+ * filter size, number of channels and size of the feature maps.
+ * All algorithms use the same filters, so algorithm can be changed at any time.
+ *
+ * @see ConvolutionalLayer#setAlgorithm(ConvolutionAlgorithm)
+ * @author Zoran Sevarac
+ */
+public enum ConvolutionAlgorithm {
+
+    /**
+     * Direct loops over filter positions. Works with all storage types and layouts.
+     */
+    DIRECT,
+
+    /**
+     * Input patches are unrolled into a matrix (im2col) so convolution becomes a
+     * single cache blocked matrix multiplication, for forward pass and both gradients.
+     * Requires heap storage and NCHW layout, otherwise direct loops are used.
+     */
+    GEMM,
+
+    /**
+     * Winograd fast convolution, F(2x2,3x3) or F(4x4,3x3), which needs 2.25 to 4 times less
+     * multiplications. Used for forward pass and deltas propagated to previous layer,
+     * while filter gradients are calculated with {@link #GEMM}.
+     * Only for 3x3 filters with stride 1, other layers use direct loops.
+     */
+    WINOGRAD,
+
+    /**
+     * Products of spectra of inputs and filters (FFT), for large filters where it takes
+     * less multiplications than other algorithms. Spectra of filters are cached until
+     * filters are changed. Used for forward pass and deltas propagated to previous layer,
+     * while filter gradients are calculated with {@link #GEMM}.
+     * Requires heap storage and NCHW layout, otherwise direct loops are used.
+     */
+    FFT,
+
+    /**
+     * Default, chooses algorithm by layer shape: {@link #FFT} for filters which are large
+     * compared to feature maps, {@link #WINOGRAD} for 3x3 filters with stride 1
+     * on feature maps with enough positions and channels, {@link #GEMM} for other layers
+     * on heap storage in NCHW layout, and {@link #DIRECT} otherwise.
+     * Network builder can instead measure all algorithms for each layer, see {@link ConvolutionTuner}.
+     */
+    AUTO
+
+}
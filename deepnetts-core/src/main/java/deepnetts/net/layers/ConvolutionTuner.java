@@ -0,0 +1,261 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.core.DeepNetts;
+import deepnetts.util.Parallel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the fastest convolution algorithm for a convolutional layer by running
+ * all algorithms supported by the layer on its actual shape, and measuring time of
+ * forward pass, backward pass and propagation of deltas to previous layer.
+ *
+ * Chosen algorithms are saved in a tuning cache file, with a key made of layer shape,
+ * storage, layout, number of threads and CPU, so each shape is measured only once on
+ * each machine. Cache file is ~/.deepnetts/convolution-tuning.properties, which can be
+ * changed with {@link #setCacheFile(Path)} or by starting JVM with -Ddeepnetts.tuning.cache=file.
+ *
+ * Used by {@link deepnetts.net.ConvolutionalNetwork.Builder#autoTune(boolean)} for all
+ * convolutional layers which do not have algorithm set.
+ *
+ * @see ConvolutionAlgorithm
+ * @author Zoran Sevarac
+ */
+public final class ConvolutionTuner {
+
+    /**
+     * Runs of each algorithm before measuring, so measured code is compiled by JIT.
+     */
+    private static final int WARMUP_RUNS = 2;
+
+    /**
+     * Measured runs of each algorithm, the fastest one is used.
+     */
+    private static final int RUNS = 3;
+
+    /**
+     * Algorithms which are this many times slower than the best one after the first
+     * run are not measured any more.
+     */
+    private static final int SLOWDOWN_LIMIT = 10;
+
+    private static Path cacheFile = defaultCacheFile();
+
+    private static Properties cache;
+
+    private static String cpu;
+
+    private static final Logger LOG = Logger.getLogger(DeepNetts.class.getName());
+
+    private ConvolutionTuner() { }
+
+    /**
+     * Sets algorithm of specified layer to the fastest algorithm for its shape, from the
+     * tuning cache if the shape was already measured on this machine, or by measuring
+     * all supported algorithms. Layer must be initialized and connected to other layers.
+     * Layer is used for measuring, so its outputs, deltas and delta weights are changed.
+     *
+     * @param layer convolutional layer to tune
+     * @return chosen algorithm
+     */
+    public static ConvolutionAlgorithm tune(ConvolutionalLayer layer) {
+        if (layer.filters == null) {
+            throw new IllegalStateException("Layer must be initialized before tuning");
+        }
+        final String key = cacheKey(layer);
+        ConvolutionAlgorithm best = cachedAlgorithm(key);
+        if (best == null) {
+            best = measure(layer);
+            saveAlgorithm(key, best);
+        }
+        layer.setAlgorithm(best);
+        return best;
+    }
+
+    /**
+     * Measures all algorithms supported by the layer and returns the fastest one.
+     */
+    private static ConvolutionAlgorithm measure(ConvolutionalLayer layer) {
+        ConvolutionAlgorithm best = ConvolutionAlgorithm.DIRECT;
+        long bestTime = Long.MAX_VALUE;
+        final StringBuilder times = new StringBuilder();
+
+        for (ConvolutionAlgorithm algorithm : ConvolutionAlgorithm.values()) {
+            if (algorithm == ConvolutionAlgorithm.AUTO) continue;
+            layer.setAlgorithm(algorithm);
+            if (layer.getUsedAlgorithm() != algorithm) continue; // not supported by this layer, falls back to direct
+
+            long time = run(layer);
+            if (bestTime == Long.MAX_VALUE || time < bestTime * SLOWDOWN_LIMIT) {
+                for (int i = 1; i < WARMUP_RUNS; i++) {
+                    run(layer);
+                }
+                for (int i = 0; i < RUNS; i++) {
+                    time = Math.min(time, run(layer));
+                }
+            }
+            times.append(' ').append(algorithm).append('=').append(time / 1000).append("us");
+            if (time < bestTime) {
+                bestTime = time;
+                best = algorithm;
+            }
+        }
+
+        LOG.log(Level.INFO, "Convolution {0}: {1} ({2} )", new Object[]{shape(layer), best, times});
+        return best;
+    }
+
+    /**
+     * Runs single forward and backward pass of the layer, and returns its duration in nanoseconds.
+     * Previous convolutional, grouped convolutional or max pooling layer uses algorithm of this layer to get its deltas,
+     * so its backward pass is included too.
+     */
+    private static long run(ConvolutionalLayer layer) {
+        final AbstractLayer prevLayer = layer.getPrevlayer();
+        final boolean prevBackward = prevLayer instanceof ConvolutionalLayer || prevLayer instanceof GroupedConvolutionalLayer || prevLayer instanceof MaxPoolingLayer || prevLayer instanceof AveragePoolingLayer;
+        final long start = System.nanoTime();
+        layer.forward();
+        layer.backward();
+        if (prevBackward) {
+            prevLayer.backward();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Sets file used as tuning cache.
+     *
+     * @param file cache file, or null to always measure algorithms
+     */
+    public static synchronized void setCacheFile(Path file) {
+        cacheFile = file;
+        cache = null;
+    }
+
+    public static synchronized Path getCacheFile() {
+        return cacheFile;
+    }
+
+    private static Path defaultCacheFile() {
+        final String file = System.getProperty("deepnetts.tuning.cache");
+        if (file != null) {
+            return file.isEmpty() ? null : Paths.get(file);
+        }
+        return Paths.get(System.getProperty("user.home"), ".deepnetts", "convolution-tuning.properties");
+    }
+
+    private static synchronized ConvolutionAlgorithm cachedAlgorithm(String key) {
+        final String value = cache().getProperty(key);
+        if (value != null) {
+            try {
+                return ConvolutionAlgorithm.valueOf(value);
+            } catch (IllegalArgumentException ex) {
+                // unknown algorithm, from other version, layer is measured again
+            }
+        }
+        return null;
+    }
+
+    private static synchronized void saveAlgorithm(String key, ConvolutionAlgorithm algorithm) {
+        cache().setProperty(key, algorithm.name());
+        if (cacheFile == null) return;
+
+        try {
+            if (cacheFile.getParent() != null) {
+                Files.createDirectories(cacheFile.getParent());
+            }
+            try (OutputStream out = Files.newOutputStream(cacheFile)) {
+                cache.store(out, "DeepNetts convolution algorithms for layer shapes and CPUs");
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Could not save convolution tuning cache to " + cacheFile, ex);
+        }
+    }
+
+    /**
+     * Returns cached algorithms, and loads them from cache file on first use.
+     * Cache which can not be read is ignored, so algorithms are measured again.
+     */
+    private static Properties cache() {
+        if (cache == null) {
+            cache = new Properties();
+            if (cacheFile != null && Files.isReadable(cacheFile)) {
+                try (InputStream in = Files.newInputStream(cacheFile)) {
+                    cache.load(in);
+                } catch (IOException | IllegalArgumentException ex) {
+                    LOG.log(Level.WARNING, "Could not read convolution tuning cache " + cacheFile, ex);
+                }
+            }
+        }
+        return cache;
+    }
+
+    private static String cacheKey(ConvolutionalLayer layer) {
+        return shape(layer) + " " + layer.storageType + " " + layer.layout + " threads=" + Parallel.getThreadCount() + " cpu=" + cpu();
+    }
+
+    /**
+     * Returns layer shape: inputs, filters, stride and number of channels.
+     */
+    private static String shape(ConvolutionalLayer layer) {
+        return layer.inputs.getDepth() + "x" + layer.inputs.getRows() + "x" + layer.inputs.getCols()
+                + " filter=" + layer.filterWidth + "x" + layer.filterHeight + " stride=" + layer.stride
+                + " channels=" + layer.depth;
+    }
+
+    /**
+     * Returns CPU model with architecture and number of cores, so cache can be shared between machines.
+     */
+    private static synchronized String cpu() {
+        if (cpu == null) {
+            String model = System.getenv("PROCESSOR_IDENTIFIER"); // windows
+            final Path cpuInfo = Paths.get("/proc/cpuinfo"); // linux
+            if (model == null && Files.isReadable(cpuInfo)) {
+                try {
+                    final List<String> lines = Files.readAllLines(cpuInfo, StandardCharsets.UTF_8);
+                    for (String line : lines) {
+                        if (line.startsWith("model name")) {
+                            model = line.substring(line.indexOf(':') + 1).trim();
+                            break;
+                        }
+                    }
+                } catch (IOException ex) {
+                    // model is not known, architecture and cores are used
+                }
+            }
+            cpu = (model != null ? model + " " : "") + System.getProperty("os.arch") + " cores=" + Runtime.getRuntime().availableProcessors();
+        }
+        return cpu;
+    }
+
+}
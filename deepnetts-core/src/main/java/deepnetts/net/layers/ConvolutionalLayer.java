@@ -24,10 +24,20 @@ package deepnetts.net.layers;
 import deepnetts.net.layers.activation.ActivationFunctions;
 import deepnetts.net.layers.activation.ActivationType;
 import deepnetts.core.DeepNetts;
+import deepnetts.net.train.opt.OptimizerType;
 import deepnetts.net.train.opt.Optimizers;
 import deepnetts.util.DeepNettsException;
+import deepnetts.util.Layout;
+import deepnetts.util.Parallel;
+import deepnetts.util.QuantizedStorage;
+import deepnetts.util.StorageType;
 import deepnetts.util.WeightsInit;
 import deepnetts.util.Tensor;
+import deepnetts.util.TensorPool;
+import deepnetts.util.TensorIO;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Logger;
 import deepnetts.net.layers.activation.ActivationFunction;
 
@@ -78,6 +88,37 @@ public class ConvolutionalLayer extends AbstractLayer {
     
     int fCenterX; //  padding = (kernel-1)/2
     int fCenterY;    
+
+    /**
+     * Size of specialized direct convolution kernel chosen by filter size and stride, 0 for generic loops.
+     */
+    int directKernel;
+
+    /**
+     * Inputs converted to NHWC layout, when previous layer uses NCHW layout and this layer uses NHWC.
+     */
+    private transient Tensor nhwcInputs;
+
+    /**
+     * Scale and zero point used to quantize inputs, when filters are quantized to int8.
+     */
+    private float inputScale;
+    private int inputZeroPoint;
+
+    /**
+     * Quantized inputs minus zero point, [depth][row][col].
+     */
+    private transient int[] quantizedInputs;
+
+    /**
+     * Algorithm used to calculate convolution, chosen by layer shape if not set.
+     */
+    private ConvolutionAlgorithm algorithm;
+
+    /**
+     * FFT convolution with cached filter spectra, created on first use.
+     */
+    private transient FftConvolution fft;
     
     
     private static Logger LOG = Logger.getLogger(DeepNetts.class.getName());
@@ -129,7 +170,7 @@ public class ConvolutionalLayer extends AbstractLayer {
     @Override
     public void init() {
         // prev layer can only be input, max pooling or convolutional   
-        if (!(prevLayer instanceof InputLayer || prevLayer instanceof ConvolutionalLayer || prevLayer instanceof MaxPoolingLayer)) {
+        if (!(prevLayer instanceof InputLayer || prevLayer instanceof ConvolutionalLayer || prevLayer instanceof GroupedConvolutionalLayer || prevLayer instanceof MaxPoolingLayer || prevLayer instanceof AveragePoolingLayer)) {
             throw new DeepNettsException("Illegal architecture: convolutional layer can be used only after input, convolutional or maxpooling layer");
         }
         
@@ -141,10 +182,11 @@ public class ConvolutionalLayer extends AbstractLayer {
 
         fCenterX = (filterWidth-1) / 2; //  padding = filter /2
         fCenterY = (filterHeight-1) / 2;                
+        directKernel = DirectConvolution.kernelFor(filterWidth, filterHeight, stride);
         
         // init output cells, deltas and derivative buffer
-        outputs = new Tensor(height, width,  depth);
-        deltas = new Tensor(height, width, depth);
+        outputs = createTensor(layout, depth, height, width);
+        deltas = createAccumulatorTensor(layout, depth, height, width);
 //        derivatives = new Tensor(height, width, depth);
 
         // init filters(weights) - broj filtera je isti kao i broj kanala/dubina prethodnog lejera
@@ -156,10 +198,10 @@ public class ConvolutionalLayer extends AbstractLayer {
         
         // kreiraj pojedinacne filtere ovde
         for (int ch = 0; ch < filters.length; ch++) {
-            filters[ch] = new Tensor(filterHeight, filterWidth, filterDepth);
-            WeightsInit.uniform(filters[ch].getValues(), inputCount); // vidi koji algoritam da koristim ovde: uzmi u obzir broj kanala i dimenzije filtera pa da im suma bude 1 ili sl. neka gausova distribucija... 
+            filters[ch] = createTensor(layout, filterDepth, filterHeight, filterWidth);
+            WeightsInit.uniform(filters[ch], inputCount); // vidi koji algoritam da koristim ovde: uzmi u obzir broj kanala i dimenzije filtera pa da im suma bude 1 ili sl. neka gausova distribucija... 
 
-            deltaWeights[ch] = new Tensor(filterHeight, filterWidth, filterDepth);
+            deltaWeights[ch] = createAccumulatorTensor(layout, filterDepth, filterHeight, filterWidth);
         }
 
         // and biases               // svaki kanal ima svoj filter i svoj bias - sta ako prethodni sloj ima vise biasa? mislim da bi tada svaki filter trebalo da ima svoj bias ovo bi znaci trebalo da bude 2D biases[depth][prevLayerDepth]
@@ -180,43 +222,316 @@ public class ConvolutionalLayer extends AbstractLayer {
      */
     @Override
     public void forward() {
-        
-        // paralelieze this external loop - channels
-        for (int ch = 0; ch < this.depth; ch++) {
-            int outR = 0, outC = 0; // reset indexes for current output's row and col
- 
-            for (int inR = 0; inR < inputs.getRows(); inR += stride) { // iterate all input rows
-                outC = 0; // every time when input goes in next row, output does too, so reset column idx
-
-                for (int inC = 0; inC < inputs.getCols(); inC += stride) { // iterate all input cols
-                   outputs.set(outR, outC, ch, biases[ch]); // sum will be added to bias - I can set entire matrix to bias initial values  above
-
-                    // apply filter to all channnels in previous layer                     
-                    for (int fz = 0; fz < filterDepth; fz++) { // iterate filter by depth - all input channels (in previous layer) 
-                        for (int fr = 0; fr < filterHeight; fr++) { // iterate filter by height/rows
-                            for (int fc = 0; fc < filterWidth; fc++) { // iterate filter by width / columns                        
-                                final int cr = inR + (fr - fCenterY); // convolved row idx 
-                                final int cc = inC + (fc - fCenterX); // convolved col idx
-
-                                // skip input indexes which are out of bounds
-                                if (cr < 0 || cr >= inputs.getRows() || cc < 0 || cc >= inputs.getCols()) continue;
-                               
-                                final float out = inputs.get(cr, cc, fz) * filters[ch].get(fr, fc, fz); // output of a single conv filter cell
-                                outputs.add(outR, outC, ch, out); // accumulate filters from all channels
+        if (isQuantized()) {
+            forwardQuantized();
+            return;
+        }
+        switch (getUsedAlgorithm()) {
+            case GEMM:
+                GemmConvolution.forward(this);
+                return;
+            case WINOGRAD:
+                WinogradConvolution.forward(this);
+                return;
+            case FFT:
+                fft().forward();
+                return;
+        }
+        if (layout == Layout.NHWC && isNhwcArray(outputs) && isNhwcArray(filters[0])) {
+            forwardNhwc();
+            return;
+        }
+
+        // channels and tiles of output rows are independent, so they are calculated in parallel
+        final MaxPoolingLayer pooling = isPoolingFused() ? (MaxPoolingLayer) nextLayer : null;
+        if (DirectConvolution.isSupported(this)) {
+            forEachTile(depth, pooling, (ch, fromRow, toRow) -> DirectConvolution.forward(this, ch, fromRow, toRow));
+        } else {
+            forEachTile(depth, pooling, this::forwardDirect);
+        }
+    }
+
+    /**
+     * Returns true if the next max pooling layer is calculated in forward pass of this layer,
+     * for each tile of output rows right after it is calculated, while it is still in cache.
+     * Used for direct convolution, when pooling filter positions do not overlap.
+     *
+     * @return true if this layer also calculates outputs of the next max pooling layer
+     */
+    boolean isPoolingFused() {
+        if (!(nextLayer instanceof MaxPoolingLayer) || !((MaxPoolingLayer) nextLayer).isFusable()) {
+            return false;
+        }
+        return isQuantized() || getUsedAlgorithm() == ConvolutionAlgorithm.DIRECT && !(layout == Layout.NHWC && isNhwcArray(outputs) && isNhwcArray(filters[0]));
+    }
+
+    /**
+     * Forward pass for all samples in a batch. When the next max pooling layer is calculated
+     * together with this layer, its outputs are switched to the same sample too.
+     *
+     * @param count number of samples in a batch
+     */
+    @Override
+    public void forwardBatch(int count) {
+        if (!isPoolingFused()) {
+            super.forwardBatch(count);
+            return;
+        }
+        for (int sample = 0; sample < count; sample++) {
+            prevLayer.selectSample(sample);
+            selectSample(sample);
+            nextLayer.selectSample(sample);
+            forward();
+        }
+    }
+
+    /**
+     * Direct convolution for the specified channel and output rows [fromRow, toRow).
+     */
+    private void forwardDirect(final int ch, final int fromRow, final int toRow) {
+        final int inRows = inputs.getRows();
+        final int inCols = inputs.getCols();
+
+        for (int outR = fromRow; outR < toRow; outR++) { // iterate output rows
+            final int inR = outR * stride; // every time output goes to next row, input moves for stride rows
+            // filter rows which are over inputs, all of them in the interior and less at the border (padding)
+            final int frStart = Math.max(0, fCenterY - inR);
+            final int frEnd = Math.min(filterHeight, inRows - inR + fCenterY);
+
+            for (int outC = 0; outC < width; outC++) { // iterate output cols
+                final int inC = outC * stride; // input col under filter center
+                float sum = biases[ch]; // sum will be added to bias, accumulated in float and stored once
+                final int fcStart = Math.max(0, fCenterX - inC);
+                final int fcEnd = Math.min(filterWidth, inCols - inC + fCenterX);
+
+                // apply filter to all channnels in previous layer                     
+                for (int fz = 0; fz < filterDepth; fz++) { // iterate filter by depth - all input channels (in previous layer) 
+                    for (int fr = frStart; fr < frEnd; fr++) { // iterate filter by height/rows
+                        final int cr = inR + (fr - fCenterY); // convolved row idx 
+                        for (int fc = fcStart; fc < fcEnd; fc++) { // iterate filter by width / columns                        
+                            final int cc = inC + (fc - fCenterX); // convolved col idx
+                            final float out = inputs.get(cr, cc, fz) * filters[ch].get(fr, fc, fz); // output of a single conv filter cell
+                            sum += out; // accumulate filters from all channels
+                        }
+                    }
+                }
+                
+                // apply activation function
+                final float out = ActivationFunctions.calc(activationType, sum);
+                outputs.set(outR, outC, ch, out);
+            }
+        }
+    }
+
+    /**
+     * Runs task for each channel and tile of output rows, in multiple threads if the
+     * layer is big enough (see {@link Parallel}). Outputs of different tasks never overlap,
+     * so each output is calculated exactly as in a single thread.
+     *
+     * @param channels number of channels, 1 for tasks which calculate all channels
+     * @param pooling next max pooling layer calculated for each tile after the task, or null
+     * @param task task which calculates outputs for channel and rows [fromRow, toRow)
+     */
+    private void forEachTile(final int channels, final MaxPoolingLayer pooling, final TileTask task) {
+        final TileTask tileTask = pooling == null ? task : (ch, fromRow, toRow) -> {
+            task.run(ch, fromRow, toRow);
+            pooling.forwardFused(ch, fromRow, toRow);
+        };
+        if (!isParallel()) {
+            for (int ch = 0; ch < channels; ch++) {
+                tileTask.run(ch, 0, height);
+            }
+            return;
+        }
+
+        // a few tasks per thread, so threads are balanced when channels are not divisible by threads
+        final int tiles = Math.max(1, Math.min(height, (4 * Parallel.getThreadCount() + channels - 1) / channels));
+        final int rowStep = pooling != null ? pooling.stride : 1; // pooling filter positions are not split between tiles
+        final int tileRows = ((height + tiles - 1) / tiles + rowStep - 1) / rowStep * rowStep;
+        Parallel.forEach(channels * tiles, (i) -> {
+            final int fromRow = (i % tiles) * tileRows;
+            if (fromRow < height) {
+                tileTask.run(i / tiles, fromRow, Math.min(height, fromRow + tileRows));
+            }
+        });
+    }
+
+    /**
+     * Returns true if passes of this layer should use multiple threads, which
+     * depends on the number of multiply-adds in a single pass.
+     */
+    private boolean isParallel() {
+        final long work = (long) depth * height * width * filterDepth * filterHeight * filterWidth;
+        return Parallel.getThreadCount() > 1 && Parallel.isParallel((int) Math.min(work, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Calculates outputs of a single channel for a range of output rows.
+     */
+    @FunctionalInterface
+    private interface TileTask {
+        void run(int ch, int fromRow, int toRow);
+    }
+
+    /**
+     * Forward pass for NHWC layout. For each output position all input channels
+     * at each filter position are consecutive, both in inputs and in filters,
+     * so the innermost loop goes over consecutive values.
+     * Inputs in NCHW layout are converted first.
+     */
+    private void forwardNhwc() {
+        final Tensor in = nhwcInputs();
+        // all channels of an output position are calculated together, so tasks are only tiles of rows
+        forEachTile(1, null, (ch, fromRow, toRow) -> forwardNhwc(in, fromRow, toRow));
+    }
+
+    private void forwardNhwc(final Tensor in, final int fromRow, final int toRow) {
+        final float[] inVals = in.getValues();
+        final int inOff = in.getOffset();
+        final int inRows = in.getRows();
+        final int inCols = in.getCols();
+        final float[] outVals = outputs.getValues();
+        final int outOff = outputs.getOffset();
+
+        for (int outR = fromRow; outR < toRow; outR++) {
+            final int inR = outR * stride;
+            final int frStart = Math.max(0, fCenterY - inR);
+            final int frEnd = Math.min(filterHeight, inRows - inR + fCenterY);
+            for (int outC = 0; outC < width; outC++) {
+                final int inC = outC * stride;
+                final int fcStart = Math.max(0, fCenterX - inC);
+                final int fcEnd = Math.min(filterWidth, inCols - inC + fCenterX);
+                final int outIdx = outOff + (outR * width + outC) * depth;
+
+                for (int ch = 0; ch < depth; ch++) {
+                    final float[] fVals = filters[ch].getValues();
+                    final int fOff = filters[ch].getOffset();
+                    float sum = biases[ch];
+
+                    for (int fr = frStart; fr < frEnd; fr++) {
+                        final int cr = inR + (fr - fCenterY);
+                        for (int fc = fcStart; fc < fcEnd; fc++) {
+                            final int cc = inC + (fc - fCenterX);
+                            final int inIdx = inOff + (cr * inCols + cc) * filterDepth;
+                            final int fIdx = fOff + (fr * filterWidth + fc) * filterDepth;
+                            for (int fz = 0; fz < filterDepth; fz++) {
+                                sum += inVals[inIdx + fz] * fVals[fIdx + fz];
                             }
                         }
                     }
-                    
-                    // apply activation function
-                    final float out = ActivationFunctions.calc(activationType, outputs.get(outR, outC, ch));
-                    outputs.set(outR, outC, ch, out);
-                    outC++; // move to next col in out layer after each filter position
+                    outVals[outIdx + ch] = ActivationFunctions.calc(activationType, sum);
                 }
-                outR++; // every time input goes to next row, output does too
             }
         }
     }
 
+    /**
+     * Quantizes filters of this layer to int8 with a scale for each filter, so forward pass
+     * uses int8 filters and inputs with int32 sums. Inputs are quantized with specified
+     * scale and zero point, calibrated for the range of outputs of previous layer.
+     * Quantized layer can be used only for inference.
+     *
+     * @param inputScale scale used to quantize inputs
+     * @param inputZeroPoint quantized value of zero input
+     * @see deepnetts.net.Quantizer
+     */
+    public void quantize(float inputScale, int inputZeroPoint) {
+        this.inputScale = inputScale;
+        this.inputZeroPoint = inputZeroPoint;
+        for (Tensor filter : filters) {
+            filter.quantize(1, filter.size());
+        }
+    }
+
+    /**
+     * Returns true if filters of this layer are quantized to int8.
+     *
+     * @return true if layer is quantized
+     */
+    public boolean isQuantized() {
+        return filters[0].getStorageType() == StorageType.INT8;
+    }
+
+    /**
+     * Forward pass with int8 filters and inputs, which accumulates sums for
+     * each output as int32 and scales them back to float once.
+     */
+    private void forwardQuantized() {
+        final int inRows = inputs.getRows();
+        final int inCols = inputs.getCols();
+        if (quantizedInputs == null) {
+            quantizedInputs = new int[inputs.size()];
+        }
+        final int[] in = quantizedInputs;
+        for (int inZ = 0; inZ < filterDepth; inZ++) {
+            for (int inR = 0; inR < inRows; inR++) {
+                for (int inC = 0; inC < inCols; inC++) {
+                    in[(inZ * inRows + inR) * inCols + inC] = QuantizedStorage.quantize(inputs.get(inR, inC, inZ), inputScale, inputZeroPoint) - inputZeroPoint;
+                }
+            }
+        }
+
+        forEachTile(depth, isPoolingFused() ? (MaxPoolingLayer) nextLayer : null, this::forwardQuantized);
+    }
+
+    /**
+     * Quantized convolution for the specified channel and output rows [fromRow, toRow),
+     * once inputs are quantized.
+     */
+    private void forwardQuantized(final int ch, final int fromRow, final int toRow) {
+        final int inRows = inputs.getRows();
+        final int inCols = inputs.getCols();
+        final int[] in = quantizedInputs;
+        final QuantizedStorage qFilter = (QuantizedStorage) filters[ch].getStorage();
+        final byte[] filterVals = qFilter.getRawValues();
+        final float scale = inputScale * qFilter.getScales()[0];
+        final int[] strides = filters[ch].getStrides(); // [depth, rows, cols] in any layout
+
+        for (int outR = fromRow; outR < toRow; outR++) {
+            final int inR = outR * stride;
+            final int frStart = Math.max(0, fCenterY - inR); // zero padding is zero point, which adds nothing
+            final int frEnd = Math.min(filterHeight, inRows - inR + fCenterY);
+            for (int outC = 0; outC < width; outC++) {
+                final int inC = outC * stride;
+                final int fcStart = Math.max(0, fCenterX - inC);
+                final int fcEnd = Math.min(filterWidth, inCols - inC + fCenterX);
+                int sum = 0;
+                for (int fz = 0; fz < filterDepth; fz++) {
+                    for (int fr = frStart; fr < frEnd; fr++) {
+                        final int cr = inR + (fr - fCenterY);
+                        for (int fc = fcStart; fc < fcEnd; fc++) {
+                            final int cc = inC + (fc - fCenterX);
+                            sum += in[(fz * inRows + cr) * inCols + cc] * filterVals[fz * strides[0] + fr * strides[1] + fc * strides[2]];
+                        }
+                    }
+                }
+                outputs.set(outR, outC, ch, ActivationFunctions.calc(activationType, biases[ch] + scale * sum));
+            }
+        }
+    }
+
+    /**
+     * Returns inputs in NHWC layout, converting them if previous layer uses other layout.
+     */
+    private Tensor nhwcInputs() {
+        if (isNhwcArray(inputs)) {
+            return inputs;
+        }
+        if (nhwcInputs == null) {
+            nhwcInputs = Tensor.create(StorageType.HEAP, Layout.NHWC, inputs.getDepth(), inputs.getRows(), inputs.getCols());
+        }
+        Tensor.copy(inputs, nhwcInputs);
+        return nhwcInputs;
+    }
+
+    /**
+     * Returns true if tensor values are in heap array in NHWC order,
+     * which is also the case for NCHW tensors with a single channel.
+     */
+    static boolean isNhwcArray(final Tensor t) {
+        return t.hasArray() && (t.getLayout() == Layout.NHWC || (t.getDepth() == 1 && t.isContiguous()));
+    }
+
     /**
      * Backward pass for convolutional layer tweaks the weights in filters.
      * 
@@ -233,6 +548,9 @@ public class ConvolutionalLayer extends AbstractLayer {
      */
     @Override
     public void backward() {
+        if (isQuantized()) {
+            throw new IllegalStateException("Quantized layer can be used only for inference");
+        }
         if (nextLayer instanceof FullyConnectedLayer) { 
             backwardFromFullyConnected();
         }
@@ -245,98 +563,174 @@ public class ConvolutionalLayer extends AbstractLayer {
             // NOTE: average weights for the filter and biases? - koliko ima pozicija i kanala??? negde sam procitao da treba da se sabiraju...
             backwardFromConvolutional(); 
         }
+
+        if (nextLayer instanceof GroupedConvolutionalLayer) {
+            deltas.fill(0);
+            ((GroupedConvolutionalLayer) nextLayer).backwardInputs(deltas);
+            multiplyDeltasByDerivatives();
+        }
+
+        if (nextLayer instanceof AveragePoolingLayer) {
+            deltas.fill(0);
+            ((AveragePoolingLayer) nextLayer).backwardInputs(deltas);
+            multiplyDeltasByDerivatives();
+        }
+
+        if (nextLayer instanceof GlobalAveragePoolingLayer) {
+            deltas.fill(0);
+            ((GlobalAveragePoolingLayer) nextLayer).backwardInputs(deltas);
+            multiplyDeltasByDerivatives();
+        }
+
+        calculateDeltaWeights();
     }
 
     /**
      * Backward pass when next layer is fully connected.
      * 
-     * Calculates deltas for this layer
-     * 
+     * Calculates deltas for this layer: weighted sum of deltas of the next layer,
+     * which sees outputs of this layer as flattened inputs, times derivative at outputs.
      */
     private void backwardFromFullyConnected() {
         deltas.fill(0); // reset deltas for all units
-
-        // todo : Ako je svaki sa svakim povezanost mozda ovo moze da se ovo odradi u manje petlji - tipa samo dve
-        for (int ch = 0; ch < this.depth; ch++) { // iteriraj sve kanale/feature mape u ovom lejeru - razbij kanale sa fork join frejmvorkom
-            
-            // 1. Propagate deltas from the next FC layer
-            for (int row = 0; row < this.height; row++) {
-                for (int col = 0; col < this.width; col++) {
-                    final float derivative = ActivationFunctions.prime(activationType, outputs.get(row, col, ch)); // dy/ds
-                    for (int ndC = 0; ndC < nextLayer.deltas.getCols(); ndC++) { // sledeci lejer delte po sirini/kolone posto je fully connected
-                        final float delta = nextLayer.deltas.get(ndC) * nextLayer.weights.get(col, row, ch, ndC) * derivative; // TODO: mnoziti sumu na kraju samo jednom optimizacija -mozda 
-                        deltas.add(row, col, ch, delta);
-                    }
-                }
-            } // end back propagate deltas
-            // ovd bi moglo da se mnozi sa derivative ovde da bi smanjio broj operacija?
-            // onda bi i ovo ispod moralo van ove petlje - ali ako je pparalelizuje po kanalima onda je ok
-                        
-            // 2. calculate weight changes for this layer
-            calculateDeltaWeights(ch); // kanali se mogu paralelizovati                   
-        } // end channel iterator        
+        ((FullyConnectedLayer) nextLayer).backwardInputs(deltas);
+        multiplyDeltasByDerivatives();
     }
 
     private void backwardFromMaxPooling() {
         final MaxPoolingLayer nextPoolLayer = (MaxPoolingLayer) nextLayer;
-        final int[][][][] maxIdx = nextPoolLayer.maxIdx; // uzmi index neurona koji je poslao max output na tekucu poziciju filtera
+        final int[] maxIdx = nextPoolLayer.maxIdx; // uzmi index neurona koji je poslao max output na tekucu poziciju filtera
+        final Tensor nextDeltas = nextLayer.deltas;
 
         deltas.fill(0); // reset all deltas
 
+        if (GemmConvolution.isNchwArray(deltas) && GemmConvolution.isNchwArray(outputs) && GemmConvolution.isNchwArray(nextDeltas)) {
+            final float[] deltaVals = deltas.getValues();
+            final float[] outVals = outputs.getValues();
+            final float[] nextDeltaVals = nextDeltas.getValues();
+            final int deltaOff = deltas.getOffset(), outOff = outputs.getOffset(), nextOff = nextDeltas.getOffset();
+            for (int i = 0; i < maxIdx.length; i++) { // max indexes are linear indexes of outputs (and deltas) of this layer
+                final int idx = maxIdx[i];
+                deltaVals[deltaOff + idx] = nextDeltaVals[nextOff + i] * ActivationFunctions.prime(activationType, outVals[outOff + idx]);
+            }
+            return;
+        }
+
+        final int ndRows = nextDeltas.getRows();
+        final int ndCols = nextDeltas.getCols();
         for (int ch = 0; ch < this.depth; ch++) {  // iteriraj sve kanale u ovom lejeru (to su automatski i kanali u sledem max pooling lejeru)
             // 1. Propagate deltas from next layer for max outputs from this layer
-            for (int dr = 0; dr < nextLayer.deltas.getRows(); dr++) { // sledeci lejer delte po visini
-                for (int dc = 0; dc < nextLayer.deltas.getCols(); dc++) { // sledeci lejer delte po sirini
+            for (int dr = 0; dr < ndRows; dr++) { // sledeci lejer delte po visini
+                for (int dc = 0; dc < ndCols; dc++) { // sledeci lejer delte po sirini
 
-                    final float nextLayerDelta = nextLayer.deltas.get(dr, dc, ch); // uzmi deltu iz sledeceg sloja za tekuci neuron sledeceg sloja
-                    final int maxR = maxIdx[ch][dr][dc][0];                    
-                    final int maxC = maxIdx[ch][dr][dc][1];
+                    final float nextLayerDelta = nextDeltas.get(dr, dc, ch); // uzmi deltu iz sledeceg sloja za tekuci neuron sledeceg sloja
+                    final int idx = maxIdx[(ch * ndRows + dr) * ndCols + dc] - ch * height * width; // index within channel
+                    final int maxR = idx / width;
+                    final int maxC = idx % width;
                     
                     final float derivative = ActivationFunctions.prime(activationType, outputs.get(maxR, maxC, ch));
                     deltas.set(maxR, maxC, ch, nextLayerDelta * derivative);
                 }
             } // end propagate deltas
-            
-            calculateDeltaWeights(ch);            
         } // end channel iterator    
     }
 
     private void backwardFromConvolutional() {
         ConvolutionalLayer nextConvLayer = (ConvolutionalLayer) nextLayer;
         deltas.fill(0); // reset all deltas in this layer (deltas are 3D)
-        int filterCenterX = (nextConvLayer.filterWidth - 1) / 2;
-        int filterCenterY = (nextConvLayer.filterHeight - 1) / 2;      
+
+        if (nextConvLayer.getUsedAlgorithm() != ConvolutionAlgorithm.DIRECT && GemmConvolution.isNchwArray(deltas)) {
+            nextConvLayer.backwardInputs(deltas);
+            multiplyDeltasByDerivatives();
+            return;
+        }
+
+        // filters of the next layer add deltas from all its channels to overlapping positions,
+        // so the work is split by channels of this layer: each task is the only one adding to its channel
+        if (nextConvLayer.isParallel()) {
+            Parallel.forEach(depth, (fz) -> backwardFromConvolutional(nextConvLayer, fz));
+        } else {
+            for (int fz = 0; fz < depth; fz++) {
+                backwardFromConvolutional(nextConvLayer, fz);
+            }
+        }
+    }
+
+    /**
+     * Propagates deltas from the next convolutional layer to the specified channel fz of this layer.
+     * Deltas of each position are added in the same order for any number of threads.
+     */
+    private void backwardFromConvolutional(final ConvolutionalLayer nextConvLayer, final int fz) {
+        if (DirectConvolution.isSupportedBackward(nextConvLayer, deltas)) {
+            final int size = outputs.getRows() * outputs.getCols();
+            final float[] outVals = outputs.getValues(); // next layer inputs, so outputs are NCHW array too
+            final int outOff = outputs.getOffset() + fz * size;
+            final TensorPool pool = TensorPool.local();
+            final float[] derivatives = pool.acquireArray(size);
+            try {
+                for (int i = 0; i < size; i++) {
+                    derivatives[i] = ActivationFunctions.prime(activationType, outVals[outOff + i]);
+                }
+                DirectConvolution.backwardInputs(nextConvLayer, fz, deltas, derivatives);
+            } finally {
+                pool.releaseArray(derivatives);
+            }
+            return;
+        }
+
+        final int filterCenterX = (nextConvLayer.filterWidth - 1) / 2;
+        final int filterCenterY = (nextConvLayer.filterHeight - 1) / 2;
+        final int rows = outputs.getRows();
+        final int cols = outputs.getCols();
 
         /// !!! Zasto u forward pasu imam 6 a u backward 7 loopova? - ako imam gz i ndZ da li mi treba ch ???
-       // for (int ch = 0; ch < this.depth; ch++) {  // iteriraj sve kanale/feature mape u ovom lejeru           
             // 1. Propagate deltas from next conv layer for max outputs from this layer            
-            for (int ndZ = 0; ndZ < nextLayer.deltas.getDepth(); ndZ++) { // iteriraj sve kanale sledeceg sloja - ovde se moze paralelizovati takodje!
+            for (int ndZ = 0; ndZ < nextLayer.deltas.getDepth(); ndZ++) { // iteriraj sve kanale sledeceg sloja
                 for (int ndRow = 0; ndRow < nextLayer.deltas.getRows(); ndRow++) { // iteriraj delte sledeceg lejera po visini
+                    final int rowBase = ndRow * nextConvLayer.stride - filterCenterY;
+                    final int frStart = Math.max(0, -rowBase); // filter rows over outputs of this layer
+                    final int frEnd = Math.min(nextConvLayer.filterHeight, rows - rowBase);
                     for (int ndCol = 0; ndCol < nextLayer.deltas.getCols(); ndCol++) { // iteriraj delte sledeceg lejera po sirini
                         final float nextLayerDelta = nextLayer.deltas.get(ndRow, ndCol, ndZ); // uzmi deltu iz sledeceg sloja za tekuci neuron (dx, dy, dz) sledeceg sloja, da li treba d ase sabiraju?
+                        final int colBase = ndCol * nextConvLayer.stride - filterCenterX;
+                        final int fcStart = Math.max(0, -colBase);
+                        final int fcEnd = Math.min(nextConvLayer.filterWidth, cols - colBase);
                         
-                        for (int fz = 0; fz < nextConvLayer.filterDepth; fz++) {    //!! pa da li je ovo isto kao i prvi loop - da li je dupliranje???!!! kao ovaj prvi ch!!! mislim da tu ima nepotrebnog preklapanja /dupliranja. kada filter ne bude iseo preko svih u prethodnom lejeru onda nece biti preklapanja
-                            for (int fr = 0; fr < nextConvLayer.filterHeight; fr++) {
-                                for (int fc = 0; fc < nextConvLayer.filterWidth; fc++) {
-                                    final int row = ndRow * nextConvLayer.stride + (fr - filterCenterY); // proveri da li ovo dobro racuna
-                                    final int col = ndCol * nextConvLayer.stride + (fc - filterCenterX);
-
-                                    if (row < 0 || row >= outputs.getRows() || col < 0 || col >= outputs.getCols()) continue;
-                                  
-                                    final float derivative = ActivationFunctions.prime(activationType, outputs.get(row, col, fz)); // ne pozivati ovu funkciju ovde u petlji  vec optimizovati nekako. Mnoziti van petlje nakon zavrsetka sabiranja. Izracunati izvode u jednom prolazu, pa onda mnoziti  ane za svaku celiju.     
-                                    //   ... ovde treba razjasniti kako se mnozi sa weightsomm? da li ih treba sabirati
-                                    deltas.add(row, col, fz, nextLayerDelta * nextConvLayer.filters[ndZ].get(fr, fc, fz) * derivative);
-                                }
+                        for (int fr = frStart; fr < frEnd; fr++) {
+                            final int row = rowBase + fr;
+                            for (int fc = fcStart; fc < fcEnd; fc++) {
+                                final int col = colBase + fc;
+                                final float derivative = ActivationFunctions.prime(activationType, outputs.get(row, col, fz)); // ne pozivati ovu funkciju ovde u petlji  vec optimizovati nekako. Mnoziti van petlje nakon zavrsetka sabiranja. Izracunati izvode u jednom prolazu, pa onda mnoziti  ane za svaku celiju.     
+                                //   ... ovde treba razjasniti kako se mnozi sa weightsomm? da li ih treba sabirati
+                                deltas.add(row, col, fz, nextLayerDelta * nextConvLayer.filters[ndZ].get(fr, fc, fz) * derivative);
                             }
                         }
                     }
                 }
             }
-            
-            for (int ch = 0; ch < this.depth; ch++) {  
-            // 2. calculate delta weights for this layer (this is same for all types of next layers)
-                calculateDeltaWeights(ch); // split these into fork joins too            
+    }
+
+    /**
+     * Calculates delta weights for all channels in this layer, once deltas are propagated from the next layer.
+     */
+    private void calculateDeltaWeights() {
+        if (getUsedAlgorithm() != ConvolutionAlgorithm.DIRECT && GemmConvolution.isNchwArray(deltas)) {
+            for (int ch = 0; ch < this.depth; ch++) {
+                if (!batchMode) {
+                    deltaWeights[ch].fill(0);
+                    deltaBiases[ch] = 0;
+                }
+                calculateDeltaBias(ch);
             }
+            final float scale = optimizer == OptimizerType.SGD ? Optimizers.sgd(learningRate, 1) / (width * height) : 0;
+            GemmConvolution.calculateDeltaWeights(this, scale);
+        } else if (isParallel()) {
+            Parallel.forEach(depth, this::calculateDeltaWeights); // each channel has its own delta weights and bias
+        } else {
+            for (int ch = 0; ch < this.depth; ch++) {
+                calculateDeltaWeights(ch);
+            }
+        }
     }
 
     /**
@@ -350,23 +744,34 @@ public class ConvolutionalLayer extends AbstractLayer {
             deltaBiases[ch] = 0; // da li b ovo trebalo da bude 2d niz? verovatno ne
         }
         
+        if (DirectConvolution.isSupportedDeltaWeights(this)) {
+            DirectConvolution.calculateDeltaWeights(this, ch);
+            calculateDeltaBias(ch);
+            return;
+        }
+
         final float divisor = width * height; //  tezine u filteru racunari kao prosek sa svih pozicija u feature mapi
         
         // assumes that deltas from the next layer are allready propagated
         
         // 2. calculate weight changes in filters
+        final int inRows = inputs.getRows();
+        final int inCols = inputs.getCols();
+
         for (int deltaRow = 0; deltaRow < deltas.getRows(); deltaRow++) {
+            final int rowBase = deltaRow * stride - fCenterY;
+            final int frStart = Math.max(0, -rowBase); // filter rows over inputs
+            final int frEnd = Math.min(filterHeight, inRows - rowBase);
             for (int deltaCol = 0; deltaCol < deltas.getCols(); deltaCol++) {                
+                final int colBase = deltaCol * stride - fCenterX;
+                final int fcStart = Math.max(0, -colBase);
+                final int fcEnd = Math.min(filterWidth, inCols - colBase);
                 // iterate all weights in filter for filter depth
                 for (int fz = 0; fz < filterDepth; fz++) { // filter depth, input channel
-                    for (int fr = 0; fr < filterHeight; fr++) {
-                        for (int fc = 0; fc < filterWidth; fc++) {
-                            
-                            final int inRow = deltaRow * stride + fr - fCenterY;  
-                            final int inCol = deltaCol * stride + fc - fCenterX;
-                            
-                            if (inRow < 0 || inRow >= inputs.getRows() || inCol < 0 || inCol >= inputs.getCols()) continue;
-                            
+                    for (int fr = frStart; fr < frEnd; fr++) {
+                        final int inRow = rowBase + fr;
+                        for (int fc = fcStart; fc < fcEnd; fc++) {
+                            final int inCol = colBase + fc;
                             final float input = inputs.get(inRow, inCol, fz); // get input for this output and weight; padding? 
                             final float grad = deltas.get(deltaRow, deltaCol, ch) * input;
 
@@ -381,16 +786,32 @@ public class ConvolutionalLayer extends AbstractLayer {
                         }
                     } 
                 }
-               float deltaBias=0;
+            }
+        } // end calculate weight changes in filter   }
+
+        calculateDeltaBias(ch);
+    }
+
+    /**
+     * Calculates delta bias for the specified channel ch in this convolutional layer.
+     *
+     * @param ch channel/depth
+     */
+    private void calculateDeltaBias(int ch) {
+        final float divisor = width * height;
+
+        // bias changes for all positions are added up, and averaged like weight changes
+        float deltaBias = 0;
+        for (int deltaRow = 0; deltaRow < deltas.getRows(); deltaRow++) {
+            for (int deltaCol = 0; deltaCol < deltas.getCols(); deltaCol++) {
                 switch (optimizer) {
                     case SGD:
-                        deltaBias = Optimizers.sgd(learningRate, deltas.get(deltaRow, deltaCol, ch));
+                        deltaBias += Optimizers.sgd(learningRate, deltas.get(deltaRow, deltaCol, ch));
                         break;
-                }                
-                deltaBiases[ch] /=divisor; 
-                deltaBiases[ch] += deltaBias;
+                }
             }
-        } // end calculate weight changes in filter   }
+        }
+        deltaBiases[ch] += deltaBias / divisor;
     }
 
     /**
@@ -404,30 +825,44 @@ public class ConvolutionalLayer extends AbstractLayer {
         }
         
         for (int ch = 0; ch < depth; ch++) {
-            if (batchMode) { 
-                deltaWeights[ch].div(batchSize);
+            if (batchMode) { // average of weight changes for batch, added in the same pass
+                filters[ch].expr().add(deltaWeights[ch].expr().div(batchSize)).evaluateInto(filters[ch]);
+                deltaWeights[ch].fill(0); // reset delta weights for next batch
+            } else {
+                filters[ch].add(deltaWeights[ch]);
             }
-
-            filters[ch].add(deltaWeights[ch]);
             biases[ch] += deltaBiases[ch];
-
-            if (batchMode) {    // reset delta weights for next batch
-                deltaWeights[ch].fill(0);
-            }
         }
         
         if (batchMode) { // reset delta biases for next batch
             Tensor.fill(deltaBiases, 0);
         }   
+        filtersChanged();
         
     }
     
+    @Override
+    public void close() {
+        super.close();
+        closeAll(filters);
+        closeAll(deltaWeights);
+    }
+
+    @Override
+    protected void convertStorage() {
+        super.convertStorage();
+        convertAll(storageType, filters);
+        filtersChanged();
+        convertAll(storageType.getAccumulatorType(), deltaWeights);
+    }
+
     public Tensor[] getFilters() {
         return filters;
     }
 
     public void setFilters(Tensor[] filters) {
         this.filters = filters;
+        filtersChanged();
     }
     
     public void setFilters(String filtersStr) {
@@ -442,8 +877,32 @@ public class ConvolutionalLayer extends AbstractLayer {
                 filterValues[k] = Float.parseFloat(vals[k]);
             }
 
-            filters[i].setValues(filterValues); // ovde je tensor 5x5x3 a imamomo samo 25 vrednosti
+            filters[i].copyFrom(filterValues); // ovde je tensor 5x5x3 a imamomo samo 25 vrednosti
+        }
+        filtersChanged();
+    }
+
+    /**
+     * Writes all filters and biases of this layer to channel in binary format.
+     *
+     * @param channel channel to write to
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void writeWeights(WritableByteChannel channel) throws IOException {
+        for (Tensor filter : filters) {
+            TensorIO.write(filter, channel);
         }
+        TensorIO.write(new Tensor(biases), channel);
+    }
+
+    @Override
+    public void readWeights(ReadableByteChannel channel) throws IOException {
+        for (Tensor filter : filters) {
+            TensorIO.read(channel, filter);
+        }
+        filtersChanged();
+        TensorIO.read(channel, new Tensor(biases));
     }
         
    
@@ -467,5 +926,128 @@ public class ConvolutionalLayer extends AbstractLayer {
     public Tensor[] getFilterDeltaWeights() {
         return deltaWeights;
     }
+
+    /**
+     * Returns algorithm selected to calculate convolution in this layer.
+     *
+     * @return convolution algorithm, auto by default
+     */
+    public ConvolutionAlgorithm getAlgorithm() {
+        return algorithm != null ? algorithm : ConvolutionAlgorithm.AUTO;
+    }
+
+    /**
+     * Sets algorithm used to calculate convolution in this layer.
+     * Can be changed at any time, since all algorithms use the same filters.
+     *
+     * @param algorithm convolution algorithm
+     */
+    public void setAlgorithm(ConvolutionAlgorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Returns algorithm which is actually used for this layer: selected algorithm if it supports
+     * filter size, stride, storage and layout of this layer, otherwise direct loops.
+     *
+     * @return convolution algorithm used in forward and backward pass
+     */
+    public ConvolutionAlgorithm getUsedAlgorithm() {
+        switch (getAlgorithm()) {
+            case GEMM:
+                return GemmConvolution.isSupported(this) ? ConvolutionAlgorithm.GEMM : ConvolutionAlgorithm.DIRECT;
+            case WINOGRAD:
+                return WinogradConvolution.isSupported(this) ? ConvolutionAlgorithm.WINOGRAD : ConvolutionAlgorithm.DIRECT;
+            case FFT:
+                return FftConvolution.isSupported(this) ? ConvolutionAlgorithm.FFT : ConvolutionAlgorithm.DIRECT;
+            case AUTO:
+                if (FftConvolution.isSupported(this) && FftConvolution.isEfficient(this)) {
+                    return ConvolutionAlgorithm.FFT;
+                }
+                if (WinogradConvolution.isSupported(this) && WinogradConvolution.isEfficient(this)) {
+                    return ConvolutionAlgorithm.WINOGRAD;
+                }
+                return GemmConvolution.isSupported(this) ? ConvolutionAlgorithm.GEMM : ConvolutionAlgorithm.DIRECT;
+            default:
+                return ConvolutionAlgorithm.DIRECT;
+        }
+    }
+
+    /**
+     * Propagates deltas of this layer back through filters, and adds them to deltas of previous layer.
+     * Used by previous layers which multiply deltas with derivatives of their activation afterwards.
+     *
+     * @param inputDeltas deltas of previous layer
+     */
+    void backwardInputs(Tensor inputDeltas) {
+        final ConvolutionAlgorithm usedAlgorithm = getUsedAlgorithm();
+        if (usedAlgorithm == ConvolutionAlgorithm.DIRECT || !GemmConvolution.isNchwArray(inputDeltas)) {
+            backwardInputsDirect(inputDeltas);
+            return;
+        }
+        switch (usedAlgorithm) {
+            case WINOGRAD:
+                WinogradConvolution.backwardInputs(this, inputDeltas);
+                break;
+            case FFT:
+                fft().backwardInputs(inputDeltas);
+                break;
+            default:
+                GemmConvolution.backwardInputs(this, inputDeltas);
+        }
+    }
+
+    /**
+     * Direct propagation of deltas to previous layer, for any storage and layout.
+     */
+    private void backwardInputsDirect(Tensor inputDeltas) {
+        if (DirectConvolution.isSupportedBackward(this, inputDeltas)) {
+            for (int fz = 0; fz < filterDepth; fz++) {
+                DirectConvolution.backwardInputs(this, fz, inputDeltas, null);
+            }
+            return;
+        }
+
+        final int rows = inputDeltas.getRows();
+        final int cols = inputDeltas.getCols();
+        for (int ndz = 0; ndz < deltas.getDepth(); ndz++) { // iterate all channels of this layer
+            for (int ndr = 0; ndr < deltas.getRows(); ndr++) {
+                final int rowBase = ndr * stride - fCenterY;
+                final int frStart = Math.max(0, -rowBase); // filter rows over previous layer
+                final int frEnd = Math.min(filterHeight, rows - rowBase);
+                for (int ndc = 0; ndc < deltas.getCols(); ndc++) {
+                    final float delta = deltas.get(ndr, ndc, ndz);
+                    final int colBase = ndc * stride - fCenterX;
+                    final int fcStart = Math.max(0, -colBase);
+                    final int fcEnd = Math.min(filterWidth, cols - colBase);
+
+                    for (int fz = 0; fz < filterDepth; fz++) {
+                        for (int fr = frStart; fr < frEnd; fr++) {
+                            final int inRow = rowBase + fr;
+                            for (int fc = fcStart; fc < fcEnd; fc++) {
+                                inputDeltas.add(inRow, colBase + fc, fz, delta * filters[ndz].get(fr, fc, fz));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private FftConvolution fft() {
+        if (fft == null) {
+            fft = new FftConvolution(this);
+        }
+        return fft;
+    }
+
+    /**
+     * Should be called whenever filters are changed, to invalidate cached filter spectra.
+     */
+    private void filtersChanged() {
+        if (fft != null) {
+            fft.invalidate();
+        }
+    }
       
 }
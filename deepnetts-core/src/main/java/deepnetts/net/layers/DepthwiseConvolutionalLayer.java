@@ -0,0 +1,61 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.net.layers.activation.ActivationType;
+
+/**
+ * Depthwise convolutional layer, which convolves each channel of previous layer with its own
+ * 2D filter. It has the same number of channels as previous layer, and each output channel
+ * depends only on one input channel.
+ *
+ * Followed by 1x1 convolutional layer which combines the channels, it makes depthwise separable
+ * convolution (see {@link deepnetts.net.ConvolutionalNetwork.Builder#addDepthwiseSeparableConvolutionalLayer}),
+ * which needs much less multiply-adds than convolutional layer with the same filter size.
+ *
+ * @author Zoran Sevarac
+ */
+public class DepthwiseConvolutionalLayer extends GroupedConvolutionalLayer {
+
+    /**
+     * Creates a new depthwise convolutional layer. Number of channels is set to
+     * the depth of previous layer when layer is initialized.
+     *
+     * @param filterWidth filter width
+     * @param filterHeight filter height
+     * @param stride filter step
+     * @param activationType activation function
+     */
+    public DepthwiseConvolutionalLayer(int filterWidth, int filterHeight, int stride, ActivationType activationType) {
+        super(filterWidth, filterHeight, stride, 1, 1, activationType);
+    }
+
+    @Override
+    public void init() {
+        if (prevLayer != null) {
+            depth = prevLayer.getDepth();
+            groups = depth;
+        }
+        super.init();
+    }
+
+}
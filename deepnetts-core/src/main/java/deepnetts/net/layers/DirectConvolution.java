@@ -0,0 +1,404 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.net.layers.activation.ActivationFunctions;
+import deepnetts.net.train.opt.OptimizerType;
+import deepnetts.net.train.opt.Optimizers;
+import deepnetts.util.Kernels;
+import deepnetts.util.Tensor;
+import deepnetts.util.TensorPool;
+
+/**
+ * Direct convolution kernels specialized for the most common square filters, 1x1, 3x3 and 5x5,
+ * with stride 1 or 2. Kernel is chosen by filter size when layer is initialized.
+ *
+ * Kernels go over a whole row of outputs for each row of the filter, with filter columns unrolled,
+ * so the inner loops have no bounds checks and filter values are kept in local variables.
+ * Only a few columns at the border, where the filter is over the padding, use generic loops.
+ * Values are added in the same order as in generic loops, so results are the same.
+ *
+ * Requires inputs, outputs and filters (and deltas for backward pass) in heap arrays in NCHW layout.
+ *
+ * @see ConvolutionAlgorithm#DIRECT
+ * @author Zoran Sevarac
+ */
+final class DirectConvolution {
+
+    private DirectConvolution() { }
+
+    /**
+     * Returns size of specialized kernel for specified filter and stride,
+     * or 0 if there is no specialized kernel and generic loops are used.
+     */
+    static int kernelFor(final int filterWidth, final int filterHeight, final int stride) {
+        if (filterWidth != filterHeight || (stride != 1 && stride != 2)) {
+            return 0;
+        }
+        return filterWidth == 1 || filterWidth == 3 || filterWidth == 5 ? filterWidth : 0;
+    }
+
+    /**
+     * Returns true if specialized kernel can be used for forward pass of specified layer.
+     */
+    static boolean isSupported(final ConvolutionalLayer layer) {
+        return layer.directKernel != 0 && GemmConvolution.isSupported(layer);
+    }
+
+    /**
+     * Returns true if specialized kernel can be used to calculate delta weights of specified layer.
+     */
+    static boolean isSupportedDeltaWeights(final ConvolutionalLayer layer) {
+        return isSupported(layer) && layer.optimizer == OptimizerType.SGD
+                && GemmConvolution.isNchwArray(layer.deltas) && GemmConvolution.isNchwArray(layer.deltaWeights[0]);
+    }
+
+    /**
+     * Returns true if specialized kernel can be used to propagate deltas of specified layer to previous layer.
+     */
+    static boolean isSupportedBackward(final ConvolutionalLayer layer, final Tensor inputDeltas) {
+        return isSupported(layer) && GemmConvolution.isNchwArray(layer.deltas) && GemmConvolution.isNchwArray(inputDeltas);
+    }
+
+    /**
+     * Calculates outputs of specified channel for output rows [fromRow, toRow).
+     */
+    static void forward(final ConvolutionalLayer layer, final int ch, final int fromRow, final int toRow) {
+        final Tensor inputs = layer.inputs;
+        final float[] in = inputs.getValues();
+        final int inOff = inputs.getOffset();
+        final int inRows = inputs.getRows();
+        final int inCols = inputs.getCols();
+        final float[] w = layer.filters[ch].getValues();
+        final int wOff = layer.filters[ch].getOffset();
+        final float[] out = layer.outputs.getValues();
+        final int outOff = layer.outputs.getOffset() + ch * layer.height * layer.width;
+        final int k = layer.directKernel;
+        final int c = layer.fCenterX;
+        final int stride = layer.stride;
+        final int width = layer.width;
+        final int colFrom = interiorFrom(c, stride, width);
+        final int colTo = interiorTo(k, c, stride, inCols, width);
+
+        final TensorPool pool = TensorPool.local();
+        final float[] acc = pool.acquireArray(width);
+        try {
+            for (int outR = fromRow; outR < toRow; outR++) {
+                final int inR = outR * stride;
+                final int frStart = Math.max(0, c - inR);
+                final int frEnd = Math.min(k, inRows - inR + c);
+                Kernels.fill(acc, 0, width, layer.biases[ch]);
+
+                for (int fz = 0; fz < layer.filterDepth; fz++) {
+                    for (int fr = frStart; fr < frEnd; fr++) {
+                        final int inRow = inOff + (fz * inRows + inR + fr - c) * inCols; // input row under filter row
+                        final int wRow = wOff + (fz * k + fr) * k;
+
+                        for (int outC = 0; outC < colFrom; outC++) {
+                            acc[outC] = borderSum(acc[outC], in, inRow, inCols, outC * stride, w, wRow, k, c);
+                        }
+                        switch (k) {
+                            case 1:
+                                row1(acc, colFrom, colTo, in, inRow, stride, w[wRow]);
+                                break;
+                            case 3:
+                                row3(acc, colFrom, colTo, in, inRow + colFrom * stride - c, stride, w, wRow);
+                                break;
+                            default:
+                                row5(acc, colFrom, colTo, in, inRow + colFrom * stride - c, stride, w, wRow);
+                        }
+                        for (int outC = colTo; outC < width; outC++) {
+                            acc[outC] = borderSum(acc[outC], in, inRow, inCols, outC * stride, w, wRow, k, c);
+                        }
+                    }
+                }
+
+                final int outRow = outOff + outR * width;
+                for (int outC = 0; outC < width; outC++) {
+                    out[outRow + outC] = ActivationFunctions.calc(layer.activationType, acc[outC]);
+                }
+            }
+        } finally {
+            pool.releaseArray(acc);
+        }
+    }
+
+    private static void row1(final float[] acc, final int from, final int to, final float[] in, final int inRow, final int stride, final float w0) {
+        for (int outC = from, i = inRow + from * stride; outC < to; outC++, i += stride) {
+            acc[outC] += in[i] * w0;
+        }
+    }
+
+    private static void row3(final float[] acc, final int from, final int to, final float[] in, final int first, final int stride,
+                             final float[] w, final int wRow) {
+        final float w0 = w[wRow], w1 = w[wRow + 1], w2 = w[wRow + 2];
+        for (int outC = from, i = first; outC < to; outC++, i += stride) {
+            float sum = acc[outC];
+            sum += in[i] * w0;
+            sum += in[i + 1] * w1;
+            sum += in[i + 2] * w2;
+            acc[outC] = sum;
+        }
+    }
+
+    private static void row5(final float[] acc, final int from, final int to, final float[] in, final int first, final int stride,
+                             final float[] w, final int wRow) {
+        final float w0 = w[wRow], w1 = w[wRow + 1], w2 = w[wRow + 2], w3 = w[wRow + 3], w4 = w[wRow + 4];
+        for (int outC = from, i = first; outC < to; outC++, i += stride) {
+            float sum = acc[outC];
+            sum += in[i] * w0;
+            sum += in[i + 1] * w1;
+            sum += in[i + 2] * w2;
+            sum += in[i + 3] * w3;
+            sum += in[i + 4] * w4;
+            acc[outC] = sum;
+        }
+    }
+
+    /**
+     * Adds a filter row for output column at the border, skipping filter columns over the padding.
+     */
+    private static float borderSum(float sum, final float[] in, final int inRow, final int inCols, final int inC,
+                                   final float[] w, final int wRow, final int k, final int c) {
+        final int fcStart = Math.max(0, c - inC);
+        final int fcEnd = Math.min(k, inCols - inC + c);
+        for (int fc = fcStart; fc < fcEnd; fc++) {
+            sum += in[inRow + inC + fc - c] * w[wRow + fc];
+        }
+        return sum;
+    }
+
+    /**
+     * Adds weight changes for filter of specified channel, for all output positions.
+     * Weight changes of each filter value are added in the order of positions, as in generic loops.
+     */
+    static void calculateDeltaWeights(final ConvolutionalLayer layer, final int ch) {
+        final Tensor inputs = layer.inputs;
+        final float[] in = inputs.getValues();
+        final int inOff = inputs.getOffset();
+        final int inRows = inputs.getRows();
+        final int inCols = inputs.getCols();
+        final float[] d = layer.deltas.getValues();
+        final int dOff = layer.deltas.getOffset() + ch * layer.height * layer.width;
+        final float[] dw = layer.deltaWeights[ch].getValues();
+        final int dwOff = layer.deltaWeights[ch].getOffset();
+        final int k = layer.directKernel;
+        final int c = layer.fCenterX;
+        final int stride = layer.stride;
+        final int width = layer.width;
+        final int colFrom = interiorFrom(c, stride, width);
+        final int colTo = interiorTo(k, c, stride, inCols, width);
+        final float learningRate = layer.learningRate;
+        final float divisor = layer.width * layer.height;
+
+        for (int fz = 0; fz < layer.filterDepth; fz++) {
+            for (int fr = 0; fr < k; fr++) {
+                final int rowFrom = Math.max(0, ceilDiv(c - fr, stride));
+                final int rowTo = Math.min(layer.height, Math.floorDiv(inRows - 1 - fr + c, stride) + 1);
+                final int dwRow = dwOff + (fz * k + fr) * k;
+
+                for (int outR = rowFrom; outR < rowTo; outR++) {
+                    final int inRow = inOff + (fz * inRows + outR * stride + fr - c) * inCols;
+                    final int dRow = dOff + outR * width;
+
+                    for (int outC = 0; outC < colFrom; outC++) {
+                        borderDeltaWeights(dw, dwRow, d[dRow + outC], in, inRow, inCols, outC * stride, k, c, learningRate, divisor);
+                    }
+                    switch (k) {
+                        case 1: {
+                            float s0 = dw[dwRow];
+                            for (int outC = colFrom, i = inRow + colFrom * stride; outC < colTo; outC++, i += stride) {
+                                s0 += Optimizers.sgd(learningRate, d[dRow + outC] * in[i]) / divisor;
+                            }
+                            dw[dwRow] = s0;
+                            break;
+                        }
+                        case 3: {
+                            float s0 = dw[dwRow], s1 = dw[dwRow + 1], s2 = dw[dwRow + 2];
+                            for (int outC = colFrom, i = inRow + colFrom * stride - c; outC < colTo; outC++, i += stride) {
+                                final float delta = d[dRow + outC];
+                                s0 += Optimizers.sgd(learningRate, delta * in[i]) / divisor;
+                                s1 += Optimizers.sgd(learningRate, delta * in[i + 1]) / divisor;
+                                s2 += Optimizers.sgd(learningRate, delta * in[i + 2]) / divisor;
+                            }
+                            dw[dwRow] = s0;
+                            dw[dwRow + 1] = s1;
+                            dw[dwRow + 2] = s2;
+                            break;
+                        }
+                        default: {
+                            float s0 = dw[dwRow], s1 = dw[dwRow + 1], s2 = dw[dwRow + 2], s3 = dw[dwRow + 3], s4 = dw[dwRow + 4];
+                            for (int outC = colFrom, i = inRow + colFrom * stride - c; outC < colTo; outC++, i += stride) {
+                                final float delta = d[dRow + outC];
+                                s0 += Optimizers.sgd(learningRate, delta * in[i]) / divisor;
+                                s1 += Optimizers.sgd(learningRate, delta * in[i + 1]) / divisor;
+                                s2 += Optimizers.sgd(learningRate, delta * in[i + 2]) / divisor;
+                                s3 += Optimizers.sgd(learningRate, delta * in[i + 3]) / divisor;
+                                s4 += Optimizers.sgd(learningRate, delta * in[i + 4]) / divisor;
+                            }
+                            dw[dwRow] = s0;
+                            dw[dwRow + 1] = s1;
+                            dw[dwRow + 2] = s2;
+                            dw[dwRow + 3] = s3;
+                            dw[dwRow + 4] = s4;
+                        }
+                    }
+                    for (int outC = colTo; outC < width; outC++) {
+                        borderDeltaWeights(dw, dwRow, d[dRow + outC], in, inRow, inCols, outC * stride, k, c, learningRate, divisor);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void borderDeltaWeights(final float[] dw, final int dwRow, final float delta, final float[] in, final int inRow,
+                                           final int inCols, final int inC, final int k, final int c, final float learningRate, final float divisor) {
+        final int fcStart = Math.max(0, c - inC);
+        final int fcEnd = Math.min(k, inCols - inC + c);
+        for (int fc = fcStart; fc < fcEnd; fc++) {
+            dw[dwRow + fc] += Optimizers.sgd(learningRate, delta * in[inRow + inC + fc - c]) / divisor;
+        }
+    }
+
+    /**
+     * Propagates deltas of specified layer through its filters to channel fz of previous layer,
+     * and adds them to inputDeltas. Each value is multiplied by derivative at its position if
+     * derivatives of channel fz are given. Deltas for each position are added in the same order
+     * as in generic loops: by channel, row and column of specified layer.
+     *
+     * @param inputDeltas deltas of previous layer
+     * @param derivatives derivatives of outputs of channel fz of previous layer, or null
+     */
+    static void backwardInputs(final ConvolutionalLayer layer, final int fz, final Tensor inputDeltas, final float[] derivatives) {
+        final float[] nd = layer.deltas.getValues();
+        final int ndOff = layer.deltas.getOffset();
+        final int inRows = inputDeltas.getRows();
+        final int inCols = inputDeltas.getCols();
+        final float[] d = inputDeltas.getValues();
+        final int dOff = inputDeltas.getOffset() + fz * inRows * inCols;
+        final int k = layer.directKernel;
+        final int c = layer.fCenterX;
+        final int stride = layer.stride;
+        final int height = layer.height;
+        final int width = layer.width;
+        final int colFrom = interiorFrom(c, stride, width);
+        final int colTo = interiorTo(k, c, stride, inCols, width);
+
+        for (int ndZ = 0; ndZ < layer.depth; ndZ++) {
+            final float[] w = layer.filters[ndZ].getValues();
+            final int wOff = layer.filters[ndZ].getOffset() + fz * k * k;
+
+            // filter rows backwards, so that deltas of the next rows are added later, as in generic loops
+            for (int fr = k - 1; fr >= 0; fr--) {
+                final int rowFrom = Math.max(0, ceilDiv(c - fr, stride));
+                final int rowTo = Math.min(height, Math.floorDiv(inRows - 1 - fr + c, stride) + 1);
+                final int wRow = wOff + fr * k;
+
+                for (int ndRow = rowFrom; ndRow < rowTo; ndRow++) {
+                    final int row = (ndRow * stride + fr - c) * inCols; // row in previous layer
+                    final int ndIdx = ndOff + (ndZ * height + ndRow) * width;
+
+                    for (int ndCol = 0; ndCol < colFrom; ndCol++) {
+                        borderBackward(d, dOff + row, derivatives, row, nd[ndIdx + ndCol], w, wRow, inCols, ndCol * stride, k, c);
+                    }
+                    switch (k) {
+                        case 1: {
+                            final float w0 = w[wRow];
+                            for (int ndCol = colFrom, i = row + colFrom * stride; ndCol < colTo; ndCol++, i += stride) {
+                                d[dOff + i] += nd[ndIdx + ndCol] * w0 * (derivatives != null ? derivatives[i] : 1);
+                            }
+                            break;
+                        }
+                        case 3: {
+                            final float w0 = w[wRow], w1 = w[wRow + 1], w2 = w[wRow + 2];
+                            for (int ndCol = colFrom, i = row + colFrom * stride - c; ndCol < colTo; ndCol++, i += stride) {
+                                final float delta = nd[ndIdx + ndCol];
+                                if (derivatives != null) {
+                                    d[dOff + i] += delta * w0 * derivatives[i];
+                                    d[dOff + i + 1] += delta * w1 * derivatives[i + 1];
+                                    d[dOff + i + 2] += delta * w2 * derivatives[i + 2];
+                                } else {
+                                    d[dOff + i] += delta * w0;
+                                    d[dOff + i + 1] += delta * w1;
+                                    d[dOff + i + 2] += delta * w2;
+                                }
+                            }
+                            break;
+                        }
+                        default: {
+                            final float w0 = w[wRow], w1 = w[wRow + 1], w2 = w[wRow + 2], w3 = w[wRow + 3], w4 = w[wRow + 4];
+                            for (int ndCol = colFrom, i = row + colFrom * stride - c; ndCol < colTo; ndCol++, i += stride) {
+                                final float delta = nd[ndIdx + ndCol];
+                                if (derivatives != null) {
+                                    d[dOff + i] += delta * w0 * derivatives[i];
+                                    d[dOff + i + 1] += delta * w1 * derivatives[i + 1];
+                                    d[dOff + i + 2] += delta * w2 * derivatives[i + 2];
+                                    d[dOff + i + 3] += delta * w3 * derivatives[i + 3];
+                                    d[dOff + i + 4] += delta * w4 * derivatives[i + 4];
+                                } else {
+                                    d[dOff + i] += delta * w0;
+                                    d[dOff + i + 1] += delta * w1;
+                                    d[dOff + i + 2] += delta * w2;
+                                    d[dOff + i + 3] += delta * w3;
+                                    d[dOff + i + 4] += delta * w4;
+                                }
+                            }
+                        }
+                    }
+                    for (int ndCol = colTo; ndCol < width; ndCol++) {
+                        borderBackward(d, dOff + row, derivatives, row, nd[ndIdx + ndCol], w, wRow, inCols, ndCol * stride, k, c);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void borderBackward(final float[] d, final int dRow, final float[] derivatives, final int row, final float delta,
+                                       final float[] w, final int wRow, final int inCols, final int inC, final int k, final int c) {
+        final int fcStart = Math.max(0, c - inC);
+        final int fcEnd = Math.min(k, inCols - inC + c);
+        for (int fc = fcStart; fc < fcEnd; fc++) {
+            final int col = inC + fc - c;
+            d[dRow + col] += delta * w[wRow + fc] * (derivatives != null ? derivatives[row + col] : 1);
+        }
+    }
+
+    /**
+     * Returns first output column for which the whole filter row is over inputs.
+     */
+    private static int interiorFrom(final int c, final int stride, final int width) {
+        return Math.min(width, ceilDiv(c, stride));
+    }
+
+    /**
+     * Returns end of output columns for which the whole filter row is over inputs.
+     */
+    private static int interiorTo(final int k, final int c, final int stride, final int inCols, final int width) {
+        final int to = Math.min(width, Math.floorDiv(inCols - k + c, stride) + 1);
+        return Math.max(interiorFrom(c, stride, width), to);
+    }
+
+    private static int ceilDiv(final int a, final int b) {
+        return -Math.floorDiv(-a, b);
+    }
+
+}
@@ -0,0 +1,403 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.net.layers.activation.ActivationFunctions;
+import deepnetts.util.Tensor;
+import java.util.Arrays;
+
+/**
+ * Convolution calculated as products of spectra (FFT), for layers with large filters.
+ *
+ * Each input channel and each filter are zero padded to P x Q (powers of two big enough
+ * so that circular convolution does not wrap around) and transformed with 2D FFT.
+ * Convolution of each channel pair then takes a complex multiplication for each frequency,
+ * instead of filterWidth * filterHeight multiplications for each position, and products
+ * for all input channels are summed before single inverse transform for each output channel.
+ * Since inputs and filters are real, only P x (Q/2+1) frequencies are stored.
+ *
+ * Filter spectra are cached, and calculated again only after filters are changed, so they
+ * are shared by all samples between two weight updates (whole batch in batch mode).
+ * Deltas propagated to previous layer use the same filter spectra. Filter gradients
+ * are calculated with GEMM, since they would need an inverse transform for each channel pair.
+ *
+ * Instance is created for each layer, and requires heap arrays in NCHW layout.
+ *
+ * @see ConvolutionAlgorithm#FFT
+ * @author Zoran Sevarac
+ */
+final class FftConvolution {
+
+    /**
+     * Maximal number of values in cached filter spectra for which FFT is used by default (64 MB).
+     */
+    private static final long MAX_SPECTRA_SIZE = 1L << 24;
+
+    private final ConvolutionalLayer layer;
+
+    /**
+     * Size of inputs, and size of the transform (P x Q).
+     */
+    private final int rows, cols, fftRows, fftCols;
+
+    /**
+     * Number of stored frequencies in each row (Q/2+1), and in whole spectrum.
+     */
+    private final int halfCols, spectrumSize;
+
+    /**
+     * Twiddle factors and bit reversal permutation for transforms of rows (length Q) and columns (length P).
+     */
+    private final float[] rowCos, rowSin, colCos, colSin;
+    private final int[] rowRev, colRev;
+
+    /**
+     * Spectra of all filters [channel][filterDepth][spectrumSize], real and imaginary part.
+     */
+    private float[] filterRe, filterIm;
+    private boolean filtersValid;
+
+    /**
+     * Spectra of input channels in forward pass or of deltas in backward pass.
+     */
+    private float[] inRe, inIm;
+
+    /**
+     * Sum of products for single output channel.
+     */
+    private final float[] accRe, accIm;
+
+    /**
+     * Single row or column being transformed.
+     */
+    private final float[] lineRe, lineIm;
+
+    FftConvolution(final ConvolutionalLayer layer) {
+        this.layer = layer;
+        rows = layer.inputs.getRows();
+        cols = layer.inputs.getCols();
+        fftRows = transformSize(rows + layer.filterHeight - 1);
+        fftCols = transformSize(cols + layer.filterWidth - 1);
+        halfCols = fftCols / 2 + 1;
+        spectrumSize = fftRows * halfCols;
+
+        rowCos = new float[fftCols / 2];
+        rowSin = new float[fftCols / 2];
+        rowRev = new int[fftCols];
+        twiddles(fftCols, rowCos, rowSin, rowRev);
+        colCos = new float[fftRows / 2];
+        colSin = new float[fftRows / 2];
+        colRev = new int[fftRows];
+        twiddles(fftRows, colCos, colSin, colRev);
+
+        accRe = new float[spectrumSize];
+        accIm = new float[spectrumSize];
+        lineRe = new float[Math.max(fftRows, fftCols)];
+        lineIm = new float[Math.max(fftRows, fftCols)];
+    }
+
+    /**
+     * Returns true if FFT convolution can be used for specified layer.
+     */
+    static boolean isSupported(final ConvolutionalLayer layer) {
+        return GemmConvolution.isSupported(layer);
+    }
+
+    /**
+     * Returns true if FFT convolution is expected to be faster than GEMM for specified layer,
+     * and filter spectra are not too big to cache. Estimated cost of FFT is a complex multiplication
+     * for each stored frequency and channel pair, plus transforms of all input and output channels.
+     * Cost of GEMM is a multiplication for each output position, filter weight and channel pair.
+     */
+    static boolean isEfficient(final ConvolutionalLayer layer) {
+        final int fftRows = transformSize(layer.inputs.getRows() + layer.filterHeight - 1);
+        final int fftCols = transformSize(layer.inputs.getCols() + layer.filterWidth - 1);
+        final long spectrumSize = (long) fftRows * (fftCols / 2 + 1);
+        final long pairs = (long) layer.depth * layer.filterDepth;
+        final int logSize = Integer.numberOfTrailingZeros(fftRows * fftCols);
+
+        final long fftCost = 4 * pairs * spectrumSize + 4L * (layer.depth + layer.filterDepth) * spectrumSize * logSize;
+        final long gemmCost = pairs * layer.height * layer.width * layer.filterHeight * layer.filterWidth;
+        return fftCost < gemmCost && 2 * pairs * spectrumSize <= MAX_SPECTRA_SIZE;
+    }
+
+    /**
+     * Returns smallest power of two not less than n.
+     */
+    private static int transformSize(final int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * Marks cached filter spectra as invalid, should be called whenever filters are changed.
+     */
+    void invalidate() {
+        filtersValid = false;
+    }
+
+    /**
+     * Calculates outputs of the layer: outputs = activation(conv(inputs, filters) + biases).
+     */
+    void forward() {
+        updateFilterSpectra();
+        final int inChannels = layer.filterDepth;
+        ensureInputBuffers(inChannels);
+
+        final Tensor inputs = layer.inputs;
+        for (int ic = 0; ic < inChannels; ic++) {
+            forwardTransform(inputs.getValues(), inputs.getOffset() + ic * rows * cols, rows, cols, 1, inRe, inIm, ic * spectrumSize);
+        }
+
+        final float[] out = layer.outputs.getValues();
+        final int outOff = layer.outputs.getOffset();
+        final int stride = layer.stride;
+        final float norm = 1f / (fftRows * fftCols);
+
+        for (int oc = 0; oc < layer.depth; oc++) {
+            Arrays.fill(accRe, 0);
+            Arrays.fill(accIm, 0);
+            for (int ic = 0; ic < inChannels; ic++) {
+                multiplyConjugate(inRe, inIm, ic * spectrumSize, filterRe, filterIm, (oc * inChannels + ic) * spectrumSize);
+            }
+            inverseColumns();
+
+            final float bias = layer.biases[oc];
+            for (int r = 0; r < layer.height; r++) {
+                inverseRow(Math.floorMod(r * stride - layer.fCenterY, fftRows));
+                final int outIdx = outOff + (oc * layer.height + r) * layer.width;
+                for (int c = 0; c < layer.width; c++) {
+                    final float sum = bias + lineRe[Math.floorMod(c * stride - layer.fCenterX, fftCols)] * norm;
+                    out[outIdx + c] = ActivationFunctions.calc(layer.activationType, sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * Propagates deltas of the layer back through its filters, and adds them to deltas of previous layer.
+     *
+     * @param inputDeltas deltas of previous layer in NCHW heap array
+     */
+    void backwardInputs(final Tensor inputDeltas) {
+        updateFilterSpectra();
+        final int channels = layer.depth;
+        final int inChannels = layer.filterDepth;
+        ensureInputBuffers(channels);
+
+        final Tensor deltas = layer.deltas;
+        for (int ch = 0; ch < channels; ch++) { // deltas are spread by stride over input positions
+            forwardTransform(deltas.getValues(), deltas.getOffset() + ch * layer.height * layer.width, layer.height, layer.width,
+                             layer.stride, inRe, inIm, ch * spectrumSize);
+        }
+
+        final float[] in = inputDeltas.getValues();
+        final int inOff = inputDeltas.getOffset();
+        final float norm = 1f / (fftRows * fftCols);
+
+        for (int fz = 0; fz < inChannels; fz++) {
+            Arrays.fill(accRe, 0);
+            Arrays.fill(accIm, 0);
+            for (int ch = 0; ch < channels; ch++) {
+                multiply(inRe, inIm, ch * spectrumSize, filterRe, filterIm, (ch * inChannels + fz) * spectrumSize);
+            }
+            inverseColumns();
+
+            for (int r = 0; r < rows; r++) {
+                inverseRow(r + layer.fCenterY);
+                final int inIdx = inOff + (fz * rows + r) * cols;
+                for (int c = 0; c < cols; c++) {
+                    in[inIdx + c] += lineRe[c + layer.fCenterX] * norm;
+                }
+            }
+        }
+    }
+
+    private void ensureInputBuffers(final int channels) {
+        if (inRe == null || inRe.length < channels * spectrumSize) {
+            inRe = new float[channels * spectrumSize];
+            inIm = new float[channels * spectrumSize];
+        }
+    }
+
+    /**
+     * Transforms all filters if they were changed since last transform.
+     */
+    private void updateFilterSpectra() {
+        if (filtersValid) {
+            return;
+        }
+        final int inChannels = layer.filterDepth;
+        if (filterRe == null) {
+            filterRe = new float[layer.depth * inChannels * spectrumSize];
+            filterIm = new float[layer.depth * inChannels * spectrumSize];
+        }
+        final int filterSize = layer.filterHeight * layer.filterWidth;
+        for (int ch = 0; ch < layer.depth; ch++) {
+            final Tensor filter = layer.filters[ch];
+            for (int fz = 0; fz < inChannels; fz++) {
+                forwardTransform(filter.getValues(), filter.getOffset() + fz * filterSize, layer.filterHeight, layer.filterWidth,
+                                 1, filterRe, filterIm, (ch * inChannels + fz) * spectrumSize);
+            }
+        }
+        filtersValid = true;
+    }
+
+    /**
+     * Transforms real 2D values, placed at every step-th row and column of zero padded P x Q matrix,
+     * into P x (Q/2+1) spectrum.
+     */
+    private void forwardTransform(final float[] src, final int srcOff, final int srcRows, final int srcCols, final int step,
+                                  final float[] re, final float[] im, final int off) {
+        Arrays.fill(re, off, off + spectrumSize, 0);
+        Arrays.fill(im, off, off + spectrumSize, 0);
+
+        // rows which are not all zeros
+        for (int r = 0; r < srcRows; r++) {
+            Arrays.fill(lineRe, 0, fftCols, 0);
+            Arrays.fill(lineIm, 0, fftCols, 0);
+            final int srcIdx = srcOff + r * srcCols;
+            for (int c = 0; c < srcCols; c++) {
+                lineRe[c * step] = src[srcIdx + c];
+            }
+            fft(lineRe, lineIm, fftCols, rowRev, rowCos, rowSin);
+            final int dst = off + r * step * halfCols;
+            System.arraycopy(lineRe, 0, re, dst, halfCols);
+            System.arraycopy(lineIm, 0, im, dst, halfCols);
+        }
+
+        // all stored columns
+        for (int k = 0; k < halfCols; k++) {
+            for (int r = 0; r < fftRows; r++) {
+                lineRe[r] = re[off + r * halfCols + k];
+                lineIm[r] = im[off + r * halfCols + k];
+            }
+            fft(lineRe, lineIm, fftRows, colRev, colCos, colSin);
+            for (int r = 0; r < fftRows; r++) {
+                re[off + r * halfCols + k] = lineRe[r];
+                im[off + r * halfCols + k] = lineIm[r];
+            }
+        }
+    }
+
+    /**
+     * Inverse transform of all columns in accumulator, in place (without scaling).
+     */
+    private void inverseColumns() {
+        for (int k = 0; k < halfCols; k++) {
+            for (int r = 0; r < fftRows; r++) { // inverse transform as conjugate of transform of conjugate
+                lineRe[r] = accRe[r * halfCols + k];
+                lineIm[r] = -accIm[r * halfCols + k];
+            }
+            fft(lineRe, lineIm, fftRows, colRev, colCos, colSin);
+            for (int r = 0; r < fftRows; r++) {
+                accRe[r * halfCols + k] = lineRe[r];
+                accIm[r * halfCols + k] = -lineIm[r];
+            }
+        }
+    }
+
+    /**
+     * Inverse transform of specified row in accumulator into real part of line (without scaling).
+     * Missing frequencies of real signal are conjugates of stored ones.
+     */
+    private void inverseRow(final int row) {
+        final int idx = row * halfCols;
+        for (int k = 0; k < halfCols; k++) {
+            lineRe[k] = accRe[idx + k];
+            lineIm[k] = -accIm[idx + k];
+        }
+        for (int k = halfCols; k < fftCols; k++) {
+            lineRe[k] = accRe[idx + fftCols - k];
+            lineIm[k] = accIm[idx + fftCols - k];
+        }
+        fft(lineRe, lineIm, fftCols, rowRev, rowCos, rowSin); // real part is the same for conjugate
+    }
+
+    /**
+     * Adds products of x and conjugate of y to accumulator (correlation).
+     */
+    private void multiplyConjugate(final float[] xRe, final float[] xIm, final int xOff, final float[] yRe, final float[] yIm, final int yOff) {
+        for (int i = 0; i < spectrumSize; i++) {
+            final float ar = xRe[xOff + i], ai = xIm[xOff + i];
+            final float br = yRe[yOff + i], bi = yIm[yOff + i];
+            accRe[i] += ar * br + ai * bi;
+            accIm[i] += ai * br - ar * bi;
+        }
+    }
+
+    /**
+     * Adds products of x and y to accumulator (convolution).
+     */
+    private void multiply(final float[] xRe, final float[] xIm, final int xOff, final float[] yRe, final float[] yIm, final int yOff) {
+        for (int i = 0; i < spectrumSize; i++) {
+            final float ar = xRe[xOff + i], ai = xIm[xOff + i];
+            final float br = yRe[yOff + i], bi = yIm[yOff + i];
+            accRe[i] += ar * br - ai * bi;
+            accIm[i] += ar * bi + ai * br;
+        }
+    }
+
+    /**
+     * Creates twiddle factors e^(-2 pi i k / n) and bit reversal permutation for transform of length n.
+     */
+    private static void twiddles(final int n, final float[] cos, final float[] sin, final int[] rev) {
+        for (int k = 0; k < n / 2; k++) {
+            final double angle = 2 * Math.PI * k / n;
+            cos[k] = (float) Math.cos(angle);
+            sin[k] = (float) -Math.sin(angle);
+        }
+        final int bits = Integer.numberOfTrailingZeros(n);
+        for (int i = 0; i < n; i++) {
+            rev[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    /**
+     * In place iterative radix 2 FFT of n complex values.
+     */
+    private static void fft(final float[] re, final float[] im, final int n, final int[] rev, final float[] cos, final float[] sin) {
+        for (int i = 0; i < n; i++) {
+            final int j = rev[i];
+            if (i < j) {
+                float tmp = re[i]; re[i] = re[j]; re[j] = tmp;
+                tmp = im[i]; im[i] = im[j]; im[j] = tmp;
+            }
+        }
+        for (int len = 2; len <= n; len <<= 1) {
+            final int half = len >> 1;
+            final int step = n / len;
+            for (int i = 0; i < n; i += len) {
+                for (int k = 0; k < half; k++) {
+                    final float wr = cos[k * step], wi = sin[k * step];
+                    final int a = i + k, b = a + half;
+                    final float tr = re[b] * wr - im[b] * wi;
+                    final float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+}
@@ -25,8 +25,15 @@ import deepnetts.net.layers.activation.ActivationFunctions;
 import deepnetts.net.layers.activation.ActivationType;
 import deepnetts.core.DeepNetts;
 import deepnetts.net.train.opt.Optimizers;
+import deepnetts.util.Kernels;
+import deepnetts.util.LinearAlgebra;
+import deepnetts.util.Parallel;
+import deepnetts.util.QuantizedStorage;
+import deepnetts.util.SparseStorage;
+import deepnetts.util.StorageType;
 import deepnetts.util.WeightsInit;
 import deepnetts.util.Tensor;
+import deepnetts.util.TensorExpression;
 import java.util.Arrays;
 import java.util.logging.Logger;
 import deepnetts.net.layers.activation.ActivationFunction;
@@ -36,7 +43,9 @@ import deepnetts.net.layers.activation.ActivationFunction;
  * previous and next layer.
  *
  * Next layer can be fully connected or output Previous layer can be fully
- * connected, input, convolutional or max pooling
+ * connected, input, convolutional or pooling. Outputs of input, convolutional
+ * and pooling layers are flattened, so weights are always a matrix with a
+ * contiguous row of weights for each neuron or each input.
  *
  * @author Zoran Sevarac
  */
@@ -44,6 +53,53 @@ public final class FullyConnectedLayer extends AbstractLayer {
 
     private static Logger LOG = Logger.getLogger(DeepNetts.class.getName());
 
+    /**
+     * Marks weight strings with weights in [neurons][inputs] order, and inputs
+     * in [depth][row][col] order, to tell them from strings saved by earlier versions.
+     */
+    public static final String FLAT_WEIGHTS_PREFIX = "flat:";
+
+    /**
+     * Weight positions (of the first neuron) for inputs which have non zero
+     * weight changes since last reset of deltaWeights, when inputs are sparse.
+     * They are used only if sparseUpdates is true, otherwise weight changes
+     * can be anywhere (dense inputs).
+     */
+    private transient int[] touchedIdx;
+    private transient boolean[] touched;
+    private transient int touchedCount;
+    private transient boolean sparseUpdates;
+
+    /**
+     * Weight positions where gradients were set for previous sparse input,
+     * used only if sparseGradients is true.
+     */
+    private transient int[] gradientIdx;
+    private transient int gradientCount;
+    private transient boolean sparseGradients;
+
+    /**
+     * Inputs of all samples in a batch, when previous layer is convolutional, pooling
+     * or input layer and its outputs are not in NCHW heap array.
+     */
+    private transient float[] batchInputs;
+
+    /**
+     * Scale and zero point used to quantize inputs, when weights are quantized to int8.
+     */
+    private float inputScale;
+    private int inputZeroPoint;
+
+    /**
+     * Quantized inputs (minus zero point) and int32 sums for all neurons.
+     */
+    private transient int[] quantizedInputs, quantizedSums;
+
+    /**
+     * Fused expression which multiplies deltas with derivatives of outputs, created on first use.
+     */
+    private transient TensorExpression deltasExpr;
+
     /**
      * Creates an instance of fully connected layer with specified width (number
      * of neurons) and sigmoid activation function.
@@ -81,24 +137,25 @@ public final class FullyConnectedLayer extends AbstractLayer {
     @Override
     public void init() {
         inputs = prevLayer.outputs;
-        outputs = new Tensor(width);
-        deltas = new Tensor(width);
+        outputs = createTensor(width);
+        deltas = createAccumulatorTensor(width);
 
         if (prevLayer instanceof FullyConnectedLayer) { 
-            weights = new Tensor(prevLayer.width, width);
-            deltaWeights = new Tensor(prevLayer.width, width);
-            gradients = new Tensor(prevLayer.width, width);
+            weights = createTensor(prevLayer.width, width);
+            deltaWeights = createAccumulatorTensor(prevLayer.width, width);
+            gradients = createAccumulatorTensor(prevLayer.width, width);
 
-            WeightsInit.xavier(weights.getValues(), prevLayer.width, width);
+            WeightsInit.xavier(weights, prevLayer.width, width);
             // WeightsInit.randomize(weights.getValues());
 
-        } else if ((prevLayer instanceof MaxPoolingLayer) || (prevLayer instanceof ConvolutionalLayer) || (prevLayer instanceof InputLayer)) {
-            weights = new Tensor(prevLayer.width, prevLayer.height, prevLayer.depth, width);
-            deltaWeights = new Tensor(prevLayer.width, prevLayer.height, prevLayer.depth, width);
-            gradients = new Tensor(prevLayer.width, prevLayer.height, prevLayer.depth, width);
-
+        } else if ((prevLayer instanceof MaxPoolingLayer) || (prevLayer instanceof AveragePoolingLayer) || (prevLayer instanceof GlobalAveragePoolingLayer) || (prevLayer instanceof ConvolutionalLayer) || (prevLayer instanceof GroupedConvolutionalLayer) || (prevLayer instanceof InputLayer)) {
+            // outputs of previous layer are flattened, weights [neurons][inputs] with inputs in order [depth][row][col]
             int totalInputs = prevLayer.getWidth() * prevLayer.getHeight() * prevLayer.getDepth();
-            WeightsInit.xavier(weights.getValues(), totalInputs, width);
+            weights = createTensor(width, totalInputs);
+            deltaWeights = createAccumulatorTensor(width, totalInputs);
+            gradients = createAccumulatorTensor(width, totalInputs);
+
+            WeightsInit.xavier(weights, totalInputs, width);
         }
 
         biases = new float[width];
@@ -108,133 +165,548 @@ public final class FullyConnectedLayer extends AbstractLayer {
 
     @Override
     public void forward() {
-        if (prevLayer instanceof FullyConnectedLayer) {
-            outputs.copyFrom(biases);                                                       // first use (add) biases to all outputs
-            // put gtters cols in fibal locals
-            for (int outCol = 0; outCol < outputs.getCols(); outCol++) {                    // for all outputs in this layer
-                for (int inCol = 0; inCol < inputs.getCols(); inCol++) {                    // iterate all inputs from prev layer
-                    outputs.add(outCol, inputs.get(inCol) * weights.get(inCol, outCol));    // and add weighted sum to outputs
+        if (isQuantized()) {
+            forwardQuantized();
+        } else if (prevLayer instanceof FullyConnectedLayer) {
+            outputs.copyFrom(biases);   // first use (add) biases to all outputs
+            addWeightedInputs();        // and add weighted sum of inputs from prev layer
+            outputs.mapInPlace(activation::getValue);
+        } else if (getSparseInput() != null) { // input layer with sparse input, skip zero inputs
+            forwardSparse(getSparseInput());
+        } // if previous layer is MaxPooling, Convolutional or input layer (2D or 3D), its outputs are flattened to 1D inputs
+        else if ((prevLayer instanceof MaxPoolingLayer) || (prevLayer instanceof AveragePoolingLayer) || (prevLayer instanceof GlobalAveragePoolingLayer) || (prevLayer instanceof ConvolutionalLayer) || (prevLayer instanceof GroupedConvolutionalLayer) || (prevLayer instanceof InputLayer)) { 
+            if (weights.hasArray() && outputs.hasArray() && GemmConvolution.isNchwArray(inputs)) { // outputs = weights * inputs + biases
+                final int inputsSize = inputs.size();
+                final float[] outVals = outputs.getValues();
+                final int outOff = outputs.getOffset();
+                outputs.copyFrom(biases);
+                LinearAlgebra.sgemv(false, width, inputsSize, 1, weights.getValues(), weights.getOffset(), inputsSize,
+                                    inputs.getValues(), inputs.getOffset(), 1, outVals, outOff);
+                for (int outCol = 0; outCol < width; outCol++) {
+                    outVals[outOff + outCol] = activation.getValue(outVals[outOff + outCol]);
                 }
-
-                //outputs.set(outCol, activation.getValue(outputs.get(outCol)));                                 
-            }
-            outputs.apply(activation::getValue);
-        } // if previous layer is MaxPooling, Convolutional or input layer (2D or 3D) - TODO: posto je povezanost svi sa svima ovo mozda moze i kao 1d na 1d niz, verovatno je efikasnije
-        else if ((prevLayer instanceof MaxPoolingLayer) || (prevLayer instanceof ConvolutionalLayer) || (prevLayer instanceof InputLayer)) { 
-            outputs.copyFrom(biases);                                             // first use (add) biases to all outputs
-            for (int outCol = 0; outCol < outputs.getCols(); outCol++) {          // for all neurons/outputs in this layer
-                for (int inDepth = 0; inDepth < inputs.getDepth(); inDepth++) {   // iterate depth from prev/input layer
-                    for (int inRow = 0; inRow < inputs.getRows(); inRow++) {      // iterate current channel by height (rows)
-                        for (int inCol = 0; inCol < inputs.getCols(); inCol++) {   // iterate current feature map by width (cols)
-                            outputs.add(outCol, inputs.get(inRow, inCol, inDepth) * weights.get(inCol, inRow, inDepth, outCol)); // add to weighted sum of all inputs (TODO: ako je svaki sa svima to bi mozda moglo da bude i jednostavno i da se prodje u jednom loopu a ugnjezdeni loopovi bi se lakse paralelizovali)
-                        }
+            } else if (weights.hasArray() && GemmConvolution.isNchwArray(inputs)) { // weights of each neuron are a contiguous row, in the order of inputs
+                final int inputsSize = inputs.size();
+                for (int outCol = 0; outCol < width; outCol++) {
+                    final float sum = biases[outCol] + Kernels.dot(weights.getValues(), weights.getOffset() + outCol * inputsSize,
+                                                                   inputs.getValues(), inputs.getOffset(), inputsSize);
+                    outputs.set(outCol, activation.getValue(sum));
+                }
+            } else {
+                for (int outCol = 0; outCol < outputs.getCols(); outCol++) {          // for all neurons/outputs in this layer
+                    float sum = biases[outCol];                                       // first use (add) bias, sum is accumulated in float
+                    for (int inCol = 0; inCol < inputs.size(); inCol++) {             // inputs in order [depth][row][col]
+                        sum += inputs.get(inCol) * weights.get(outCol, inCol);
                     }
+                    // apply activation function to weigthed sum and store it in outputs
+                    outputs.set(outCol, activation.getValue(sum));
                 }
-                // apply activation function to all weigthed sums stored in outputs
-                outputs.set(outCol, activation.getValue(outputs.get(outCol)));
             }
         }
     }
 
+    /**
+     * Quantizes weights of this layer to int8 with a scale for each neuron, so forward pass
+     * uses int8 weights and inputs with int32 sums. Inputs are quantized with specified
+     * scale and zero point, calibrated for the range of outputs of previous layer.
+     * Quantized layer can be used only for inference.
+     *
+     * @param inputScale scale used to quantize inputs
+     * @param inputZeroPoint quantized value of zero input
+     * @see deepnetts.net.Quantizer
+     */
+    public void quantize(float inputScale, int inputZeroPoint) {
+        this.inputScale = inputScale;
+        this.inputZeroPoint = inputZeroPoint;
+        if (prevLayer instanceof FullyConnectedLayer) { // weights [inputs][neurons]
+            weights.quantize(width, 1);
+        } else { // weights [neurons][inputs]
+            weights.quantize(width, inputs.size());
+        }
+    }
+
+    /**
+     * Returns true if weights of this layer are quantized to int8.
+     *
+     * @return true if layer is quantized
+     */
+    public boolean isQuantized() {
+        return weights.getStorageType() == StorageType.INT8;
+    }
+
+    /**
+     * Forward pass with int8 weights and inputs, which accumulates weighted sums
+     * as int32 and scales them back to float once for each neuron.
+     */
+    private void forwardQuantized() {
+        final QuantizedStorage qWeights = (QuantizedStorage) weights.getStorage();
+        final byte[] weightVals = qWeights.getRawValues();
+        final float[] scales = qWeights.getScales();
+        final int inputsSize = inputs.size();
+        if (quantizedSums == null) {
+            quantizedInputs = new int[inputsSize];
+            quantizedSums = new int[width];
+        }
+        final int[] in = quantizedInputs;
+        final int[] sums = quantizedSums;
+
+        if (prevLayer instanceof FullyConnectedLayer) { // weights [inputs][neurons]
+            for (int i = 0; i < inputsSize; i++) {
+                in[i] = QuantizedStorage.quantize(inputs.get(i), inputScale, inputZeroPoint) - inputZeroPoint;
+            }
+            Arrays.fill(sums, 0);
+            for (int inCol = 0; inCol < inputsSize; inCol++) {
+                final int input = in[inCol];
+                if (input == 0) continue;
+                final int rowIdx = inCol * width;
+                for (int outCol = 0; outCol < width; outCol++) {
+                    sums[outCol] += input * weightVals[rowIdx + outCol];
+                }
+            }
+        } else { // weights [neurons][inputs]
+            for (int i = 0; i < inputsSize; i++) {
+                in[i] = QuantizedStorage.quantize(inputs.get(i), inputScale, inputZeroPoint) - inputZeroPoint;
+            }
+            for (int outCol = 0; outCol < width; outCol++) {
+                final int neuronIdx = outCol * inputsSize;
+                int sum = 0;
+                for (int i = 0; i < inputsSize; i++) {
+                    sum += in[i] * weightVals[neuronIdx + i];
+                }
+                sums[outCol] = sum;
+            }
+        }
+
+        for (int outCol = 0; outCol < width; outCol++) {
+            outputs.set(outCol, activation.getValue(biases[outCol] + inputScale * scales[outCol] * sums[outCol]));
+        }
+    }
+
+    /**
+     * Forward pass for sparse network input, which uses only non zero inputs.
+     */
+    private void forwardSparse(final SparseStorage sparseInput) {
+        final int nnz = sparseInput.getNonZeroCount();
+        final float[] vals = sparseInput.getValues();
+        final int[] weightIdx = sparseWeightIndexes(sparseInput);
+        final int inputsSize = inputs.size();
+
+        for (int outCol = 0; outCol < outputs.getCols(); outCol++) {
+            float sum = biases[outCol];
+            final int neuronIdx = outCol * inputsSize;
+            for (int i = 0; i < nnz; i++) {
+                sum += vals[i] * weights.get(neuronIdx + weightIdx[i]);
+            }
+            outputs.set(outCol, activation.getValue(sum));
+        }
+    }
+
+    /**
+     * Returns positions in weights of the first neuron for non zero values of
+     * sparse input. Weights of each neuron are in the same order as inputs, so these
+     * are positions of the values in inputs, and weights of other neurons are at
+     * the same positions moved by neuron index * number of inputs.
+     */
+    private int[] sparseWeightIndexes(final SparseStorage sparseInput) {
+        if (touchedIdx == null) {
+            final int inputsSize = inputs.size();
+            touchedIdx = new int[inputsSize];
+            touched = new boolean[inputsSize];
+            gradientIdx = new int[inputsSize];
+        }
+        return sparseInput.getIndices();
+    }
+
+    private SparseStorage getSparseInput() {
+        return prevLayer instanceof InputLayer ? ((InputLayer) prevLayer).getSparseInput() : null;
+    }
+
     @Override
     public void backward() {
+        if (isQuantized()) {
+            throw new IllegalStateException("Quantized layer can be used only for inference");
+        }
+        final SparseStorage sparseInput = getSparseInput();
+
         if (!batchMode) { // if online mode reset deltaWeights and deltaBiases to zeros
-            deltaWeights.fill(0);
+            if (sparseInput != null) {
+                resetDeltaWeights();
+            } else {
+                deltaWeights.fill(0);
+            }
             Arrays.fill(deltaBiases, 0);
         }
-
-        deltas.fill(0); // reset current delta
+        if (sparseInput == null) {
+            sparseUpdates = false;
+        }
 
         // STEP 1. propagate weighted deltas from next layer (which can be output or fully connected) and calculate deltas for this layer
-        for (int deltaCol = 0; deltaCol < deltas.getCols(); deltaCol++) {   // for every neuron/delta in this layer
-            for (int ndCol = 0; ndCol < nextLayer.deltas.getCols(); ndCol++) { // iterate all deltas from next layer
-                deltas.add(deltaCol, nextLayer.deltas.get(ndCol) * nextLayer.weights.get(deltaCol, ndCol)); // calculate weighted sum of deltas from the next layer
+        final Tensor nextDeltas = nextLayer.deltas;
+        final Tensor nextWeights = nextLayer.weights;
+        final int ndCols = nextDeltas.getCols();
+
+        if (nextDeltas.hasArray() && nextWeights.hasArray() && deltas.hasArray()) { // deltas = nextWeights * nextDeltas
+            LinearAlgebra.sgemv(false, deltas.getCols(), ndCols, 1, nextWeights.getValues(), nextWeights.getOffset(), ndCols,
+                                nextDeltas.getValues(), nextDeltas.getOffset(), 0, deltas.getValues(), deltas.getOffset());
+        } else {
+            deltas.fill(0); // reset current delta
+            for (int deltaCol = 0; deltaCol < deltas.getCols(); deltaCol++) {       // for every neuron/delta in this layer
+                for (int ndCol = 0; ndCol < ndCols; ndCol++) {                      // iterate all deltas from next layer
+                    deltas.add(deltaCol, nextDeltas.get(ndCol) * nextWeights.get(deltaCol, ndCol)); // calculate weighted sum of deltas from the next layer
+                }
             }
+        }
 
-            final float delta = deltas.get(deltaCol) * activation.getPrime(outputs.get(deltaCol));
-            deltas.set(deltaCol, delta);
-        } // end sum weighted deltas from next layer
+        if (deltasExpr == null) {
+            deltasExpr = deltas.expr().zipWith(outputs, (delta, out) -> delta * activation.getPrime(out));
+        }
+        deltasExpr.evaluateInto(deltas); // end sum weighted deltas from next layer
 
         // STEP 2. calculate delta weights if previous layer is Dense (2D weights matrix) - optimize
         if ((prevLayer instanceof FullyConnectedLayer)) {
 //            Optimizer opt = new SGDOptimizer(); // create instance in init method
 //            opt.optimize(this);
-            for (int deltaCol = 0; deltaCol < deltas.getCols(); deltaCol++) { // this iterates neurons (weights depth)
-                for (int inCol = 0; inCol < inputs.getCols(); inCol++) {
-                    final float grad = deltas.get(deltaCol) * inputs.get(inCol); // gradient dE/dw
-                    gradients.set(inCol, deltaCol, grad);
-
-                    float deltaWeight = 0;
-                    
-                    switch (optimizer) {
-                        case SGD:
-                            deltaWeight = Optimizers.sgd(learningRate, grad);
-                            break;
-                    }
-
-                    deltaWeights.add(inCol, deltaCol, deltaWeight);
+            switch (optimizer) {
+                case SGD:
+                    addDeltaWeights(); // gradients dE/dw and delta weights for all neurons at once
+                    addDeltaBiases();
+                    break;
+            }
+        } else if (sparseInput != null) {
+            addSparseDeltaWeights(sparseInput);
+            addDeltaBiases();
+        } else if ((prevLayer instanceof InputLayer)
+                || (prevLayer instanceof ConvolutionalLayer)
+                || (prevLayer instanceof GroupedConvolutionalLayer)
+                || (prevLayer instanceof MaxPoolingLayer)
+                || (prevLayer instanceof AveragePoolingLayer)
+                || (prevLayer instanceof GlobalAveragePoolingLayer)) {
+
+            switch (optimizer) {
+                case SGD:
+                    addFlattenedDeltaWeights(); // gradients dE/dw and delta weights for all neurons at once
+                    addDeltaBiases();
+                    break;
+            }
+            sparseGradients = false;
+        }
+    }
 
+    /**
+     * Calculates gradients for weights [neurons][inputs] as outer product of deltas and
+     * flattened inputs, and adds SGD weight changes to deltaWeights.
+     */
+    private void addFlattenedDeltaWeights() {
+        final int inputsSize = inputs.size();
+
+        if (deltas.hasArray() && GemmConvolution.isNchwArray(inputs) && gradients.hasArray() && deltaWeights.hasArray()) {
+            final float[] inVals = inputs.getValues();
+            final float[] deltaVals = deltas.getValues();
+            LinearAlgebra.outer(width, inputsSize, deltaVals, deltas.getOffset(), inVals, inputs.getOffset(), gradients.getValues(), gradients.getOffset(), inputsSize);
+            LinearAlgebra.sger(width, inputsSize, -learningRate, deltaVals, deltas.getOffset(), inVals, inputs.getOffset(), deltaWeights.getValues(), deltaWeights.getOffset(), inputsSize);
+        } else {
+            for (int deltaCol = 0; deltaCol < width; deltaCol++) {
+                for (int inCol = 0; inCol < inputsSize; inCol++) {
+                    final float grad = deltas.get(deltaCol) * inputs.get(inCol);
+                    gradients.set(deltaCol, inCol, grad);
+                    deltaWeights.add(deltaCol, inCol, Optimizers.sgd(learningRate, grad));
                 }
+            }
+        }
+    }
 
-                float deltaBias = 0;
-                switch (optimizer) {
-                    case SGD:
-                        deltaBias = Optimizers.sgd(learningRate, deltas.get(deltaCol));
-                        break;
-                }
+    /**
+     * Propagates deltas of this layer back through weights, and adds them to deltas of
+     * previous 3D layer (convolutional or pooling): inputDeltas += transposed(weights) * deltas.
+     *
+     * @param inputDeltas deltas of previous layer
+     */
+    void backwardInputs(Tensor inputDeltas) {
+        final int inputsSize = inputDeltas.size();
+
+        if (weights.hasArray() && deltas.hasArray() && GemmConvolution.isNchwArray(inputDeltas)) {
+            if (Parallel.isParallel(inputsSize)) {
+                Parallel.forRange(inputsSize, (from, to) -> backwardInputs(inputDeltas, from, to)); // each chunk adds only to its own input deltas
+            } else {
+                backwardInputs(inputDeltas, 0, inputsSize);
+            }
+            return;
+        }
 
-                deltaBiases[deltaCol] += deltaBias;
+        for (int inCol = 0; inCol < inputsSize; inCol++) {
+            float sum = 0;
+            for (int ndC = 0; ndC < width; ndC++) {
+                sum += deltas.get(ndC) * weights.get(ndC, inCol);
             }
-        } else if ((prevLayer instanceof InputLayer)
-                || (prevLayer instanceof ConvolutionalLayer)
-                || (prevLayer instanceof MaxPoolingLayer)) {
-
-            for (int deltaCol = 0; deltaCol < deltas.getCols(); deltaCol++) { 
-                for (int inDepth = 0; inDepth < inputs.getDepth(); inDepth++) { 
-                    for (int inRow = 0; inRow < inputs.getRows(); inRow++) {
-                        for (int inCol = 0; inCol < inputs.getCols(); inCol++) {
-                            final float grad = deltas.get(deltaCol) * inputs.get(inRow, inCol, inDepth);
-                            gradients.set(inCol, inRow, inDepth, grad); 
-
-                            float deltaWeight = 0;
-                            switch (optimizer) {
-                                case SGD:
-                                    deltaWeight = Optimizers.sgd(learningRate, grad);
-                                    break;
-                            }
-
-                            deltaWeights.add(inCol, inRow, inDepth, deltaCol, deltaWeight);
-                        }
-                    }
-                }
+            inputDeltas.add(inCol, sum);
+        }
+    }
+
+    /**
+     * Adds weighted deltas of all neurons to input deltas in range [from, to),
+     * going through weights of each neuron for these inputs.
+     */
+    private void backwardInputs(final Tensor inputDeltas, final int from, final int to) {
+        final int inputsSize = inputDeltas.size();
+        final float[] weightVals = weights.getValues();
+        final float[] deltaVals = deltas.getValues();
+        final int weightOff = weights.getOffset(), deltaOff = deltas.getOffset();
+        for (int ndC = 0; ndC < width; ndC++) {
+            Kernels.axpy(deltaVals[deltaOff + ndC], weightVals, weightOff + ndC * inputsSize + from,
+                         inputDeltas.getValues(), inputDeltas.getOffset() + from, to - from);
+        }
+    }
+
+    /**
+     * Forward pass for all samples in a batch, using one matrix multiplication
+     * for weighted inputs of all samples.
+     *
+     * @param count number of samples in a batch
+     */
+    @Override
+    public void forwardBatch(int count) {
+        if (!weights.hasArray()) { // 16 bit weights
+            super.forwardBatch(count);
+            return;
+        }
+        selectSample(0);
+        final float[] outVals = outputs.getValues();
+        for (int sample = 0; sample < count; sample++) {
+            System.arraycopy(biases, 0, outVals, sample * width, width);
+        }
+
+        if (prevLayer instanceof FullyConnectedLayer) {
+            addWeightedInputs(count);
+        } else { // outputs[samples] += inputs[samples] * transposed(weights), with weights [neurons][inputs]
+            final int inputsSize = inputs.size();
+            final float[] inVals = batchInputs(count);
+            final int inOff = inVals == inputs.getValues() ? inputs.getOffset() : 0;
+            LinearAlgebra.sgemm(false, true, count, width, inputsSize, 1, inVals, inOff, inputsSize,
+                                weights.getValues(), weights.getOffset(), inputsSize, 1, outVals, 0, width);
+        }
+
+        for (int i = 0; i < count * width; i++) {
+            outVals[i] = activation.getValue(outVals[i]);
+        }
+    }
+
+    /**
+     * Returns flattened inputs of all samples in a batch, in order [sample][depth][row][col].
+     * Inputs in NCHW heap array are already in that order, otherwise they are copied.
+     */
+    private float[] batchInputs(final int count) {
+        prevLayer.selectSample(0);
+        if (GemmConvolution.isNchwArray(inputs)) {
+            return inputs.getValues();
+        }
+
+        final int inputsSize = inputs.size();
+        if (batchInputs == null || batchInputs.length < count * inputsSize) {
+            batchInputs = new float[count * inputsSize];
+        }
+        for (int sample = 0; sample < count; sample++) {
+            prevLayer.selectSample(sample);
+            for (int inCol = 0; inCol < inputsSize; inCol++) {
+                batchInputs[sample * inputsSize + inCol] = inputs.get(inCol);
+            }
+        }
+        prevLayer.selectSample(0);
+        return batchInputs;
+    }
+
+    /**
+     * Backward pass for all samples in a batch, using matrix multiplications
+     * for deltas and weight changes of all samples.
+     *
+     * @param count number of samples in a batch
+     */
+    @Override
+    public void backwardBatch(int count) {
+        checkBatchMode();
+        final Tensor nextWeights = nextLayer.weights;
+        if (!weights.hasArray() || !nextWeights.hasArray()) {
+            super.backwardBatch(count);
+            return;
+        }
+        sparseUpdates = false;
+        sparseGradients = false;
+
+        // deltas[samples] = nextDeltas[samples] * transposed(nextWeights)
+        selectSample(0);
+        nextLayer.selectSample(0);
+        final Tensor nextDeltas = nextLayer.deltas;
+        final int ndCols = nextDeltas.getCols();
+        final float[] deltaVals = deltas.getValues();
+        final float[] outVals = outputs.getValues();
+        LinearAlgebra.sgemm(false, true, count, width, ndCols, 1, nextDeltas.getValues(), nextDeltas.getOffset(), ndCols,
+                            nextWeights.getValues(), nextWeights.getOffset(), ndCols, 0, deltaVals, 0, width);
+        for (int i = 0; i < count * width; i++) {
+            deltaVals[i] = deltaVals[i] * activation.getPrime(outVals[i]);
+        }
+
+        if (prevLayer instanceof FullyConnectedLayer) {
+            addDeltaWeights(count);
+        } else { // gradients = transposed(deltas[samples]) * inputs[samples]
+            final int inputsSize = inputs.size();
+            final float[] inVals = batchInputs(count);
+            final int inOff = inVals == inputs.getValues() ? inputs.getOffset() : 0;
+            LinearAlgebra.sgemm(true, false, width, inputsSize, count, 1, deltaVals, 0, width, inVals, inOff, inputsSize,
+                                0, gradients.getValues(), gradients.getOffset(), inputsSize);
+            Kernels.axpy(-learningRate, gradients.getValues(), gradients.getOffset(), deltaWeights.getValues(), deltaWeights.getOffset(), width * inputsSize);
+        }
+        addDeltaBiases(count);
+    }
 
-                float deltaBias = 0;
-                switch (optimizer) {
-                    case SGD:
-                        deltaBias = Optimizers.sgd(learningRate, deltas.get(deltaCol));
-                        break;
+    /**
+     * Calculates gradients and weight changes only for non zero values of
+     * sparse input, since they are zero for all other inputs.
+     */
+    private void addSparseDeltaWeights(final SparseStorage sparseInput) {
+        final int nnz = sparseInput.getNonZeroCount();
+        final float[] vals = sparseInput.getValues();
+        final int[] weightIdx = sparseWeightIndexes(sparseInput);
+        final int inputsSize = inputs.size();
+        final int outCols = deltas.getCols();
+
+        if (!sparseGradients) { // clear gradients from previous input
+            gradients.fill(0);
+        } else {
+            for (int i = 0; i < gradientCount; i++) {
+                for (int outCol = 0; outCol < outCols; outCol++) {
+                    gradients.set(outCol * inputsSize + gradientIdx[i], 0);
+                }
+            }
+        }
+        System.arraycopy(weightIdx, 0, gradientIdx, 0, nnz);
+        gradientCount = nnz;
+        sparseGradients = true;
+
+        if (sparseUpdates) {
+            for (int i = 0; i < nnz; i++) {
+                if (!touched[weightIdx[i]]) {
+                    touched[weightIdx[i]] = true;
+                    touchedIdx[touchedCount++] = weightIdx[i];
                 }
+            }
+        }
 
-                deltaBiases[deltaCol] += deltaBias;
+        for (int outCol = 0; outCol < outCols; outCol++) {
+            final float delta = deltas.get(outCol);
+            final int neuronIdx = outCol * inputsSize;
+            for (int i = 0; i < nnz; i++) {
+                final float grad = delta * vals[i];
+                gradients.set(neuronIdx + weightIdx[i], grad);
+                deltaWeights.add(neuronIdx + weightIdx[i], Optimizers.sgd(learningRate, grad));
             }
         }
     }
 
+    /**
+     * Sets deltaWeights to zero, only for touched inputs if possible.
+     */
+    private void resetDeltaWeights() {
+        if (sparseUpdates) {
+            final int inputsSize = inputs.size();
+            for (int i = 0; i < touchedCount; i++) {
+                for (int outCol = 0; outCol < width; outCol++) {
+                    deltaWeights.set(outCol * inputsSize + touchedIdx[i], 0);
+                }
+            }
+        } else {
+            deltaWeights.fill(0);
+        }
+        clearTouched();
+    }
+
+    private void clearTouched() {
+        for (int i = 0; i < touchedCount; i++) {
+            touched[touchedIdx[i]] = false;
+        }
+        touchedCount = 0;
+        sparseUpdates = true;
+    }
+
     @Override
     public void applyWeightChanges() {
         if (batchMode) {
-            deltaWeights.div(batchSize);
             Tensor.div(deltaBiases, batchSize);
         }
 
-        weights.add(deltaWeights);
+        if (sparseUpdates) { // sparse inputs, only weights for touched inputs have changed
+            final int inputsSize = inputs.size();
+            for (int i = 0; i < touchedCount; i++) {
+                for (int outCol = 0; outCol < width; outCol++) {
+                    final int idx = outCol * inputsSize + touchedIdx[i];
+                    weights.add(idx, batchMode ? deltaWeights.get(idx) / batchSize : deltaWeights.get(idx));
+                }
+            }
+            if (batchMode) {
+                resetDeltaWeights();
+            }
+        } else {
+            if (batchMode) { // average of weight changes for batch, added in the same pass
+                weights.expr().add(deltaWeights.expr().div(batchSize)).evaluateInto(weights);
+                deltaWeights.fill(0);
+                clearTouched();
+            } else {
+                weights.add(deltaWeights);
+            }
+        }
+
         Tensor.add(biases, deltaBiases);
 
         if (batchMode) {
-            deltaWeights.fill(0);
             Tensor.fill(deltaBiases, 0);
         }
+    }
+
+    /**
+     * Returns weights as csv string, starting with {@link #FLAT_WEIGHTS_PREFIX}.
+     *
+     * @return weights as string
+     */
+    public String getWeightsAsString() {
+        return FLAT_WEIGHTS_PREFIX + weights.toString();
+    }
+
+    /**
+     * Sets weights from csv string. Strings written by {@link #getWeightsAsString()}
+     * start with {@link #FLAT_WEIGHTS_PREFIX}. Strings without it are from earlier versions,
+     * in which weights of a neuron connected to input, convolutional or pooling layer
+     * were in [depth][col][row] order, so they are reordered to [depth][row][col].
+     *
+     * @param weightStr weights as csv string
+     */
+    @Override
+    public void setWeights(String weightStr) {
+        if (weightStr.startsWith(FLAT_WEIGHTS_PREFIX)) {
+            weights.setValuesFromString(weightStr.substring(FLAT_WEIGHTS_PREFIX.length()));
+            return;
+        }
+        if (prevLayer instanceof FullyConnectedLayer) {
+            weights.setValuesFromString(weightStr);
+            return;
+        }
 
+        final String[] strArr = weightStr.split(",");
+        if (strArr.length != weights.size()) {
+            throw new IllegalArgumentException("Expected " + weights.size() + " weights, but got " + strArr.length);
+        }
+        final int inRows = prevLayer.getHeight();
+        final int inCols = prevLayer.getWidth();
+        final int channelSize = inRows * inCols;
+        final int inputsSize = channelSize * prevLayer.getDepth();
+        for (int outCol = 0; outCol < width; outCol++) {
+            for (int inDepth = 0; inDepth < prevLayer.getDepth(); inDepth++) {
+                final int channelIdx = outCol * inputsSize + inDepth * channelSize;
+                for (int inRow = 0; inRow < inRows; inRow++) {
+                    for (int inCol = 0; inCol < inCols; inCol++) {
+                        final float w = Float.parseFloat(strArr[channelIdx + inCol * inRows + inRow]);
+                        weights.set(channelIdx + inRow * inCols + inCol, w);
+                    }
+                }
+            }
+        }
     }
 
 }
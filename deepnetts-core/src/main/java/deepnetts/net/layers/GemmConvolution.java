@@ -0,0 +1,285 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.net.layers.activation.ActivationFunctions;
+import deepnetts.util.Kernels;
+import deepnetts.util.Layout;
+import deepnetts.util.LinearAlgebra;
+import deepnetts.util.Tensor;
+import deepnetts.util.TensorPool;
+
+/**
+ * Convolution lowered to matrix multiplication (im2col + GEMM).
+ *
+ * Inputs under the filter at each output position are unrolled into a column of
+ * K x N matrix, where K = filterDepth * filterHeight * filterWidth and N is number
+ * of output positions, and filters are packed into M x K matrix with a row for each filter.
+ * Then all three passes are single cache blocked matrix multiplications:
+ * <pre>
+ * outputs      = filters * cols                  (M x N)
+ * deltaWeights = deltas * transpose(cols)        (M x K)
+ * inputDeltas  = col2im(transpose(filters) * deltas)
+ * </pre>
+ *
+ * 1x1 convolution with stride 1 only mixes channels, so inputs are already K x N matrix
+ * and are used without im2col and col2im.
+ *
+ * Requires inputs, outputs and filters in heap arrays in NCHW layout.
+ * Temporary matrices are taken from the {@link TensorPool} of the calling thread.
+ *
+ * @see ConvolutionAlgorithm#GEMM
+ * @see LinearAlgebra#sgemm
+ * @author Zoran Sevarac
+ */
+final class GemmConvolution {
+
+    private GemmConvolution() { }
+
+    /**
+     * Returns true if GEMM convolution can be used for specified layer.
+     */
+    static boolean isSupported(final ConvolutionalLayer layer) {
+        return isNchwArray(layer.inputs) && isNchwArray(layer.outputs) && isNchwArray(layer.filters[0]);
+    }
+
+    /**
+     * Returns true if tensor values are contiguous heap array in NCHW order.
+     */
+    static boolean isNchwArray(final Tensor t) {
+        return t != null && t.hasArray() && t.isContiguous() && (t.getLayout() != Layout.NHWC || t.getDepth() == 1);
+    }
+
+    /**
+     * Returns true if layer has 1x1 filters with stride 1, so that inputs are used as cols.
+     */
+    static boolean isPointwise(final ConvolutionalLayer layer) {
+        return layer.filterWidth == 1 && layer.filterHeight == 1 && layer.stride == 1;
+    }
+
+    /**
+     * Calculates outputs of specified layer: outputs = activation(filters * cols + biases).
+     */
+    static void forward(final ConvolutionalLayer layer) {
+        final int m = layer.depth;
+        final int n = layer.height * layer.width;
+        final int k = filterSize(layer);
+        final boolean pointwise = isPointwise(layer);
+        final TensorPool pool = TensorPool.local();
+        final float[] cols = pointwise ? layer.inputs.getValues() : pool.acquireArray(k * n);
+        final int colsOff = pointwise ? layer.inputs.getOffset() : 0;
+        final float[] w = pool.acquireArray(m * k);
+
+        try {
+            if (!pointwise) {
+                im2col(layer, cols);
+            }
+            packFilters(layer, w);
+
+            final float[] out = layer.outputs.getValues();
+            final int outOff = layer.outputs.getOffset();
+            for (int ch = 0; ch < m; ch++) {
+                Kernels.fill(out, outOff + ch * n, n, layer.biases[ch]);
+            }
+            LinearAlgebra.sgemm(false, false, m, n, k, 1, w, 0, k, cols, colsOff, n, 1, out, outOff, n);
+
+            for (int i = outOff; i < outOff + m * n; i++) {
+                out[i] = ActivationFunctions.calc(layer.activationType, out[i]);
+            }
+        } finally {
+            if (!pointwise) {
+                pool.releaseArray(cols);
+            }
+            pool.releaseArray(w);
+        }
+    }
+
+    /**
+     * Adds weight changes for all filters of specified layer: deltaWeights += scale * deltas * transpose(cols).
+     * Requires deltas of the layer in NCHW heap array.
+     *
+     * @param scale factor for gradient (learning rate and averaging over positions)
+     */
+    static void calculateDeltaWeights(final ConvolutionalLayer layer, final float scale) {
+        final int m = layer.depth;
+        final int n = layer.height * layer.width;
+        final int k = filterSize(layer);
+        final boolean pointwise = isPointwise(layer);
+        final TensorPool pool = TensorPool.local();
+        final float[] cols = pointwise ? layer.inputs.getValues() : pool.acquireArray(k * n);
+        final int colsOff = pointwise ? layer.inputs.getOffset() : 0;
+        final float[] dw = pool.acquireArray(m * k);
+
+        try {
+            if (!pointwise) {
+                im2col(layer, cols);
+            }
+            LinearAlgebra.sgemm(false, true, m, k, n, scale, layer.deltas.getValues(), layer.deltas.getOffset(), n,
+                                cols, colsOff, n, 0, dw, 0, k);
+
+            for (int ch = 0; ch < m; ch++) {
+                final Tensor deltaWeights = layer.deltaWeights[ch];
+                if (isNchwArray(deltaWeights)) {
+                    Kernels.add(deltaWeights.getValues(), deltaWeights.getOffset(), dw, ch * k, k);
+                } else {
+                    int idx = ch * k;
+                    for (int fz = 0; fz < layer.filterDepth; fz++) {
+                        for (int fr = 0; fr < layer.filterHeight; fr++) {
+                            for (int fc = 0; fc < layer.filterWidth; fc++) {
+                                deltaWeights.add(fr, fc, fz, dw[idx++]);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (!pointwise) {
+                pool.releaseArray(cols);
+            }
+            pool.releaseArray(dw);
+        }
+    }
+
+    /**
+     * Propagates deltas of specified layer back through its filters, and adds them
+     * to deltas of previous layer: inputDeltas += col2im(transpose(filters) * deltas).
+     * Requires deltas of both layers in NCHW heap arrays.
+     *
+     * @param inputDeltas deltas of previous layer, with the same shape as inputs of specified layer
+     */
+    static void backwardInputs(final ConvolutionalLayer layer, final Tensor inputDeltas) {
+        final int m = layer.depth;
+        final int n = layer.height * layer.width;
+        final int k = filterSize(layer);
+        final TensorPool pool = TensorPool.local();
+        final float[] w = pool.acquireArray(m * k);
+
+        if (isPointwise(layer)) { // deltas are added straight to input deltas
+            try {
+                packFilters(layer, w);
+                LinearAlgebra.sgemm(true, false, k, n, m, 1, w, 0, k, layer.deltas.getValues(), layer.deltas.getOffset(), n,
+                                    1, inputDeltas.getValues(), inputDeltas.getOffset(), n);
+            } finally {
+                pool.releaseArray(w);
+            }
+            return;
+        }
+
+        final float[] cols = pool.acquireArray(k * n);
+        try {
+            packFilters(layer, w);
+            LinearAlgebra.sgemm(true, false, k, n, m, 1, w, 0, k, layer.deltas.getValues(), layer.deltas.getOffset(), n,
+                                0, cols, 0, n);
+            col2im(layer, cols, inputDeltas);
+        } finally {
+            pool.releaseArray(cols);
+            pool.releaseArray(w);
+        }
+    }
+
+    private static int filterSize(final ConvolutionalLayer layer) {
+        return layer.filterDepth * layer.filterHeight * layer.filterWidth;
+    }
+
+    /**
+     * Copies all filters into M x K matrix, a row for each filter.
+     */
+    private static void packFilters(final ConvolutionalLayer layer, final float[] w) {
+        final int k = filterSize(layer);
+        for (int ch = 0; ch < layer.depth; ch++) {
+            final Tensor filter = layer.filters[ch];
+            System.arraycopy(filter.getValues(), filter.getOffset(), w, ch * k, k);
+        }
+    }
+
+    /**
+     * Unrolls inputs into K x N matrix, where row (fz, fr, fc) holds input under that filter
+     * position for each output position, and zero where filter is over the padding.
+     */
+    private static void im2col(final ConvolutionalLayer layer, final float[] cols) {
+        final Tensor inputs = layer.inputs;
+        final float[] in = inputs.getValues();
+        final int inOff = inputs.getOffset();
+        final int inRows = inputs.getRows();
+        final int inCols = inputs.getCols();
+        final int outRows = layer.height;
+        final int outCols = layer.width;
+        final int stride = layer.stride;
+
+        int idx = 0;
+        for (int fz = 0; fz < layer.filterDepth; fz++) {
+            for (int fr = 0; fr < layer.filterHeight; fr++) {
+                for (int fc = 0; fc < layer.filterWidth; fc++) {
+                    for (int outR = 0; outR < outRows; outR++) {
+                        final int inR = outR * stride + fr - layer.fCenterY;
+                        if (inR < 0 || inR >= inRows) {
+                            Kernels.fill(cols, idx, outCols, 0);
+                            idx += outCols;
+                            continue;
+                        }
+                        final int inRow = inOff + (fz * inRows + inR) * inCols;
+                        for (int outC = 0; outC < outCols; outC++) {
+                            final int inC = outC * stride + fc - layer.fCenterX;
+                            cols[idx++] = inC < 0 || inC >= inCols ? 0 : in[inRow + inC];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reverse of im2col: adds each value of K x N matrix to the input position it came from.
+     */
+    private static void col2im(final ConvolutionalLayer layer, final float[] cols, final Tensor inputDeltas) {
+        final float[] in = inputDeltas.getValues();
+        final int inOff = inputDeltas.getOffset();
+        final int inRows = inputDeltas.getRows();
+        final int inCols = inputDeltas.getCols();
+        final int outRows = layer.height;
+        final int outCols = layer.width;
+        final int stride = layer.stride;
+
+        int idx = 0;
+        for (int fz = 0; fz < layer.filterDepth; fz++) {
+            for (int fr = 0; fr < layer.filterHeight; fr++) {
+                for (int fc = 0; fc < layer.filterWidth; fc++) {
+                    for (int outR = 0; outR < outRows; outR++) {
+                        final int inR = outR * stride + fr - layer.fCenterY;
+                        if (inR < 0 || inR >= inRows) {
+                            idx += outCols;
+                            continue;
+                        }
+                        final int inRow = inOff + (fz * inRows + inR) * inCols;
+                        for (int outC = 0; outC < outCols; outC++, idx++) {
+                            final int inC = outC * stride + fc - layer.fCenterX;
+                            if (inC >= 0 && inC < inCols) {
+                                in[inRow + inC] += cols[idx];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.util.Tensor;
+
+/**
+ * This class represents Global Average Pooling layer in convolutional neural network.
+ * It outputs the average of each channel of previous layer, so its outputs have
+ * dimensions 1 x 1 x depth of previous layer.
+ *
+ * Used at the end of convolutional part of the network, it makes fully connected layer
+ * which follows it much smaller, since it is connected to one input per channel
+ * instead of all the outputs of the last convolutional layer.
+ *
+ * @author Zoran Sevarac
+ */
+public class GlobalAveragePoolingLayer extends AbstractLayer {
+
+    /**
+     * Creates a new global average pooling layer. Depth is set to the
+     * depth of previous layer when layer is initialized.
+     */
+    public GlobalAveragePoolingLayer() {
+    }
+
+    @Override
+    final public void init() {
+        if (!(prevLayer instanceof ConvolutionalLayer || prevLayer instanceof GroupedConvolutionalLayer
+                || prevLayer instanceof MaxPoolingLayer || prevLayer instanceof AveragePoolingLayer)) {
+            throw new RuntimeException("Illegal network architecture! GlobalAveragePooling can be only after convolutional or pooling layer!");
+        }
+
+        inputs = prevLayer.outputs;
+
+        width = 1;
+        height = 1;
+        depth = prevLayer.getDepth();
+
+        outputs = createTensor(depth, height, width);
+        deltas = createAccumulatorTensor(depth, height, width);
+    }
+
+    /**
+     * Outputs the average of all inputs in each channel.
+     */
+    @Override
+    public void forward() {
+        final int rows = inputs.getRows();
+        final int cols = inputs.getCols();
+        final float scale = 1f / (rows * cols);
+
+        if (GemmConvolution.isNchwArray(inputs)) {
+            final float[] in = inputs.getValues();
+            final int planeSize = rows * cols;
+            for (int ch = 0; ch < depth; ch++) {
+                final int plane = inputs.getOffset() + ch * planeSize;
+                float sum = 0;
+                for (int i = 0; i < planeSize; i++) {
+                    sum += in[plane + i];
+                }
+                outputs.set(0, 0, ch, sum * scale);
+            }
+            return;
+        }
+
+        for (int ch = 0; ch < depth; ch++) {
+            float sum = 0;
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    sum += inputs.get(r, c, ch);
+                }
+            }
+            outputs.set(0, 0, ch, sum * scale);
+        }
+    }
+
+    /**
+     * Takes deltas from next fully connected layer. Previous layer then spreads them
+     * over its outputs, using {@link #backwardInputs(Tensor)}.
+     */
+    @Override
+    public void backward() {
+        deltas.fill(0);
+        if (nextLayer instanceof FullyConnectedLayer) {
+            ((FullyConnectedLayer) nextLayer).backwardInputs(deltas);
+        }
+    }
+
+    /**
+     * Spreads delta of each channel evenly over all inputs in that channel,
+     * and adds them to deltas of previous layer.
+     *
+     * @param inputDeltas deltas of previous layer
+     */
+    void backwardInputs(Tensor inputDeltas) {
+        final int rows = inputDeltas.getRows();
+        final int cols = inputDeltas.getCols();
+        final float scale = 1f / (rows * cols);
+
+        if (GemmConvolution.isNchwArray(inputDeltas)) {
+            final float[] inDeltaVals = inputDeltas.getValues();
+            final int planeSize = rows * cols;
+            for (int ch = 0; ch < depth; ch++) {
+                final int plane = inputDeltas.getOffset() + ch * planeSize;
+                final float delta = deltas.get(0, 0, ch) * scale;
+                for (int i = 0; i < planeSize; i++) {
+                    inDeltaVals[plane + i] += delta;
+                }
+            }
+            return;
+        }
+
+        for (int ch = 0; ch < depth; ch++) {
+            final float delta = deltas.get(0, 0, ch) * scale;
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    inputDeltas.add(r, c, ch, delta);
+                }
+            }
+        }
+    }
+
+    /**
+     * Does nothing for pooling layer since it does not have weights
+     */
+    @Override
+    public void applyWeightChanges() {    }
+
+}
@@ -0,0 +1,511 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.net.layers.activation.ActivationFunction;
+import deepnetts.net.layers.activation.ActivationFunctions;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.train.opt.OptimizerType;
+import deepnetts.net.train.opt.Optimizers;
+import deepnetts.util.DeepNettsException;
+import deepnetts.util.Parallel;
+import deepnetts.util.Tensor;
+import deepnetts.util.TensorIO;
+import deepnetts.util.WeightsInit;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Convolutional layer with channels split into groups, where each channel is convolved
+ * only with the input channels of its own group. Channels of previous layer and channels
+ * of this layer are divided into the same number of groups, so each filter has
+ * (previous layer depth / groups) channels, and the layer needs groups times less
+ * weights and multiply-adds than convolutional layer of the same size.
+ *
+ * With a single group this is the same as {@link ConvolutionalLayer}, and with groups equal
+ * to the number of channels it is depthwise convolution (see {@link DepthwiseConvolutionalLayer}).
+ * Uses the same padding, stride and weight updates as convolutional layer.
+ * Outputs, deltas and filters can be in NCHW or NHWC layout, and are indexed
+ * through their strides, so inputs in either layout are used without conversion.
+ *
+ * @author Zoran Sevarac
+ */
+public class GroupedConvolutionalLayer extends AbstractLayer {
+
+    Tensor[] filters;           // filter for each channel, with channels of its group in previous layer [groupDepth][filterHeight][filterWidth]
+    Tensor[] deltaWeights;
+
+    /**
+     * Filter dimensions
+     */
+    int filterWidth, filterHeight;
+
+    /**
+     * Number of input channels used by each filter: depth of previous layer / groups
+     */
+    int filterDepth;
+
+    /**
+     * Convolution step, 1 by default
+     */
+    int stride = 1;
+
+    /**
+     * Number of groups of channels
+     */
+    int groups;
+
+    int fCenterX; //  padding = (kernel-1)/2
+    int fCenterY;
+
+    /**
+     * Creates a new grouped convolutional layer.
+     *
+     * @param filterWidth filter width
+     * @param filterHeight filter height
+     * @param stride filter step
+     * @param channels number of channels (filters), must be divisible by groups
+     * @param groups number of groups, depth of previous layer must be divisible by it too
+     * @param activationType activation function
+     */
+    public GroupedConvolutionalLayer(int filterWidth, int filterHeight, int stride, int channels, int groups, ActivationType activationType) {
+        if (groups < 1) {
+            throw new IllegalArgumentException("Number of groups must be positive: " + groups);
+        }
+        this.filterWidth = filterWidth;
+        this.filterHeight = filterHeight;
+        this.stride = stride;
+        this.depth = channels;
+        this.groups = groups;
+        this.activationType = activationType;
+        this.activation = ActivationFunction.create(activationType);
+    }
+
+    @Override
+    public void init() {
+        if (!(prevLayer instanceof InputLayer || prevLayer instanceof ConvolutionalLayer || prevLayer instanceof GroupedConvolutionalLayer || prevLayer instanceof MaxPoolingLayer || prevLayer instanceof AveragePoolingLayer)) {
+            throw new DeepNettsException("Illegal architecture: grouped convolutional layer can be used only after input, convolutional or maxpooling layer");
+        }
+        if (prevLayer.getDepth() % groups != 0 || depth % groups != 0) {
+            throw new DeepNettsException("Illegal architecture: depth of previous layer (" + prevLayer.getDepth() + ") and number of channels (" + depth + ") must be divisible by number of groups (" + groups + ")");
+        }
+
+        inputs = prevLayer.outputs;
+
+        width = prevLayer.getWidth() / stride;
+        height = prevLayer.getHeight() / stride;
+
+        fCenterX = (filterWidth - 1) / 2;
+        fCenterY = (filterHeight - 1) / 2;
+
+        outputs = createTensor(layout, depth, height, width);
+        deltas = createAccumulatorTensor(layout, depth, height, width);
+
+        filterDepth = prevLayer.getDepth() / groups;
+        filters = new Tensor[depth];
+        deltaWeights = new Tensor[depth];
+
+        final int inputCount = (filterWidth * filterHeight + 1) * filterDepth;
+        for (int ch = 0; ch < depth; ch++) {
+            filters[ch] = createTensor(layout, filterDepth, filterHeight, filterWidth);
+            WeightsInit.uniform(filters[ch], inputCount);
+            deltaWeights[ch] = createAccumulatorTensor(layout, filterDepth, filterHeight, filterWidth);
+        }
+
+        biases = new float[depth];
+        deltaBiases = new float[depth];
+    }
+
+    /**
+     * Forward pass convolves each channel with input channels of its group.
+     * Channels are independent, so they are calculated in parallel for big layers.
+     */
+    @Override
+    public void forward() {
+        final Values in = new Values(inputs);
+        final Values out = new Values(outputs);
+        final Values[] f = Values.of(filters);
+
+        if (isParallel()) {
+            Parallel.forEach(depth, (ch) -> forward(ch, in, out, f));
+        } else {
+            for (int ch = 0; ch < depth; ch++) {
+                forward(ch, in, out, f);
+            }
+        }
+        out.store();
+    }
+
+    /**
+     * Direct convolution for the specified channel.
+     */
+    private void forward(final int ch, final Values in, final Values out, final Values[] f) {
+        final int inRows = inputs.getRows();
+        final int inCols = inputs.getCols();
+        final float[] inVals = in.values;
+        final float[] outVals = out.values;
+        final float[] fVals = f[ch].values;
+        final int inOff = in.offset + firstInput(ch) * in.depthStride;
+        final int outOff = out.offset + ch * out.depthStride;
+        final int inColStride = in.colStride;
+        final int fColStride = f[ch].colStride;
+
+        for (int outR = 0; outR < height; outR++) {
+            final int inR = outR * stride;
+            final int frStart = Math.max(0, fCenterY - inR);
+            final int frEnd = Math.min(filterHeight, inRows - inR + fCenterY);
+            for (int outC = 0; outC < width; outC++) {
+                final int inC = outC * stride;
+                final int fcStart = Math.max(0, fCenterX - inC);
+                final int fcEnd = Math.min(filterWidth, inCols - inC + fCenterX);
+                float sum = biases[ch];
+                for (int fz = 0; fz < filterDepth; fz++) {
+                    for (int fr = frStart; fr < frEnd; fr++) {
+                        final int inIdx = inOff + fz * in.depthStride + (inR + fr - fCenterY) * in.rowStride + (inC - fCenterX) * inColStride;
+                        final int fIdx = f[ch].offset + fz * f[ch].depthStride + fr * f[ch].rowStride;
+                        for (int fc = fcStart; fc < fcEnd; fc++) {
+                            sum += inVals[inIdx + fc * inColStride] * fVals[fIdx + fc * fColStride];
+                        }
+                    }
+                }
+                outVals[outOff + outR * out.rowStride + outC * out.colStride] = ActivationFunctions.calc(activationType, sum);
+            }
+        }
+    }
+
+    @Override
+    public void backward() {
+        deltas.fill(0);
+        if (nextLayer instanceof FullyConnectedLayer) {
+            ((FullyConnectedLayer) nextLayer).backwardInputs(deltas);
+        } else if (nextLayer instanceof MaxPoolingLayer) {
+            ((MaxPoolingLayer) nextLayer).backwardInputs(deltas);
+        } else if (nextLayer instanceof ConvolutionalLayer) {
+            ((ConvolutionalLayer) nextLayer).backwardInputs(deltas);
+        } else if (nextLayer instanceof GroupedConvolutionalLayer) {
+            ((GroupedConvolutionalLayer) nextLayer).backwardInputs(deltas);
+        } else if (nextLayer instanceof AveragePoolingLayer) {
+            ((AveragePoolingLayer) nextLayer).backwardInputs(deltas);
+        } else if (nextLayer instanceof GlobalAveragePoolingLayer) {
+            ((GlobalAveragePoolingLayer) nextLayer).backwardInputs(deltas);
+        }
+        multiplyDeltasByDerivatives();
+
+        if (isParallel()) {
+            Parallel.forEach(depth, this::calculateDeltaWeights); // each channel has its own delta weights and bias
+        } else {
+            for (int ch = 0; ch < depth; ch++) {
+                calculateDeltaWeights(ch);
+            }
+        }
+    }
+
+    /**
+     * Propagates deltas of this layer back through filters, and adds them to deltas of previous layer.
+     * Each channel of previous layer gets deltas only from the channels of its group, so
+     * channels of previous layer are calculated in parallel for big layers.
+     *
+     * @param inputDeltas deltas of previous layer
+     */
+    void backwardInputs(final Tensor inputDeltas) {
+        final Values inDeltas = new Values(inputDeltas);
+        final Values nextDeltas = new Values(deltas);
+        final Values[] f = Values.of(filters);
+
+        if (isParallel()) {
+            Parallel.forEach(inputs.getDepth(), (z) -> backwardInputs(z, inputDeltas, inDeltas, nextDeltas, f));
+        } else {
+            for (int z = 0; z < inputs.getDepth(); z++) {
+                backwardInputs(z, inputDeltas, inDeltas, nextDeltas, f);
+            }
+        }
+        inDeltas.store();
+    }
+
+    /**
+     * Adds deltas from all channels in the group of input channel z to its deltas.
+     */
+    private void backwardInputs(final int z, final Tensor inputDeltas, final Values inDeltas, final Values nextDeltas, final Values[] f) {
+        final int rows = inputDeltas.getRows();
+        final int cols = inputDeltas.getCols();
+        final float[] inDeltaVals = inDeltas.values;
+        final float[] nextDeltaVals = nextDeltas.values;
+        final int inOff = inDeltas.offset + z * inDeltas.depthStride;
+        final int inColStride = inDeltas.colStride;
+        final int fz = z % filterDepth;
+        final int fromCh = (z / filterDepth) * (depth / groups);
+        final int toCh = fromCh + depth / groups;
+
+        for (int ch = fromCh; ch < toCh; ch++) {
+            final int deltaOff = nextDeltas.offset + ch * nextDeltas.depthStride;
+            final float[] fVals = f[ch].values;
+            final int fOff = f[ch].offset + fz * f[ch].depthStride;
+            final int fColStride = f[ch].colStride;
+            for (int deltaRow = 0; deltaRow < height; deltaRow++) {
+                final int rowBase = deltaRow * stride - fCenterY;
+                final int frStart = Math.max(0, -rowBase);
+                final int frEnd = Math.min(filterHeight, rows - rowBase);
+                for (int deltaCol = 0; deltaCol < width; deltaCol++) {
+                    final float delta = nextDeltaVals[deltaOff + deltaRow * nextDeltas.rowStride + deltaCol * nextDeltas.colStride];
+                    final int colBase = deltaCol * stride - fCenterX;
+                    final int fcStart = Math.max(0, -colBase);
+                    final int fcEnd = Math.min(filterWidth, cols - colBase);
+                    for (int fr = frStart; fr < frEnd; fr++) {
+                        final int inIdx = inOff + (rowBase + fr) * inDeltas.rowStride + colBase * inColStride;
+                        final int fIdx = fOff + fr * f[ch].rowStride;
+                        for (int fc = fcStart; fc < fcEnd; fc++) {
+                            inDeltaVals[inIdx + fc * inColStride] += delta * fVals[fIdx + fc * fColStride];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates delta weights and delta bias for the specified channel, once deltas are propagated from the next layer.
+     */
+    private void calculateDeltaWeights(final int ch) {
+        if (!batchMode) {
+            deltaWeights[ch].fill(0);
+            deltaBiases[ch] = 0;
+        }
+
+        final Values in = new Values(inputs);
+        final Values d = new Values(deltas);
+        final Values dw = new Values(deltaWeights[ch]);
+        final float[] inVals = in.values;
+        final float[] deltaVals = d.values;
+        final float[] dwVals = dw.values;
+        final int inRows = inputs.getRows();
+        final int inCols = inputs.getCols();
+        final int inOff = in.offset + firstInput(ch) * in.depthStride;
+        final int inColStride = in.colStride;
+        final int deltaOff = d.offset + ch * d.depthStride;
+        final int dwColStride = dw.colStride;
+        final float divisor = width * height;
+
+        if (optimizer == OptimizerType.SGD) { // other optimizers are not supported by convolutional layers, so weights are not changed
+            for (int deltaRow = 0; deltaRow < height; deltaRow++) {
+                final int rowBase = deltaRow * stride - fCenterY;
+                final int frStart = Math.max(0, -rowBase);
+                final int frEnd = Math.min(filterHeight, inRows - rowBase);
+                for (int deltaCol = 0; deltaCol < width; deltaCol++) {
+                    final float delta = deltaVals[deltaOff + deltaRow * d.rowStride + deltaCol * d.colStride];
+                    final int colBase = deltaCol * stride - fCenterX;
+                    final int fcStart = Math.max(0, -colBase);
+                    final int fcEnd = Math.min(filterWidth, inCols - colBase);
+                    for (int fz = 0; fz < filterDepth; fz++) {
+                        for (int fr = frStart; fr < frEnd; fr++) {
+                            final int inIdx = inOff + fz * in.depthStride + (rowBase + fr) * in.rowStride + colBase * inColStride;
+                            final int dwIdx = dw.offset + fz * dw.depthStride + fr * dw.rowStride;
+                            for (int fc = fcStart; fc < fcEnd; fc++) {
+                                dwVals[dwIdx + fc * dwColStride] += Optimizers.sgd(learningRate, delta * inVals[inIdx + fc * inColStride]) / divisor;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        dw.store();
+
+        // bias changes for all positions are added up, and averaged like weight changes
+        float deltaBias = 0;
+        if (optimizer == OptimizerType.SGD) {
+            for (int deltaRow = 0; deltaRow < height; deltaRow++) {
+                for (int deltaCol = 0; deltaCol < width; deltaCol++) {
+                    deltaBias += Optimizers.sgd(learningRate, deltaVals[deltaOff + deltaRow * d.rowStride + deltaCol * d.colStride]);
+                }
+            }
+        }
+        deltaBiases[ch] += deltaBias / divisor;
+    }
+
+    @Override
+    public void applyWeightChanges() {
+        if (batchMode) {
+            Tensor.div(deltaBiases, batchSize);
+        }
+
+        for (int ch = 0; ch < depth; ch++) {
+            if (batchMode) { // average of weight changes for batch
+                filters[ch].expr().add(deltaWeights[ch].expr().div(batchSize)).evaluateInto(filters[ch]);
+                deltaWeights[ch].fill(0);
+            } else {
+                filters[ch].add(deltaWeights[ch]);
+            }
+            biases[ch] += deltaBiases[ch];
+        }
+
+        if (batchMode) {
+            Tensor.fill(deltaBiases, 0);
+        }
+    }
+
+    /**
+     * Returns index of the first input channel used by the specified channel.
+     */
+    private int firstInput(final int ch) {
+        return ch / (depth / groups) * filterDepth;
+    }
+
+    /**
+     * Returns true if passes of this layer should use multiple threads.
+     */
+    private boolean isParallel() {
+        final long work = (long) depth * height * width * filterDepth * filterHeight * filterWidth;
+        return Parallel.getThreadCount() > 1 && Parallel.isParallel((int) Math.min(work, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Values of a 3D tensor with offset and strides of [depth, rows, cols], taken once for a pass.
+     * Heap arrays in NCHW or NHWC layout are used directly, values of other tensors
+     * are copied in NCHW order, and written back with {@link #store()}.
+     */
+    private static final class Values {
+        final Tensor tensor;
+        final float[] values;
+        final boolean copied;
+        final int offset, depthStride, rowStride, colStride;
+
+        Values(final Tensor t) {
+            tensor = t;
+            copied = !(GemmConvolution.isNchwArray(t) || ConvolutionalLayer.isNhwcArray(t));
+            if (copied) {
+                values = t.toArray();
+                offset = 0;
+                depthStride = t.getRows() * t.getCols();
+                rowStride = t.getCols();
+                colStride = 1;
+            } else {
+                final int[] strides = t.getStrides(); // 2D tensors have a single channel
+                final int dims = strides.length;
+                values = t.getValues();
+                offset = t.getOffset();
+                depthStride = dims > 2 ? strides[dims - 3] : t.getRows() * t.getCols();
+                rowStride = strides[dims - 2];
+                colStride = strides[dims - 1];
+            }
+        }
+
+        static Values[] of(final Tensor[] tensors) {
+            final Values[] values = new Values[tensors.length];
+            for (int i = 0; i < tensors.length; i++) {
+                values[i] = new Values(tensors[i]);
+            }
+            return values;
+        }
+
+        /**
+         * Writes values changed in a copy back to the tensor.
+         */
+        void store() {
+            if (copied) {
+                tensor.copyFrom(values);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        closeAll(filters);
+        closeAll(deltaWeights);
+    }
+
+    @Override
+    protected void convertStorage() {
+        super.convertStorage();
+        convertAll(storageType, filters);
+        convertAll(storageType.getAccumulatorType(), deltaWeights);
+    }
+
+    public Tensor[] getFilters() {
+        return filters;
+    }
+
+    public void setFilters(Tensor[] filters) {
+        this.filters = filters;
+    }
+
+    public void setFilters(String filtersStr) {
+        String[] strVals = filtersStr.split(";"); // ; is filter separator see FileIO
+        int filterSize = filterWidth * filterHeight * filterDepth;
+
+        for (int i = 0; i < filters.length; i++) {
+            float[] filterValues = new float[filterSize];
+            String[] vals = strVals[i].split(",");
+            for (int k = 0; k < filterSize; k++) {
+                filterValues[k] = Float.parseFloat(vals[k]);
+            }
+            filters[i].copyFrom(filterValues);
+        }
+    }
+
+    /**
+     * Writes all filters and biases of this layer to channel in binary format.
+     *
+     * @param channel channel to write to
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void writeWeights(WritableByteChannel channel) throws IOException {
+        for (Tensor filter : filters) {
+            TensorIO.write(filter, channel);
+        }
+        TensorIO.write(new Tensor(biases), channel);
+    }
+
+    @Override
+    public void readWeights(ReadableByteChannel channel) throws IOException {
+        for (Tensor filter : filters) {
+            TensorIO.read(channel, filter);
+        }
+        TensorIO.read(channel, new Tensor(biases));
+    }
+
+    public int getFilterWidth() {
+        return filterWidth;
+    }
+
+    public int getFilterHeight() {
+        return filterHeight;
+    }
+
+    public int getFilterDepth() {
+        return filterDepth;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getGroups() {
+        return groups;
+    }
+
+    public Tensor[] getFilterDeltaWeights() {
+        return deltaWeights;
+    }
+
+}
@@ -21,7 +21,9 @@
  */
 package deepnetts.net.layers;
 
+import deepnetts.util.SparseStorage;
 import deepnetts.util.Tensor;
+import deepnetts.util.TensorStorage;
 
 /**
  * Input layer for convolutional network
@@ -40,6 +42,39 @@ public class InputLayer extends AbstractLayer { // data Layer
      */
     private int padding = 0; // mozda je bolje da se ovde odmah navode dimenzije sa paddingom ??? ovo je malo nabudzeno???
 
+    /**
+     * Buffer used when input tensor is not contiguous and has to be copied.
+     */
+    private float[] inputBuffer;
+
+    /**
+     * Storage of current input if it is sparse, null otherwise.
+     */
+    private SparseStorage sparseInput;
+
+    /**
+     * Positions in input buffer where values of previous sparse input were
+     * written, so they can be cleared without clearing the whole buffer.
+     */
+    private int[] sparsePositions;
+
+    /**
+     * Number of used sparse positions, or -1 if the whole buffer was written.
+     */
+    private int sparseCount = -1;
+
+    /**
+     * Values and offset of the first sample in the current input batch.
+     */
+    private transient float[] batchValues;
+    private transient int batchOffset;
+
+    /**
+     * Values and offset of the single sample input, used again after a batch is processed.
+     */
+    private transient float[] sampleValues;
+    private transient int sampleOffset;
+
     /**
      * Creates input layer with specified width, height, and depth (number of
      * depth)
@@ -98,7 +133,117 @@ public class InputLayer extends AbstractLayer { // data Layer
      */
     public void setInput(Tensor in) {
         // TODO: check input tensor dimensions and throw exception if they dont match
-        inputs.setValues(in.getValues());
+        final TensorStorage storage = in.getStorage();
+        if (storage instanceof SparseStorage && in.isContiguous() && in.getOffset() == 0
+                && storage.size() == inputs.size() && in.size() == inputs.size()) {
+            setSparseInput((SparseStorage) storage);
+        } else if (in.hasArray() && in.isContiguous()) {
+            sparseInput = null;
+            inputs.setValues(in.getValues(), in.getOffset()); // no copying, works for views (batch items, crops) too
+        } else { // transposed or strided views, and off-heap tensors are copied into own buffer
+            sparseInput = null;
+            sparseCount = -1;
+            inputs.setValues(getInputBuffer());
+            Tensor.copy(in, inputs);
+        }
+    }
+
+    /**
+     * Sets a batch of inputs with shape [samples, ...shape of a single input].
+     * Batch is used without copying if it is contiguous tensor in heap storage.
+     *
+     * @param batch batch of inputs
+     */
+    public void setInputBatch(Tensor batch) {
+        final int count = batch.getShape()[0];
+        if (count * inputs.size() != batch.size()) {
+            throw new IllegalArgumentException("Size of batch items " + (batch.size() / count) + " does not match input size " + inputs.size());
+        }
+        sparseInput = null;
+        if (batch.hasArray() && batch.isContiguous()) {
+            batchValues = batch.getValues();
+            batchOffset = batch.getOffset();
+        } else { // strided views and off-heap tensors are copied
+            batchValues = batch.toArray();
+            batchOffset = 0;
+        }
+    }
+
+    @Override
+    public boolean isBatchSupported() {
+        return true;
+    }
+
+    @Override
+    public void initBatch(int capacity) {
+        // batch is set as input, nothing to allocate
+    }
+
+    @Override
+    public void selectSample(int sample) {
+        if (sampleValues == null) {
+            sampleValues = inputs.getValues();
+            sampleOffset = inputs.getOffset();
+        }
+        inputs.setValues(batchValues, batchOffset + sample * inputs.size());
+    }
+
+    @Override
+    public void endBatch() {
+        if (sampleValues != null) {
+            inputs.setValues(sampleValues, sampleOffset);
+            sampleValues = null;
+        }
+    }
+
+    /**
+     * Writes non zero values of sparse input into input buffer, so inputs
+     * are available as regular tensor too. Only the values written for
+     * previous sparse input are cleared, so it takes time proportional to
+     * number of non zero values.
+     */
+    private void setSparseInput(final SparseStorage in) {
+        final float[] buffer = getInputBuffer();
+        if (sparseCount < 0) {
+            Tensor.fill(buffer, 0);
+        } else {
+            for (int i = 0; i < sparseCount; i++) {
+                buffer[sparsePositions[i]] = 0;
+            }
+        }
+
+        final int nnz = in.getNonZeroCount();
+        final int[] positions = in.getIndices();
+        final float[] vals = in.getValues();
+        if (sparsePositions == null || sparsePositions.length < nnz) {
+            sparsePositions = new int[inputs.size()];
+        }
+        for (int i = 0; i < nnz; i++) {
+            buffer[positions[i]] = vals[i];
+        }
+        System.arraycopy(positions, 0, sparsePositions, 0, nnz);
+        sparseCount = nnz;
+
+        inputs.setValues(buffer);
+        sparseInput = in;
+    }
+
+    private float[] getInputBuffer() {
+        if (inputBuffer == null) {
+            inputBuffer = new float[inputs.size()];
+        }
+        return inputBuffer;
+    }
+
+    /**
+     * Returns storage of current network input if it is sparse, so that next
+     * layer can skip zero inputs. Inputs tensor of this layer contains the
+     * same values in any case.
+     *
+     * @return sparse storage of current input, or null if input is not sparse
+     */
+    public SparseStorage getSparseInput() {
+        return sparseInput;
     }
 
     /**
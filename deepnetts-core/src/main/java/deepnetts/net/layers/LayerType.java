@@ -27,7 +27,7 @@ package deepnetts.net.layers;
  * @author Zoran Sevarac
  */
 public enum LayerType {
-    INPUT("INPUT"), CONVOLUTIONAL("CONVOLUTIONAL"), MAXPOOLING("MAXPOOLING"), DENSE("DENSE"), OUTPUT("OUTPUT");
+    INPUT("INPUT"), CONVOLUTIONAL("CONVOLUTIONAL"), GROUPED_CONVOLUTIONAL("GROUPED_CONVOLUTIONAL"), DEPTHWISE_CONVOLUTIONAL("DEPTHWISE_CONVOLUTIONAL"), MAXPOOLING("MAXPOOLING"), AVERAGEPOOLING("AVERAGEPOOLING"), GLOBAL_AVERAGEPOOLING("GLOBAL_AVERAGEPOOLING"), DENSE("DENSE"), OUTPUT("OUTPUT");
 
     private final String name;
 
@@ -21,6 +21,7 @@
     
 package deepnetts.net.layers;
 
+import deepnetts.util.Layout;
 import deepnetts.util.Tensor;
 
 /**
@@ -48,9 +49,16 @@ public class MaxPoolingLayer extends AbstractLayer {
     /**
      * Max activation idxs.
      * 
-     * Remember idx of max output for each filter position. [channel][row][col][2]
+     * Remember idx of max input for each filter position, as linear index of input
+     * in [channel][row][col] order. Stored in the same order as outputs [channel][row][col].
      */
-    int maxIdx[][][][]; 
+    int[] maxIdx;
+
+    /**
+     * Max activation idxs for all samples in a batch.
+     */
+    private transient int[][] batchMaxIdx;
+    private transient int[] sampleMaxIdx;
        
 
     /**
@@ -69,7 +77,7 @@ public class MaxPoolingLayer extends AbstractLayer {
     @Override
     final public void init() {
         // max pooling layer can be only after Convolutional Layer
-        if (!(prevLayer instanceof ConvolutionalLayer)) throw new RuntimeException("Illegal network architecture! MaxPooling can be only after convolutional layer!");
+        if (!(prevLayer instanceof ConvolutionalLayer || prevLayer instanceof GroupedConvolutionalLayer)) throw new RuntimeException("Illegal network architecture! MaxPooling can be only after convolutional layer!");
         
         inputs = prevLayer.outputs;        
         
@@ -77,11 +85,11 @@ public class MaxPoolingLayer extends AbstractLayer {
         height = (inputs.getRows() - filterHeight) / stride + 1;                
         depth = prevLayer.getDepth(); // depth of pooling layer is always same as in previous convolutional layer                       
         
-        outputs = new Tensor(height, width, depth);
-        deltas = new Tensor(height, width,  depth);
+        outputs = createTensor(layout, depth, height, width);
+        deltas = createAccumulatorTensor(layout, depth, height, width);
         
         // used in fprop to save idx position of max value
-        maxIdx = new int[depth][height][width][2]; // svakoj poziciji filtera odgovara jedna [row, col] celija u outputu idx 0 je col, idx 1 je row
+        maxIdx = new int[depth * height * width]; // svakoj poziciji filtera odgovara jedna celija u inputu
     }
     
     
@@ -90,6 +98,22 @@ public class MaxPoolingLayer extends AbstractLayer {
      */
     @Override
     public void forward() {                
+        if (prevLayer instanceof ConvolutionalLayer && ((ConvolutionalLayer) prevLayer).isPoolingFused()) {
+            return; // already calculated by previous layer, together with its outputs
+        }
+        if (layout == Layout.NHWC && ConvolutionalLayer.isNhwcArray(inputs) && ConvolutionalLayer.isNhwcArray(outputs)) {
+            forwardNhwc();
+            return;
+        }
+        if (GemmConvolution.isNchwArray(inputs) && GemmConvolution.isNchwArray(outputs)) {
+            for (int ch = 0; ch < depth; ch++) {
+                forwardRows(ch, 0, height);
+            }
+            return;
+        }
+
+        final int inRows = inputs.getRows();
+        final int inCols = inputs.getCols();
         float max; // max value
         int maxC = -1, maxR = -1;
         
@@ -115,8 +139,7 @@ public class MaxPoolingLayer extends AbstractLayer {
                     }
                     
                     // zapamti indexe neurona iz prethodnog lejera koji su propustili max (koristice se u bacward pass-u)
-                    maxIdx[ch][outRow][outCol][0] = maxR; // height idx (row)                            
-                    maxIdx[ch][outRow][outCol][1] = maxC; // width idx (col)
+                    maxIdx[(ch * height + outRow) * width + outCol] = (ch * inRows + maxR) * inCols + maxC;
 
                     outputs.set(outRow, outCol, ch, max); // set max value as output
                     outCol++;   // increase output col by one for each input (stride) step
@@ -126,6 +149,130 @@ public class MaxPoolingLayer extends AbstractLayer {
         } // channel/depth
     }
 
+    /**
+     * Max pooling of channel ch for output rows [fromRow, toRow), with inputs and outputs in NCHW heap arrays.
+     * Common 2x2 filter with stride 2 compares two pairs of consecutive inputs from two input rows.
+     * Each filter position starts with its first input, and takes the next one only if it is greater.
+     */
+    void forwardRows(final int ch, final int fromRow, final int toRow) {
+        final float[] in = inputs.getValues();
+        final float[] out = outputs.getValues();
+        final int inOff = inputs.getOffset();
+        final int outOff = outputs.getOffset();
+        final int inCols = inputs.getCols();
+        final int inPlane = ch * inputs.getRows() * inCols; // linear index of the first input in channel
+        final int outPlane = ch * height * width;
+
+        if (filterWidth == 2 && filterHeight == 2 && stride == 2) {
+            for (int outRow = fromRow; outRow < toRow; outRow++) {
+                final int row0 = inPlane + 2 * outRow * inCols;
+                final int row1 = row0 + inCols;
+                final int outIdx = outPlane + outRow * width;
+                for (int outCol = 0; outCol < width; outCol++) {
+                    final int i0 = row0 + 2 * outCol, i1 = row1 + 2 * outCol;
+                    int idx = i0;
+                    float max = in[inOff + i0];
+                    if (max < in[inOff + i0 + 1]) {
+                        idx = i0 + 1;
+                        max = in[inOff + idx];
+                    }
+                    if (max < in[inOff + i1]) {
+                        idx = i1;
+                        max = in[inOff + idx];
+                    }
+                    if (max < in[inOff + i1 + 1]) {
+                        idx = i1 + 1;
+                        max = in[inOff + idx];
+                    }
+                    out[outOff + outIdx + outCol] = max;
+                    maxIdx[outIdx + outCol] = idx;
+                }
+            }
+            return;
+        }
+
+        for (int outRow = fromRow; outRow < toRow; outRow++) {
+            final int outIdx = outPlane + outRow * width;
+            for (int outCol = 0; outCol < width; outCol++) {
+                final int first = inPlane + outRow * stride * inCols + outCol * stride;
+                int idx = first;
+                float max = in[inOff + idx];
+                for (int fr = 0; fr < filterHeight; fr++) {
+                    for (int fc = 0; fc < filterWidth; fc++) {
+                        final int i = first + fr * inCols + fc;
+                        if (max < in[inOff + i]) {
+                            idx = i;
+                            max = in[inOff + i];
+                        }
+                    }
+                }
+                out[outOff + outIdx + outCol] = max;
+                maxIdx[outIdx + outCol] = idx;
+            }
+        }
+    }
+
+    /**
+     * Returns true if this layer can be calculated by previous convolutional layer together with
+     * its outputs, for each tile of rows: filter positions do not overlap and both layers use NCHW heap arrays.
+     */
+    boolean isFusable() {
+        return filterWidth <= stride && filterHeight <= stride
+                && GemmConvolution.isNchwArray(inputs) && GemmConvolution.isNchwArray(outputs);
+    }
+
+    /**
+     * Max pooling of channel ch for all filter positions within input rows [fromInputRow, toInputRow),
+     * used by previous convolutional layer once it calculates these rows.
+     */
+    void forwardFused(final int ch, final int fromInputRow, final int toInputRow) {
+        final int fromRow = (fromInputRow + stride - 1) / stride;
+        final int toRow = Math.min(height, Math.floorDiv(toInputRow - filterHeight, stride) + 1);
+        if (fromRow < toRow) {
+            forwardRows(ch, fromRow, toRow);
+        }
+    }
+
+    /**
+     * Forward pass for NHWC layout, which compares all channels of consecutive
+     * filter positions at once, going through consecutive values.
+     */
+    private void forwardNhwc() {
+        final float[] inVals = inputs.getValues();
+        final int inOff = inputs.getOffset();
+        final int inCols = inputs.getCols();
+        final int inSize = inputs.getRows() * inCols;
+        final float[] outVals = outputs.getValues();
+        final int outOff = outputs.getOffset();
+        final int outSize = height * width;
+
+        for (int outRow = 0; outRow < height; outRow++) {
+            final int inRow = outRow * stride;
+            for (int outCol = 0; outCol < width; outCol++) {
+                final int inCol = outCol * stride;
+                final int outIdx = outOff + (outRow * width + outCol) * depth;
+
+                // start with first filter position for all channels
+                System.arraycopy(inVals, inOff + (inRow * inCols + inCol) * depth, outVals, outIdx, depth);
+                for (int ch = 0; ch < depth; ch++) {
+                    maxIdx[ch * outSize + outRow * width + outCol] = ch * inSize + inRow * inCols + inCol;
+                }
+
+                for (int fr = 0; fr < filterHeight; fr++) {
+                    for (int fc = 0; fc < filterWidth; fc++) {
+                        final int inIdx = inOff + ((inRow + fr) * inCols + inCol + fc) * depth;
+                        for (int ch = 0; ch < depth; ch++) {
+                            if (outVals[outIdx + ch] < inVals[inIdx + ch]) {
+                                outVals[outIdx + ch] = inVals[inIdx + ch];
+                                maxIdx[ch * outSize + outRow * width + outCol] = ch * inSize + (inRow + fr) * inCols + inCol + fc;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * backward pass for a max(x, y) operation has a simple interpretation as
      * only routing the gradient to the input that had the highest value in the
@@ -149,37 +296,18 @@ public class MaxPoolingLayer extends AbstractLayer {
         }
         
         else if (nextLayer instanceof ConvolutionalLayer) {
-            // iterate all deltas  in next layer   
-            final ConvolutionalLayer nextConvLayer = (ConvolutionalLayer)nextLayer;
             deltas.fill(0);
-            final int filterCenterX = (nextConvLayer.filterWidth-1) / 2;
-            final int filterCenterY = (nextConvLayer.filterHeight-1) / 2;
-               
-         //  for (int ch = 0; ch < this.depth; ch++) {  // iteriraj sve kanale/feature mape u ovom lejeru, odnosno odgovarajuce filtere u sledecem // umesto ovog ici dole na fz
-                // 1. Propagate deltas from next conv layer for max outputs from this layer
-                for (int ndz = 0; ndz < nextLayer.deltas.getDepth(); ndz++) { // iteriraj i 3-cu dimeziju sledeceg sloja
-                    for (int ndr = 0; ndr < nextLayer.deltas.getRows(); ndr++) { // sledeci lejer delte po visini
-                        for (int ndc = 0; ndc < nextLayer.deltas.getCols(); ndc++) { // sledeci lejer delte po sirini
-                            final float nextLayerDelta = nextLayer.deltas.get(ndr, ndc, ndz); // uzmi deltu iz sledeceg sloja za tekuci neuron (dx, dy, dz) sledeceg sloja
-                                                        
-                            for (int fz = 0; fz < nextConvLayer.filterDepth; fz++) {
-                                for (int fr = 0; fr < nextConvLayer.filterHeight; fr++) {
-                                    for (int fc = 0; fc < nextConvLayer.filterWidth; fc++) {
-                                        final int outRow = ndr * nextConvLayer.stride + (fr - filterCenterY); 
-                                        final int outCol = ndc * nextConvLayer.stride + (fc - filterCenterX);      
-                                       
-                                        if (outRow < 0 || outRow >= outputs.getRows() || outCol < 0 || outCol >= outputs.getCols()) continue;
-                                        
-                                        // svaki filter propagira unazad svoju deltu, ne bi trebalo mesati delte iz razlicith kanala/filtera vec pre srednja vrednost ili sl?
-                                        deltas.add(outRow, outCol, fz, nextLayerDelta * nextConvLayer.filters[ndz].get(fr, fc, fz));
-                                                        /// ovde sam umesto ch stavio fz a gore ch iskomentarisao!!! tako treba, jos potvrdi
-                                    }
-                                }
-                            }
-                        }                            
-                    }
-                }                                                                                                          
-           // }         
+            ((ConvolutionalLayer) nextLayer).backwardInputs(deltas);
+        }
+
+        else if (nextLayer instanceof GroupedConvolutionalLayer) {
+            deltas.fill(0);
+            ((GroupedConvolutionalLayer) nextLayer).backwardInputs(deltas);
+        }
+
+        else if (nextLayer instanceof GlobalAveragePoolingLayer) {
+            deltas.fill(0);
+            ((GlobalAveragePoolingLayer) nextLayer).backwardInputs(deltas);
         }
      
         // we can also put zeros to all deltas that dont bellong to max outputs, and free prev convolutional layer to do that...        
@@ -187,15 +315,33 @@ public class MaxPoolingLayer extends AbstractLayer {
     
     private void backwardFromFullyConnected() {
         deltas.fill(0);
+        ((FullyConnectedLayer) nextLayer).backwardInputs(deltas);
+    }
 
-        for (int ch = 0; ch < deltas.getDepth(); ch++) {  // iteriraj sve kanale/feature mape u ovom lejeru      
-            for (int row = 0; row < deltas.getRows(); row++) {
-                for (int col = 0; col < deltas.getCols(); col++) {
-                    for (int ndC = 0; ndC < nextLayer.deltas.getCols(); ndC++) { // sledeci lejer iteriraj delte po sirini/kolonama posto je fully connected
-                        final float nextDelta = nextLayer.deltas.get(ndC);
-                        final float weight = nextLayer.weights.get(col, row, ch, ndC);
-                        deltas.add(row, col, ch, nextDelta * weight);
-                    }
+    /**
+     * Routes deltas of this layer to the inputs which had max value in forward pass,
+     * and sets them as deltas of previous layer.
+     *
+     * @param inputDeltas deltas of previous layer
+     */
+    void backwardInputs(Tensor inputDeltas) {
+        if (GemmConvolution.isNchwArray(inputDeltas) && GemmConvolution.isNchwArray(deltas)) {
+            final float[] inDeltaVals = inputDeltas.getValues();
+            final float[] deltaVals = deltas.getValues();
+            final int inOff = inputDeltas.getOffset(), deltaOff = deltas.getOffset();
+            for (int i = 0; i < maxIdx.length; i++) {
+                inDeltaVals[inOff + maxIdx[i]] = deltaVals[deltaOff + i];
+            }
+            return;
+        }
+
+        final int rows = inputDeltas.getRows();
+        final int cols = inputDeltas.getCols();
+        for (int ch = 0; ch < depth; ch++) {
+            for (int dr = 0; dr < height; dr++) {
+                for (int dc = 0; dc < width; dc++) {
+                    final int idx = maxIdx[(ch * height + dr) * width + dc] - ch * rows * cols; // index within channel
+                    inputDeltas.set(idx / cols, idx % cols, ch, deltas.get(dr, dc, ch));
                 }
             }
         }
@@ -226,4 +372,30 @@ public class MaxPoolingLayer extends AbstractLayer {
     
     
             
+    @Override
+    public void initBatch(int capacity) {
+        super.initBatch(capacity);
+        if (batchMaxIdx == null || batchMaxIdx.length < capacity) {
+            batchMaxIdx = new int[capacity][depth * height * width];
+        }
+    }
+
+    @Override
+    public void selectSample(int sample) {
+        super.selectSample(sample);
+        if (sampleMaxIdx == null) {
+            sampleMaxIdx = maxIdx;
+        }
+        maxIdx = batchMaxIdx[sample];
+    }
+
+    @Override
+    public void endBatch() {
+        super.endBatch();
+        if (sampleMaxIdx != null) {
+            maxIdx = sampleMaxIdx;
+            sampleMaxIdx = null;
+        }
+    }
+
 }
\ No newline at end of file
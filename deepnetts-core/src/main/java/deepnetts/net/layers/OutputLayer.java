@@ -24,9 +24,10 @@ package deepnetts.net.layers;
 import deepnetts.net.layers.activation.ActivationFunctions;
 import deepnetts.net.layers.activation.ActivationType;
 import deepnetts.net.loss.LossType;
-import deepnetts.net.train.opt.Optimizers;
+import deepnetts.util.StorageType;
 import deepnetts.util.WeightsInit;
 import deepnetts.util.Tensor;
+import deepnetts.util.TensorExpression;
 import java.util.Arrays;
 import deepnetts.net.layers.activation.ActivationFunction;
 
@@ -38,6 +39,19 @@ import deepnetts.net.layers.activation.ActivationFunction;
 public class OutputLayer extends AbstractLayer {
 
     protected float[] outputErrors;
+
+    /**
+     * Output errors for all samples in a batch.
+     */
+    protected transient float[][] batchOutputErrors;
+    private transient float[] sampleOutputErrors;
+
+    /**
+     * Output errors of current sample as tensor, and fused expression which
+     * multiplies them with derivatives of outputs. Created on first use.
+     */
+    private transient Tensor outputErrorsTensor;
+    private transient TensorExpression deltasExpr;
     protected final String[] labels;
     protected LossType lossType;
 
@@ -89,6 +103,16 @@ public class OutputLayer extends AbstractLayer {
         this.outputErrors = outputErrors;
     }
 
+    /**
+     * Sets output errors for specified sample in a batch.
+     *
+     * @param sample index of sample in a batch
+     * @param outputErrors output errors for sample
+     */
+    public final void setOutputErrors(final int sample, final float[] outputErrors) {
+        System.arraycopy(outputErrors, 0, batchOutputErrors[sample], 0, width);
+    }
+
     public final float[] getOutputErrors() {
         return outputErrors;
     }
@@ -104,21 +128,27 @@ public class OutputLayer extends AbstractLayer {
     @Override
     public void init() {
         inputs = prevLayer.outputs;
-        outputs = new Tensor(width);
+        outputs = new Tensor(width); // always on heap, since it is passed as array to loss function
         outputErrors = new float[width];
-        deltas = new Tensor(width);
+        deltas = createAccumulatorTensor(width);
 
         int prevLayerWidth = prevLayer.getWidth();
-        weights = new Tensor(prevLayerWidth, width);
-        gradients = new Tensor(prevLayerWidth, width);
-        deltaWeights = new Tensor(prevLayerWidth, width);
-        WeightsInit.xavier(weights.getValues(), prevLayerWidth, width);
+        weights = createTensor(prevLayerWidth, width);
+        gradients = createAccumulatorTensor(prevLayerWidth, width);
+        deltaWeights = createAccumulatorTensor(prevLayerWidth, width);
+        WeightsInit.xavier(weights, prevLayerWidth, width);
 
         biases = new float[width];
         deltaBiases = new float[width];
         WeightsInit.randomize(biases);
     }
 
+    @Override
+    protected void convertStorage() {
+        super.convertStorage();
+        outputs.convertTo(StorageType.HEAP); // outputs are passed as array to loss function
+    }
+
     /**
      * This method implements forward pass for the output layer.
      *
@@ -127,13 +157,54 @@ public class OutputLayer extends AbstractLayer {
     @Override
     public void forward() {
         outputs.copyFrom(biases);  
-        for (int outCol = 0; outCol < outputs.getCols(); outCol++) { 
-            for (int inCol = 0; inCol < inputs.getCols(); inCol++) {
-                outputs.add(outCol, inputs.get(inCol) * weights.get(inCol, outCol));
-            }
-           // outputs.set(outCol, ActivationFunctions.calc(activationType, outputs.get(outCol)));
+        addWeightedInputs();
+        outputs.mapInPlace(activation::getValue);
+    }
+
+    /**
+     * Forward pass for all samples in a batch, using one matrix multiplication
+     * for weighted inputs of all samples.
+     *
+     * @param count number of samples in a batch
+     */
+    @Override
+    public void forwardBatch(int count) {
+        if (!weights.hasArray()) { // 16 bit weights
+            super.forwardBatch(count);
+            return;
+        }
+        selectSample(0);
+        final float[] outVals = outputs.getValues();
+        for (int sample = 0; sample < count; sample++) {
+            System.arraycopy(biases, 0, outVals, sample * width, width);
         }
-        outputs.apply(activation::getValue);
+        addWeightedInputs(count);
+        activateBatch(count);
+    }
+
+    /**
+     * Applies activation function to outputs of all samples in a batch.
+     *
+     * @param count number of samples in a batch
+     */
+    protected void activateBatch(int count) {
+        selectSample(0);
+        final float[] outVals = outputs.getValues();
+        for (int i = 0; i < count * width; i++) {
+            outVals[i] = activation.getValue(outVals[i]);
+        }
+    }
+
+    /**
+     * Returns outputs for specified sample in the last processed batch.
+     *
+     * @param sample index of sample in a batch
+     * @return outputs for sample
+     */
+    public float[] getOutputs(int sample) {
+        final float[] outVals = outputs.getValues();
+        System.arraycopy(batchOutputs.getValues(), sample * width, outVals, 0, width);
+        return outVals;
     }
 
     /**
@@ -146,22 +217,70 @@ public class OutputLayer extends AbstractLayer {
             Arrays.fill(deltaBiases, 0);
         }
 
-        for (int dCol = 0; dCol < deltas.getCols(); dCol++) {
+        calculateDeltas();
+        addDeltaWeights(); // sum deltaWeight for batch mode
+    }
 
-            if (lossType == LossType.MEAN_SQUARED_ERROR) {
-                deltas.set(dCol, outputErrors[dCol] * ActivationFunctions.prime(activationType, outputs.get(dCol)));
-            } else if (activationType == ActivationType.SIGMOID && lossType == LossType.CROSS_ENTROPY) { 
-                deltas.set(dCol, outputErrors[dCol]); 
-            }
+    /**
+     * Backward pass for all samples in a batch, using one matrix multiplication
+     * for weight changes of all samples.
+     *
+     * @param count number of samples in a batch
+     */
+    @Override
+    public void backwardBatch(int count) {
+        checkBatchMode();
+        if (!weights.hasArray()) {
+            super.backwardBatch(count);
+            return;
+        }
+        for (int sample = 0; sample < count; sample++) {
+            selectSample(sample);
+            calculateDeltas();
+        }
+        addDeltaWeights(count);
+    }
 
-            for (int inCol = 0; inCol < inputs.getCols(); inCol++) {
-                final float grad = deltas.get(dCol) * inputs.get(inCol);
-                final float deltaWeight = Optimizers.sgd(learningRate, grad);
-                gradients.set(inCol, dCol, grad);
-                deltaWeights.add(inCol, dCol, deltaWeight); // sum deltaWeight for batch mode
+    /**
+     * Calculates deltas from output errors, and adds bias changes.
+     */
+    protected void calculateDeltas() {
+        if (lossType == LossType.MEAN_SQUARED_ERROR) {
+            if (deltasExpr == null) {
+                outputErrorsTensor = new Tensor(outputErrors, width);
+                deltasExpr = outputErrorsTensor.expr().zipWith(outputs, (error, out) -> error * ActivationFunctions.prime(activationType, out));
             }
+            outputErrorsTensor.setValues(outputErrors); // errors of current sample
+            deltasExpr.evaluateInto(deltas);
+        } else if (activationType == ActivationType.SIGMOID && lossType == LossType.CROSS_ENTROPY) {
+            deltas.copyFrom(outputErrors);
+        }
+        addDeltaBiases();
+    }
+
+    @Override
+    public void initBatch(int capacity) {
+        super.initBatch(capacity);
+        if (batchOutputErrors == null || batchOutputErrors.length < capacity) {
+            batchOutputErrors = new float[capacity][width];
+        }
+    }
 
-            deltaBiases[dCol] += Optimizers.sgd(learningRate, deltas.get(dCol));
+    @Override
+    public void selectSample(int sample) {
+        super.selectSample(sample);
+        if (sampleOutputErrors == null) {
+            sampleOutputErrors = outputErrors;
+        }
+        outputErrors = batchOutputErrors[sample];
+    }
+
+    @Override
+    public void endBatch() {
+        super.endBatch();
+        if (sampleOutputErrors != null) {
+            outputErrors = sampleOutputErrors;
+            sampleOutputErrors = null;
         }
     }
 
@@ -170,16 +289,17 @@ public class OutputLayer extends AbstractLayer {
      */
     @Override
     public void applyWeightChanges() {
-        if (batchMode) { 
-            deltaWeights.div(batchSize);
+        if (batchMode) { // average of weight changes for batch, added in the same pass
+            weights.expr().add(deltaWeights.expr().div(batchSize)).evaluateInto(weights);
+            deltaWeights.fill(0);
             Tensor.div(deltaBiases, batchSize);
+        } else {
+            weights.add(deltaWeights);
         }
 
-        weights.add(deltaWeights);
         Tensor.add(biases, deltaBiases);
 
         if (batchMode) {
-            deltaWeights.fill(0);
             Tensor.fill(deltaBiases, 0);
         }
     }
@@ -22,10 +22,8 @@
 package deepnetts.net.layers;
 
 import deepnetts.net.layers.activation.ActivationType;
-import deepnetts.net.train.opt.Optimizers;
 import deepnetts.util.WeightsInit;
 import deepnetts.util.Tensor;
-import java.util.Arrays;
 
 /**
  * Output layer with softmax activation function.
@@ -47,16 +45,16 @@ public class SoftmaxOutputLayer extends OutputLayer {
     @Override
     public void init() {
         inputs = prevLayer.outputs;
-        outputs = new Tensor(width);
+        outputs = new Tensor(width); // always on heap, since it is passed as array to loss function
         outputErrors = new float[width];
-        deltas = new Tensor(width);
+        deltas = createAccumulatorTensor(width);
 
         // height je koliko ima neurona u prethodnom FC lejeru  - pretpostavka je da moze samo FC lejer da bude iza
         int prevLayerWidth = prevLayer.getWidth();
-        weights = new Tensor(prevLayerWidth, width);
-        deltaWeights = new Tensor(prevLayerWidth, width);
-        gradients = new Tensor(prevLayerWidth, width);
-        WeightsInit.xavier(weights.getValues(), prevLayerWidth, width);
+        weights = createTensor(prevLayerWidth, width);
+        deltaWeights = createAccumulatorTensor(prevLayerWidth, width);
+        gradients = createAccumulatorTensor(prevLayerWidth, width);
+        WeightsInit.xavier(weights, prevLayerWidth, width);
 
         biases = new float[width];
         deltaBiases = new float[width];
@@ -69,16 +67,26 @@ public class SoftmaxOutputLayer extends OutputLayer {
      */
     @Override
     public void forward() {
+        outputs.copyFrom(biases);   // first add bias
+        addWeightedInputs();        // add weighted sum of inputs
+        softmax();
+    }
+
+    @Override
+    protected void activateBatch(int count) {
+        for (int sample = 0; sample < count; sample++) {
+            selectSample(sample);
+            softmax();
+        }
+    }
+
+    /**
+     * Calculates softmax outputs from weighted sums in outputs.
+     */
+    private void softmax() {
         // find max weightedSum
         float maxWs = Float.NEGATIVE_INFINITY;
-
-        //  compute weighted sums (activations) and find max weighted sum
         for (int outCol = 0; outCol < outputs.getCols(); outCol++) {                    // for all neurons in this layer
-            outputs.set(outCol, biases[outCol]);                                        // first add bias
-            for (int inCol = 0; inCol < inputs.getCols(); inCol++) {                    // iterate all inputs
-                outputs.add(outCol, inputs.get(inCol) * weights.get(inCol, outCol));    // add weighted sum of inputs
-            }
-
             if (outputs.get(outCol) > maxWs) { // find max weighted sum
                 maxWs = outputs.get(outCol);
             }
@@ -95,29 +103,14 @@ public class SoftmaxOutputLayer extends OutputLayer {
     }
 
     /**
-     *
+     * Deltas are output errors, since derivative of softmax cancels out with cross entropy loss.
      */
     @Override
-    public void backward() {
-        if (!batchMode) {
-            deltaWeights.fill(0);
-            Arrays.fill(deltaBiases, 0);
-        }
-
+    protected void calculateDeltas() {
         deltas.copyFrom(outputErrors);
 
-        for (int outCol = 0; outCol < outputs.getCols(); outCol++) { // iterate all output neurons / deltas
-            for (int inCol = 0; inCol < inputs.getCols(); inCol++) { // prev layer is allways FullyConnected. iterate all inputs/weights for the current neuron
-                final float grad = deltas.get(outCol) * inputs.get(inCol); // ovo je tacno samo ako je prethodna fja sigmoidna, pa se izvod af skratio
-                gradients.set(inCol, outCol, grad);
-                final float deltaWeight = Optimizers.sgd(learningRate, grad);
-                //deltaWeight = Optimizers.momentum(learningRate, grad, momentum, prevDeltaWeights.get(inCol, outCol));
-                deltaWeights.add(inCol, outCol, deltaWeight); //
-            }
-
-            deltaBiases[outCol] += Optimizers.sgd(learningRate, deltas.get(outCol));
-            //deltaBiases[outCol] += Optimizers.momentum(learningRate, deltas.get(outCol), momentum, prevDeltaBiases[outCol]);
-        }
+        // prev layer is allways FullyConnected. gradient is deltas * inputs, ovo je tacno samo ako je prethodna fja sigmoidna, pa se izvod af skratio
+        addDeltaBiases();
     }
 
 }
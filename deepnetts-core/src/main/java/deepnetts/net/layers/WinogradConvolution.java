@@ -0,0 +1,397 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.net.layers.activation.ActivationFunctions;
+import deepnetts.util.Kernels;
+import deepnetts.util.LinearAlgebra;
+import deepnetts.util.Tensor;
+import deepnetts.util.TensorPool;
+
+/**
+ * Winograd fast convolution for 3x3 filters with stride 1, F(2x2,3x3) and F(4x4,3x3).
+ *
+ * Output is calculated in tiles of m x m (2x2 or 4x4) from input tiles of
+ * (m+2) x (m+2). Each input tile and each filter are transformed, and their
+ * element wise product is transformed back into the output tile:
+ * <pre>
+ * Y = A' [ (G g G') * (B' d B) ] A
+ * </pre>
+ * which takes (m+2)^2 multiplications per tile instead of 9 m^2, so 2.25x fewer
+ * for F(2x2,3x3) and 4x fewer for F(4x4,3x3). Products summed over input channels
+ * for each of (m+2)^2 transformed positions form a matrix multiplication
+ * [outChannels x inChannels] x [inChannels x tiles], done with {@link LinearAlgebra#sgemm}.
+ *
+ * F(4x4,3x3) is used for feature maps of at least 8x8, where partial tiles at the
+ * border waste less work. The same routine propagates deltas to previous layer,
+ * since that is also 3x3 convolution with stride 1, with filters rotated by 180
+ * degrees and input and output channels swapped.
+ *
+ * @see ConvolutionAlgorithm#WINOGRAD
+ * @author Zoran Sevarac
+ */
+final class WinogradConvolution {
+
+    /**
+     * Minimal number of positions times input and output channels for which Winograd is used by default.
+     */
+    private static final long MIN_EFFICIENT_WORK = 1 << 18;
+
+    private WinogradConvolution() { }
+
+    /**
+     * Returns true if Winograd convolution can be used for specified layer:
+     * 3x3 filters, stride 1, and heap arrays in NCHW layout.
+     */
+    static boolean isSupported(final ConvolutionalLayer layer) {
+        return layer.filterWidth == 3 && layer.filterHeight == 3 && layer.stride == 1 && GemmConvolution.isSupported(layer);
+    }
+
+    /**
+     * Returns true if Winograd convolution is expected to be faster than GEMM for specified layer.
+     * Transforms and many small matrix multiplications pay off only for feature maps
+     * with enough tiles and enough input and output channels.
+     */
+    static boolean isEfficient(final ConvolutionalLayer layer) {
+        return layer.width >= 16 && layer.height >= 16 && layer.filterDepth >= 16 && layer.depth >= 16
+                && (long) layer.width * layer.height * layer.filterDepth * layer.depth >= MIN_EFFICIENT_WORK;
+    }
+
+    /**
+     * Calculates outputs of specified layer: outputs = activation(conv(inputs, filters) + biases).
+     */
+    static void forward(final ConvolutionalLayer layer) {
+        final Tensor outputs = layer.outputs;
+        final float[] out = outputs.getValues();
+        final int outOff = outputs.getOffset();
+        final int n = layer.height * layer.width;
+        final int channels = layer.depth;
+        final int inChannels = layer.filterDepth;
+
+        final TensorPool pool = TensorPool.local();
+        final float[] g = pool.acquireArray(channels * inChannels * 9);
+        try {
+            for (int ch = 0; ch < channels; ch++) {
+                final Tensor filter = layer.filters[ch];
+                System.arraycopy(filter.getValues(), filter.getOffset(), g, ch * inChannels * 9, inChannels * 9);
+                Kernels.fill(out, outOff + ch * n, n, layer.biases[ch]);
+            }
+
+            convolve(layer.inputs.getValues(), layer.inputs.getOffset(), inChannels, layer.height, layer.width, g, channels, out, outOff);
+        } finally {
+            pool.releaseArray(g);
+        }
+
+        for (int i = outOff; i < outOff + channels * n; i++) {
+            out[i] = ActivationFunctions.calc(layer.activationType, out[i]);
+        }
+    }
+
+    /**
+     * Propagates deltas of specified layer back through its filters, and adds them
+     * to deltas of previous layer. Requires deltas of both layers in NCHW heap arrays.
+     *
+     * @param inputDeltas deltas of previous layer, with the same shape as inputs of specified layer
+     */
+    static void backwardInputs(final ConvolutionalLayer layer, final Tensor inputDeltas) {
+        final int channels = layer.depth;
+        final int inChannels = layer.filterDepth;
+
+        // filter from channel ch to input channel fz, rotated by 180 degrees
+        final TensorPool pool = TensorPool.local();
+        final float[] g = pool.acquireArray(inChannels * channels * 9);
+        try {
+            for (int ch = 0; ch < channels; ch++) {
+                final float[] fVals = layer.filters[ch].getValues();
+                final int fOff = layer.filters[ch].getOffset();
+                for (int fz = 0; fz < inChannels; fz++) {
+                    final int src = fOff + fz * 9;
+                    final int dst = (fz * channels + ch) * 9;
+                    for (int i = 0; i < 9; i++) {
+                        g[dst + i] = fVals[src + 8 - i];
+                    }
+                }
+            }
+
+            convolve(layer.deltas.getValues(), layer.deltas.getOffset(), channels, layer.height, layer.width, g,
+                     inChannels, inputDeltas.getValues(), inputDeltas.getOffset());
+        } finally {
+            pool.releaseArray(g);
+        }
+    }
+
+    /**
+     * Adds 3x3 convolution (with padding 1 and stride 1) of input channels with filters to output channels.
+     *
+     * @param in input values [inChannels][rows][cols]
+     * @param inOff position of the first input
+     * @param inChannels number of input channels
+     * @param rows number of rows in input and output
+     * @param cols number of cols in input and output
+     * @param g filters [outChannels][inChannels][3][3]
+     * @param outChannels number of output channels
+     * @param out output values [outChannels][rows][cols]
+     * @param outOff position of the first output
+     */
+    private static void convolve(final float[] in, final int inOff, final int inChannels, final int rows, final int cols,
+                                 final float[] g, final int outChannels, final float[] out, final int outOff) {
+        final boolean large = rows >= 8 && cols >= 8;
+        final int m = large ? 4 : 2;           // output tile size
+        final int alpha = m + 2;               // input tile size
+        final int points = alpha * alpha;      // number of transformed positions
+
+        final int tileRows = (rows + m - 1) / m;
+        final int tileCols = (cols + m - 1) / m;
+        final int tiles = tileRows * tileCols;
+
+        final TensorPool pool = TensorPool.local();
+        final float[] u = pool.acquireArray(points * outChannels * inChannels); // [point][outChannel][inChannel]
+        final float[] v = pool.acquireArray(points * inChannels * tiles);       // [point][inChannel][tile]
+        final float[] p = pool.acquireArray(points * outChannels * tiles);      // [point][outChannel][tile]
+        final float[] tile = pool.acquireArray(points);
+        final float[] tmp = pool.acquireArray(points);
+        final float[] res = pool.acquireArray(points);
+
+        try {
+            // transform filters: G g G'
+            for (int oc = 0; oc < outChannels; oc++) {
+                for (int ic = 0; ic < inChannels; ic++) {
+                    if (large) {
+                        filterTransform4(g, (oc * inChannels + ic) * 9, tmp, res);
+                    } else {
+                        filterTransform2(g, (oc * inChannels + ic) * 9, tmp, res);
+                    }
+                    for (int k = 0; k < points; k++) {
+                        u[(k * outChannels + oc) * inChannels + ic] = res[k];
+                    }
+                }
+            }
+
+            // transform input tiles: B' d B
+            for (int ic = 0; ic < inChannels; ic++) {
+                final int chOff = inOff + ic * rows * cols;
+                for (int tr = 0; tr < tileRows; tr++) {
+                    for (int tc = 0; tc < tileCols; tc++) {
+                        final int r0 = tr * m - 1, c0 = tc * m - 1; // padding 1
+                        for (int i = 0; i < alpha; i++) {
+                            final int r = r0 + i;
+                            for (int j = 0; j < alpha; j++) {
+                                final int c = c0 + j;
+                                tile[i * alpha + j] = r < 0 || r >= rows || c < 0 || c >= cols ? 0 : in[chOff + r * cols + c];
+                            }
+                        }
+                        if (large) {
+                            inputTransform4(tile, tmp, res);
+                        } else {
+                            inputTransform2(tile, tmp, res);
+                        }
+                        final int t = tr * tileCols + tc;
+                        for (int k = 0; k < points; k++) {
+                            v[(k * inChannels + ic) * tiles + t] = res[k];
+                        }
+                    }
+                }
+            }
+
+            // sum products over input channels, for each transformed position
+            for (int k = 0; k < points; k++) {
+                LinearAlgebra.sgemm(false, false, outChannels, tiles, inChannels, 1, u, k * outChannels * inChannels, inChannels,
+                                    v, k * inChannels * tiles, tiles, 0, p, k * outChannels * tiles, tiles);
+            }
+
+            // transform back to output tiles: A' p A
+            for (int oc = 0; oc < outChannels; oc++) {
+                final int chOff = outOff + oc * rows * cols;
+                for (int tr = 0; tr < tileRows; tr++) {
+                    for (int tc = 0; tc < tileCols; tc++) {
+                        final int t = tr * tileCols + tc;
+                        for (int k = 0; k < points; k++) {
+                            tile[k] = p[(k * outChannels + oc) * tiles + t];
+                        }
+                        if (large) {
+                            outputTransform4(tile, tmp, res);
+                        } else {
+                            outputTransform2(tile, tmp, res);
+                        }
+                        final int r0 = tr * m, c0 = tc * m;
+                        final int tileHeight = Math.min(m, rows - r0), tileWidth = Math.min(m, cols - c0);
+                        for (int i = 0; i < tileHeight; i++) {
+                            final int outIdx = chOff + (r0 + i) * cols + c0;
+                            for (int j = 0; j < tileWidth; j++) {
+                                out[outIdx + j] += res[i * m + j];
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            pool.releaseArray(u);
+            pool.releaseArray(v);
+            pool.releaseArray(p);
+            pool.releaseArray(tile);
+            pool.releaseArray(tmp);
+            pool.releaseArray(res);
+        }
+    }
+
+    /**
+     * Filter transform G g G' for F(2x2,3x3), from 3x3 filter to 4x4 tile.
+     */
+    private static void filterTransform2(final float[] g, final int gOff, final float[] tmp, final float[] y) {
+        for (int j = 0; j < 3; j++) {
+            g2(g, gOff + j, 3, tmp, j, 3);
+        }
+        for (int i = 0; i < 4; i++) {
+            g2(tmp, i * 3, 1, y, i * 4, 1);
+        }
+    }
+
+    /**
+     * Applies G of F(2x2,3x3) to 3 values of x with specified stride, giving 4 values.
+     */
+    private static void g2(final float[] x, final int xOff, final int xStride, final float[] y, final int yOff, final int yStride) {
+        final float x0 = x[xOff], x1 = x[xOff + xStride], x2 = x[xOff + 2 * xStride];
+        final float s = 0.5f * (x0 + x2);
+        y[yOff] = x0;
+        y[yOff + yStride] = s + 0.5f * x1;
+        y[yOff + 2 * yStride] = s - 0.5f * x1;
+        y[yOff + 3 * yStride] = x2;
+    }
+
+    /**
+     * Input transform B' d B for F(2x2,3x3), applied to columns and then to rows of 4x4 tile.
+     */
+    private static void inputTransform2(final float[] d, final float[] tmp, final float[] y) {
+        for (int j = 0; j < 4; j++) {
+            final float x0 = d[j], x1 = d[4 + j], x2 = d[8 + j], x3 = d[12 + j];
+            tmp[j] = x0 - x2;
+            tmp[4 + j] = x1 + x2;
+            tmp[8 + j] = x2 - x1;
+            tmp[12 + j] = x1 - x3;
+        }
+        for (int i = 0; i < 16; i += 4) {
+            final float x0 = tmp[i], x1 = tmp[i + 1], x2 = tmp[i + 2], x3 = tmp[i + 3];
+            y[i] = x0 - x2;
+            y[i + 1] = x1 + x2;
+            y[i + 2] = x2 - x1;
+            y[i + 3] = x1 - x3;
+        }
+    }
+
+    /**
+     * Output transform A' p A for F(2x2,3x3), from 4x4 to 2x2 tile.
+     */
+    private static void outputTransform2(final float[] p, final float[] tmp, final float[] y) {
+        for (int j = 0; j < 4; j++) {
+            final float x1 = p[4 + j], x2 = p[8 + j];
+            tmp[j] = p[j] + x1 + x2;
+            tmp[4 + j] = x1 - x2 - p[12 + j];
+        }
+        for (int i = 0; i < 2; i++) {
+            final int row = i * 4;
+            final float x1 = tmp[row + 1], x2 = tmp[row + 2];
+            y[i * 2] = tmp[row] + x1 + x2;
+            y[i * 2 + 1] = x1 - x2 - tmp[row + 3];
+        }
+    }
+
+    /**
+     * Filter transform G g G' for F(4x4,3x3), from 3x3 filter to 6x6 tile.
+     */
+    private static void filterTransform4(final float[] g, final int gOff, final float[] tmp, final float[] y) {
+        for (int j = 0; j < 3; j++) {
+            g4(g, gOff + j, 3, tmp, j, 3);
+        }
+        for (int i = 0; i < 6; i++) {
+            g4(tmp, i * 3, 1, y, i * 6, 1);
+        }
+    }
+
+    /**
+     * Applies G of F(4x4,3x3) to 3 values of x with specified stride, giving 6 values.
+     */
+    private static void g4(final float[] x, final int xOff, final int xStride, final float[] y, final int yOff, final int yStride) {
+        final float x0 = x[xOff], x1 = x[xOff + xStride], x2 = x[xOff + 2 * xStride];
+        final float a = -(x0 + x2) / 6, b = x1 / 6;
+        final float c = x0 / 24 + x2 / 6, e = x1 / 12;
+        y[yOff] = x0 / 4;
+        y[yOff + yStride] = a - b;
+        y[yOff + 2 * yStride] = a + b;
+        y[yOff + 3 * yStride] = c + e;
+        y[yOff + 4 * yStride] = c - e;
+        y[yOff + 5 * yStride] = x2;
+    }
+
+    /**
+     * Input transform B' d B for F(4x4,3x3), applied to columns and then to rows of 6x6 tile.
+     */
+    private static void inputTransform4(final float[] d, final float[] tmp, final float[] y) {
+        for (int j = 0; j < 6; j++) {
+            bt4(d, j, 6, tmp, j, 6);
+        }
+        for (int i = 0; i < 36; i += 6) {
+            bt4(tmp, i, 1, y, i, 1);
+        }
+    }
+
+    /**
+     * Applies B' of F(4x4,3x3) to 6 values of x with specified stride.
+     */
+    private static void bt4(final float[] x, final int xOff, final int xStride, final float[] y, final int yOff, final int yStride) {
+        final float x0 = x[xOff], x1 = x[xOff + xStride], x2 = x[xOff + 2 * xStride];
+        final float x3 = x[xOff + 3 * xStride], x4 = x[xOff + 4 * xStride], x5 = x[xOff + 5 * xStride];
+        final float a = x4 - 4 * x2, b = x3 - 4 * x1; // shared parts of rows 1 and 2
+        final float c = x4 - x2, e = 2 * (x3 - x1);   // shared parts of rows 3 and 4
+        y[yOff] = 4 * x0 - 5 * x2 + x4;
+        y[yOff + yStride] = a + b;
+        y[yOff + 2 * yStride] = a - b;
+        y[yOff + 3 * yStride] = c + e;
+        y[yOff + 4 * yStride] = c - e;
+        y[yOff + 5 * yStride] = 4 * x1 - 5 * x3 + x5;
+    }
+
+    /**
+     * Output transform A' p A for F(4x4,3x3), from 6x6 to 4x4 tile.
+     */
+    private static void outputTransform4(final float[] p, final float[] tmp, final float[] y) {
+        for (int j = 0; j < 6; j++) {
+            at4(p, j, 6, tmp, j, 6);
+        }
+        for (int i = 0; i < 4; i++) {
+            at4(tmp, i * 6, 1, y, i * 4, 1);
+        }
+    }
+
+    /**
+     * Applies A' of F(4x4,3x3) to 6 values of x with specified stride, giving 4 values.
+     */
+    private static void at4(final float[] x, final int xOff, final int xStride, final float[] y, final int yOff, final int yStride) {
+        final float x1 = x[xOff + xStride], x2 = x[xOff + 2 * xStride];
+        final float x3 = x[xOff + 3 * xStride], x4 = x[xOff + 4 * xStride];
+        final float s12 = x1 + x2, d12 = x1 - x2, s34 = x3 + x4, d34 = x3 - x4;
+        y[yOff] = x[xOff] + s12 + s34;
+        y[yOff + yStride] = d12 + 2 * d34;
+        y[yOff + 2 * yStride] = s12 + 4 * s34;
+        y[yOff + 3 * yStride] = d12 + 8 * d34 + x[xOff + 5 * xStride];
+    }
+
+}
@@ -34,10 +34,13 @@ import deepnetts.net.ConvolutionalNetwork;
 import deepnetts.net.FeedForwardNetwork;
 import deepnetts.net.loss.LossFunction;
 import deepnetts.util.FileIO;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Objects;
 import java.util.Properties;
@@ -136,6 +139,21 @@ public class BackpropagationTrainer implements Trainer, Serializable {
 
     private final List<TrainingListener> listeners = new ArrayList<>(); // TODO: add WeakReference for all listeners
 
+    private transient EnumMap<TrainingEvent.Type, TrainingEvent> events;
+
+    /**
+     * Max number of samples processed at once in batch mode. Mini batches
+     * larger than this are processed in several parts, to limit memory used
+     * for outputs of all samples.
+     */
+    private static final int MAX_BATCH_SAMPLES = 128;
+
+    /**
+     * Network inputs for samples processed at once in batch mode, reused in all iterations.
+     */
+    private transient Tensor batchInput;
+    private transient DataSetItem[] batchItems;
+
     private static final org.apache.logging.log4j.Logger LOGGER = LogManager.getLogger(DeepNetts.class.getName());
 
     /**
@@ -214,6 +232,10 @@ public class BackpropagationTrainer implements Trainer, Serializable {
 
         fireTrainingEvent(TrainingEvent.Type.STARTED);
 
+        // in batch mode whole batches go through network at once, except for sparse inputs which skip zeros one by one
+        final boolean trainBatches = batchMode && batchSize > 1 && neuralNet.isBatchSupported()
+                                     && trainingSet.get(0).getInput().getStorageType() != StorageType.SPARSE;
+
         startTraining = System.currentTimeMillis();
         do {
             epoch++;
@@ -229,27 +251,31 @@ public class BackpropagationTrainer implements Trainer, Serializable {
 
             startEpoch = System.currentTimeMillis();
 
-            // maybe generate a sequence of random indexes instead of foreach, so i dontneed to shuffle in every epoch?
-            for (DataSetItem dataSetItem : trainingSet) { // for all items in trainng set
-                sampleCounter++;
-                neuralNet.setInput(dataSetItem.getInput());   // set network input
-                outputError = lossFunction.addPatternError(neuralNet.getOutput(), dataSetItem.getTargetOutput()); // get output error from loss function
-                neuralNet.setOutputError(outputError); //mozda bi ovo moglao da bude uvek isti niz/reference pa ne mora da se seuje
-                neuralNet.backward(); // do the backward propagation using current outputError - should I use outputError as a param here?
-
-                // weight update for online mode after each training pattern
-                if (!isBatchMode()) { // for online training update weight changes after each pass
-                    neuralNet.applyWeightChanges();
-                } else if (sampleCounter % batchSize == 0) { // mini batch
-                    neuralNet.applyWeightChanges();
-                    // do we need to reset lossFunction for mini batch?
-                    float miniBatchError = lossFunction.getTotalValue();
-                    LOGGER.info("Mini Batch:" + sampleCounter / batchSize + " Batch Loss:" + miniBatchError);
-                    // da se ne ceka prvise dugo ako ima 60 000 slika nego da sve vreme prikazuje gresku
+            if (trainBatches) {
+                trainBatches();
+            } else {
+                // maybe generate a sequence of random indexes instead of foreach, so i dontneed to shuffle in every epoch?
+                for (DataSetItem dataSetItem : trainingSet) { // for all items in trainng set
+                    sampleCounter++;
+                    neuralNet.setInput(dataSetItem.getInput());   // set network input
+                    outputError = lossFunction.addPatternError(neuralNet.getOutput(), dataSetItem.getTargetOutput()); // get output error from loss function
+                    neuralNet.setOutputError(outputError); //mozda bi ovo moglao da bude uvek isti niz/reference pa ne mora da se seuje
+                    neuralNet.backward(); // do the backward propagation using current outputError - should I use outputError as a param here?
+
+                    // weight update for online mode after each training pattern
+                    if (!isBatchMode()) { // for online training update weight changes after each pass
+                        neuralNet.applyWeightChanges();
+                    } else if (sampleCounter % batchSize == 0) { // mini batch
+                        neuralNet.applyWeightChanges();
+                        // do we need to reset lossFunction for mini batch?
+                        float miniBatchError = lossFunction.getTotalValue();
+                        LOGGER.info("Mini Batch:" + sampleCounter / batchSize + " Batch Loss:" + miniBatchError);
+                        // da se ne ceka prvise dugo ako ima 60 000 slika nego da sve vreme prikazuje gresku
+                    }
+                    fireTrainingEvent(TrainingEvent.Type.ITERATION_FINISHED); // BATCH_FINISHED?
+
+                    if (stopTraining) break; // if training was stoped externaly by calling stop() method
                 }
-                fireTrainingEvent(TrainingEvent.Type.ITERATION_FINISHED); // BATCH_FINISHED?
-
-                if (stopTraining) break; // if training was stoped externaly by calling stop() method
             }
 
             endEpoch = System.currentTimeMillis();
@@ -306,6 +332,73 @@ public class BackpropagationTrainer implements Trainer, Serializable {
         fireTrainingEvent(TrainingEvent.Type.STOPPED);
     }
 
+    /**
+     * Trains one epoch in batch mode, passing several samples through
+     * the network at once, so layers can use matrix multiplication for all of them.
+     */
+    private void trainBatches() {
+        final int partSize = Math.min(batchSize, MAX_BATCH_SAMPLES);
+        if (batchItems == null || batchItems.length != partSize) {
+            batchItems = new DataSetItem[partSize];
+            batchInput = null;
+        }
+
+        int sampleCounter = 0;
+        int count = 0;
+        for (DataSetItem dataSetItem : trainingSet) {
+            sampleCounter++;
+            batchItems[count++] = dataSetItem;
+
+            final boolean endOfBatch = sampleCounter % batchSize == 0;
+            if (count == partSize || endOfBatch || sampleCounter == trainingSet.size()) {
+                trainBatch(count);
+                if (endOfBatch) {
+                    neuralNet.applyWeightChanges();
+                    float miniBatchError = lossFunction.getTotalValue();
+                    LOGGER.info("Mini Batch:" + sampleCounter / batchSize + " Batch Loss:" + miniBatchError);
+                }
+                for (int i = 0; i < count; i++) {
+                    fireTrainingEvent(TrainingEvent.Type.ITERATION_FINISHED);
+                }
+                count = 0;
+            }
+
+            if (stopTraining) break; // if training was stoped externaly by calling stop() method
+        }
+    }
+
+    /**
+     * Forward and backward pass for specified number of samples from batchItems.
+     */
+    private void trainBatch(final int count) {
+        final Tensor firstInput = batchItems[0].getInput();
+        final int inputSize = firstInput.size();
+        if (batchInput == null) {
+            final int[] shape = firstInput.getShape();
+            final int[] batchShape = new int[shape.length + 1];
+            batchShape[0] = batchItems.length;
+            System.arraycopy(shape, 0, batchShape, 1, shape.length);
+            batchInput = Tensor.create(StorageType.HEAP, batchShape);
+        }
+
+        final float[] batchValues = batchInput.getValues();
+        for (int i = 0; i < count; i++) {
+            final Tensor input = batchItems[i].getInput();
+            if (input.hasArray() && input.isContiguous()) {
+                System.arraycopy(input.getValues(), input.getOffset(), batchValues, i * inputSize, inputSize);
+            } else {
+                System.arraycopy(input.toArray(), 0, batchValues, i * inputSize, inputSize);
+            }
+        }
+
+        neuralNet.setInputBatch(count == batchItems.length ? batchInput : batchInput.slice(0, 0, count));
+        for (int i = 0; i < count; i++) {
+            final float[] outputError = lossFunction.addPatternError(neuralNet.getOutput(i), batchItems[i].getTargetOutput());
+            neuralNet.setOutputError(i, outputError);
+        }
+        neuralNet.backwardBatch();
+    }
+
     public long getMaxEpochs() {
         return maxEpochs;
     }
@@ -353,8 +446,20 @@ public class BackpropagationTrainer implements Trainer, Serializable {
     }
 
     private void fireTrainingEvent(TrainingEvent.Type type) {
-        for (TrainingListener l : listeners) {
-            l.handleEvent(new TrainingEvent(this, type));
+        if (listeners.isEmpty()) {
+            return;
+        }
+        // events are immutable, so the same instance is used for every iteration to avoid allocation in training loop
+        if (events == null) {
+            events = new EnumMap<>(TrainingEvent.Type.class);
+        }
+        TrainingEvent event = events.get(type);
+        if (event == null) {
+            event = new TrainingEvent(this, type);
+            events.put(type, event);
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).handleEvent(event);
         }
     }
 
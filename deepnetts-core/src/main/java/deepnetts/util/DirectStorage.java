@@ -0,0 +1,232 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Off-heap tensor storage backed by direct byte buffer.
+ *
+ * Values are kept outside of the Java heap, so they do not add to garbage
+ * collection pauses, and can be shared with native code (see {@link #wrap(ByteBuffer)})
+ * or mapped from file. Memory is released when storage is closed,
+ * or eventually by garbage collector if it is never closed.
+ * Closed storage throws IllegalStateException on any access.
+ *
+ * Single storage can hold up to Integer.MAX_VALUE / 4 values.
+ *
+ * @see StorageType#OFF_HEAP
+ * @author Zoran Sevarac
+ */
+public final class DirectStorage implements TensorStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Method used to release direct memory immediately, instead of waiting for GC.
+     * Available on Java 9+ as sun.misc.Unsafe.invokeCleaner, null otherwise.
+     */
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // not available on this JVM, memory will be released by garbage collector
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private transient ByteBuffer bytes;
+    private transient FloatBuffer buffer;
+    private int size;
+
+    /**
+     * True if memory was allocated or mapped by this storage and should be released on close.
+     */
+    private transient boolean owner;
+
+    /**
+     * True after storage is closed, and its memory possibly released.
+     */
+    private transient boolean closed;
+
+    /**
+     * Allocates off-heap storage for specified number of values, initialized to zero.
+     *
+     * @param size number of float values
+     */
+    public DirectStorage(int size) {
+        this(ByteBuffer.allocateDirect(checkSize(size) * Float.BYTES).order(ByteOrder.nativeOrder()), true);
+    }
+
+    private DirectStorage(ByteBuffer bytes, boolean owner) {
+        this.bytes = bytes;
+        this.buffer = bytes.asFloatBuffer();
+        this.size = buffer.capacity();
+        this.owner = owner;
+    }
+
+    private static int checkSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Storage size cannot be negative: " + size);
+        }
+        if ((long) size * Float.BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Storage size is too big for single direct buffer: " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Creates storage which uses existing direct buffer, for example one shared with native code.
+     * Buffer is not released when this storage is closed.
+     *
+     * @param bytes direct byte buffer with float values in buffer's byte order
+     * @return storage backed by specified buffer
+     */
+    public static DirectStorage wrap(ByteBuffer bytes) {
+        if (!bytes.isDirect()) {
+            throw new IllegalArgumentException("Off-heap storage requires direct buffer");
+        }
+        return new DirectStorage(bytes.slice().order(bytes.order()), false);
+    }
+
+    /**
+     * Maps specified region of a file as tensor storage. Values in file are
+     * expected in little endian byte order. With READ_WRITE mode changes are
+     * written back to file, with PRIVATE mode they are visible only to this storage.
+     *
+     * @param channel file channel to map
+     * @param mode map mode
+     * @param position position in file where values start, in bytes
+     * @param size number of float values
+     * @return storage mapped from file
+     * @throws IOException if mapping fails
+     */
+    public static DirectStorage map(FileChannel channel, FileChannel.MapMode mode, long position, int size) throws IOException {
+        ByteBuffer mapped = channel.map(mode, position, (long) checkSize(size) * Float.BYTES);
+        return new DirectStorage(mapped.order(ByteOrder.LITTLE_ENDIAN), true);
+    }
+
+    @Override
+    public float get(final int idx) {
+        checkOpen();
+        return buffer.get(idx);
+    }
+
+    @Override
+    public void set(final int idx, final float val) {
+        checkOpen();
+        buffer.put(idx, val);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("storage is closed");
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public StorageType getType() {
+        return StorageType.OFF_HEAP;
+    }
+
+    /**
+     * Copies storage values into specified buffer, starting at its current position.
+     * Internal buffer is not exposed, since its memory is released when storage is closed,
+     * and any later access to it would crash the JVM.
+     *
+     * @param dest buffer to copy values to
+     */
+    public void copyTo(FloatBuffer dest) {
+        checkOpen();
+        dest.put(buffer.duplicate());
+    }
+
+    /**
+     * Returns true if this storage is closed.
+     *
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        final ByteBuffer released = bytes;
+        bytes = null;
+        buffer = null;
+
+        if (owner && INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, released);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                // memory will be released by garbage collector
+            }
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        checkOpen();
+        out.defaultWriteObject();
+        for (int i = 0; i < size; i++) {
+            out.writeFloat(buffer.get(i));
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        bytes = ByteBuffer.allocateDirect(checkSize(size) * Float.BYTES).order(ByteOrder.nativeOrder());
+        buffer = bytes.asFloatBuffer();
+        owner = true;
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, in.readFloat());
+        }
+    }
+
+}
@@ -29,8 +29,13 @@ import deepnetts.net.NetworkType;
 import deepnetts.net.loss.CrossEntropyLoss;
 import deepnetts.net.loss.MeanSquaredErrorLoss;
 import deepnetts.net.NeuralNetwork;
+import deepnetts.net.layers.AveragePoolingLayer;
+import deepnetts.net.layers.ConvolutionAlgorithm;
 import deepnetts.net.layers.ConvolutionalLayer;
+import deepnetts.net.layers.DepthwiseConvolutionalLayer;
 import deepnetts.net.layers.FullyConnectedLayer;
+import deepnetts.net.layers.GlobalAveragePoolingLayer;
+import deepnetts.net.layers.GroupedConvolutionalLayer;
 import deepnetts.net.layers.InputLayer;
 import deepnetts.net.layers.LayerType;
 import deepnetts.net.layers.MaxPoolingLayer;
@@ -137,6 +142,7 @@ public class FileIO {
                 convLayerJson.put("channels", convLayer.getDepth()); // channels
                 convLayerJson.put("stride", convLayer.getStride());
                 convLayerJson.put("activation", convLayer.getActivationType());
+                convLayerJson.put("algorithm", convLayer.getAlgorithm());
                 JSONArray filters = new JSONArray();
                 for(Tensor filter: convLayer.getFilters()) {
                     filters.put(filter);
@@ -146,6 +152,21 @@ public class FileIO {
                 //convLayerJson.put("filters",filters);
 
                 layers.put(convLayerJson);
+            } else if (layer instanceof GroupedConvolutionalLayer) {
+                GroupedConvolutionalLayer groupedLayer = (GroupedConvolutionalLayer)layer;
+                JSONObject groupedLayerJson = new JSONObject();
+                if (layer instanceof DepthwiseConvolutionalLayer) { // channels and groups are depth of previous layer
+                    groupedLayerJson.put("layerType", LayerType.DEPTHWISE_CONVOLUTIONAL);
+                } else {
+                    groupedLayerJson.put("layerType", LayerType.GROUPED_CONVOLUTIONAL);
+                    groupedLayerJson.put("channels", groupedLayer.getDepth());
+                    groupedLayerJson.put("groups", groupedLayer.getGroups());
+                }
+                groupedLayerJson.put("filterWidth", groupedLayer.getFilterWidth());
+                groupedLayerJson.put("filterHeight", groupedLayer.getFilterHeight());
+                groupedLayerJson.put("stride", groupedLayer.getStride());
+                groupedLayerJson.put("activation", groupedLayer.getActivationType());
+                layers.put(groupedLayerJson);
             } else if (layer instanceof MaxPoolingLayer) {
                 MaxPoolingLayer maxPooling= (MaxPoolingLayer)layer;
                 JSONObject poolLayerJson = new JSONObject();
@@ -154,6 +175,18 @@ public class FileIO {
                 poolLayerJson.put("filterHeight", maxPooling.getFilterHeight());
                 poolLayerJson.put("stride", maxPooling.getStride());
                 layers.put(poolLayerJson);
+            } else if (layer instanceof AveragePoolingLayer) {
+                AveragePoolingLayer avgPooling = (AveragePoolingLayer)layer;
+                JSONObject poolLayerJson = new JSONObject();
+                poolLayerJson.put("layerType", LayerType.AVERAGEPOOLING);
+                poolLayerJson.put("filterWidth", avgPooling.getFilterWidth());
+                poolLayerJson.put("filterHeight", avgPooling.getFilterHeight());
+                poolLayerJson.put("stride", avgPooling.getStride());
+                layers.put(poolLayerJson);
+            } else if (layer instanceof GlobalAveragePoolingLayer) {
+                JSONObject poolLayerJson = new JSONObject();
+                poolLayerJson.put("layerType", LayerType.GLOBAL_AVERAGEPOOLING);
+                layers.put(poolLayerJson);
             } else if (layer instanceof FullyConnectedLayer) {
                 JSONObject fullyConnLayerJson = new JSONObject();
                 fullyConnLayerJson.put("layerType", LayerType.DENSE);
@@ -255,7 +288,23 @@ public class FileIO {
 
                         // todo: add biases from json too
 
-                        builder.addConvolutionalLayer(filterWidth, filterHeight, stride, channels, ActivationType.valueOf(activation));
+                        ConvolutionAlgorithm algorithm = layerObj.has("algorithm") ? ConvolutionAlgorithm.valueOf(layerObj.getString("algorithm")) : ConvolutionAlgorithm.AUTO;
+                        builder.addConvolutionalLayer(filterWidth, filterHeight, stride, channels, ActivationType.valueOf(activation), algorithm);
+                break;
+                case GROUPED_CONVOLUTIONAL :
+                        filterWidth = layerObj.getInt("filterWidth");
+                        filterHeight = layerObj.getInt("filterHeight");
+                        stride = layerObj.getInt("stride");
+                        channels = layerObj.getInt("channels");
+                        activation = layerObj.getString("activation").toUpperCase();
+                        builder.addGroupedConvolutionalLayer(filterWidth, filterHeight, stride, channels, layerObj.getInt("groups"), ActivationType.valueOf(activation));
+                break;
+                case DEPTHWISE_CONVOLUTIONAL :
+                        filterWidth = layerObj.getInt("filterWidth");
+                        filterHeight = layerObj.getInt("filterHeight");
+                        stride = layerObj.getInt("stride");
+                        activation = layerObj.getString("activation").toUpperCase();
+                        builder.addDepthwiseConvolutionalLayer(filterWidth, filterHeight, stride, ActivationType.valueOf(activation));
                 break;
                 case MAXPOOLING :
                         filterWidth = layerObj.getInt("filterWidth");
@@ -263,6 +312,15 @@ public class FileIO {
                         stride = layerObj.getInt("stride");
                         builder.addMaxPoolingLayer(filterWidth, filterHeight, stride);
                 break;
+                case AVERAGEPOOLING :
+                        filterWidth = layerObj.getInt("filterWidth");
+                        filterHeight = layerObj.getInt("filterHeight");
+                        stride = layerObj.getInt("stride");
+                        builder.addAveragePoolingLayer(filterWidth, filterHeight, stride);
+                break;
+                case GLOBAL_AVERAGEPOOLING :
+                        builder.addGlobalAveragePoolingLayer();
+                break;
                 case DENSE :
                         width = layerObj.getInt("width");
                         activation = layerObj.getString("activation").toUpperCase();
@@ -0,0 +1,182 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+/**
+ * Tensor storage which keeps values as 16 bit floating point numbers, either
+ * as IEEE 754 half precision (FP16) or as bfloat16 (BF16) numbers.
+ * Values are rounded to nearest 16 bit value when stored, and converted back to float when read.
+ *
+ * FP16 has 10 bit mantissa and 5 bit exponent (max value 65504).
+ * BF16 has 7 bit mantissa and 8 bit exponent, so it has the same range as float.
+ *
+ * @see StorageType#FP16
+ * @see StorageType#BF16
+ * @author Zoran Sevarac
+ */
+public final class HalfStorage implements TensorStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    private final short[] values;
+    private final boolean bfloat;
+
+    /**
+     * Creates storage for specified number of values, initialized to zero.
+     *
+     * @param size number of values
+     * @param type FP16 or BF16
+     */
+    public HalfStorage(int size, StorageType type) {
+        if (type != StorageType.FP16 && type != StorageType.BF16) {
+            throw new IllegalArgumentException("Half storage can only be FP16 or BF16, not " + type);
+        }
+        this.values = new short[size];
+        this.bfloat = type == StorageType.BF16;
+    }
+
+    @Override
+    public float get(final int idx) {
+        return bfloat ? bfloat16ToFloat(values[idx]) : halfToFloat(values[idx]);
+    }
+
+    @Override
+    public void set(final int idx, final float val) {
+        values[idx] = bfloat ? floatToBFloat16(val) : floatToHalf(val);
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public StorageType getType() {
+        return bfloat ? StorageType.BF16 : StorageType.FP16;
+    }
+
+    /**
+     * Returns raw 16 bit values.
+     *
+     * @return array with 16 bit values
+     */
+    public short[] getRawValues() {
+        return values;
+    }
+
+    /**
+     * Nothing to release, values are on the heap.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Converts float to IEEE 754 half precision number, rounding to nearest even.
+     * Values from 65520 up, which are not closer to max half value 65504, become infinity.
+     * Values of 2^-25 and below become zero, and NaN stays NaN.
+     *
+     * @param value float value
+     * @return bits of half precision number
+     */
+    public static short floatToHalf(final float value) {
+        final int bits = Float.floatToRawIntBits(value);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int abs = bits & 0x7fffffff;
+
+        if (abs >= 0x7f800000) { // infinity or NaN
+            return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+        }
+        if (abs >= 0x477ff000) { // 65520 and above round to infinity
+            return (short) (sign | 0x7c00);
+        }
+        if (abs < 0x38800000) { // smaller than min normal half (2^-14), becomes subnormal or zero
+            if (abs < 0x33000000) { // 2^-25 and below round to zero
+                return (short) sign;
+            }
+            final int exp = abs >>> 23;
+            final int mantissa = (abs & 0x7fffff) | 0x800000;
+            final int shift = 126 - exp;
+            int result = mantissa >>> shift;
+            final int rest = mantissa & ((1 << shift) - 1);
+            final int halfway = 1 << (shift - 1);
+            if (rest > halfway || (rest == halfway && (result & 1) != 0)) {
+                result++;
+            }
+            return (short) (sign | result);
+        }
+
+        int result = (((abs >>> 23) - 112) << 10) | ((abs & 0x7fffff) >>> 13); // rebias exponent from 127 to 15
+        final int rest = abs & 0x1fff;
+        if (rest > 0x1000 || (rest == 0x1000 && (result & 1) != 0)) {
+            result++; // carry into exponent is fine
+        }
+        return (short) (sign | result);
+    }
+
+    /**
+     * Converts IEEE 754 half precision number to float.
+     *
+     * @param half bits of half precision number
+     * @return float value
+     */
+    public static float halfToFloat(final short half) {
+        final int bits = half & 0xffff;
+        final int sign = (bits & 0x8000) << 16;
+        final int exp = (bits >>> 10) & 0x1f;
+        final int mantissa = bits & 0x3ff;
+
+        if (exp == 0) { // zero or subnormal
+            final float val = mantissa * 0x1p-24f;
+            return sign == 0 ? val : -val;
+        }
+        if (exp == 0x1f) { // infinity or NaN
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mantissa << 13));
+    }
+
+    /**
+     * Converts float to bfloat16 number, rounding to nearest even.
+     *
+     * @param value float value
+     * @return bits of bfloat16 number
+     */
+    public static short floatToBFloat16(final float value) {
+        final int bits = Float.floatToRawIntBits(value);
+        if ((bits & 0x7fffffff) > 0x7f800000) { // NaN, keep it quiet NaN
+            return (short) ((bits >>> 16) | 0x40);
+        }
+        return (short) ((bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    /**
+     * Converts bfloat16 number to float.
+     *
+     * @param bfloat bits of bfloat16 number
+     * @return float value
+     */
+    public static float bfloat16ToFloat(final short bfloat) {
+        return Float.intBitsToFloat((bfloat & 0xffff) << 16);
+    }
+
+}
@@ -0,0 +1,252 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+/**
+ * Low level math kernels over float arrays, used by tensor operations and
+ * layer inner loops.
+ *
+ * Vectorized kernels are unrolled and use several independent accumulators,
+ * so the JIT compiler can map them to SIMD instructions of the current CPU.
+ * Since reductions (dot, sumAbs, sumSqr) add values in different order,
+ * their results can slightly differ from plain scalar loops.
+ * Scalar kernels can be forced using {@link #setScalar(boolean)} or by
+ * starting JVM with -Ddeepnetts.kernels=scalar, in order to compare results.
+ *
+ * All methods take array, offset and length, so they work for tensor views too.
+ *
+ * @author Zoran Sevarac
+ */
+public final class Kernels {
+
+    /**
+     * Number of values processed in a single iteration of vectorized loops.
+     */
+    private static final int LANES = 8;
+
+    private static boolean scalar = "scalar".equalsIgnoreCase(System.getProperty("deepnetts.kernels"));
+
+    private Kernels() { }
+
+    /**
+     * Forces the use of plain scalar loops in all kernels if set to true.
+     *
+     * @param scalar true to use scalar kernels, false to use vectorized kernels
+     */
+    public static void setScalar(final boolean scalar) {
+        Kernels.scalar = scalar;
+    }
+
+    /**
+     * Returns true if plain scalar kernels are used.
+     *
+     * @return true if scalar kernels are used
+     */
+    public static boolean isScalar() {
+        return scalar;
+    }
+
+    /**
+     * Adds len values of x to y: y[i] += x[i]
+     */
+    public static void add(final float[] y, final int yOff, final float[] x, final int xOff, final int len) {
+        int i = 0;
+        if (!scalar) {
+            for (; i <= len - LANES; i += LANES) {
+                final int yi = yOff + i, xi = xOff + i;
+                y[yi] += x[xi];
+                y[yi + 1] += x[xi + 1];
+                y[yi + 2] += x[xi + 2];
+                y[yi + 3] += x[xi + 3];
+                y[yi + 4] += x[xi + 4];
+                y[yi + 5] += x[xi + 5];
+                y[yi + 6] += x[xi + 6];
+                y[yi + 7] += x[xi + 7];
+            }
+        }
+        for (; i < len; i++) {
+            y[yOff + i] += x[xOff + i];
+        }
+    }
+
+    /**
+     * Subtracts len values of x from y: y[i] -= x[i]
+     */
+    public static void sub(final float[] y, final int yOff, final float[] x, final int xOff, final int len) {
+        int i = 0;
+        if (!scalar) {
+            for (; i <= len - LANES; i += LANES) {
+                final int yi = yOff + i, xi = xOff + i;
+                y[yi] -= x[xi];
+                y[yi + 1] -= x[xi + 1];
+                y[yi + 2] -= x[xi + 2];
+                y[yi + 3] -= x[xi + 3];
+                y[yi + 4] -= x[xi + 4];
+                y[yi + 5] -= x[xi + 5];
+                y[yi + 6] -= x[xi + 6];
+                y[yi + 7] -= x[xi + 7];
+            }
+        }
+        for (; i < len; i++) {
+            y[yOff + i] -= x[xOff + i];
+        }
+    }
+
+    /**
+     * Divides len values of y with specified value: y[i] /= val
+     */
+    public static void div(final float[] y, final int yOff, final int len, final float val) {
+        int i = 0;
+        if (!scalar) {
+            for (; i <= len - LANES; i += LANES) {
+                final int yi = yOff + i;
+                y[yi] /= val;
+                y[yi + 1] /= val;
+                y[yi + 2] /= val;
+                y[yi + 3] /= val;
+                y[yi + 4] /= val;
+                y[yi + 5] /= val;
+                y[yi + 6] /= val;
+                y[yi + 7] /= val;
+            }
+        }
+        for (; i < len; i++) {
+            y[yOff + i] /= val;
+        }
+    }
+
+    /**
+     * Sets len values of y to specified value.
+     */
+    public static void fill(final float[] y, final int yOff, final int len, final float val) {
+        int i = 0;
+        if (!scalar) {
+            for (; i <= len - LANES; i += LANES) {
+                final int yi = yOff + i;
+                y[yi] = val;
+                y[yi + 1] = val;
+                y[yi + 2] = val;
+                y[yi + 3] = val;
+                y[yi + 4] = val;
+                y[yi + 5] = val;
+                y[yi + 6] = val;
+                y[yi + 7] = val;
+            }
+        }
+        for (; i < len; i++) {
+            y[yOff + i] = val;
+        }
+    }
+
+    /**
+     * Adds len values of x multiplied by a to y: y[i] += a * x[i]
+     */
+    public static void axpy(final float a, final float[] x, final int xOff, final float[] y, final int yOff, final int len) {
+        int i = 0;
+        if (!scalar) {
+            for (; i <= len - LANES; i += LANES) {
+                final int yi = yOff + i, xi = xOff + i;
+                y[yi] += a * x[xi];
+                y[yi + 1] += a * x[xi + 1];
+                y[yi + 2] += a * x[xi + 2];
+                y[yi + 3] += a * x[xi + 3];
+                y[yi + 4] += a * x[xi + 4];
+                y[yi + 5] += a * x[xi + 5];
+                y[yi + 6] += a * x[xi + 6];
+                y[yi + 7] += a * x[xi + 7];
+            }
+        }
+        for (; i < len; i++) {
+            y[yOff + i] += a * x[xOff + i];
+        }
+    }
+
+    /**
+     * Returns dot product of len values of x and y.
+     */
+    public static float dot(final float[] x, final int xOff, final float[] y, final int yOff, final int len) {
+        int i = 0;
+        float sum = 0;
+        if (!scalar) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for (; i <= len - LANES; i += LANES) {
+                final int xi = xOff + i, yi = yOff + i;
+                s0 += x[xi] * y[yi] + x[xi + 4] * y[yi + 4];
+                s1 += x[xi + 1] * y[yi + 1] + x[xi + 5] * y[yi + 5];
+                s2 += x[xi + 2] * y[yi + 2] + x[xi + 6] * y[yi + 6];
+                s3 += x[xi + 3] * y[yi + 3] + x[xi + 7] * y[yi + 7];
+            }
+            sum = (s0 + s1) + (s2 + s3);
+        }
+        for (; i < len; i++) {
+            sum += x[xOff + i] * y[yOff + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns sum of absolute values of len values of x.
+     */
+    public static float sumAbs(final float[] x, final int xOff, final int len) {
+        int i = 0;
+        float sum = 0;
+        if (!scalar) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for (; i <= len - LANES; i += LANES) {
+                final int xi = xOff + i;
+                s0 += Math.abs(x[xi]) + Math.abs(x[xi + 4]);
+                s1 += Math.abs(x[xi + 1]) + Math.abs(x[xi + 5]);
+                s2 += Math.abs(x[xi + 2]) + Math.abs(x[xi + 6]);
+                s3 += Math.abs(x[xi + 3]) + Math.abs(x[xi + 7]);
+            }
+            sum = (s0 + s1) + (s2 + s3);
+        }
+        for (; i < len; i++) {
+            sum += Math.abs(x[xOff + i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns sum of squares of len values of x.
+     */
+    public static float sumSqr(final float[] x, final int xOff, final int len) {
+        int i = 0;
+        float sum = 0;
+        if (!scalar) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for (; i <= len - LANES; i += LANES) {
+                final int xi = xOff + i;
+                s0 += x[xi] * x[xi] + x[xi + 4] * x[xi + 4];
+                s1 += x[xi + 1] * x[xi + 1] + x[xi + 5] * x[xi + 5];
+                s2 += x[xi + 2] * x[xi + 2] + x[xi + 6] * x[xi + 6];
+                s3 += x[xi + 3] * x[xi + 3] + x[xi + 7] * x[xi + 7];
+            }
+            sum = (s0 + s1) + (s2 + s3);
+        }
+        for (; i < len; i++) {
+            sum += x[xOff + i] * x[xOff + i];
+        }
+        return sum;
+    }
+
+}
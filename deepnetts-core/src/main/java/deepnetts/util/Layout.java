@@ -0,0 +1,42 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+/**
+ * Memory layout of 3D (and batch 4D) tensors used by convolutional and pooling layers.
+ *
+ * NCHW (channels first) keeps each channel (feature map) in a single block,
+ * so values are stored as z*rows*cols + row*cols + col. This is the default layout.
+ * NHWC (channels last) keeps all channels of a single position next to each other,
+ * so values are stored as row*cols*depth + col*depth + z, which suits convolution
+ * over many input channels, since filter is applied to consecutive values.
+ *
+ * Tensor shape and indexes are the same in both layouts ([depth, rows, cols]
+ * and get(row, col, z)), only strides are different, so any code which uses
+ * indexes works with both layouts.
+ *
+ * @see Tensor#create(StorageType, Layout, int...)
+ * @author Zoran Sevarac
+ */
+public enum Layout {
+    NCHW, NHWC
+}
@@ -0,0 +1,401 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+/**
+ * Basic linear algebra routines (BLAS level 2 and 3) for single precision
+ * matrices stored in float arrays, in row major order.
+ *
+ * Matrices are given as array, offset of the first element and leading dimension
+ * (distance between two rows in array), so they can be parts of bigger arrays or tensor views.
+ * Transposed variants read matrix by columns, without copying.
+ *
+ * Matrix multiplication is cache blocked: blocks of A and B are packed into small
+ * contiguous buffers which stay in CPU cache, and multiplied by 4x4 register blocked
+ * micro kernel. Big multiplications are split by row blocks over multiple threads
+ * of the DeepNetts pool (see {@link Parallel}).
+ *
+ * @see Tensor
+ * @author Zoran Sevarac
+ */
+public final class LinearAlgebra {
+
+    /**
+     * Number of rows in a block of A, which is kept in L2 cache.
+     */
+    private static final int MC = 64;
+
+    /**
+     * Size of shared dimension block.
+     */
+    private static final int KC = 256;
+
+    /**
+     * Number of columns in a block of B, which is kept in L3 cache.
+     */
+    private static final int NC = 1024;
+
+    /**
+     * Size of register block (micro kernel computes 4x4 block of C).
+     */
+    private static final int MR = 4, NR = 4;
+
+    /**
+     * Minimal number of multiply-add operations for which multiplication is split over multiple threads.
+     */
+    private static final long PARALLEL_THRESHOLD = 1L << 21;
+
+    private static boolean parallel = true;
+
+    private LinearAlgebra() { }
+
+    /**
+     * Enables or disables using multiple threads for big matrix multiplications.
+     *
+     * @param parallel true to use multiple threads
+     */
+    public static void setParallel(final boolean parallel) {
+        LinearAlgebra.parallel = parallel;
+    }
+
+    public static boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Matrix vector multiplication: y = alpha * op(A) * x + beta * y,
+     * where op(A) is A or transposed A, and A is m x n matrix.
+     * If beta is zero y does not have to be initialized.
+     *
+     * @param transA if true multiply with transposed A (x has m and y has n elements), otherwise x has n and y has m elements
+     * @param m number of rows in A
+     * @param n number of columns in A
+     * @param alpha scalar for op(A) * x
+     * @param a matrix values
+     * @param aOff position of A[0][0]
+     * @param lda leading dimension of A (at least n)
+     * @param x vector values
+     * @param xOff position of the first element of x
+     * @param beta scalar for y
+     * @param y result vector values
+     * @param yOff position of the first element of y
+     */
+    public static void sgemv(final boolean transA, final int m, final int n, final float alpha, final float[] a, final int aOff, final int lda,
+                             final float[] x, final int xOff, final float beta, final float[] y, final int yOff) {
+        if (!transA) { // y[i] = dot(row i, x), rows of A are contiguous
+            for (int i = 0; i < m; i++) {
+                final float dot = Kernels.dot(a, aOff + i * lda, x, xOff, n);
+                y[yOff + i] = beta == 0 ? alpha * dot : alpha * dot + beta * y[yOff + i];
+            }
+        } else { // y += x[i] * row i, so A is still accessed row by row
+            scale(y, yOff, n, beta);
+            for (int i = 0; i < m; i++) {
+                Kernels.axpy(alpha * x[xOff + i], a, aOff + i * lda, y, yOff, n);
+            }
+        }
+    }
+
+    /**
+     * Rank one update: A[i][j] += alpha * (x[i] * y[j]), where A is m x n matrix.
+     *
+     * @param m number of rows in A and elements in x
+     * @param n number of columns in A and elements in y
+     * @param alpha scalar for outer product of x and y
+     * @param x column vector values
+     * @param xOff position of the first element of x
+     * @param y row vector values
+     * @param yOff position of the first element of y
+     * @param a matrix values
+     * @param aOff position of A[0][0]
+     * @param lda leading dimension of A (at least n)
+     */
+    public static void sger(final int m, final int n, final float alpha, final float[] x, final int xOff,
+                            final float[] y, final int yOff, final float[] a, final int aOff, final int lda) {
+        for (int i = 0; i < m; i++) {
+            final float xi = x[xOff + i];
+            final int row = aOff + i * lda;
+            for (int j = 0; j < n; j++) {
+                a[row + j] += alpha * (xi * y[yOff + j]);
+            }
+        }
+    }
+
+    /**
+     * Outer product: A[i][j] = x[i] * y[j], where A is m x n matrix.
+     *
+     * @param m number of rows in A and elements in x
+     * @param n number of columns in A and elements in y
+     * @param x column vector values
+     * @param xOff position of the first element of x
+     * @param y row vector values
+     * @param yOff position of the first element of y
+     * @param a matrix values
+     * @param aOff position of A[0][0]
+     * @param lda leading dimension of A (at least n)
+     */
+    public static void outer(final int m, final int n, final float[] x, final int xOff,
+                             final float[] y, final int yOff, final float[] a, final int aOff, final int lda) {
+        for (int i = 0; i < m; i++) {
+            final float xi = x[xOff + i];
+            final int row = aOff + i * lda;
+            for (int j = 0; j < n; j++) {
+                a[row + j] = xi * y[yOff + j];
+            }
+        }
+    }
+
+    /**
+     * Matrix multiplication: C = alpha * op(A) * op(B) + beta * C, where op(A) is m x k matrix,
+     * op(B) is k x n matrix and C is m x n matrix.
+     * If beta is zero C does not have to be initialized.
+     *
+     * @param transA if true use transposed A (A is k x m), otherwise A is m x k
+     * @param transB if true use transposed B (B is n x k), otherwise B is k x n
+     * @param m number of rows in op(A) and C
+     * @param n number of columns in op(B) and C
+     * @param k number of columns in op(A) and rows in op(B)
+     * @param alpha scalar for op(A) * op(B)
+     * @param a values of A
+     * @param aOff position of A[0][0]
+     * @param lda leading dimension of A
+     * @param b values of B
+     * @param bOff position of B[0][0]
+     * @param ldb leading dimension of B
+     * @param beta scalar for C
+     * @param c values of C
+     * @param cOff position of C[0][0]
+     * @param ldc leading dimension of C
+     */
+    public static void sgemm(final boolean transA, final boolean transB, final int m, final int n, final int k,
+                             final float alpha, final float[] a, final int aOff, final int lda,
+                             final float[] b, final int bOff, final int ldb,
+                             final float beta, final float[] c, final int cOff, final int ldc) {
+        for (int i = 0; i < m; i++) {
+            scale(c, cOff + i * ldc, n, beta);
+        }
+        if (k == 0 || alpha == 0) {
+            return;
+        }
+
+        final int rowBlocks = (m + MC - 1) / MC;
+        final boolean useThreads = parallel && rowBlocks > 1 && (long) m * n * k >= PARALLEL_THRESHOLD;
+        final TensorPool pool = TensorPool.local();
+        final float[] packedB = pool.acquireArray(KC * NC);
+
+        try {
+            for (int jj = 0; jj < n; jj += NC) {
+                final int nb = Math.min(NC, n - jj);
+                for (int kk = 0; kk < k; kk += KC) {
+                    final int kb = Math.min(KC, k - kk);
+                    packB(transB, b, bOff, ldb, kk, kb, jj, nb, packedB);
+
+                    final int fjj = jj, fkk = kk;
+                    if (useThreads) {
+                        Parallel.forEach(rowBlocks, blk
+                                -> multiplyBlock(transA, alpha, a, aOff, lda, blk * MC, Math.min(MC, m - blk * MC), fkk, kb, packedB, fjj, nb, c, cOff, ldc));
+                    } else {
+                        for (int ii = 0; ii < m; ii += MC) {
+                            multiplyBlock(transA, alpha, a, aOff, lda, ii, Math.min(MC, m - ii), kk, kb, packedB, jj, nb, c, cOff, ldc);
+                        }
+                    }
+                }
+            }
+        } finally {
+            pool.releaseArray(packedB);
+        }
+    }
+
+    /**
+     * Multiplies block of A (rows ii..ii+mb, cols kk..kk+kb) with packed block of B, and adds result to C.
+     */
+    private static void multiplyBlock(final boolean transA, final float alpha, final float[] a, final int aOff, final int lda,
+                                      final int ii, final int mb, final int kk, final int kb,
+                                      final float[] packedB, final int jj, final int nb,
+                                      final float[] c, final int cOff, final int ldc) {
+        final TensorPool pool = TensorPool.local(); // block can run in worker thread, so it uses pool of that thread
+        final float[] packedA = pool.acquireArray(MC * KC);
+        packA(transA, alpha, a, aOff, lda, ii, mb, kk, kb, packedA);
+
+        for (int i = 0; i < mb; i += MR) {
+            final int pa = i * kb; // start of the 4 row panel in packed A
+            final int rows = Math.min(MR, mb - i);
+            for (int j = 0; j < nb; j += NR) {
+                final int pb = j * kb; // start of the 4 column panel in packed B
+                float c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+                float c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+                float c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+                float c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+                for (int p = 0; p < kb; p++) {
+                    final int ap = pa + p * MR, bp = pb + p * NR;
+                    final float a0 = packedA[ap], a1 = packedA[ap + 1], a2 = packedA[ap + 2], a3 = packedA[ap + 3];
+                    final float b0 = packedB[bp], b1 = packedB[bp + 1], b2 = packedB[bp + 2], b3 = packedB[bp + 3];
+                    c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+                    c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+                    c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+                    c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+                }
+
+                final int cols = Math.min(NR, nb - j);
+                final int c0 = cOff + (ii + i) * ldc + jj + j;
+                if (rows == MR && cols == NR) {
+                    int ci = c0;
+                    c[ci] += c00; c[ci + 1] += c01; c[ci + 2] += c02; c[ci + 3] += c03;
+                    ci += ldc;
+                    c[ci] += c10; c[ci + 1] += c11; c[ci + 2] += c12; c[ci + 3] += c13;
+                    ci += ldc;
+                    c[ci] += c20; c[ci + 1] += c21; c[ci + 2] += c22; c[ci + 3] += c23;
+                    ci += ldc;
+                    c[ci] += c30; c[ci + 1] += c31; c[ci + 2] += c32; c[ci + 3] += c33;
+                } else { // edge of the matrix, store only valid part of the block
+                    addRow(c, c0, cols, c00, c01, c02, c03);
+                    if (rows > 1) addRow(c, c0 + ldc, cols, c10, c11, c12, c13);
+                    if (rows > 2) addRow(c, c0 + 2 * ldc, cols, c20, c21, c22, c23);
+                    if (rows > 3) addRow(c, c0 + 3 * ldc, cols, c30, c31, c32, c33);
+                }
+            }
+        }
+        pool.releaseArray(packedA);
+    }
+
+    private static void addRow(final float[] c, final int idx, final int cols, final float v0, final float v1, final float v2, final float v3) {
+        c[idx] += v0;
+        if (cols > 1) c[idx + 1] += v1;
+        if (cols > 2) c[idx + 2] += v2;
+        if (cols > 3) c[idx + 3] += v3;
+    }
+
+    /**
+     * Packs block of alpha * op(A) into panels of 4 rows, stored column by column.
+     * Missing rows at the edge are filled with zeros.
+     */
+    private static void packA(final boolean transA, final float alpha, final float[] a, final int aOff, final int lda,
+                              final int ii, final int mb, final int kk, final int kb, final float[] packed) {
+        int idx = 0;
+        for (int i = 0; i < mb; i += MR) {
+            for (int p = 0; p < kb; p++) {
+                for (int r = 0; r < MR; r++) {
+                    final int row = i + r;
+                    if (row < mb) {
+                        final float val = transA ? a[aOff + (kk + p) * lda + ii + row] : a[aOff + (ii + row) * lda + kk + p];
+                        packed[idx++] = alpha * val;
+                    } else {
+                        packed[idx++] = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Packs block of op(B) into panels of 4 columns, stored row by row.
+     * Missing columns at the edge are filled with zeros.
+     */
+    private static void packB(final boolean transB, final float[] b, final int bOff, final int ldb,
+                              final int kk, final int kb, final int jj, final int nb, final float[] packed) {
+        int idx = 0;
+        for (int j = 0; j < nb; j += NR) {
+            for (int p = 0; p < kb; p++) {
+                for (int q = 0; q < NR; q++) {
+                    final int col = j + q;
+                    if (col < nb) {
+                        packed[idx++] = transB ? b[bOff + (jj + col) * ldb + kk + p] : b[bOff + (kk + p) * ldb + jj + col];
+                    } else {
+                        packed[idx++] = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Multiplies len values of y with beta, if beta is zero values are set to zero.
+     */
+    private static void scale(final float[] y, final int yOff, final int len, final float beta) {
+        if (beta == 0) {
+            Kernels.fill(y, yOff, len, 0);
+        } else if (beta != 1) {
+            for (int i = yOff; i < yOff + len; i++) {
+                y[i] *= beta;
+            }
+        }
+    }
+
+    /**
+     * Multiplies two matrices (2D tensors) and returns result as a new tensor: C = A * B.
+     * Transposed views are multiplied without copying.
+     *
+     * @param a m x k matrix
+     * @param b k x n matrix
+     * @return m x n matrix
+     */
+    public static Tensor matmul(final Tensor a, final Tensor b) {
+        final Tensor c = Tensor.zeros(a.getShape(0), b.getShape(1));
+        matmul(a, b, 0, c);
+        return c;
+    }
+
+    /**
+     * Multiplies two matrices (2D tensors) and adds result to C: C = A * B + beta * C.
+     * Transposed views are multiplied without copying.
+     *
+     * @param a m x k matrix
+     * @param b k x n matrix
+     * @param beta scalar for C
+     * @param c m x n matrix, contiguous
+     */
+    public static void matmul(Tensor a, Tensor b, final float beta, final Tensor c) {
+        if (a.getDimensions() != 2 || b.getDimensions() != 2 || c.getDimensions() != 2) {
+            throw new IllegalArgumentException("Matrix multiplication requires 2D tensors");
+        }
+        final int m = a.getShape(0), k = a.getShape(1), n = b.getShape(1);
+        if (b.getShape(0) != k || c.getShape(0) != m || c.getShape(1) != n) {
+            throw new IllegalArgumentException("Matrix dimensions do not match for multiplication");
+        }
+        if (!c.hasArray() || !c.isContiguous()) {
+            throw new IllegalArgumentException("Result matrix must be contiguous heap tensor");
+        }
+        if (!isMatrix(a)) {
+            a = a.contiguous();
+        }
+        if (!isMatrix(b)) {
+            b = b.contiguous();
+        }
+        final boolean transA = a.getStrides()[1] != 1;
+        final boolean transB = b.getStrides()[1] != 1;
+        sgemm(transA, transB, m, n, k, 1, a.getValues(), a.getOffset(), leadingDimension(a),
+                b.getValues(), b.getOffset(), leadingDimension(b), beta, c.getValues(), c.getOffset(), n);
+    }
+
+    /**
+     * Returns true if tensor can be used as row major or transposed (column major) matrix.
+     */
+    private static boolean isMatrix(final Tensor t) {
+        final int[] strides = t.getStrides();
+        return t.hasArray() && (strides[1] == 1 || strides[0] == 1);
+    }
+
+    private static int leadingDimension(final Tensor t) {
+        final int[] strides = t.getStrides();
+        return strides[1] == 1 ? Math.max(strides[0], 1) : Math.max(strides[1], 1);
+    }
+
+}
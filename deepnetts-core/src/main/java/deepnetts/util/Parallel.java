@@ -0,0 +1,251 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs operations over big arrays using multiple threads, in a ForkJoin pool
+ * which is owned by DeepNetts (common pool is not used, so it does not compete
+ * with other libraries and it can be configured independently).
+ *
+ * Work is split into chunks of fixed size, which depends only on array length.
+ * Reductions (sums) compute partial result for each chunk and add partial results
+ * in chunk order, so results are always the same, regardless of number of threads.
+ *
+ * Number of threads can be set with {@link #setThreadCount(int)} or by starting
+ * JVM with -Ddeepnetts.threads=N, and minimal size of parallel operations
+ * with {@link #setThreshold(int)} or -Ddeepnetts.parallel.threshold=N.
+ *
+ * @see Tensor
+ * @see LinearAlgebra
+ * @author Zoran Sevarac
+ */
+public final class Parallel {
+
+    /**
+     * Number of values processed by a single task.
+     */
+    public static final int CHUNK_SIZE = 1 << 15;
+
+    private static int threadCount = Integer.getInteger("deepnetts.threads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Minimal number of values for which bulk tensor operations use multiple threads.
+     * Smaller operations are faster in a single thread, since they are limited by memory bandwidth.
+     */
+    private static int threshold = Integer.getInteger("deepnetts.parallel.threshold", 1 << 18);
+
+    private static ForkJoinPool pool;
+
+    private Parallel() { }
+
+    /**
+     * Operation over range of positions [from, to).
+     */
+    @FunctionalInterface
+    public interface RangeAction {
+        void run(int from, int to);
+    }
+
+    /**
+     * Operation which returns sum of values over range of positions [from, to).
+     */
+    @FunctionalInterface
+    public interface RangeSum {
+        float sum(int from, int to);
+    }
+
+    /**
+     * Returns the pool used for parallel operations, and creates it on first use.
+     * Pool threads are daemon threads, so they do not prevent JVM from exiting.
+     *
+     * @return DeepNetts ForkJoin pool
+     */
+    public static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(threadCount, p -> {
+                final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                thread.setName("deepnetts-worker-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+        }
+        return pool;
+    }
+
+    /**
+     * Sets number of threads used for parallel operations. Current pool is
+     * shut down, and new pool is created on next use.
+     *
+     * @param threadCount number of threads, 1 to run everything in calling thread
+     */
+    public static synchronized void setThreadCount(final int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Number of threads must be at least 1, found " + threadCount);
+        }
+        Parallel.threadCount = threadCount;
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    public static int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Sets minimal number of values for which bulk tensor operations are split
+     * into chunks and run in multiple threads.
+     *
+     * @param threshold minimal number of values
+     */
+    public static void setThreshold(final int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be positive, found " + threshold);
+        }
+        Parallel.threshold = threshold;
+    }
+
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns true if operation over specified number of values should use {@link #forRange(int, RangeAction)}
+     * or {@link #sum(int, RangeSum)}. Checked before creating the operation, so that small operations do not
+     * create any objects.
+     *
+     * @param size number of values
+     * @return true if size is at least threshold
+     */
+    public static boolean isParallel(final int size) {
+        return size >= threshold;
+    }
+
+    /**
+     * Runs action over all chunks of range [0, len), using multiple threads.
+     *
+     * @param len number of positions
+     * @param action action to run for each chunk
+     */
+    public static void forRange(final int len, final RangeAction action) {
+        final int chunks = chunkCount(len);
+        if (chunks == 1 || threadCount == 1) {
+            action.run(0, len);
+        } else {
+            getPool().invoke(new ChunkTask(len, CHUNK_SIZE, 0, chunks, action, null, null));
+        }
+    }
+
+    /**
+     * Runs task for each index in range [0, count), using multiple threads.
+     * Used for coarse grained work, like blocks of matrix multiplication.
+     *
+     * @param count number of indexes
+     * @param task task to run for each index
+     */
+    public static void forEach(final int count, final IntConsumer task) {
+        if (count == 1 || threadCount == 1) {
+            for (int i = 0; i < count; i++) {
+                task.accept(i);
+            }
+        } else if (count > 1) {
+            getPool().invoke(new ChunkTask(count, 1, 0, count, (from, to) -> task.accept(from), null, null));
+        }
+    }
+
+    /**
+     * Returns sum of values over range [0, len), calculated by chunks using multiple threads.
+     * Partial sums of chunks are added in order, so result does not depend on number of threads.
+     *
+     * @param len number of positions
+     * @param op operation which returns sum for a chunk
+     * @return total sum
+     */
+    public static float sum(final int len, final RangeSum op) {
+        final int chunks = chunkCount(len);
+        final float[] partial = new float[chunks];
+        if (chunks == 1 || threadCount == 1) {
+            for (int c = 0; c < chunks; c++) {
+                partial[c] = op.sum(c * CHUNK_SIZE, Math.min(len, (c + 1) * CHUNK_SIZE));
+            }
+        } else {
+            getPool().invoke(new ChunkTask(len, CHUNK_SIZE, 0, chunks, null, op, partial));
+        }
+
+        float sum = 0;
+        for (int c = 0; c < chunks; c++) {
+            sum += partial[c];
+        }
+        return sum;
+    }
+
+    private static int chunkCount(final int len) {
+        return Math.max(1, (len + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Task which splits range of chunks in halves until it gets a single chunk.
+     */
+    private static final class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int len, chunkSize, fromChunk, toChunk;
+        private final RangeAction action;
+        private final RangeSum op;
+        private final float[] partial;
+
+        ChunkTask(int len, int chunkSize, int fromChunk, int toChunk, RangeAction action, RangeSum op, float[] partial) {
+            this.len = len;
+            this.chunkSize = chunkSize;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+            this.action = action;
+            this.op = op;
+            this.partial = partial;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk > 1) {
+                final int mid = (fromChunk + toChunk) >>> 1;
+                invokeAll(new ChunkTask(len, chunkSize, fromChunk, mid, action, op, partial),
+                          new ChunkTask(len, chunkSize, mid, toChunk, action, op, partial));
+            } else {
+                final int from = fromChunk * chunkSize;
+                final int to = Math.min(len, from + chunkSize);
+                if (action != null) {
+                    action.run(from, to);
+                } else {
+                    partial[fromChunk] = op.sum(from, to);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+/**
+ * Tensor storage which keeps values as 8 bit integers, with a scale for each channel.
+ * Value is stored as round(value / scale), so it is restored as stored * scale.
+ * Scales are symmetric (zero point is 0), and each channel has its own scale
+ * computed from max abs value of that channel, so weights of small and big
+ * neurons or filters are both stored with good precision.
+ *
+ * Channel of a value at position idx is (idx / channelBlock) % channels, which
+ * covers both weights stored as [channel][inputs] (channelBlock is number of
+ * inputs) and [inputs][channel] (channelBlock is 1).
+ *
+ * Quantized layers use 8 bit values and scales directly in integer kernels,
+ * see {@link deepnetts.net.Quantizer}.
+ *
+ * @see StorageType#INT8
+ * @author Zoran Sevarac
+ */
+public final class QuantizedStorage implements TensorStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Max absolute value of quantized weights, -128 is not used so range is symmetric.
+     */
+    public static final int MAX_VALUE = 127;
+
+    private final byte[] values;
+    private final float[] scales;
+    private final int channels;
+    private final int channelBlock;
+
+    private QuantizedStorage(byte[] values, float[] scales, int channels, int channelBlock) {
+        this.values = values;
+        this.scales = scales;
+        this.channels = channels;
+        this.channelBlock = channelBlock;
+    }
+
+    /**
+     * Creates storage with specified values quantized using symmetric scale for each channel.
+     *
+     * @param values float values
+     * @param channels number of channels
+     * @param channelBlock number of consecutive values which belong to the same channel
+     * @return quantized storage
+     */
+    public static QuantizedStorage quantize(final float[] values, final int channels, final int channelBlock) {
+        if (channels <= 0 || channelBlock <= 0 || values.length % (channels * channelBlock) != 0) {
+            throw new IllegalArgumentException("Size " + values.length + " does not match " + channels + " channels with block " + channelBlock);
+        }
+
+        final float[] maxAbs = new float[channels];
+        for (int i = 0; i < values.length; i++) {
+            final int ch = (i / channelBlock) % channels;
+            maxAbs[ch] = Math.max(maxAbs[ch], Math.abs(values[i]));
+        }
+        final float[] scales = new float[channels];
+        for (int ch = 0; ch < channels; ch++) {
+            scales[ch] = maxAbs[ch] > 0 ? maxAbs[ch] / MAX_VALUE : 1;
+        }
+
+        final QuantizedStorage storage = new QuantizedStorage(new byte[values.length], scales, channels, channelBlock);
+        for (int i = 0; i < values.length; i++) {
+            storage.set(i, values[i]);
+        }
+        return storage;
+    }
+
+    /**
+     * Quantizes value with specified scale and zero point to 8 bit range [-128, 127].
+     *
+     * @param value value to quantize
+     * @param scale quantization scale
+     * @param zeroPoint quantized value of zero
+     * @return quantized value
+     */
+    public static int quantize(final float value, final float scale, final int zeroPoint) {
+        final int q = Math.round(value / scale) + zeroPoint;
+        return q < -128 ? -128 : (q > 127 ? 127 : q);
+    }
+
+    @Override
+    public float get(final int idx) {
+        return values[idx] * scales[(idx / channelBlock) % channels];
+    }
+
+    /**
+     * Sets value at specified position, which is rounded and clamped to
+     * range of its channel.
+     */
+    @Override
+    public void set(final int idx, final float val) {
+        final int q = Math.round(val / scales[(idx / channelBlock) % channels]);
+        values[idx] = (byte) (q < -MAX_VALUE ? -MAX_VALUE : (q > MAX_VALUE ? MAX_VALUE : q));
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public StorageType getType() {
+        return StorageType.INT8;
+    }
+
+    /**
+     * Returns raw 8 bit values.
+     *
+     * @return array with 8 bit values
+     */
+    public byte[] getRawValues() {
+        return values;
+    }
+
+    /**
+     * Returns scale for each channel.
+     *
+     * @return channel scales
+     */
+    public float[] getScales() {
+        return scales;
+    }
+
+    /**
+     * Nothing to release, values are on the heap.
+     */
+    @Override
+    public void close() {
+    }
+
+}
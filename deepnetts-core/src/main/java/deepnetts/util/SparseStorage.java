@@ -0,0 +1,213 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import java.util.Arrays;
+
+/**
+ * Tensor storage which keeps only non zero values, together with their positions.
+ *
+ * Values are kept in coordinate (COO) format, as list of positions and values
+ * sorted by position. Since positions are in row major order, for a 2D tensor
+ * this is the same as compressed sparse row (CSR) format, and row pointers
+ * can be created with {@link #getRowPointers(int, int)}.
+ *
+ * Meant for inputs which are mostly zeros, like one-hot encoded data, where
+ * layers can skip zero inputs so that the cost depends on number of non zero values.
+ * Reading a single value takes log(nnz) time, and writing a new non zero value
+ * may shift existing values, so this storage should not be used for weights.
+ *
+ * @see StorageType#SPARSE
+ * @author Zoran Sevarac
+ */
+public final class SparseStorage implements TensorStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int size;
+    private int[] indices;
+    private float[] values;
+    private int nnz;
+
+    /**
+     * Creates storage for specified number of values, all equal to zero.
+     *
+     * @param size number of values
+     */
+    public SparseStorage(int size) {
+        this(size, new int[0], new float[0]);
+    }
+
+    /**
+     * Creates storage with specified non zero values. Arrays are not copied.
+     *
+     * @param size number of values (including zeros)
+     * @param indices positions of non zero values, in ascending order
+     * @param values non zero values
+     */
+    public SparseStorage(int size, int[] indices, float[] values) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException("Number of indices " + indices.length + " does not match number of values " + values.length);
+        }
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] < 0 || indices[i] >= size || (i > 0 && indices[i] <= indices[i - 1])) {
+                throw new IllegalArgumentException("Indices must be unique, in ascending order and smaller then size " + size + ", found " + indices[i]);
+            }
+        }
+        this.size = size;
+        this.indices = indices;
+        this.values = values;
+        this.nnz = indices.length;
+    }
+
+    /**
+     * Creates sparse storage with non zero values from specified array.
+     *
+     * @param dense array with values
+     * @return sparse storage with the same values
+     */
+    public static SparseStorage fromDense(final float[] dense) {
+        int count = 0;
+        for (float val : dense) {
+            if (val != 0) {
+                count++;
+            }
+        }
+        final int[] idxs = new int[count];
+        final float[] vals = new float[count];
+        for (int i = 0, j = 0; i < dense.length; i++) {
+            if (dense[i] != 0) {
+                idxs[j] = i;
+                vals[j++] = dense[i];
+            }
+        }
+        return new SparseStorage(dense.length, idxs, vals);
+    }
+
+    @Override
+    public float get(final int idx) {
+        final int pos = Arrays.binarySearch(indices, 0, nnz, idx);
+        return pos >= 0 ? values[pos] : 0;
+    }
+
+    @Override
+    public void set(final int idx, final float val) {
+        final int pos = Arrays.binarySearch(indices, 0, nnz, idx);
+        if (pos >= 0) {
+            if (val != 0) {
+                values[pos] = val;
+            } else { // remove, so only non zero values are kept
+                System.arraycopy(indices, pos + 1, indices, pos, nnz - pos - 1);
+                System.arraycopy(values, pos + 1, values, pos, nnz - pos - 1);
+                nnz--;
+            }
+        } else if (val != 0) {
+            if (idx < 0 || idx >= size) {
+                throw new IndexOutOfBoundsException("Index " + idx + " is out of storage size " + size);
+            }
+            final int insertAt = -pos - 1;
+            if (nnz == indices.length) {
+                final int capacity = Math.max(8, nnz + (nnz >> 1));
+                indices = Arrays.copyOf(indices, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            System.arraycopy(indices, insertAt, indices, insertAt + 1, nnz - insertAt);
+            System.arraycopy(values, insertAt, values, insertAt + 1, nnz - insertAt);
+            indices[insertAt] = idx;
+            values[insertAt] = val;
+            nnz++;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public StorageType getType() {
+        return StorageType.SPARSE;
+    }
+
+    /**
+     * Returns number of non zero values.
+     *
+     * @return number of non zero values
+     */
+    public int getNonZeroCount() {
+        return nnz;
+    }
+
+    /**
+     * Returns positions of non zero values in ascending order.
+     * Only first {@link #getNonZeroCount()} elements are used.
+     *
+     * @return array with positions of non zero values
+     */
+    public int[] getIndices() {
+        return indices;
+    }
+
+    /**
+     * Returns non zero values, in the same order as their positions.
+     * Only first {@link #getNonZeroCount()} elements are used.
+     *
+     * @return array with non zero values
+     */
+    public float[] getValues() {
+        return values;
+    }
+
+    /**
+     * Returns CSR row pointers for a matrix with specified dimensions stored in this storage.
+     * Non zero values of row r are at positions rowPtr[r] to rowPtr[r+1]-1
+     * in {@link #getIndices()} and {@link #getValues()}, and their column is index % cols.
+     *
+     * @param rows number of matrix rows
+     * @param cols number of matrix columns
+     * @return array with rows+1 row pointers
+     */
+    public int[] getRowPointers(final int rows, final int cols) {
+        if (rows * cols > size) {
+            throw new IllegalArgumentException("Matrix " + rows + "x" + cols + " is bigger then storage size " + size);
+        }
+        final int[] rowPtr = new int[rows + 1];
+        int pos = 0;
+        for (int r = 0; r < rows; r++) {
+            rowPtr[r] = pos;
+            final int rowEnd = (r + 1) * cols;
+            while (pos < nnz && indices[pos] < rowEnd) {
+                pos++;
+            }
+        }
+        rowPtr[rows] = pos;
+        return rowPtr;
+    }
+
+    /**
+     * Nothing to release, values are on the heap.
+     */
+    @Override
+    public void close() {
+    }
+
+}
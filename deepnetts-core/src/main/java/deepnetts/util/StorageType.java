@@ -0,0 +1,76 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+/**
+ * Supported types of tensor storage.
+ *
+ * HEAP keeps values in float array on Java heap (default).
+ * OFF_HEAP keeps values in direct memory outside of the heap, which is not
+ * scanned by garbage collector and can be shared with native code or mapped from file.
+ * FP16 and BF16 keep values as 16 bit IEEE half precision or bfloat16 numbers,
+ * which use half of the memory and memory bandwidth. Values are converted to
+ * float when they are read, so all calculations are done in float.
+ * FP16 is more precise, while BF16 has the same range as float.
+ * 16 bit storage is meant for inference, since small weight changes are lost
+ * when stored with 16 bits, so layers keep deltas and weight changes in float.
+ * SPARSE keeps only non zero values and their positions, and it is meant for
+ * inputs which are mostly zeros (like one-hot encoded data). Fully connected
+ * layer skips zero values of sparse network input.
+ * INT8 keeps values as 8 bit integers with a scale for each channel, and it is
+ * used for weights of quantized layers, which run forward pass with integer kernels.
+ * INT8 tensors are created by quantizing existing values, see {@link Tensor#quantize(int, int)}.
+ *
+ * @see Tensor
+ * @see TensorStorage
+ * @author Zoran Sevarac
+ */
+public enum StorageType {
+    HEAP(4), OFF_HEAP(4), FP16(2), BF16(2), SPARSE(8), INT8(1);
+
+    private final int bytesPerValue;
+
+    private StorageType(int bytesPerValue) {
+        this.bytesPerValue = bytesPerValue;
+    }
+
+    /**
+     * Returns number of bytes used for a single value. For sparse storage
+     * this is the number of bytes used for each non zero value and its position.
+     *
+     * @return bytes per value
+     */
+    public int getBytesPerValue() {
+        return bytesPerValue;
+    }
+
+    /**
+     * Returns storage type which should be used for values which are accumulated
+     * during training (deltas, gradients, weight changes) - float precision
+     * storage, in the same memory as this storage.
+     *
+     * @return storage type with float precision
+     */
+    public StorageType getAccumulatorType() {
+        return bytesPerValue == 4 ? this : HEAP;
+    }
+}
@@ -27,36 +27,77 @@ import java.util.Arrays;
 import java.util.function.Function;
 
 /**
- * This class represents multidimensional array/matrix (can be 1D, 2D, 3D or
- * 4D). https://docs.scipy.org/doc/numpy/reference/arrays.ndarray.html
+ * This class represents multidimensional array/matrix (can be 1D, 2D, 3D, 4D
+ * or in general N-dimensional).
+ *
+ * Values are kept in a single backing array and addressed using shape, strides
+ * and offset, the same way numpy ndarray does it:
+ * https://docs.scipy.org/doc/numpy/reference/arrays.ndarray.html
+ *
+ * Shape is ordered from the slowest to the fastest changing dimension, so a 3D
+ * tensor has shape [depth, rows, cols] and 4D tensor [fourthDim, depth, rows, cols].
+ * Operations like reshape, slice, transpose and view do not copy any values,
+ * they return a new tensor which shares the backing array with this one.
+ * Storage of tensors which share values with views can not be converted
+ * (see {@link #convertTo(StorageType)}), since views would keep the old values.
  *
  * @author Zoran Sevarac
  */
-public class Tensor implements Serializable {
+public class Tensor implements Serializable, AutoCloseable {
 
-    // tensor dimensions - better use shape
+    // tensor dimensions for 1D-4D access, derived from shape and strides
     private final int cols, rows, depth, fourthDim, dimensions;
-    // todo & benchmark shape max dimenzije 4 da podrzi na postojece atribute
-    private final int[] shape = new int[4];
-    private int rank; // how many dimensions in shape - shape.length ; same as dimensions
-    private int size; // broj elemenata u nizu - kad se izmnoze sve dimenzije
-    // dimensions = shape.length;
-    // column first order
-    // poslednja dimenzija se uvek najbrze vrti, prva najsporije (kao i kod prirodnih brojeva)
-    // ako je poslednja dimenzija najsporija onda dodatne dimenzije idu napred
-    // col - shape[0]
-    // row, col - shape[1], shape[0] ? ili shape[0], shape[1] ? posto je poslednji najbrzi column je poslednjii treba da bude najbrzi
-    // depth, row, col
-    // forth, depth, row, col   -    ato je sve za column first, odnosno kolona je najbrzadimenzija i tako bih resio ono sa DenseLayer i weights indexom
-
-    // u ndim indexu col je 0, row je 1, z je 2, fourth je 3 (to je stride)
-    // good explanation and formulas for indexing
-    // https://docs.scipy.org/doc/numpy/reference/arrays.ndarray.html
+    private final int colStride, rowStride, depthStride, fourthStride;
+
+    /**
+     * Size of each dimension, from slowest to fastest changing.
+     */
+    private final int[] shape;
+
+    /**
+     * Number of array positions to skip to get to the next element in each dimension.
+     */
+    private final int[] strides;
+
+    /**
+     * Position of the first element of this tensor in the values array.
+     */
+    private int offset;
+
+    /**
+     * Total number of elements in this tensor - product of all dimensions.
+     */
+    private final int size;
+
+    /**
+     * True if tensor elements occupy a single continuous block of values array in row major order.
+     */
+    private final boolean contiguous;
+
+    /**
+     * True if tensor elements occupy a single block of values array in any order,
+     * for example channels last (NHWC) tensors.
+     */
+    private final boolean dense;
+
     /**
      * Values stored in this tensor make it final , only input layer and tests
-     * sets values
+     * sets values. Null when values are kept in some other storage (off-heap).
+     */
+    private float values[];
+
+    /**
+     * Storage used instead of values array, for example off-heap storage.
+     * Null for regular heap tensors, which use values array directly.
+     *
+     * @see StorageType
+     */
+    private TensorStorage storage;
+
+    /**
+     * True if this tensor is a view or views were created from it, so its values are shared.
      */
-    private float values[]; // todo: use ByteBuffer instead of array in order to avoid range checking
+    private boolean shared;
 
     /**
      * Creates a single row tensor with specified values.
@@ -64,12 +105,7 @@ public class Tensor implements Serializable {
      * @param values values of column tensor
      */
     public Tensor(final float... values) {
-        this.rows = 1;
-        this.cols = values.length;
-        this.depth = 1;
-        this.fourthDim = 1;
-        this.dimensions = 1;
-        this.values = values;
+        this(values, 0, new int[]{values.length}, null);
     }
 
     /**
@@ -78,12 +114,7 @@ public class Tensor implements Serializable {
      * @param vals
      */
     public Tensor(final float[][] vals) {
-        this.rows = vals.length;
-        this.cols = vals[0].length;
-        this.depth = 1;
-        this.fourthDim = 1;
-        this.dimensions = 2;
-        this.values = new float[rows * cols];
+        this(new int[]{vals.length, vals[0].length});
 
         // copyFrom array to single dim
         for (int row = 0; row < rows; row++) {
@@ -99,13 +130,7 @@ public class Tensor implements Serializable {
      * @param vals 2D array of tensor values
      */
     public Tensor(final float[][][] vals) {
-        this.depth = vals.length;
-        this.rows = vals[0].length;
-        this.cols = vals[0][0].length;
-
-        this.fourthDim = 1;
-        this.dimensions = 3;
-        this.values = new float[rows * cols * depth];
+        this(new int[]{vals.length, vals[0].length, vals[0][0].length});
 
         // copyFrom array
         for (int z = 0; z < depth; z++) {
@@ -118,14 +143,7 @@ public class Tensor implements Serializable {
     }
 
     public Tensor(final float[][][][] vals) {
-
-        this.fourthDim = vals.length;
-        this.depth = vals[0].length;
-        this.rows = vals[0][0].length;
-        this.cols = vals[0][0][0].length;
-
-        this.dimensions = 4;
-        this.values = new float[rows * cols * depth * fourthDim];
+        this(new int[]{vals.length, vals[0].length, vals[0][0].length, vals[0][0][0].length});
 
         // copyFrom array
         for (int f = 0; f < fourthDim; f++) {
@@ -145,34 +163,13 @@ public class Tensor implements Serializable {
      * @param cols number of columns
      */
     public Tensor(int cols) {
-        if (cols < 0) {
-            throw new IllegalArgumentException("Number of cols cannot be negative: " + cols);
-        }
-
-        this.cols = cols;
-        this.rows = 1;
-        this.depth = 1;
-        this.fourthDim = 1;
-        this.dimensions = 1;
-        values = new float[cols];
+        this(new int[]{checkDim(cols, "Number of cols cannot be negative: ")});
     }
 
     // ovaj najbolje preko factory metode
     public Tensor(int cols, float val) {
-        if (cols < 0) {
-            throw new IllegalArgumentException("Number of cols cannot be negative: " + cols);
-        }
-
-        this.cols = cols;
-        this.rows = 1;
-        this.depth = 1;
-        this.fourthDim = 1;
-        this.dimensions = 1;
-        values = new float[cols];
-
-        for (int i = 0; i < values.length; i++) {
-            values[i] = val;
-        }
+        this(cols);
+        Arrays.fill(values, val);
     }
 
     /**
@@ -182,39 +179,13 @@ public class Tensor implements Serializable {
      * @param cols number of columns
      */
     public Tensor(int rows, int cols) {
-        if (rows < 0) {
-            throw new IllegalArgumentException("Number of rows cannot be negative: " + rows);
-        }
-        if (cols < 0) {
-            throw new IllegalArgumentException("Number of cols cannot be negative: " + cols);
-        }
-
-        this.rows = rows;
-        this.cols = cols;
-        this.depth = 1;
-        this.fourthDim = 1;
-        this.dimensions = 2;
-        values = new float[rows * cols];
+        this(new int[]{checkDim(rows, "Number of rows cannot be negative: "),
+                       checkDim(cols, "Number of cols cannot be negative: ")});
     }
 
     public Tensor(int rows, int cols, float[] values) {
-        if (rows < 0) {
-            throw new IllegalArgumentException("Number of rows cannot be negative: " + rows);
-        }
-        if (cols < 0) {
-            throw new IllegalArgumentException("Number of cols cannot be negative: " + cols);
-        }
-        if (rows * cols != values.length) {
-            throw new IllegalArgumentException("Number of values does not match tensor dimensions! " + values.length);
-        }
-
-        this.rows = rows;
-        this.cols = cols;
-        this.depth = 1;
-        this.fourthDim = 1;
-        this.dimensions = 2;
-
-        this.values = values;
+        this(checkSize(values, checkDim(rows, "Number of rows cannot be negative: ") * checkDim(cols, "Number of cols cannot be negative: ")),
+             0, new int[]{rows, cols}, null);
     }
 
     /**
@@ -225,103 +196,280 @@ public class Tensor implements Serializable {
      * @param depth tensor depth
      */
     public Tensor(int rows, int cols, int depth) { // trebalo bi depth, rows, cols
-        if (rows < 0) {
-            throw new IllegalArgumentException("Number of rows cannot be negative: " + rows);
-        }
-        if (cols < 0) {
-            throw new IllegalArgumentException("Number of cols cannot be negative: " + cols);
-        }
-        if (depth < 0) {
-            throw new IllegalArgumentException("Depth cannot be negative: " + depth);
-        }
-
-        this.rows = rows;
-        this.cols = cols;
-        this.depth = depth;
-        this.fourthDim = 1;
-        this.dimensions = 3;
-        this.values = new float[rows * cols * depth];
+        this(new int[]{checkDim(depth, "Depth cannot be negative: "),
+                       checkDim(rows, "Number of rows cannot be negative: "),
+                       checkDim(cols, "Number of cols cannot be negative: ")});
     }
 
     // cols, rows, 3rd, 4th?
     public Tensor(int rows, int cols, int depth, int fourthDim) { // trebalo bi fourthDim, depth, rows, cols
-        if (rows < 0) {
-            throw new IllegalArgumentException("Number of rows cannot be negative: " + rows);
+        this(new int[]{checkDim(fourthDim, "fourthDim cannot be negative: "),
+                       checkDim(depth, "Depth cannot be negative: "),
+                       checkDim(rows, "Number of rows cannot be negative: "),
+                       checkDim(cols, "Number of cols cannot be negative: ")});
+    }
+
+    public Tensor(int rows, int cols, int depth, float[] values) {
+        this(checkSize(values, checkDim(rows, "Number of rows cannot be negative: ") * checkDim(cols, "Number of cols cannot be negative: ") * checkDim(depth, "Depth cannot be negative: ")),
+             0, new int[]{depth, rows, cols}, null);
+    }
+
+    /**
+     * Creates a tensor with specified shape which uses given array to store values.
+     * Shape is ordered from slowest to fastest changing dimension, for example
+     * [depth, rows, cols]. Specified array is not copied.
+     *
+     * @param values values of the tensor
+     * @param shape size of each dimension
+     */
+    public Tensor(float[] values, int... shape) {
+        this(checkSize(values, sizeOf(shape)), 0, shape.clone(), null);
+    }
+
+    /**
+     * Creates a tensor filled with zeros with specified shape.
+     *
+     * @param shape size of each dimension
+     */
+    private Tensor(int[] shape) {
+        this(new float[sizeOf(shape)], 0, shape, null);
+    }
+
+    /**
+     * Creates a tensor (or a view) for specified values, shape, strides and offset.
+     * All other constructors end up here.
+     *
+     * @param values backing array
+     * @param offset position of the first element in backing array
+     * @param shape size of each dimension
+     * @param strides strides for each dimension, or null for contiguous row major layout
+     */
+    private Tensor(float[] values, int offset, int[] shape, int[] strides) {
+        this.values = values;
+        this.offset = offset;
+        this.shape = shape;
+        this.strides = (strides != null) ? strides : contiguousStrides(shape);
+        this.size = sizeOf(shape);
+        this.contiguous = isContiguous(shape, this.strides);
+        this.dense = contiguous || isDense(shape, this.strides);
+        this.dimensions = shape.length;
+
+        final int rank = shape.length;
+        this.cols = rank > 0 ? shape[rank - 1] : 1;
+        this.rows = rank > 1 ? shape[rank - 2] : 1;
+        this.depth = rank > 2 ? shape[rank - 3] : 1;
+        this.fourthDim = rank > 3 ? shape[rank - 4] : 1;
+
+        // missing dimensions behave as if tensor was extended with dimensions of size 1
+        this.colStride = rank > 0 ? this.strides[rank - 1] : 1;
+        this.rowStride = rank > 1 ? this.strides[rank - 2] : colStride * cols;
+        this.depthStride = rank > 2 ? this.strides[rank - 3] : rowStride * rows;
+        this.fourthStride = rank > 3 ? this.strides[rank - 4] : depthStride * depth;
+    }
+
+    /**
+     * Creates a tensor with specified shape which keeps its values in specified storage.
+     * Storage is not copied, and it can be bigger then the tensor, for example
+     * when several tensors are mapped from the same file.
+     *
+     * @param storage storage for tensor values
+     * @param shape size of each dimension
+     */
+    public Tensor(TensorStorage storage, int... shape) {
+        this(null, 0, shape.clone(), null);
+        if (storage.size() < size) {
+            throw new IllegalArgumentException("Storage size " + storage.size() + " is too small for tensor of size " + size);
         }
-        if (cols < 0) {
-            throw new IllegalArgumentException("Number of cols cannot be negative: " + cols);
+        this.storage = storage;
+    }
+
+    private Tensor(Tensor t) {
+        this(t.toArray(), 0, t.shape.clone(), null);
+    }
+
+    /**
+     * Creates a view sharing values or storage with specified tensor.
+     */
+    private static Tensor view(Tensor t, int offset, int[] shape, int[] strides) {
+        final Tensor view = new Tensor(t.values, offset, shape, strides);
+        view.storage = t.storage;
+        view.shared = true;
+        t.shared = true;
+        return view;
+    }
+
+    /**
+     * Creates a tensor filled with zeros with specified shape and storage type.
+     *
+     * @param storageType where to keep tensor values
+     * @param shape size of each dimension, from slowest to fastest changing
+     * @return new tensor
+     */
+    public static Tensor create(StorageType storageType, int... shape) {
+        switch (storageType) {
+            case HEAP:
+                return new Tensor(shape.clone());
+            case OFF_HEAP:
+                return new Tensor(new DirectStorage(sizeOf(shape)), shape);
+            case FP16:
+            case BF16:
+                return new Tensor(new HalfStorage(sizeOf(shape), storageType), shape);
+            case SPARSE:
+                return new Tensor(new SparseStorage(sizeOf(shape)), shape);
+            case INT8:
+                throw new IllegalArgumentException("INT8 tensors are created by quantizing existing values, use quantize method");
+            default:
+                throw new IllegalArgumentException("Unsupported storage type: " + storageType);
         }
-        if (depth < 0) {
-            throw new IllegalArgumentException("Depth cannot be negative: " + depth);
+    }
+
+    /**
+     * Creates a tensor filled with zeros with specified shape, storage type and layout.
+     * Shape and indexes are the same for all layouts, [depth, rows, cols] for 3D tensors
+     * and [samples, depth, rows, cols] for 4D, only the order of values in storage is different.
+     * Layout applies to tensors with 3 or more dimensions.
+     *
+     * @param storageType where to keep tensor values
+     * @param layout order of values in storage
+     * @param shape size of each dimension, from slowest to fastest changing
+     * @return new tensor
+     * @see Layout
+     */
+    public static Tensor create(StorageType storageType, Layout layout, int... shape) {
+        final int rank = shape.length;
+        if (layout != Layout.NHWC || rank < 3) {
+            return create(storageType, shape);
         }
-        if (fourthDim < 0) {
-            throw new IllegalArgumentException("fourthDim cannot be negative: " + fourthDim);
+        // values are stored as [..., rows, cols, depth] and viewed as [..., depth, rows, cols]
+        final int[] storedShape = shape.clone();
+        storedShape[rank - 3] = shape[rank - 2];
+        storedShape[rank - 2] = shape[rank - 1];
+        storedShape[rank - 1] = shape[rank - 3];
+        final int[] dims = new int[rank];
+        for (int d = 0; d < rank - 3; d++) {
+            dims[d] = d;
         }
+        dims[rank - 3] = rank - 1;
+        dims[rank - 2] = rank - 3;
+        dims[rank - 1] = rank - 2;
+        return create(storageType, storedShape).permute(dims);
+    }
 
-        this.rows = rows;
-        this.cols = cols;
-        this.depth = depth;
-        this.fourthDim = fourthDim;
-        this.dimensions = 4;
-        this.values = new float[rows * cols * depth * fourthDim];
+    private static int checkDim(final int dim, final String message) {
+        if (dim < 0) {
+            throw new IllegalArgumentException(message + dim);
+        }
+        return dim;
     }
 
-    public Tensor(int rows, int cols, int depth, float[] values) {
-        if (rows < 0) {
-            throw new IllegalArgumentException("Number of rows cannot be negative: " + rows);
+    private static float[] checkSize(final float[] values, final int size) {
+        if (size != values.length) {
+            throw new IllegalArgumentException("Number of values does not match tensor dimensions! " + values.length);
         }
-        if (cols < 0) {
-            throw new IllegalArgumentException("Number of cols cannot be negative: " + cols);
+        return values;
+    }
+
+    private static int sizeOf(final int[] shape) {
+        int size = 1;
+        for (int dim : shape) {
+            checkDim(dim, "Tensor dimension cannot be negative: ");
+            size *= dim;
         }
-        if (depth < 0) {
-            throw new IllegalArgumentException("Depth cannot be negative: " + depth);
+        return size;
+    }
+
+    private static int[] contiguousStrides(final int[] shape) {
+        final int[] strides = new int[shape.length];
+        int stride = 1;
+        for (int d = shape.length - 1; d >= 0; d--) {
+            strides[d] = stride;
+            stride *= shape[d];
         }
-        if (rows * cols * depth != values.length) {
-            throw new IllegalArgumentException("Number of values does not match tensor dimensions! " + values.length);
+        return strides;
+    }
+
+    private static boolean isContiguous(final int[] shape, final int[] strides) {
+        int stride = 1;
+        for (int d = shape.length - 1; d >= 0; d--) {
+            if (shape[d] != 1 && strides[d] != stride) {
+                return false;
+            }
+            stride *= shape[d];
         }
+        return true;
+    }
 
-        this.cols = cols;
-        this.rows = rows;
-        this.depth = depth;
-        this.fourthDim = 1;
-        this.dimensions = 3;
-        this.values = values;
+    /**
+     * Returns true if elements with specified shape and strides occupy a single
+     * block of values without gaps, in any order of dimensions.
+     */
+    private static boolean isDense(final int[] shape, final int[] strides) {
+        final Integer[] dims = new Integer[shape.length];
+        for (int d = 0; d < dims.length; d++) {
+            dims[d] = d;
+        }
+        Arrays.sort(dims, (d1, d2) -> Integer.compare(strides[d1], strides[d2]));
+        int stride = 1;
+        for (int d : dims) {
+            if (shape[d] != 1 && strides[d] != stride) {
+                return false;
+            }
+            stride *= shape[d];
+        }
+        return true;
     }
 
-//    public Tensor(float[] values, int ... shape ) {
-//        if (shape.length > 4) throw new IllegalArgumentException("Tensor can have max 4 dimensions");
-//        this.dimensions = shape.length;
-//
-//        if (dimensions == 1) this.cols = shape[1];
-//
-//        this.rows = shape[0];
-//
-//        if (dimensions > 2)
-//
-//        this.depth = shape[2];
-//        this.fourthDim = shape[3];
-//
-//        this.values = values;
-//    }
-    private Tensor(Tensor t) {
-        this.cols = t.cols;
-        this.rows = t.rows;
-        this.depth = t.depth;
-        this.fourthDim = t.fourthDim;
-        this.dimensions = t.dimensions;
-        values = new float[t.values.length];
+    /**
+     * Returns position in values array for the specified element index in row major order.
+     */
+    private int physicalIndex(int idx) {
+        int pos = offset;
+        for (int d = shape.length - 1; d >= 0; d--) {
+            final int dim = shape[d];
+            pos += (idx % dim) * strides[d];
+            idx /= dim;
+        }
+        return pos;
+    }
 
-        System.arraycopy(t.values, 0, values, 0, t.values.length);
+    /**
+     * Reads value at specified position in values array or storage.
+     */
+    private float read(final int pos) {
+        return values != null ? values[pos] : storage.get(pos);
+    }
+
+    /**
+     * Writes value at specified position in values array or storage.
+     */
+    private void write(final int pos, final float val) {
+        if (values != null) {
+            values[pos] = val;
+        } else {
+            storage.set(pos, val);
+        }
+    }
+
+    /**
+     * Adds value to the value at specified position in values array or storage.
+     */
+    private void accumulate(final int pos, final float val) {
+        if (values != null) {
+            values[pos] += val;
+        } else {
+            storage.set(pos, storage.get(pos) + val);
+        }
     }
 
     /**
      * Gets value at specified index position.
+     * Index is the position of element in row major order, regardless of the tensor layout.
      *
      * @param idx
      * @return
      */
     public final float get(final int idx) {
-        return values[idx];
+        return read(contiguous ? offset + idx : physicalIndex(idx));
     }
 
     /**
@@ -332,7 +480,8 @@ public class Tensor implements Serializable {
      * @return
      */
     public final float set(final int idx, final float val) {
-        return values[idx] = val;
+        write(contiguous ? offset + idx : physicalIndex(idx), val);
+        return val;
     }
 
     // make sure this method gets inlined - final?   keeping hot methods small (35 bytecodes or less) final migh help, it will get inlined if its a hotspot - frequent calls
@@ -344,8 +493,8 @@ public class Tensor implements Serializable {
      * @return value at [row, col]
      */
     public final float get(final int row, final int col) {
-        final int idx = row * cols + col;
-        return values[idx];
+        final int idx = offset + row * rowStride + col * colStride;
+        return read(idx);
     }
 
     /**
@@ -356,8 +505,8 @@ public class Tensor implements Serializable {
      * @param val value to set
      */
     public final void set(final int row, final int col, final float val) {
-        final int idx = row * cols + col;
-        values[idx] = val;
+        final int idx = offset + row * rowStride + col * colStride;
+        write(idx, val);
     }
 
     /**
@@ -369,44 +518,248 @@ public class Tensor implements Serializable {
      * @return
      */
     public final float get(final int row, final int col, final int z) {
-        final int idx = z * cols * rows + row * cols + col;
-        return values[idx];
+        final int idx = offset + z * depthStride + row * rowStride + col * colStride;
+        return read(idx);
     }
 
     public final void set(final int row, final int col, final int z, final float val) {
-        final int idx = z * cols * rows + row * cols + col;
-        values[idx] = val;
+        final int idx = offset + z * depthStride + row * rowStride + col * colStride;
+        write(idx, val);
     }
 
     public final float get(final int row, final int col, final int z, final int fourth) {
-        final int idx = fourth * rows * cols * depth + z * rows * cols + row * cols + col;
-        return values[idx];
+        final int idx = offset + fourth * fourthStride + z * depthStride + row * rowStride + col * colStride;
+        return read(idx);
     }
 
     public final void set(final int row, final int col, final int z, final int fourth, final float val) {
-        final int idx = fourth * rows * cols * depth + z * rows * cols + row * cols + col;
-        values[idx] = val;
+        final int idx = offset + fourth * fourthStride + z * depthStride + row * rowStride + col * colStride;
+        write(idx, val);
+    }
+
+    /**
+     * Returns value at specified position given as index for each dimension,
+     * in the same order as shape. Works for tensors of any rank.
+     *
+     * @param idxs index for each dimension
+     * @return value at specified position
+     */
+    public final float get(final int[] idxs) {
+        return read(offsetOf(idxs));
+    }
+
+    /**
+     * Sets value at specified position given as index for each dimension.
+     *
+     * @param idxs index for each dimension
+     * @param val value to set
+     */
+    public final void set(final int[] idxs, final float val) {
+        write(offsetOf(idxs), val);
     }
 
-    // still under development dont use it!
-    // pretpostavi d je dim
-    public final float getWithStride(final int[] idxs) {
-        // final int idx = idxs[3] * shape[2] * shape[1] * shape[0] + idxs[2] * shape[1] * shape[0] + idxs[1] * shape[0] + idxs[0];
-        // final int idx = fourth * rows * cols * depth             + z * rows * cols               + row * cols         + col;
-        final int idx = idxs[0] * shape[1] * shape[2] * shape[3] + idxs[1] * shape[2] * shape[3] + idxs[2] * shape[3] + idxs[3];
-        return values[idx];
+    private int offsetOf(final int[] idxs) {
+        if (idxs.length != shape.length) {
+            throw new IllegalArgumentException("Number of indexes " + idxs.length + " does not match tensor rank " + shape.length);
+        }
+        int pos = offset;
+        for (int d = 0; d < idxs.length; d++) {
+            pos += idxs[d] * strides[d];
+        }
+        return pos;
     }
 
+    /**
+     * Returns backing array of this tensor.
+     * For views, elements of this tensor are located starting from
+     * {@link #getOffset()} using {@link #getStrides()}, and array may contain
+     * values of other tensors too. Use {@link #toArray()} to get a compact copy.
+     *
+     * @return backing array
+     * @throws IllegalStateException if values are not stored in heap array
+     */
     public final float[] getValues() {
+        if (values == null) {
+            throw new IllegalStateException("Tensor values are not stored in array, storage type is " + getStorageType());
+        }
         return values;
     }
 
+    /**
+     * Returns true if values of this tensor are kept in heap array available
+     * through {@link #getValues()}.
+     *
+     * @return true if tensor is backed by an array
+     */
+    public final boolean hasArray() {
+        return values != null;
+    }
+
+    /**
+     * Sets the backing array of this tensor. Offset is reset to zero.
+     * If tensor was using some other storage it becomes a heap tensor.
+     *
+     * @param values new backing array
+     */
     public final void setValues(final float... values) {
         this.values = values;
+        this.storage = null;
+        this.offset = 0;
+    }
+
+    /**
+     * Sets the backing array and offset of the first element of this tensor,
+     * without copying. Used to point an existing tensor to the values of some view.
+     *
+     * @param values new backing array
+     * @param offset position of the first element
+     */
+    public final void setValues(final float[] values, final int offset) {
+        this.values = values;
+        this.storage = null;
+        this.offset = offset;
+    }
+
+    /**
+     * Returns storage used for values of this tensor, or null if values are
+     * kept in heap array.
+     *
+     * @return tensor storage or null for heap tensors
+     */
+    public final TensorStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Returns type of storage used by this tensor.
+     *
+     * @return storage type
+     */
+    public final StorageType getStorageType() {
+        return storage == null ? StorageType.HEAP : storage.getType();
+    }
+
+    /**
+     * Releases storage used by this tensor (for example off-heap memory).
+     * Storage is shared with all views of this tensor, so they can not be
+     * used after this. Does nothing for heap tensors.
+     */
+    @Override
+    public void close() {
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    /**
+     * Moves values of this tensor to specified type of storage, for example to
+     * 16 bit storage to save memory. Tensor object stays the same, so all layers
+     * which reference it see the change. Values are rounded if new storage is less precise.
+     *
+     * Storage can not be changed for views, or tensors from which views were created,
+     * since they would not share values any more. Convert tensor before creating views.
+     *
+     * @param storageType new storage type
+     * @throws IllegalStateException if tensor is a view with gaps between values, or it shares values with views
+     */
+    public final void convertTo(final StorageType storageType) {
+        if (storageType == getStorageType()) {
+            return;
+        }
+        if (!dense) {
+            throw new IllegalStateException("Storage can be changed only for contiguous tensors");
+        }
+        checkNotShared();
+        if (storageType == StorageType.INT8) {
+            quantize(1, size);
+            return;
+        }
+        final Tensor converted;
+        if (contiguous) {
+            converted = create(storageType, shape);
+            copy(this, converted);
+        } else { // keeps order of values (and strides) for other layouts
+            converted = create(storageType, size);
+            for (int i = 0; i < size; i++) {
+                converted.write(i, read(offset + i));
+            }
+        }
+        close();
+
+        this.values = converted.values;
+        this.storage = converted.storage;
+        this.offset = 0;
+    }
+
+    /**
+     * Moves values of this tensor to 8 bit storage, with symmetric scale for each channel.
+     * Channels are defined by order of values in storage, value at position idx
+     * belongs to channel (idx / channelBlock) % channels.
+     *
+     * Like {@link #convertTo(StorageType)}, it can not be used for tensors which share values with views.
+     *
+     * @param channels number of channels
+     * @param channelBlock number of consecutive values which belong to the same channel
+     * @throws IllegalStateException if tensor is a view with gaps between values, or it shares values with views
+     * @see QuantizedStorage
+     */
+    public final void quantize(final int channels, final int channelBlock) {
+        if (!dense) {
+            throw new IllegalStateException("Only contiguous tensors can be quantized");
+        }
+        checkNotShared();
+        final float[] vals = new float[size];
+        for (int i = 0; i < size; i++) {
+            vals[i] = read(offset + i);
+        }
+        final QuantizedStorage quantized = QuantizedStorage.quantize(vals, channels, channelBlock);
+        close();
+
+        this.values = null;
+        this.storage = quantized;
+        this.offset = 0;
+    }
+
+    private void checkNotShared() {
+        if (shared) {
+            throw new IllegalStateException("Storage can not be changed for tensor which shares values with views, convert it before creating views");
+        }
+    }
+
+    /**
+     * Returns true if this tensor is a view of another tensor, or views were created from it.
+     *
+     * @return true if values are shared with views
+     */
+    public final boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Returns a compact copy of all values in this tensor in row major order.
+     *
+     * @return copy of tensor values
+     */
+    public final float[] toArray() {
+        final float[] arr = new float[size];
+        if (values != null && contiguous) {
+            System.arraycopy(values, offset, arr, 0, size);
+        } else {
+            for (int i = 0; i < size; i++) {
+                arr[i] = get(i);
+            }
+        }
+        return arr;
     }
 
     public final void copyFrom(final float[] src) {
-        System.arraycopy(src, 0, values, 0, values.length);
+        if (values != null && contiguous) {
+            System.arraycopy(src, 0, values, offset, size);
+        } else {
+            for (int i = 0; i < size; i++) {
+                set(i, src[i]);
+            }
+        }
     }
 
     public final int getCols() {
@@ -429,14 +782,269 @@ public class Tensor implements Serializable {
         return dimensions;
     }
 
+    /**
+     * Returns shape of this tensor, ordered from slowest to fastest changing dimension.
+     *
+     * @return copy of the shape array
+     */
+    public final int[] getShape() {
+        return shape.clone();
+    }
+
+    /**
+     * Returns size of the specified dimension.
+     *
+     * @param dim dimension index in shape
+     * @return size of dimension
+     */
+    public final int getShape(final int dim) {
+        return shape[dim];
+    }
+
+    /**
+     * Returns strides of this tensor, for each dimension in shape.
+     *
+     * @return copy of the strides array
+     */
+    public final int[] getStrides() {
+        return strides.clone();
+    }
+
+    /**
+     * Returns position of the first element of this tensor in backing array.
+     *
+     * @return offset in backing array
+     */
+    public final int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns total number of elements in this tensor.
+     *
+     * @return number of elements
+     */
+    public final int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if tensor values are in a single block of heap array, so bulk
+     * operations can loop over the array directly.
+     */
+    private boolean isCompactArray() {
+        return values != null && contiguous;
+    }
+
+    /**
+     * Returns true if tensor values are in a single block of heap array in any
+     * order, so operations which do not depend on order can loop over the array directly.
+     */
+    private boolean isDenseArray() {
+        return values != null && dense;
+    }
+
+    /**
+     * Returns true if this tensor and tensor t keep values in blocks of heap arrays
+     * in the same order, so element wise operations can loop over arrays directly.
+     */
+    private boolean isSameOrderArray(final Tensor t) {
+        return (isCompactArray() && t.isCompactArray())
+               || (isDenseArray() && t.isDenseArray() && Arrays.equals(shape, t.shape) && Arrays.equals(strides, t.strides));
+    }
+
+    /**
+     * Returns memory layout of this tensor. Tensors with less than 3 dimensions
+     * or with a single channel are always NCHW, since both layouts are the same for them.
+     *
+     * @return layout of this tensor
+     * @see Layout
+     */
+    public final Layout getLayout() {
+        return dimensions >= 3 && depth > 1 && depthStride == 1 && colStride == depth && rowStride == cols * depth ? Layout.NHWC : Layout.NCHW;
+    }
+
+    /**
+     * Returns true if elements of this tensor occupy a single block of backing
+     * array in row major order (with no gaps).
+     *
+     * @return true if tensor is contiguous
+     */
+    public final boolean isContiguous() {
+        return contiguous;
+    }
+
+    /**
+     * Returns a tensor with the same values and specified shape.
+     * For contiguous tensors this is O(1) operation and returned tensor shares
+     * values with this one, otherwise values are copied first.
+     * One dimension can be -1, and its size is inferred from the remaining dimensions.
+     *
+     * @param newShape new shape
+     * @return reshaped tensor
+     */
+    public Tensor reshape(final int... newShape) {
+        final int[] resolvedShape = newShape.clone();
+        int inferred = -1, known = 1;
+        for (int d = 0; d < resolvedShape.length; d++) {
+            if (resolvedShape[d] == -1) {
+                if (inferred != -1) {
+                    throw new IllegalArgumentException("Only one dimension can be inferred in reshape");
+                }
+                inferred = d;
+            } else {
+                known *= checkDim(resolvedShape[d], "Tensor dimension cannot be negative: ");
+            }
+        }
+        if (inferred != -1) {
+            resolvedShape[inferred] = (known == 0) ? 0 : size / known;
+        }
+        if (sizeOf(resolvedShape) != size) {
+            throw new IllegalArgumentException("Cannot reshape tensor of size " + size + " to " + Arrays.toString(newShape));
+        }
+
+        if (contiguous) {
+            return view(this, offset, resolvedShape, null);
+        }
+        return new Tensor(toArray(), 0, resolvedShape, null);
+    }
+
+    /**
+     * Returns a contiguous view of this tensor with specified shape, starting
+     * at specified element position. Useful to take a single item from a batch
+     * or to see the part of the tensor as a different shape, without copying.
+     *
+     * @param position index of the first element of the view (in row major order)
+     * @param viewShape shape of the view
+     * @return view of this tensor
+     */
+    public Tensor view(final int position, final int... viewShape) {
+        if (!contiguous) {
+            throw new IllegalStateException("View can be created only for contiguous tensors, use reshape or copy first");
+        }
+        final int viewSize = sizeOf(viewShape);
+        if (position < 0 || position + viewSize > size) {
+            throw new IndexOutOfBoundsException("View [" + position + ", " + (position + viewSize) + ") is out of tensor bounds " + size);
+        }
+        return view(this, offset + position, viewShape.clone(), null);
+    }
+
+    /**
+     * Returns a view of elements from start (inclusive) to end (exclusive) in the specified dimension.
+     * For example, for 3D tensor slice(1, 2, 5) gives rows 2,3 and 4 from all channels,
+     * and random crop of an image is two slices, one by rows and one by cols.
+     *
+     * @param dim dimension to slice
+     * @param start first index in slice
+     * @param end index after the last in slice
+     * @return view of this tensor
+     */
+    public Tensor slice(final int dim, final int start, final int end) {
+        if (start < 0 || end > shape[dim] || start > end) {
+            throw new IndexOutOfBoundsException("Slice [" + start + ", " + end + ") is out of bounds for dimension " + dim + " of size " + shape[dim]);
+        }
+        final int[] newShape = shape.clone();
+        newShape[dim] = end - start;
+        return view(this, offset + start * strides[dim], newShape, strides.clone());
+    }
+
+    /**
+     * Returns a view of the specified index in the given dimension, with that dimension removed.
+     * For example, for batch tensor [n, depth, rows, cols] select(0, i) returns i-th item as 3D tensor.
+     *
+     * @param dim dimension to select from
+     * @param idx index in dimension
+     * @return view of this tensor with rank smaller by one
+     */
+    public Tensor select(final int dim, final int idx) {
+        if (idx < 0 || idx >= shape[dim]) {
+            throw new IndexOutOfBoundsException("Index " + idx + " is out of bounds for dimension " + dim + " of size " + shape[dim]);
+        }
+        final int[] newShape = new int[shape.length - 1];
+        final int[] newStrides = new int[shape.length - 1];
+        for (int d = 0, n = 0; d < shape.length; d++) {
+            if (d == dim) continue;
+            newShape[n] = shape[d];
+            newStrides[n] = strides[d];
+            n++;
+        }
+        return view(this, offset + idx * strides[dim], newShape, newStrides);
+    }
+
+    /**
+     * Returns a view with two dimensions swapped.
+     *
+     * @param dim1 first dimension
+     * @param dim2 second dimension
+     * @return transposed view of this tensor
+     */
+    public Tensor transpose(final int dim1, final int dim2) {
+        final int[] newShape = shape.clone();
+        final int[] newStrides = strides.clone();
+        newShape[dim1] = shape[dim2];
+        newShape[dim2] = shape[dim1];
+        newStrides[dim1] = strides[dim2];
+        newStrides[dim2] = strides[dim1];
+        return view(this, offset, newShape, newStrides);
+    }
+
+    /**
+     * Returns transposed view of this matrix (last two dimensions are swapped).
+     *
+     * @return transposed view
+     */
+    public Tensor transpose() {
+        if (shape.length < 2) {
+            throw new IllegalStateException("Transpose requires tensor with at least two dimensions");
+        }
+        return transpose(shape.length - 2, shape.length - 1);
+    }
+
+    /**
+     * Returns a view with dimensions reordered as specified.
+     *
+     * @param dims new order of dimensions
+     * @return permuted view of this tensor
+     */
+    public Tensor permute(final int... dims) {
+        if (dims.length != shape.length) {
+            throw new IllegalArgumentException("Permutation must specify all " + shape.length + " dimensions");
+        }
+        final int[] newShape = new int[dims.length];
+        final int[] newStrides = new int[dims.length];
+        for (int d = 0; d < dims.length; d++) {
+            newShape[d] = shape[dims[d]];
+            newStrides[d] = strides[dims[d]];
+        }
+        return view(this, offset, newShape, newStrides);
+    }
+
+    /**
+     * Returns this tensor if it is contiguous, otherwise a compact copy.
+     *
+     * @return contiguous tensor with same values
+     */
+    public Tensor contiguous() {
+        return contiguous ? this : new Tensor(this);
+    }
+
+    /**
+     * Returns a compact deep copy of this tensor.
+     *
+     * @return copy of this tensor
+     */
+    public Tensor copy() {
+        return new Tensor(this);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
 
         sb.append("");
-        for (int i = 0; i < values.length; i++) {
-            sb.append(values[i]);
-            if (i < values.length - 1) {
+        for (int i = 0; i < size; i++) {
+            sb.append(get(i));
+            if (i < size - 1) {
                 sb.append(", ");
             }
         }
@@ -454,22 +1062,22 @@ public class Tensor implements Serializable {
      * @param value
      */
     public final void add(final int row, final int col, final float value) {
-        final int idx = row * cols + col;
-        values[idx] += value;
+        final int idx = offset + row * rowStride + col * colStride;
+        accumulate(idx, value);
     }
 
     public final void add(final int row, final int col, final int z, final float value) {
-        final int idx = z * cols * rows + row * cols + col;
-        values[idx] += value;
+        final int idx = offset + z * depthStride + row * rowStride + col * colStride;
+        accumulate(idx, value);
     }
 
     public final void add(final int row, final int col, final int z, final int fourth, final float value) {
-        final int idx = fourth * cols * rows * depth + z * cols * rows + row * cols + col;
-        values[idx] += value;
+        final int idx = offset + fourth * fourthStride + z * depthStride + row * rowStride + col * colStride;
+        accumulate(idx, value);
     }
 
     public final void add(final int idx, final float value) {
-        values[idx] += value;
+        accumulate(contiguous ? offset + idx : physicalIndex(idx), value);
     }
 
     /**
@@ -478,24 +1086,32 @@ public class Tensor implements Serializable {
      * @param t tensor to add
      */
     public final void add(Tensor t) {
-        for (int i = 0; i < values.length; i++) {
-            values[i] += t.values[i];
+        if (isSameOrderArray(t)) {
+            if (Parallel.isParallel(size)) {
+                Parallel.forRange(size, (from, to) -> Kernels.add(values, offset + from, t.values, t.offset + from, to - from));
+            } else {
+                Kernels.add(values, offset, t.values, t.offset, size);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                add(i, t.get(i));
+            }
         }
     }
 
     public final void sub(final int row, final int col, final float value) {
-        final int idx = row * cols + col;
-        values[idx] -= value;
+        final int idx = offset + row * rowStride + col * colStride;
+        accumulate(idx, -value);
     }
 
     public final void sub(final int row, final int col, final int z, final float value) {
-        final int idx = z * rows * cols + row * cols + col;
-        values[idx] -= value;
+        final int idx = offset + z * depthStride + row * rowStride + col * colStride;
+        accumulate(idx, -value);
     }
 
     public final void sub(final int row, final int col, final int z, final int fourth, final float value) {
-        final int idx = fourth * rows * cols * depth + z * rows * cols + row * cols + col;
-        values[idx] -= value;
+        final int idx = offset + fourth * fourthStride + z * depthStride + row * rowStride + col * colStride;
+        accumulate(idx, -value);
     }
 
     /**
@@ -504,8 +1120,16 @@ public class Tensor implements Serializable {
      * @param t tensor to subtract
      */
     public final void sub(final Tensor t) {
-        for (int i = 0; i < values.length; i++) {
-            values[i] -= t.values[i];
+        if (isSameOrderArray(t)) {
+            if (Parallel.isParallel(size)) {
+                Parallel.forRange(size, (from, to) -> Kernels.sub(values, offset + from, t.values, t.offset + from, to - from));
+            } else {
+                Kernels.sub(values, offset, t.values, t.offset, size);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                add(i, -t.get(i));
+            }
         }
     }
 
@@ -516,9 +1140,7 @@ public class Tensor implements Serializable {
      * @param t2
      */
     public final static void sub(final Tensor t1, final Tensor t2) {
-        for (int i = 0; i < t1.values.length; i++) {
-            t1.values[i] -= t2.values[i];
-        }
+        t1.sub(t2);
     }
 
     /**
@@ -527,8 +1149,16 @@ public class Tensor implements Serializable {
      * @param value
      */
     public final void div(final float value) {
-        for (int i = 0; i < values.length; i++) {
-            values[i] /= value;
+        if (isDenseArray()) {
+            if (Parallel.isParallel(size)) {
+                Parallel.forRange(size, (from, to) -> Kernels.div(values, offset + from, to - from, value));
+            } else {
+                Kernels.div(values, offset, size, value);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                set(i, get(i) / value);
+            }
         }
     }
 
@@ -538,46 +1168,197 @@ public class Tensor implements Serializable {
      * @param value value used to fill tensor
      */
     public final void fill(final float value) {
-        for (int i = 0; i < values.length; i++) {
-            values[i] = value;
+        if (isDenseArray()) {
+            if (Parallel.isParallel(size)) {
+                Parallel.forRange(size, (from, to) -> Kernels.fill(values, offset + from, to - from, value));
+            } else {
+                Kernels.fill(values, offset, size, value);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                set(i, value);
+            }
         }
     }
 
     public static final void fill(final float[] array, final float val) {
-        for (int i = 0; i < array.length; i++) {
-            array[i] = val;
-        }
+        Kernels.fill(array, 0, array.length, val);
     }
 
     public static void div(final float[] array, final float val) {
-        for (int i = 0; i < array.length; i++) {
-            array[i] /= val;
-        }
+        Kernels.div(array, 0, array.length, val);
     }
 
     public static final void sub(final float[] array1, final float[] array2) {
-        for (int i = 0; i < array1.length; i++) {
-            array1[i] -= array2[i];
-        }
+        Kernels.sub(array1, 0, array2, 0, array1.length);
     }
 
     public static final void add(final float[] array1, final float[] array2) {
-        for (int i = 0; i < array1.length; i++) {
-            array1[i] += array2[i];
-        }
+        Kernels.add(array1, 0, array2, 0, array1.length);
     }
 
     public static final void copy(final Tensor src, final Tensor dest) {
-        System.arraycopy(src.values, 0, dest.values, 0, src.values.length);
+        if (src.isSameOrderArray(dest)) {
+            if (Parallel.isParallel(src.size)) {
+                Parallel.forRange(src.size, (from, to) -> System.arraycopy(src.values, src.offset + from, dest.values, dest.offset + from, to - from));
+            } else {
+                System.arraycopy(src.values, src.offset, dest.values, dest.offset, src.size);
+            }
+        } else if (src.dimensions == 3 && Arrays.equals(src.shape, dest.shape)) { // conversion between layouts
+            for (int z = 0; z < src.depth; z++) {
+                for (int row = 0; row < src.rows; row++) {
+                    for (int col = 0; col < src.cols; col++) {
+                        dest.set(row, col, z, src.get(row, col, z));
+                    }
+                }
+            }
+        } else {
+            for (int i = 0; i < src.size; i++) {
+                dest.set(i, src.get(i));
+            }
+        }
     }
 
     public static final void copy(final float[] src, final float[] dest) {
         System.arraycopy(src, 0, dest, 0, src.length);
     }
-    
+
+    /**
+     * Applies specified function to all values of this tensor.
+     *
+     * @param f function to apply
+     * @deprecated boxes every value, use {@link #mapInPlace(FloatUnaryOperator)} instead
+     */
+    @Deprecated
     public void apply(Function<Float, Float> f) {
-        for(int i=0; i<values.length; i++) {
-            values[i] = f.apply(values[i]);
+        mapInPlace(f::apply);
+    }
+
+    /**
+     * Starts lazy element wise expression with values of this tensor. Operations
+     * on expression are recorded and evaluated in a single pass over memory.
+     *
+     * @return new expression
+     * @see TensorExpression
+     */
+    public final TensorExpression expr() {
+        return new TensorExpression(this);
+    }
+
+    /**
+     * Applies specified operator to all values of this tensor, and stores results in this tensor.
+     *
+     * @param op operator to apply
+     * @return this tensor
+     */
+    public final Tensor mapInPlace(final FloatUnaryOperator op) {
+        if (isDenseArray()) {
+            for (int i = offset; i < offset + size; i++) {
+                values[i] = op.apply(values[i]);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                set(i, op.apply(get(i)));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns new tensor with the same shape, with values obtained by applying
+     * specified operator to values of this tensor.
+     *
+     * @param op operator to apply
+     * @return new tensor with results
+     */
+    public final Tensor map(final FloatUnaryOperator op) {
+        final Tensor result = new Tensor(shape);
+        final float[] resultVals = result.values;
+        if (isCompactArray()) {
+            for (int i = 0; i < size; i++) {
+                resultVals[i] = op.apply(values[offset + i]);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                resultVals[i] = op.apply(get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Combines values of this and specified tensor element by element using
+     * specified operator, and stores results in this tensor: this[i] = op(this[i], t[i])
+     *
+     * @param t other tensor, must have the same size as this tensor
+     * @param op operator to apply
+     * @return this tensor
+     */
+    public final Tensor zipWithInPlace(final Tensor t, final FloatBinaryOperator op) {
+        checkSameSize(t);
+        if (isSameOrderArray(t)) {
+            final float[] tVals = t.values;
+            final int tOffset = t.offset - offset;
+            for (int i = offset; i < offset + size; i++) {
+                values[i] = op.apply(values[i], tVals[tOffset + i]);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                set(i, op.apply(get(i), t.get(i)));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns new tensor with values obtained by combining values of this and specified
+     * tensor element by element using specified operator: result[i] = op(this[i], t[i])
+     *
+     * @param t other tensor, must have the same size as this tensor
+     * @param op operator to apply
+     * @return new tensor with the shape of this tensor
+     */
+    public final Tensor zipWith(final Tensor t, final FloatBinaryOperator op) {
+        checkSameSize(t);
+        final Tensor result = new Tensor(shape);
+        final float[] resultVals = result.values;
+        if (isCompactArray() && t.isCompactArray()) {
+            for (int i = 0; i < size; i++) {
+                resultVals[i] = op.apply(values[offset + i], t.values[t.offset + i]);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                resultVals[i] = op.apply(get(i), t.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reduces all values of this tensor to a single value using specified operator,
+     * starting from identity value, for example reduce(0, (sum, x) -> sum + x)
+     *
+     * @param identity initial value
+     * @param op operator which combines accumulated result with the next value
+     * @return reduced value
+     */
+    public final float reduce(final float identity, final FloatBinaryOperator op) {
+        float result = identity;
+        if (isCompactArray()) {
+            for (int i = offset; i < offset + size; i++) {
+                result = op.apply(result, values[i]);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                result = op.apply(result, get(i));
+            }
+        }
+        return result;
+    }
+
+    private void checkSameSize(final Tensor t) {
+        if (t.size != size) {
+            throw new IllegalArgumentException("Tensor sizes do not match: " + size + " and " + t.size);
         }
     }
 
@@ -593,23 +1374,13 @@ public class Tensor implements Serializable {
             return false;
         }
         final Tensor other = (Tensor) obj;
-        if (this.cols != other.cols) {
-            return false;
-        }
-        if (this.rows != other.rows) {
-            return false;
-        }
-        if (this.depth != other.depth) {
+        if (!Arrays.equals(this.shape, other.shape)) {
             return false;
         }
-        if (this.fourthDim != other.fourthDim) {
-            return false;
-        }
-        if (this.dimensions != other.dimensions) {
-            return false;
-        }
-        if (!Arrays.equals(this.values, other.values)) {
-            return false;
+        for (int i = 0; i < size; i++) {
+            if (Float.floatToIntBits(get(i)) != Float.floatToIntBits(other.get(i))) {
+                return false;
+            }
         }
         return true;
     }
@@ -617,20 +1388,16 @@ public class Tensor implements Serializable {
     @Override
     public int hashCode() {
         int hash = 3;
-        hash = 41 * hash + this.cols;
-        hash = 41 * hash + this.rows;
-        hash = 41 * hash + this.depth;
-        hash = 41 * hash + this.fourthDim;
-        hash = 41 * hash + this.dimensions;
-        hash = 41 * hash + Arrays.hashCode(this.values);
+        hash = 41 * hash + Arrays.hashCode(this.shape);
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + Float.floatToIntBits(get(i));
+        }
         return hash;
     }
 
     public boolean equals(Tensor t2, float delta) {
-        float[] arr2 = t2.getValues();
-
-        for (int i = 0; i < values.length; i++) {
-            if (Math.abs(values[i] - arr2[i]) > delta) {
+        for (int i = 0; i < size; i++) {
+            if (Math.abs(get(i) - t2.get(i)) > delta) {
                 return false;
             }
         }
@@ -642,6 +1409,31 @@ public class Tensor implements Serializable {
         return new Tensor(cols, 0f);
     }
 
+    /**
+     * Creates a tensor with specified shape filled with zeros.
+     *
+     * @param shape size of each dimension, from slowest to fastest changing
+     * @return new tensor
+     */
+    public static Tensor zeros(int... shape) {
+        return new Tensor(shape.clone());
+    }
+
+    /**
+     * Creates contiguous tensor with specified shape which uses the beginning of
+     * specified array, which can be bigger than the tensor. Used by TensorPool.
+     */
+    static Tensor wrap(final float[] values, final int[] shape) {
+        return new Tensor(values, 0, shape, null);
+    }
+
+    /**
+     * Returns true if this tensor has specified shape.
+     */
+    final boolean hasShape(final int[] shape) {
+        return Arrays.equals(this.shape, shape);
+    }
+
     public static Tensor ones(int cols) {
         return new Tensor(cols, 1.0f);
     }
@@ -667,7 +1459,7 @@ public class Tensor implements Serializable {
     public void setValuesFromString(String values) {
         String[] strArr = values.split(",");
         for (int i = 0; i < strArr.length; i++) {
-            this.values[i] = Float.parseFloat(strArr[i]);
+            set(i, Float.parseFloat(strArr[i]));
         }
     }
 
@@ -689,9 +1481,15 @@ public class Tensor implements Serializable {
      * @return L1 norm
      */
     public float sumAbs() {
+        if (isCompactArray()) {
+            if (Parallel.isParallel(size)) { // partial sums are added in fixed order, so result does not depend on number of threads
+                return Parallel.sum(size, (from, to) -> Kernels.sumAbs(values, offset + from, to - from));
+            }
+            return Kernels.sumAbs(values, offset, size);
+        }
         float sum = 0;
-        for (int i = 0; i < values.length; i++) {
-            sum = sum + Math.abs(values[i]);
+        for (int i = 0; i < size; i++) {
+            sum = sum + Math.abs(get(i));
         }
         return sum;
     }
@@ -702,9 +1500,16 @@ public class Tensor implements Serializable {
      * @return L2 norm
      */
     public float sumSqr() {
+        if (isCompactArray()) {
+            if (Parallel.isParallel(size)) {
+                return Parallel.sum(size, (from, to) -> Kernels.sumSqr(values, offset + from, to - from));
+            }
+            return Kernels.sumSqr(values, offset, size);
+        }
         float sum = 0;
-        for (int i = 0; i < values.length; i++) {
-            sum = sum + values[i] * values[i];
+        for (int i = 0; i < size; i++) {
+            final float val = get(i);
+            sum = sum + val * val;
         }
         return sum;
     }
@@ -0,0 +1,340 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lazy chain of element wise operations on tensors, which is evaluated in a single pass.
+ *
+ * Operations are only recorded until expression is evaluated with {@link #evaluate()}
+ * or {@link #evaluateInto(Tensor)}. Then values are processed in small blocks, which
+ * stay in cache while all operations are applied, so each tensor in expression is read
+ * once and result is written once, instead of a pass over memory for each operation.
+ * Results are exactly the same as when operations are applied one by one.
+ *
+ * For example weights update with averaged weight changes for a batch:
+ * <pre>
+ * weights.expr().add(deltaWeights.expr().div(batchSize)).evaluateInto(weights);
+ * </pre>
+ *
+ * All tensors in expression must have the same size, and elements are matched
+ * by their index in row major order. Result can be written to any of them.
+ *
+ * Expression keeps references to its tensors, not their values, so it can be created
+ * once and evaluated in each iteration. Evaluation takes its scratch blocks from the
+ * tensor pool of the current thread, so it does not allocate memory.
+ *
+ * @see Tensor#expr()
+ * @author Zoran Sevarac
+ */
+public final class TensorExpression {
+
+    /**
+     * Number of values processed at once, small enough for block to stay in L1 cache.
+     */
+    private static final int BLOCK_SIZE = 1024;
+
+    private final Tensor source;
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * Single recorded operation, which is applied to a block of values in place.
+     */
+    private interface Step {
+
+        /**
+         * Applies operation to values of elements from start to start + len.
+         * Blocks of all nesting levels are in the same scratch array, one after another.
+         *
+         * @param block scratch array with blocks of all levels
+         * @param off position of the block for this level in scratch array
+         * @param start index of the first element in block
+         * @param len number of values in block
+         */
+        void apply(float[] block, int off, int start, int len);
+
+        /**
+         * Returns number of nested expression levels used by this step.
+         */
+        default int nestedLevels() {
+            return 0;
+        }
+    }
+
+    TensorExpression(Tensor source) {
+        this.source = source;
+    }
+
+    /**
+     * Creates expression which starts with values of specified tensor.
+     *
+     * @param tensor source tensor
+     * @return new expression
+     */
+    public static TensorExpression of(Tensor tensor) {
+        return new TensorExpression(tensor);
+    }
+
+    public int size() {
+        return source.size();
+    }
+
+    public TensorExpression add(final float value) {
+        return step((block, off, start, len) -> {
+            for (int i = off; i < off + len; i++) {
+                block[i] += value;
+            }
+        });
+    }
+
+    public TensorExpression add(final Tensor t) {
+        checkSize(t.size());
+        return step((block, off, start, len) -> {
+            if (t.hasArray() && t.isContiguous()) {
+                Kernels.add(block, off, t.getValues(), t.getOffset() + start, len);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    block[off + i] += t.get(start + i);
+                }
+            }
+        });
+    }
+
+    public TensorExpression add(final TensorExpression e) {
+        return nested(e, (block, off, valuesOff, len) -> Kernels.add(block, off, block, valuesOff, len));
+    }
+
+    public TensorExpression sub(final float value) {
+        return step((block, off, start, len) -> {
+            for (int i = off; i < off + len; i++) {
+                block[i] -= value;
+            }
+        });
+    }
+
+    public TensorExpression sub(final Tensor t) {
+        checkSize(t.size());
+        return step((block, off, start, len) -> {
+            if (t.hasArray() && t.isContiguous()) {
+                Kernels.sub(block, off, t.getValues(), t.getOffset() + start, len);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    block[off + i] -= t.get(start + i);
+                }
+            }
+        });
+    }
+
+    public TensorExpression sub(final TensorExpression e) {
+        return nested(e, (block, off, valuesOff, len) -> Kernels.sub(block, off, block, valuesOff, len));
+    }
+
+    public TensorExpression mul(final float value) {
+        return step((block, off, start, len) -> {
+            for (int i = off; i < off + len; i++) {
+                block[i] *= value;
+            }
+        });
+    }
+
+    public TensorExpression mul(final Tensor t) {
+        return zipWith(t, (x, y) -> x * y);
+    }
+
+    public TensorExpression mul(final TensorExpression e) {
+        return nested(e, (block, off, valuesOff, len) -> {
+            for (int i = 0; i < len; i++) {
+                block[off + i] *= block[valuesOff + i];
+            }
+        });
+    }
+
+    public TensorExpression div(final float value) {
+        return step((block, off, start, len) -> Kernels.div(block, off, len, value));
+    }
+
+    public TensorExpression div(final Tensor t) {
+        return zipWith(t, (x, y) -> x / y);
+    }
+
+    /**
+     * Applies specified operator to the values of this expression.
+     *
+     * @param op operator to apply
+     * @return this expression
+     */
+    public TensorExpression map(final FloatUnaryOperator op) {
+        return step((block, off, start, len) -> {
+            for (int i = off; i < off + len; i++) {
+                block[i] = op.apply(block[i]);
+            }
+        });
+    }
+
+    /**
+     * Combines values of this expression with values of specified tensor,
+     * for example deltas with derivatives of outputs.
+     *
+     * @param t other tensor
+     * @param op operator which takes value of this expression and value of t
+     * @return this expression
+     */
+    public TensorExpression zipWith(final Tensor t, final FloatBinaryOperator op) {
+        checkSize(t.size());
+        return step((block, off, start, len) -> {
+            if (t.hasArray() && t.isContiguous()) {
+                final float[] tVals = t.getValues();
+                final int tOff = t.getOffset() + start;
+                for (int i = 0; i < len; i++) {
+                    block[off + i] = op.apply(block[off + i], tVals[tOff + i]);
+                }
+            } else {
+                for (int i = 0; i < len; i++) {
+                    block[off + i] = op.apply(block[off + i], t.get(start + i));
+                }
+            }
+        });
+    }
+
+    /**
+     * Evaluates this expression into a new heap tensor with the shape of the source tensor.
+     *
+     * @return tensor with results
+     */
+    public Tensor evaluate() {
+        final Tensor result = Tensor.create(StorageType.HEAP, source.getShape());
+        evaluateInto(result);
+        return result;
+    }
+
+    /**
+     * Evaluates this expression and writes results to specified tensor, which
+     * can also be one of the tensors used in expression.
+     *
+     * @param dest tensor for results
+     * @throws IllegalArgumentException if dest has different size
+     */
+    public void evaluateInto(final Tensor dest) {
+        checkSize(dest.size());
+        final int size = source.size();
+        if (Parallel.isParallel(size)) {
+            Parallel.forRange(size, (from, to) -> evaluateRange(dest, from, to));
+        } else {
+            evaluateRange(dest, 0, size);
+        }
+    }
+
+    /**
+     * Evaluates elements in range [from, to) using scratch array from the tensor pool
+     * of the current thread, so evaluation does not allocate memory.
+     */
+    private void evaluateRange(final Tensor dest, final int from, final int to) {
+        final TensorPool pool = TensorPool.local();
+        final float[] block = pool.acquireArray((levels() + 1) * BLOCK_SIZE);
+        final boolean destArray = dest.hasArray() && dest.isContiguous();
+
+        try {
+            for (int start = from; start < to; start += BLOCK_SIZE) {
+                final int len = Math.min(BLOCK_SIZE, to - start);
+                evaluateBlock(block, 0, start, len);
+                if (destArray) {
+                    System.arraycopy(block, 0, dest.getValues(), dest.getOffset() + start, len);
+                } else {
+                    for (int i = 0; i < len; i++) {
+                        dest.set(start + i, block[i]);
+                    }
+                }
+            }
+        } finally {
+            pool.releaseArray(block);
+        }
+    }
+
+    /**
+     * Reads values of source tensor into block at position off and applies all steps to them.
+     */
+    private void evaluateBlock(final float[] block, final int off, final int start, final int len) {
+        if (source.hasArray() && source.isContiguous()) {
+            System.arraycopy(source.getValues(), source.getOffset() + start, block, off, len);
+        } else {
+            for (int i = 0; i < len; i++) {
+                block[off + i] = source.get(start + i);
+            }
+        }
+        for (int i = 0; i < steps.size(); i++) {
+            steps.get(i).apply(block, off, start, len);
+        }
+    }
+
+    /**
+     * Returns number of nested expression levels in this expression.
+     */
+    private int levels() {
+        int levels = 0;
+        for (int i = 0; i < steps.size(); i++) {
+            levels = Math.max(levels, steps.get(i).nestedLevels());
+        }
+        return levels;
+    }
+
+    /**
+     * Operation which combines block of values with block of nested expression values,
+     * which is at position valuesOff in the same scratch array.
+     */
+    private interface BlockOperator {
+        void apply(float[] block, int off, int valuesOff, int len);
+    }
+
+    /**
+     * Adds step which evaluates nested expression into the next block of scratch
+     * array, and combines it with block of this expression.
+     */
+    private TensorExpression nested(final TensorExpression e, final BlockOperator op) {
+        checkSize(e.size());
+        return step(new Step() {
+            @Override
+            public void apply(float[] block, int off, int start, int len) {
+                e.evaluateBlock(block, off + BLOCK_SIZE, start, len);
+                op.apply(block, off, off + BLOCK_SIZE, len);
+            }
+
+            @Override
+            public int nestedLevels() {
+                return e.levels() + 1;
+            }
+        });
+    }
+
+    private TensorExpression step(final Step step) {
+        steps.add(step);
+        return this;
+    }
+
+    private void checkSize(final int size) {
+        if (size != source.size()) {
+            throw new IllegalArgumentException("Tensor size " + size + " does not match expression size " + source.size());
+        }
+    }
+
+}
@@ -0,0 +1,307 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes tensors in compact binary format, using NIO channels.
+ * Much faster and smaller than writing tensor values as strings.
+ *
+ * All numbers are little endian. Tensor is written as header followed by values:
+ * <pre>
+ * int    magic ("DNNT")
+ * byte   format version (1)
+ * byte   data type of values (0 = float 32, 1 = FP16, 2 = BF16)
+ * byte   flags (1 = checksum follows values)
+ * byte   reserved (0)
+ * int    rank
+ * int[]  shape, from slowest to fastest changing dimension
+ * values in row major order, 4 or 2 bytes each
+ * int    optional CRC32 checksum of values
+ * </pre>
+ * Tensors with 16 bit storage are written as 16 bit values, all other tensors as floats.
+ * Values are streamed through a small buffer, so big tensors are not copied in memory.
+ * Several tensors can be written one after another to the same channel.
+ *
+ * @see Tensor
+ * @author Zoran Sevarac
+ */
+public final class TensorIO {
+
+    private static final int MAGIC = 0x544E4E44; // "DNNT" in little endian
+    private static final byte VERSION = 1;
+
+    private static final byte FLOAT32 = 0, FLOAT16 = 1, BFLOAT16 = 2;
+    private static final byte FLAG_CHECKSUM = 1;
+
+    /**
+     * Size of buffer used for streaming values.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private TensorIO() { }
+
+    /**
+     * Writes specified tensor to channel, with checksum.
+     *
+     * @param tensor tensor to write
+     * @param channel channel to write to
+     * @throws IOException if writing fails
+     */
+    public static void write(final Tensor tensor, final WritableByteChannel channel) throws IOException {
+        write(tensor, channel, true);
+    }
+
+    /**
+     * Writes specified tensor to channel.
+     *
+     * @param tensor tensor to write
+     * @param channel channel to write to
+     * @param checksum if true CRC32 checksum of values is written after values
+     * @throws IOException if writing fails
+     */
+    public static void write(final Tensor tensor, final WritableByteChannel channel, final boolean checksum) throws IOException {
+        final int[] shape = tensor.getShape();
+        final int size = tensor.size();
+        final byte dataType = dataTypeOf(tensor);
+        final int bytesPerValue = dataType == FLOAT32 ? 4 : 2;
+
+        final ByteBuffer header = ByteBuffer.allocate(12 + 4 * shape.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).put(VERSION).put(dataType).put(checksum ? FLAG_CHECKSUM : 0).put((byte) 0);
+        header.putInt(shape.length);
+        for (int dim : shape) {
+            header.putInt(dim);
+        }
+        header.flip();
+        writeFully(channel, header);
+
+        final CRC32 crc = checksum ? new CRC32() : null;
+        final ByteBuffer buf = ByteBuffer.allocate(Math.min(BUFFER_SIZE, Math.max(4, size * bytesPerValue))).order(ByteOrder.LITTLE_ENDIAN);
+        final int chunk = buf.capacity() / bytesPerValue;
+
+        for (int pos = 0; pos < size; pos += chunk) {
+            final int len = Math.min(chunk, size - pos);
+            buf.clear();
+            if (dataType != FLOAT32) {
+                final short[] raw = ((HalfStorage) tensor.getStorage()).getRawValues();
+                buf.asShortBuffer().put(raw, tensor.getOffset() + pos, len);
+            } else if (tensor.hasArray() && tensor.isContiguous()) {
+                buf.asFloatBuffer().put(tensor.getValues(), tensor.getOffset() + pos, len);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    buf.putFloat(i * 4, tensor.get(pos + i));
+                }
+            }
+            buf.limit(len * bytesPerValue);
+            if (crc != null) {
+                crc.update(buf.array(), 0, buf.limit());
+            }
+            writeFully(channel, buf);
+        }
+
+        if (crc != null) {
+            final ByteBuffer sum = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            sum.putInt((int) crc.getValue()).flip();
+            writeFully(channel, sum);
+        }
+    }
+
+    /**
+     * Reads next tensor from channel. Tensors written from 16 bit storage are
+     * read into the same type of storage, all other into heap tensors.
+     *
+     * @param channel channel to read from
+     * @return tensor read from channel
+     * @throws IOException if reading fails, data is not a tensor or checksum does not match
+     */
+    public static Tensor read(final ReadableByteChannel channel) throws IOException {
+        final Header header = readHeader(channel);
+        final StorageType storageType = header.dataType == FLOAT16 ? StorageType.FP16
+                                      : header.dataType == BFLOAT16 ? StorageType.BF16 : StorageType.HEAP;
+        final Tensor tensor = Tensor.create(storageType, header.shape);
+        readValues(channel, header, tensor);
+        return tensor;
+    }
+
+    /**
+     * Reads next tensor from channel into existing tensor, which must have the same shape.
+     * Values are converted to the storage type of specified tensor.
+     *
+     * @param channel channel to read from
+     * @param tensor tensor to read values into
+     * @throws IOException if reading fails, data is not a tensor or checksum does not match
+     * @throws IllegalArgumentException if shape of tensor in channel is different
+     */
+    public static void read(final ReadableByteChannel channel, final Tensor tensor) throws IOException {
+        final Header header = readHeader(channel);
+        if (!Arrays.equals(header.shape, tensor.getShape())) {
+            throw new IllegalArgumentException("Tensor shape " + Arrays.toString(header.shape) + " does not match " + Arrays.toString(tensor.getShape()));
+        }
+        readValues(channel, header, tensor);
+    }
+
+    /**
+     * Writes specified tensor to file, with checksum.
+     *
+     * @param tensor tensor to write
+     * @param file file to write to
+     * @throws IOException if writing fails
+     */
+    public static void write(final Tensor tensor, final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(tensor, channel);
+        }
+    }
+
+    /**
+     * Reads tensor from file.
+     *
+     * @param file file to read from
+     * @return tensor read from file
+     * @throws IOException if reading fails
+     */
+    public static Tensor read(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    private static byte dataTypeOf(final Tensor tensor) {
+        if (tensor.getStorage() instanceof HalfStorage && tensor.isContiguous()) {
+            return tensor.getStorageType() == StorageType.FP16 ? FLOAT16 : BFLOAT16;
+        }
+        return FLOAT32;
+    }
+
+    private static final class Header {
+        byte dataType;
+        boolean checksum;
+        int[] shape;
+    }
+
+    private static Header readHeader(final ReadableByteChannel channel) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buf);
+        if (buf.getInt() != MAGIC) {
+            throw new IOException("Not a tensor, wrong magic number");
+        }
+        final byte version = buf.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported tensor format version " + version);
+        }
+        final Header header = new Header();
+        header.dataType = buf.get();
+        if (header.dataType < FLOAT32 || header.dataType > BFLOAT16) {
+            throw new IOException("Unknown tensor data type " + header.dataType);
+        }
+        header.checksum = (buf.get() & FLAG_CHECKSUM) != 0;
+        buf.get(); // reserved
+        final int rank = buf.getInt();
+        if (rank < 0 || rank > 64) {
+            throw new IOException("Invalid tensor rank " + rank);
+        }
+
+        final ByteBuffer shapeBuf = ByteBuffer.allocate(4 * rank).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, shapeBuf);
+        header.shape = new int[rank];
+        for (int i = 0; i < rank; i++) {
+            header.shape[i] = shapeBuf.getInt();
+            if (header.shape[i] < 0) {
+                throw new IOException("Invalid tensor dimension " + header.shape[i]);
+            }
+        }
+        return header;
+    }
+
+    private static void readValues(final ReadableByteChannel channel, final Header header, final Tensor tensor) throws IOException {
+        final int size = tensor.size();
+        final int bytesPerValue = header.dataType == FLOAT32 ? 4 : 2;
+        final boolean rawCopy = header.dataType != FLOAT32 && header.dataType == dataTypeOf(tensor);
+        final boolean arrayCopy = header.dataType == FLOAT32 && tensor.hasArray() && tensor.isContiguous();
+
+        final CRC32 crc = header.checksum ? new CRC32() : null;
+        final ByteBuffer buf = ByteBuffer.allocate(Math.min(BUFFER_SIZE, Math.max(4, size * bytesPerValue))).order(ByteOrder.LITTLE_ENDIAN);
+        final int chunk = buf.capacity() / bytesPerValue;
+
+        for (int pos = 0; pos < size; pos += chunk) {
+            final int len = Math.min(chunk, size - pos);
+            buf.clear().limit(len * bytesPerValue);
+            readFully(channel, buf);
+            if (crc != null) {
+                crc.update(buf.array(), 0, buf.limit());
+            }
+
+            if (rawCopy) {
+                buf.asShortBuffer().get(((HalfStorage) tensor.getStorage()).getRawValues(), tensor.getOffset() + pos, len);
+            } else if (arrayCopy) {
+                buf.asFloatBuffer().get(tensor.getValues(), tensor.getOffset() + pos, len);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    final float val;
+                    if (header.dataType == FLOAT32) {
+                        val = buf.getFloat(i * 4);
+                    } else if (header.dataType == FLOAT16) {
+                        val = HalfStorage.halfToFloat(buf.getShort(i * 2));
+                    } else {
+                        val = HalfStorage.bfloat16ToFloat(buf.getShort(i * 2));
+                    }
+                    tensor.set(pos + i, val);
+                }
+            }
+        }
+
+        if (crc != null) {
+            final ByteBuffer sum = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, sum);
+            if (sum.getInt() != (int) crc.getValue()) {
+                throw new IOException("Tensor checksum does not match, data is corrupted");
+            }
+        }
+    }
+
+    private static void writeFully(final WritableByteChannel channel, final ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static void readFully(final ReadableByteChannel channel, final ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new EOFException("Unexpected end of tensor data");
+            }
+        }
+        buf.flip();
+    }
+
+}
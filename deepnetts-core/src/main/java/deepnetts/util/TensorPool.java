@@ -0,0 +1,334 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Pool of reusable tensors, used for temporary (scratch) tensors in training and
+ * inference loops, so they do not allocate new memory in each iteration.
+ *
+ * Backing arrays are grouped by size classes (powers of two), and released tensors
+ * are reused for the next request of the same size class. If released tensor has
+ * the same shape as requested, the tensor object itself is reused too, so
+ * iterations which acquire the same shapes run without any allocation.
+ *
+ * Tensors can be released one by one, or all at once using scope:
+ * <pre>
+ * try (TensorPool.Scope scope = pool.scope()) {
+ *     Tensor tmp = pool.acquire(rows, cols);
+ *     ...
+ * } // all tensors acquired in scope are released here
+ * </pre>
+ *
+ * In debug mode (-Ddeepnetts.pool.debug=true or setDebug(true)) pool remembers
+ * where each tensor was acquired, reports tensors which were never released when
+ * pool is closed, and fills released tensors with NaN so use after release is easy to spot.
+ *
+ * Pool is not thread safe, use {@link #local()} to get pool for the current thread.
+ *
+ * @author Zoran Sevarac
+ */
+public final class TensorPool implements AutoCloseable {
+
+    private static final int SIZE_CLASSES = 32;
+
+    private static final ThreadLocal<TensorPool> LOCAL = ThreadLocal.withInitial(TensorPool::new);
+
+    /**
+     * Released tensors, grouped by size class of their backing arrays.
+     */
+    private final ArrayList<ArrayList<Tensor>> buckets;
+
+    /**
+     * Tensors which are acquired and not yet released, in order of acquisition.
+     */
+    private final ArrayList<Tensor> acquired = new ArrayList<>();
+
+    /**
+     * Scope objects, reused for each nesting level.
+     */
+    private final ArrayList<Scope> scopes = new ArrayList<>();
+    private int scopeDepth = 0;
+
+    private boolean debug = Boolean.getBoolean("deepnetts.pool.debug");
+
+    /**
+     * Places where acquired tensors were taken from pool, kept only in debug mode.
+     */
+    private final Map<Tensor, Throwable> acquiredAt = new IdentityHashMap<>();
+
+    public TensorPool() {
+        buckets = new ArrayList<>(SIZE_CLASSES);
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            buckets.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Returns tensor pool for the current thread.
+     *
+     * @return pool for current thread
+     */
+    public static TensorPool local() {
+        return LOCAL.get();
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * Enables or disables debug mode, which tracks tensors that were not released.
+     *
+     * @param debug true to enable leak detection
+     */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+        if (!debug) {
+            acquiredAt.clear();
+        }
+    }
+
+    /**
+     * Returns tensor with specified shape filled with zeros, from the pool if possible.
+     * Returned tensor should be released when it is no longer needed.
+     * In hot loops pass the same shape array each time, since varargs call creates new array.
+     *
+     * @param shape size of each dimension
+     * @return contiguous heap tensor filled with zeros
+     */
+    public Tensor acquire(final int... shape) {
+        final Tensor tensor = take(shape);
+        tensor.fill(0);
+        return tensor;
+    }
+
+    /**
+     * Returns pooled tensor with the same shape and values as specified tensor.
+     *
+     * @param src tensor to copy
+     * @return contiguous heap tensor with copied values
+     */
+    public Tensor copyOf(final Tensor src) {
+        final Tensor tensor = take(src.getShape());
+        Tensor.copy(src, tensor);
+        return tensor;
+    }
+
+    /**
+     * Returns pooled array with at least specified length. Array content is undefined.
+     *
+     * @param length minimal array length
+     * @return array from pool
+     */
+    public float[] acquireArray(final int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Array length cannot be negative: " + length);
+        }
+        final ArrayList<Tensor> bucket = buckets.get(sizeClass(length));
+        final Tensor tensor = bucket.isEmpty() ? Tensor.wrap(new float[1 << sizeClass(length)], new int[]{length})
+                                               : removeAt(bucket, bucket.size() - 1); // any tensor from size class will do
+        register(tensor);
+        return tensor.getValues();
+    }
+
+    private Tensor take(final int[] shape) {
+        int size = 1;
+        for (int dim : shape) {
+            if (dim < 0) {
+                throw new IllegalArgumentException("Tensor dimensions cannot be negative: " + dim);
+            }
+            size *= dim;
+        }
+
+        final ArrayList<Tensor> bucket = buckets.get(sizeClass(size));
+        Tensor tensor = null;
+        for (int i = bucket.size() - 1; i >= 0; i--) { // prefer tensor with the same shape, to reuse tensor object too
+            if (bucket.get(i).hasShape(shape)) {
+                tensor = removeAt(bucket, i);
+                break;
+            }
+        }
+        if (tensor == null) {
+            final float[] values = bucket.isEmpty() ? new float[1 << sizeClass(size)] : removeAt(bucket, bucket.size() - 1).getValues();
+            tensor = Tensor.wrap(values, shape.clone());
+        }
+
+        register(tensor);
+        return tensor;
+    }
+
+    private void register(final Tensor tensor) {
+        acquired.add(tensor);
+        if (debug) {
+            acquiredAt.put(tensor, new Throwable("Tensor acquired here"));
+        }
+    }
+
+    /**
+     * Returns specified tensor to the pool. Tensor should not be used after this.
+     *
+     * @param tensor tensor acquired from this pool
+     * @throws IllegalArgumentException if tensor was not acquired from this pool, or it is already released
+     */
+    public void release(final Tensor tensor) {
+        for (int i = acquired.size() - 1; i >= 0; i--) {
+            if (acquired.get(i) == tensor) {
+                recycle(removeAcquired(i));
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Tensor was not acquired from this pool or it is already released");
+    }
+
+    /**
+     * Returns array acquired with {@link #acquireArray(int)} to the pool.
+     *
+     * @param array array acquired from this pool
+     */
+    public void releaseArray(final float[] array) {
+        for (int i = acquired.size() - 1; i >= 0; i--) {
+            if (acquired.get(i).getValues() == array) {
+                recycle(removeAcquired(i));
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Array was not acquired from this pool or it is already released");
+    }
+
+    /**
+     * Removes tensor at specified position from acquired tensors, keeping their order.
+     * If tensor was acquired before some open scope, start of that scope moves too,
+     * so the scope still releases exactly the tensors acquired in it.
+     */
+    private Tensor removeAcquired(final int idx) {
+        for (int d = 0; d < scopeDepth; d++) {
+            final Scope scope = scopes.get(d);
+            if (scope.mark > idx) {
+                scope.mark--;
+            }
+        }
+        return acquired.remove(idx);
+    }
+
+    private void recycle(final Tensor tensor) {
+        if (debug) {
+            acquiredAt.remove(tensor);
+            Tensor.fill(tensor.getValues(), Float.NaN);
+        }
+        final float[] values = tensor.getValues();
+        buckets.get(Integer.numberOfTrailingZeros(values.length)).add(tensor);
+    }
+
+    /**
+     * Starts new scope. All tensors acquired after this call are released when scope is closed.
+     * Tensors acquired before the scope can still be released one by one inside it.
+     * Scopes can be nested, and have to be closed in reverse order.
+     *
+     * @return scope to close
+     */
+    public Scope scope() {
+        if (scopeDepth == scopes.size()) {
+            scopes.add(new Scope());
+        }
+        final Scope scope = scopes.get(scopeDepth++);
+        scope.mark = acquired.size();
+        scope.open = true;
+        return scope;
+    }
+
+    /**
+     * Returns number of tensors that are acquired and not released.
+     *
+     * @return number of acquired tensors
+     */
+    public int getAcquiredCount() {
+        return acquired.size();
+    }
+
+    /**
+     * Releases all tensors and empties the pool.
+     *
+     * @throws IllegalStateException in debug mode, if some tensors were not released
+     */
+    @Override
+    public void close() {
+        final int leaked = acquired.size();
+        Throwable firstLeak = null; // place where the first leaked tensor was acquired, if it is known
+        for (int i = 0; i < leaked && firstLeak == null; i++) {
+            firstLeak = acquiredAt.get(acquired.get(i));
+        }
+
+        acquired.clear();
+        acquiredAt.clear();
+        for (ArrayList<Tensor> bucket : buckets) {
+            bucket.clear();
+        }
+        scopeDepth = 0;
+
+        if (debug && leaked > 0) {
+            throw new IllegalStateException(leaked + " tensor(s) were acquired from pool and never released", firstLeak);
+        }
+    }
+
+    private static int sizeClass(final int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    private static <T> T removeAt(final ArrayList<T> list, final int idx) { // swap with last, order of pooled tensors does not matter
+        final int last = list.size() - 1;
+        final T item = list.get(idx);
+        list.set(idx, list.get(last));
+        list.remove(last);
+        return item;
+    }
+
+    /**
+     * Scope which releases all tensors acquired after it was started, when it is closed.
+     */
+    public final class Scope implements AutoCloseable {
+
+        private int mark;
+        private boolean open;
+
+        private Scope() { }
+
+        @Override
+        public void close() {
+            if (!open) {
+                return;
+            }
+            if (scopes.get(scopeDepth - 1) != this) {
+                throw new IllegalStateException("Nested scopes must be closed first");
+            }
+            for (int i = acquired.size() - 1; i >= mark; i--) {
+                recycle(acquired.remove(i));
+            }
+            open = false;
+            scopeDepth--;
+        }
+    }
+
+}
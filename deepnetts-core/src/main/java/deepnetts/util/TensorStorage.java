@@ -0,0 +1,73 @@
+/**  
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation 
+ *  based learning and image recognition.
+ * 
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import java.io.Serializable;
+
+/**
+ * Storage for tensor values which are not kept in regular heap float array.
+ * Tensor uses its values array directly for heap storage, and this interface
+ * for all other kinds of storage.
+ *
+ * @see Tensor
+ * @see DirectStorage
+ * @author Zoran Sevarac
+ */
+public interface TensorStorage extends Serializable, AutoCloseable {
+
+    /**
+     * Returns value at specified position.
+     *
+     * @param idx position in storage
+     * @return value at specified position
+     */
+    public float get(int idx);
+
+    /**
+     * Sets value at specified position.
+     *
+     * @param idx position in storage
+     * @param val value to set
+     */
+    public void set(int idx, float val);
+
+    /**
+     * Returns number of values in this storage.
+     *
+     * @return storage size
+     */
+    public int size();
+
+    /**
+     * Returns type of this storage.
+     *
+     * @return storage type
+     */
+    public StorageType getType();
+
+    /**
+     * Releases resources used by this storage. Storage can not be used after it is closed.
+     */
+    @Override
+    public void close();
+
+}
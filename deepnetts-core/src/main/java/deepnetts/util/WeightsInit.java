@@ -43,6 +43,18 @@ public class WeightsInit {
            array[i] = randomGen.nextFloat()- 0.5f;
         }
     }
+
+    /**
+     * Fills the specified tensor with random numbers in range [-0.5, 0.5].
+     * Works for tensors with any storage type.
+     *
+     * @param tensor tensor to randomize
+     */
+    public static void randomize(Tensor tensor) {
+        float[] array = new float[tensor.size()];
+        randomize(array);
+        tensor.copyFrom(array);
+    }
   
         
     public static void widrowHoff(float[] array, float input, float hidden) {         
@@ -82,6 +94,18 @@ public class WeightsInit {
            array[i] =  min + (randomGen.nextFloat()* (max-min));
         }        
     }
+
+    /**
+     * Uniform U[-a,a] with a=1/sqrt(in), for tensors with any storage type.
+     *
+     * @param tensor tensor to initialize
+     * @param in number of inputs, a size of the previous layer
+     */
+    public static void uniform(Tensor tensor, int in) {
+        float[] array = new float[tensor.size()];
+        uniform(array, in);
+        tensor.copyFrom(array);
+    }
     
     // s = sqrt(6/(fanIn + fanOut))
     /**
@@ -101,6 +125,19 @@ public class WeightsInit {
            array[i] =  min + (randomGen.nextFloat() * (max-min));
         }            
     }
+
+    /**
+     * Normalized initialization U[-a,a] with a = sqrt(6/(in + out)), for tensors with any storage type.
+     *
+     * @param tensor tensor to initialize
+     * @param in  size of the previous layer (number of inputs)
+     * @param out size of initialized layer (number of outputs)
+     */
+    public static void xavier(Tensor tensor, int in, int out) {
+        float[] array = new float[tensor.size()];
+        xavier(array, in, out);
+        tensor.copyFrom(array);
+    }
     
 
 }
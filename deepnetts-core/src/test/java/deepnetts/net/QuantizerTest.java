@@ -0,0 +1,198 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net;
+
+import deepnetts.data.BasicDataSet;
+import deepnetts.data.BasicDataSetItem;
+import deepnetts.eval.QuantizationReport;
+import deepnetts.net.layers.AbstractLayer;
+import deepnetts.net.layers.ConvolutionAlgorithm;
+import deepnetts.net.layers.ConvolutionalLayer;
+import deepnetts.net.layers.FullyConnectedLayer;
+import deepnetts.net.layers.GroupedConvolutionalLayer;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that int8 convolutional and fully connected layers give outputs close to
+ * float layers, and that quantized layers can not be trained.
+ */
+public class QuantizerTest {
+
+    private static final int WIDTH = 10, HEIGHT = 9, DEPTH = 2, OUTPUTS = 3;
+
+    /**
+     * Allowed difference relative to the largest float output of a layer: inputs and
+     * weights are rounded to 1/255 and 1/254 of their range, and errors add up over layers.
+     */
+    private static final float TOLERANCE = 0.05f;
+
+    @Test
+    public void quantizedOutputsAreCloseToFloatOutputs() {
+        ConvolutionalNetwork network = network();
+        BasicDataSet dataSet = dataSet();
+        List<float[][]> floatOutputs = new ArrayList<>();
+        for (int i = 0; i < dataSet.size(); i++) {
+            floatOutputs.add(layerOutputs(network, dataSet.get(i).getInput()));
+        }
+
+        Quantizer.quantize(network, dataSet);
+        ConvolutionalLayer conv = (ConvolutionalLayer) network.getLayers().get(1);
+        FullyConnectedLayer afterPooling = (FullyConnectedLayer) network.getLayers().get(3);
+        FullyConnectedLayer afterFullyConnected = (FullyConnectedLayer) network.getLayers().get(4);
+        assertTrue(conv.isQuantized());
+        assertTrue(afterPooling.isQuantized());       // weights [neurons][inputs]
+        assertTrue(afterFullyConnected.isQuantized()); // weights [inputs][neurons]
+        assertEquals(StorageType.HEAP, network.getOutputLayer().getWeights().getStorageType());
+
+        for (int i = 0; i < dataSet.size(); i++) {
+            float[][] expected = floatOutputs.get(i);
+            float[][] actual = layerOutputs(network, dataSet.get(i).getInput());
+            for (int layer = 1; layer < expected.length; layer++) {
+                assertClose("item " + i + " layer " + layer, expected[layer], actual[layer]);
+            }
+        }
+    }
+
+    @Test
+    public void quantizedLayersCannotBeTrained() {
+        ConvolutionalNetwork network = network();
+        BasicDataSet dataSet = dataSet();
+        Quantizer.quantize(network, dataSet);
+        network.setInput(dataSet.get(0).getInput());
+
+        for (int i : new int[] {1, 3, 4}) {
+            AbstractLayer layer = network.getLayers().get(i);
+            try {
+                layer.backward();
+                fail(layer.getClass().getSimpleName() + " should not be trained when quantized");
+            } catch (IllegalStateException expected) {
+            }
+        }
+
+        network.setStorageType(StorageType.HEAP); // back to float weights, which can be trained again
+        assertFalse(((ConvolutionalLayer) network.getLayers().get(1)).isQuantized());
+        assertFalse(((FullyConnectedLayer) network.getLayers().get(3)).isQuantized());
+        network.setInput(dataSet.get(0).getInput());
+        network.setOutputError(new float[] {0.1f, -0.2f, 0.1f});
+        network.backward();
+    }
+
+    /**
+     * Grouped convolutional layers keep float filters, which are counted in both sizes of the report.
+     */
+    @Test
+    public void reportCountsFloatFiltersOfGroupedLayers() {
+        ConvolutionalNetwork network = ConvolutionalNetwork.builder()
+                .randomSeed(123)
+                .addInputLayer(WIDTH, HEIGHT, DEPTH)
+                .addGroupedConvolutionalLayer(3, 3, 1, 4, 2, ActivationType.RELU)
+                .addConvolutionalLayer(3, 3, 1, 4, ActivationType.RELU, ConvolutionAlgorithm.DIRECT)
+                .addFullyConnectedLayer(8, ActivationType.TANH)
+                .addOutputLayer(OUTPUTS, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .build();
+        GroupedConvolutionalLayer grouped = (GroupedConvolutionalLayer) network.getLayers().get(1);
+        ConvolutionalLayer conv = (ConvolutionalLayer) network.getLayers().get(2);
+        long groupedValues = sizeOf(grouped.getFilters());
+        long convValues = sizeOf(conv.getFilters());
+        long fullyConnectedValues = network.getLayers().get(3).getWeights().size();
+        long outputValues = network.getOutputLayer().getWeights().size();
+
+        BasicDataSet dataSet = dataSet();
+        QuantizationReport report = Quantizer.quantize(network, dataSet, dataSet);
+        assertEquals(4 * (groupedValues + convValues + fullyConnectedValues + outputValues), report.getFloatWeightsBytes());
+        assertEquals(4 * groupedValues + convValues + fullyConnectedValues + 4 * outputValues, report.getQuantizedWeightsBytes());
+        assertEquals(StorageType.HEAP, grouped.getFilters()[0].getStorageType());
+        assertTrue(conv.isQuantized());
+    }
+
+    private static ConvolutionalNetwork network() {
+        return ConvolutionalNetwork.builder()
+                .randomSeed(123)
+                .addInputLayer(WIDTH, HEIGHT, DEPTH)
+                .addConvolutionalLayer(3, 3, 1, 4, ActivationType.RELU, ConvolutionAlgorithm.DIRECT)
+                .addMaxPoolingLayer(2, 2)
+                .addFullyConnectedLayer(8, ActivationType.TANH)
+                .addFullyConnectedLayer(6, ActivationType.TANH)
+                .addOutputLayer(OUTPUTS, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .build();
+    }
+
+    private static float[][] layerOutputs(NeuralNetwork<?> network, Tensor input) {
+        network.setInput(input);
+        float[][] outputs = new float[network.getLayers().size()][];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = network.getLayers().get(i).getOutputs().toArray();
+        }
+        return outputs;
+    }
+
+    private static BasicDataSet dataSet() {
+        Random random = new Random(7);
+        BasicDataSet dataSet = new BasicDataSet(WIDTH * HEIGHT * DEPTH, OUTPUTS);
+        for (int i = 0; i < 10; i++) {
+            float[] input = new float[WIDTH * HEIGHT * DEPTH];
+            for (int k = 0; k < input.length; k++) {
+                input[k] = random.nextFloat();
+            }
+            float[] target = new float[OUTPUTS];
+            target[i % OUTPUTS] = 1;
+            dataSet.add(new BasicDataSetItem(new Tensor(HEIGHT, WIDTH, DEPTH, input), target));
+        }
+        String[] columnNames = new String[WIDTH * HEIGHT * DEPTH + OUTPUTS];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnNames[i] = "col" + i;
+        }
+        dataSet.setColumnNames(columnNames);
+        return dataSet;
+    }
+
+    private static long sizeOf(Tensor[] tensors) {
+        long size = 0;
+        for (Tensor tensor : tensors) {
+            size += tensor.size();
+        }
+        return size;
+    }
+
+    private static void assertClose(String message, float[] expected, float[] actual) {
+        float max = 0;
+        for (float value : expected) {
+            max = Math.max(max, Math.abs(value));
+        }
+        assertArrayEquals(message, expected, actual, TOLERANCE * max);
+    }
+
+}
@@ -0,0 +1,144 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.Layout;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks outputs and propagated deltas of average and global average pooling layers
+ * against averages calculated with simple loops, for fast and generic kernels.
+ */
+public class AveragePoolingLayerTest {
+
+    private static final int WIDTH = 9, HEIGHT = 8, DEPTH = 3;
+    private static final float TOLERANCE = 1e-6f;
+
+    @Test
+    public void commonFilterUsesAverageOfFilterArea() {
+        check(2, 2, 2, StorageType.HEAP, Layout.NCHW);
+    }
+
+    @Test
+    public void otherFiltersUseAverageOfFilterArea() {
+        check(3, 2, 1, StorageType.HEAP, Layout.NCHW);
+        check(3, 3, 2, StorageType.HEAP, Layout.NCHW);
+    }
+
+    @Test
+    public void genericLoopsUseAverageOfFilterArea() {
+        check(2, 2, 2, StorageType.OFF_HEAP, Layout.NCHW);
+        check(3, 2, 1, StorageType.HEAP, Layout.NHWC);
+    }
+
+    private static void check(int filterWidth, int filterHeight, int stride, StorageType storageType, Layout layout) {
+        ConvolutionalNetwork network = ConvolutionalNetwork.builder()
+                .randomSeed(123)
+                .addInputLayer(WIDTH, HEIGHT, DEPTH)
+                .addConvolutionalLayer(3, 3, 1, DEPTH, ActivationType.TANH)
+                .addAveragePoolingLayer(filterWidth, filterHeight, stride)
+                .addGlobalAveragePoolingLayer()
+                .addFullyConnectedLayer(4, ActivationType.TANH)
+                .addOutputLayer(2, ActivationType.SIGMOID)
+                .lossFunction(LossType.MEAN_SQUARED_ERROR)
+                .storageType(storageType)
+                .layout(layout)
+                .build();
+        String message = filterWidth + "x" + filterHeight + " stride " + stride + " " + storageType + " " + layout;
+
+        Tensor input = Tensor.create(StorageType.HEAP, DEPTH, HEIGHT, WIDTH);
+        Random random = new Random(7);
+        for (int i = 0; i < input.size(); i++) {
+            input.set(i, random.nextFloat() * 2 - 1);
+        }
+        network.setInput(input);
+        network.setOutputError(new float[] {0.5f, -0.3f});
+        network.backward();
+
+        ConvolutionalLayer conv = (ConvolutionalLayer) network.getLayers().get(1);
+        AveragePoolingLayer pooling = (AveragePoolingLayer) network.getLayers().get(2);
+        GlobalAveragePoolingLayer globalPooling = (GlobalAveragePoolingLayer) network.getLayers().get(3);
+        Tensor convOutputs = conv.getOutputs();
+        Tensor outputs = pooling.getOutputs();
+        Tensor deltas = pooling.getDeltas();
+        float scale = 1f / (filterWidth * filterHeight);
+
+        // forward pass of both layers
+        for (int ch = 0; ch < DEPTH; ch++) {
+            float channelSum = 0;
+            for (int r = 0; r < pooling.getHeight(); r++) {
+                for (int c = 0; c < pooling.getWidth(); c++) {
+                    float sum = 0;
+                    for (int fr = 0; fr < filterHeight; fr++) {
+                        for (int fc = 0; fc < filterWidth; fc++) {
+                            sum += convOutputs.get(r * stride + fr, c * stride + fc, ch);
+                        }
+                    }
+                    assertEquals(message + " output", sum * scale, outputs.get(r, c, ch), TOLERANCE);
+                    channelSum += outputs.get(r, c, ch);
+                }
+            }
+            float average = channelSum / (pooling.getHeight() * pooling.getWidth());
+            assertEquals(message + " global average", average, globalPooling.getOutputs().get(0, 0, ch), TOLERANCE);
+
+            // global average pooling spreads its delta evenly over all inputs
+            float globalDelta = globalPooling.getDeltas().get(0, 0, ch) / (pooling.getHeight() * pooling.getWidth());
+            for (int r = 0; r < pooling.getHeight(); r++) {
+                for (int c = 0; c < pooling.getWidth(); c++) {
+                    assertEquals(message + " delta", globalDelta, deltas.get(r, c, ch), TOLERANCE);
+                }
+            }
+        }
+
+        // average pooling adds share of each delta to all inputs in its filter area
+        Tensor expected = Tensor.create(StorageType.HEAP, DEPTH, conv.getHeight(), conv.getWidth());
+        for (int ch = 0; ch < DEPTH; ch++) {
+            for (int r = 0; r < pooling.getHeight(); r++) {
+                for (int c = 0; c < pooling.getWidth(); c++) {
+                    for (int fr = 0; fr < filterHeight; fr++) {
+                        for (int fc = 0; fc < filterWidth; fc++) {
+                            expected.add(r * stride + fr, c * stride + fc, ch, deltas.get(r, c, ch) * scale);
+                        }
+                    }
+                }
+            }
+        }
+        Tensor convDeltas = conv.getDeltas();
+        for (int ch = 0; ch < DEPTH; ch++) {
+            for (int r = 0; r < conv.getHeight(); r++) {
+                for (int c = 0; c < conv.getWidth(); c++) {
+                    float derivative = 1 - convOutputs.get(r, c, ch) * convOutputs.get(r, c, ch); // tanh
+                    assertEquals(message + " input delta", expected.get(r, c, ch) * derivative, convDeltas.get(r, c, ch), TOLERANCE);
+                }
+            }
+        }
+        network.close();
+    }
+
+}
@@ -0,0 +1,202 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
+import deepnetts.util.TensorPool;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that all convolution algorithms give the same outputs, deltas and
+ * weight changes as direct convolution.
+ */
+public class ConvolutionAlgorithmTest {
+
+    private static final int WIDTH = 13, HEIGHT = 11, DEPTH = 3;
+
+    /**
+     * Allowed difference relative to the largest expected value, since algorithms add values in different order.
+     */
+    private static final float TOLERANCE = 1e-4f;
+
+    /**
+     * Allowed difference when only rounding of a single matrix-vector product differs.
+     */
+    private static final float ROUNDING_TOLERANCE = 1e-5f;
+
+    @Test
+    public void gemmMatchesDirect() {
+        assertSameAsDirect(ConvolutionAlgorithm.GEMM, ConvolutionAlgorithm.GEMM, 1, 1);
+        assertSameAsDirect(ConvolutionAlgorithm.GEMM, ConvolutionAlgorithm.GEMM, 3, 1);
+        assertSameAsDirect(ConvolutionAlgorithm.GEMM, ConvolutionAlgorithm.GEMM, 5, 2);
+    }
+
+    @Test
+    public void winogradMatchesDirect() {
+        assertSameAsDirect(ConvolutionAlgorithm.WINOGRAD, ConvolutionAlgorithm.WINOGRAD, 3, 1);
+    }
+
+    /**
+     * Feature maps smaller than 8x8 use F(2x2,3x3) tiles instead of F(4x4,3x3).
+     */
+    @Test
+    public void winogradMatchesDirectForSmallMaps() {
+        assertSameAsDirect(ConvolutionAlgorithm.WINOGRAD, ConvolutionAlgorithm.WINOGRAD, 3, 1, 7, 5);
+        assertSameAsDirect(ConvolutionAlgorithm.WINOGRAD, ConvolutionAlgorithm.WINOGRAD, 3, 1, 6, 6);
+        assertSameAsDirect(ConvolutionAlgorithm.WINOGRAD, ConvolutionAlgorithm.WINOGRAD, 3, 1, 9, 4); // only one side is large
+    }
+
+    @Test
+    public void winogradReturnsScratchArraysToPool() {
+        int acquired = TensorPool.local().getAcquiredCount();
+        run(ConvolutionAlgorithm.WINOGRAD, 3, 1, StorageType.HEAP, WIDTH, HEIGHT);
+        run(ConvolutionAlgorithm.WINOGRAD, 3, 1, StorageType.HEAP, 5, 5);
+        assertEquals(acquired, TensorPool.local().getAcquiredCount());
+    }
+
+    @Test
+    public void winogradFallsBackToDirectForOtherFilters() {
+        assertSameAsDirect(ConvolutionAlgorithm.WINOGRAD, ConvolutionAlgorithm.DIRECT, 5, 1);
+    }
+
+    @Test
+    public void fftMatchesDirect() {
+        assertSameAsDirect(ConvolutionAlgorithm.FFT, ConvolutionAlgorithm.FFT, 5, 1);
+        assertSameAsDirect(ConvolutionAlgorithm.FFT, ConvolutionAlgorithm.FFT, 7, 1);
+    }
+
+    /**
+     * Specialized kernels for 1x1, 3x3 and 5x5 filters are used only for heap storage,
+     * and add values in the same order as generic loops used for off-heap storage,
+     * so outputs are exactly the same. Fully connected layer after them uses
+     * matrix-vector product only on heap, so deltas differ by rounding.
+     */
+    @Test
+    public void specializedKernelsMatchGenericLoops() {
+        for (int filterSize : new int[] {1, 3, 5}) {
+            for (int stride : new int[] {1, 2}) {
+                Result heap = run(ConvolutionAlgorithm.DIRECT, filterSize, stride, StorageType.HEAP, WIDTH, HEIGHT);
+                Result offHeap = run(ConvolutionAlgorithm.DIRECT, filterSize, stride, StorageType.OFF_HEAP, WIDTH, HEIGHT);
+                String message = filterSize + "x" + filterSize + " stride " + stride;
+                assertEquals(filterSize, heap.directKernel);
+                assertArrayEquals(message + " outputs", heap.outputs, offHeap.outputs, 0);
+                assertSameResults(message, heap, offHeap, ROUNDING_TOLERANCE);
+            }
+        }
+    }
+
+    private static void assertSameAsDirect(ConvolutionAlgorithm algorithm, ConvolutionAlgorithm expectedUsed, int filterSize, int stride) {
+        assertSameAsDirect(algorithm, expectedUsed, filterSize, stride, WIDTH, HEIGHT);
+    }
+
+    private static void assertSameAsDirect(ConvolutionAlgorithm algorithm, ConvolutionAlgorithm expectedUsed, int filterSize, int stride,
+                                           int width, int height) {
+        Result expected = run(ConvolutionAlgorithm.DIRECT, filterSize, stride, StorageType.HEAP, width, height);
+        Result actual = run(algorithm, filterSize, stride, StorageType.HEAP, width, height);
+        assertEquals(expectedUsed, actual.usedAlgorithm);
+        assertSameResults(algorithm + " " + filterSize + "x" + filterSize + " stride " + stride + " on " + width + "x" + height,
+                          expected, actual, TOLERANCE);
+    }
+
+    private static void assertSameResults(String message, Result expected, Result actual, float tolerance) {
+        assertClose(message + " outputs", expected.outputs, actual.outputs, tolerance);
+        assertClose(message + " input deltas", expected.inputDeltas, actual.inputDeltas, tolerance);
+        assertClose(message + " delta weights", expected.deltaWeights, actual.deltaWeights, tolerance);
+        assertClose(message + " network output", expected.networkOutput, actual.networkOutput, tolerance);
+    }
+
+    private static void assertClose(String message, float[] expected, float[] actual, float tolerance) {
+        float max = 0;
+        for (float value : expected) {
+            max = Math.max(max, Math.abs(value));
+        }
+        assertArrayEquals(message, expected, actual, tolerance * max);
+    }
+
+    /**
+     * Runs forward and backward pass of network with tested layer after direct convolutional layer,
+     * so deltas propagated by tested layer to previous layer are checked too.
+     */
+    private static Result run(ConvolutionAlgorithm algorithm, int filterSize, int stride, StorageType storageType, int width, int height) {
+        ConvolutionalNetwork network = ConvolutionalNetwork.builder()
+                .randomSeed(123)
+                .addInputLayer(width, height, DEPTH)
+                .addConvolutionalLayer(3, 3, 1, 4, ActivationType.TANH, ConvolutionAlgorithm.DIRECT)
+                .addConvolutionalLayer(filterSize, filterSize, stride, 5, ActivationType.TANH, algorithm)
+                .addFullyConnectedLayer(6, ActivationType.TANH)
+                .addOutputLayer(3, ActivationType.SIGMOID)
+                .lossFunction(LossType.MEAN_SQUARED_ERROR)
+                .storageType(storageType)
+                .build();
+
+        Random random = new Random(7);
+        float[] input = new float[width * height * DEPTH];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = random.nextFloat() * 2 - 1;
+        }
+        network.setInput(new Tensor(height, width, DEPTH, input));
+        network.setOutputError(new float[] {0.3f, -0.2f, 0.1f});
+        network.backward();
+
+        ConvolutionalLayer previous = (ConvolutionalLayer) network.getLayers().get(1);
+        ConvolutionalLayer tested = (ConvolutionalLayer) network.getLayers().get(2);
+        Result result = new Result();
+        result.usedAlgorithm = tested.getUsedAlgorithm();
+        result.directKernel = tested.directKernel;
+        result.outputs = tested.getOutputs().toArray();
+        result.inputDeltas = previous.getDeltas().toArray();
+        result.deltaWeights = valuesOf(tested.getFilterDeltaWeights());
+        result.networkOutput = network.getOutputLayer().getOutputs().toArray();
+        network.close();
+        return result;
+    }
+
+    private static float[] valuesOf(Tensor[] tensors) {
+        float[][] values = new float[tensors.length][];
+        int size = 0;
+        for (int i = 0; i < tensors.length; i++) {
+            values[i] = tensors[i].toArray();
+            size += values[i].length;
+        }
+        float[] all = new float[size];
+        int pos = 0;
+        for (float[] v : values) {
+            System.arraycopy(v, 0, all, pos, v.length);
+            pos += v.length;
+        }
+        return all;
+    }
+
+    private static final class Result {
+        ConvolutionAlgorithm usedAlgorithm;
+        int directKernel;
+        float[] outputs, inputDeltas, deltaWeights, networkOutput;
+    }
+
+}
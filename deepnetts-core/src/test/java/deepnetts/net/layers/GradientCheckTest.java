@@ -0,0 +1,155 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.Layout;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares filter gradients of grouped and depthwise convolutional layers with
+ * numerical gradients of the loss. Average and global average pooling layers are
+ * between them, so their backward passes are checked too.
+ */
+public class GradientCheckTest {
+
+    private static final int WIDTH = 9, HEIGHT = 8, DEPTH = 4;
+    private static final float[] TARGET = {0.2f, 0.9f, 0.4f};
+
+    /**
+     * Step used for numerical gradient.
+     */
+    private static final float EPSILON = 1e-2f;
+
+    /**
+     * Allowed difference between gradients, relative to the largest gradient of the layer.
+     */
+    private static final double TOLERANCE = 2e-2;
+
+    @Test
+    public void groupedLayerAndPoolingPassGradientCheck() {
+        checkGradients(StorageType.HEAP, Layout.NCHW, 0);
+    }
+
+    @Test
+    public void depthwiseLayerAndPoolingPassGradientCheck() {
+        checkGradients(StorageType.HEAP, Layout.NCHW, 2);
+    }
+
+    @Test
+    public void gradientsAreTheSameInNhwcLayout() {
+        checkGradients(StorageType.HEAP, Layout.NHWC, 0);
+        checkGradients(StorageType.HEAP, Layout.NHWC, 2);
+    }
+
+    @Test
+    public void gradientsAreTheSameWithOffHeapStorage() {
+        checkGradients(StorageType.OFF_HEAP, Layout.NCHW, 0);
+        checkGradients(StorageType.OFF_HEAP, Layout.NCHW, 2);
+    }
+
+    /**
+     * Checks gradients of all filters of grouped convolutional layer at specified position in network.
+     */
+    private static void checkGradients(StorageType storageType, Layout layout, int layerIdx) {
+        ConvolutionalNetwork network = ConvolutionalNetwork.builder()
+                .randomSeed(123)
+                .addInputLayer(WIDTH, HEIGHT, DEPTH)
+                .addGroupedConvolutionalLayer(3, 3, 1, 6, 2, ActivationType.TANH)
+                .addAveragePoolingLayer(2, 1)
+                .addDepthwiseConvolutionalLayer(3, 3, 1, ActivationType.TANH)
+                .addGlobalAveragePoolingLayer()
+                .addFullyConnectedLayer(5, ActivationType.TANH)
+                .addOutputLayer(TARGET.length, ActivationType.SIGMOID)
+                .lossFunction(LossType.MEAN_SQUARED_ERROR)
+                .storageType(storageType)
+                .layout(layout)
+                .build();
+
+        Tensor input = Tensor.create(StorageType.HEAP, DEPTH, HEIGHT, WIDTH);
+        Random random = new Random(7);
+        for (int i = 0; i < input.size(); i++) {
+            input.set(i, random.nextFloat() * 2 - 1);
+        }
+
+        GroupedConvolutionalLayer layer = (GroupedConvolutionalLayer) network.getLayers().get(layerIdx + 1);
+        float learningRate = layer.getLearningRate();
+        float divisor = layer.getWidth() * layer.getHeight();
+
+        float[] outputs = output(network, input);
+        float[] outputErrors = new float[TARGET.length];
+        for (int i = 0; i < outputErrors.length; i++) {
+            outputErrors[i] = outputs[i] - TARGET[i];
+        }
+        network.setOutputError(outputErrors);
+        network.backward();
+
+        Tensor[] filters = layer.getFilters();
+        Tensor[] deltaWeights = layer.getFilterDeltaWeights();
+        int count = filters.length * filters[0].size();
+        double[] gradients = new double[count];
+        double[] numerical = new double[count];
+        for (int ch = 0, i = 0; ch < filters.length; ch++) {
+            for (int w = 0; w < filters[ch].size(); w++, i++) {
+                gradients[i] = -deltaWeights[ch].get(w) * divisor / learningRate; // weight change is -learningRate * gradient / divisor
+
+                float weight = filters[ch].get(w);
+                filters[ch].set(w, weight + EPSILON);
+                double lossPlus = loss(output(network, input));
+                filters[ch].set(w, weight - EPSILON);
+                double lossMinus = loss(output(network, input));
+                filters[ch].set(w, weight);
+                numerical[i] = (lossPlus - lossMinus) / (2 * EPSILON);
+            }
+        }
+
+        double max = 0, maxDiff = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, Math.abs(numerical[i]));
+            maxDiff = Math.max(maxDiff, Math.abs(numerical[i] - gradients[i]));
+        }
+        String message = layer.getClass().getSimpleName() + " " + storageType + " " + layout + ": max difference " + maxDiff + ", max gradient " + max;
+        assertTrue(message, max > 0 && maxDiff <= TOLERANCE * max);
+        network.close();
+    }
+
+    private static float[] output(ConvolutionalNetwork network, Tensor input) {
+        network.setInput(input);
+        return network.getOutputLayer().getOutputs().toArray();
+    }
+
+    private static double loss(float[] outputs) {
+        double loss = 0;
+        for (int i = 0; i < outputs.length; i++) {
+            double error = outputs[i] - TARGET[i];
+            loss += 0.5 * error * error;
+        }
+        return loss;
+    }
+
+}
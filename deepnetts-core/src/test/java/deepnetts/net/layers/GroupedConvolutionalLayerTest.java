@@ -0,0 +1,183 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.data.BasicDataSet;
+import deepnetts.data.BasicDataSetItem;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.net.train.BackpropagationTrainer;
+import deepnetts.util.Tensor;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that grouped convolutional layer with a single group gives the same
+ * results as convolutional layer with the same filters.
+ */
+public class GroupedConvolutionalLayerTest {
+
+    private static final int WIDTH = 9, HEIGHT = 8, DEPTH = 3, CHANNELS = 4, OUTPUTS = 3;
+    private static final int SAMPLES = 12, BATCH_SIZE = 4;
+
+    /**
+     * Allowed difference relative to the largest expected value, since layers add values in different order.
+     */
+    private static final float TOLERANCE = 1e-4f;
+
+    @Test
+    public void oneGroupMatchesConvolutionalLayerInSinglePass() {
+        for (int stride : new int[] {1, 2}) {
+            ConvolutionalNetwork convNetwork = network(false, stride);
+            ConvolutionalNetwork groupedNetwork = network(true, stride);
+            copyWeights(convNetwork, groupedNetwork);
+            ConvolutionalLayer conv = (ConvolutionalLayer) convNetwork.getLayers().get(1);
+            GroupedConvolutionalLayer grouped = (GroupedConvolutionalLayer) groupedNetwork.getLayers().get(1);
+
+            Tensor input = dataSet().get(0).getInput();
+            convNetwork.setInput(input);
+            groupedNetwork.setInput(input);
+            String message = "stride " + stride;
+            assertClose(message + " outputs", conv.getOutputs().toArray(), grouped.getOutputs().toArray());
+
+            float[] outputError = {0.4f, -0.3f, 0.2f};
+            convNetwork.setOutputError(outputError);
+            groupedNetwork.setOutputError(outputError);
+            convNetwork.backward();
+            groupedNetwork.backward();
+            assertClose(message + " deltas", conv.getDeltas().toArray(), grouped.getDeltas().toArray());
+            assertClose(message + " delta weights", valuesOf(conv.getFilterDeltaWeights()), valuesOf(grouped.getFilterDeltaWeights()));
+            assertClose(message + " delta biases", conv.getDeltaBiases(), grouped.getDeltaBiases());
+        }
+    }
+
+    @Test
+    public void oneGroupMatchesConvolutionalLayerInOnlineTraining() {
+        checkTraining(false);
+    }
+
+    /**
+     * Bias changes of all samples in a batch are added up before they are averaged.
+     */
+    @Test
+    public void oneGroupMatchesConvolutionalLayerInBatchTraining() {
+        checkTraining(true);
+    }
+
+    private static void checkTraining(boolean batchMode) {
+        ConvolutionalNetwork convNetwork = network(false, 1);
+        ConvolutionalNetwork groupedNetwork = network(true, 1);
+        copyWeights(convNetwork, groupedNetwork);
+        train(convNetwork, batchMode);
+        train(groupedNetwork, batchMode);
+
+        ConvolutionalLayer conv = (ConvolutionalLayer) convNetwork.getLayers().get(1);
+        GroupedConvolutionalLayer grouped = (GroupedConvolutionalLayer) groupedNetwork.getLayers().get(1);
+        assertClose("filters", valuesOf(conv.getFilters()), valuesOf(grouped.getFilters()));
+        assertClose("biases", conv.getBiases(), grouped.getBiases());
+        assertClose("output weights", convNetwork.getOutputLayer().getWeights().toArray(), groupedNetwork.getOutputLayer().getWeights().toArray());
+    }
+
+    private static ConvolutionalNetwork network(boolean grouped, int stride) {
+        ConvolutionalNetwork.Builder builder = ConvolutionalNetwork.builder()
+                .randomSeed(123)
+                .addInputLayer(WIDTH, HEIGHT, DEPTH);
+        if (grouped) {
+            builder.addGroupedConvolutionalLayer(3, 3, stride, CHANNELS, 1, ActivationType.TANH);
+        } else {
+            builder.addConvolutionalLayer(3, 3, stride, CHANNELS, ActivationType.TANH, ConvolutionAlgorithm.DIRECT);
+        }
+        return builder.addFullyConnectedLayer(6, ActivationType.TANH)
+                      .addOutputLayer(OUTPUTS, ActivationType.SOFTMAX)
+                      .lossFunction(LossType.CROSS_ENTROPY)
+                      .build();
+    }
+
+    /**
+     * Copies filters, weights and biases of all layers, since layers initialize them differently.
+     */
+    private static void copyWeights(ConvolutionalNetwork from, ConvolutionalNetwork to) {
+        for (int i = 1; i < from.getLayers().size(); i++) {
+            AbstractLayer src = from.getLayers().get(i);
+            AbstractLayer dest = to.getLayers().get(i);
+            if (src instanceof ConvolutionalLayer) {
+                Tensor[] srcFilters = ((ConvolutionalLayer) src).getFilters();
+                Tensor[] destFilters = ((GroupedConvolutionalLayer) dest).getFilters();
+                for (int ch = 0; ch < srcFilters.length; ch++) {
+                    destFilters[ch].copyFrom(srcFilters[ch].toArray());
+                }
+            } else {
+                dest.getWeights().copyFrom(src.getWeights().toArray());
+            }
+            System.arraycopy(src.getBiases(), 0, dest.getBiases(), 0, src.getBiases().length);
+        }
+    }
+
+    private static void train(ConvolutionalNetwork network, boolean batchMode) {
+        BackpropagationTrainer trainer = new BackpropagationTrainer(network);
+        trainer.setMaxEpochs(3)
+               .setLearningRate(0.1f)
+               .setBatchMode(batchMode)
+               .setBatchSize(BATCH_SIZE)
+               .setShuffle(false);
+        trainer.train(dataSet());
+    }
+
+    private static BasicDataSet dataSet() {
+        Random random = new Random(7);
+        BasicDataSet dataSet = new BasicDataSet(WIDTH * HEIGHT * DEPTH, OUTPUTS);
+        for (int i = 0; i < SAMPLES; i++) {
+            float[] input = new float[WIDTH * HEIGHT * DEPTH];
+            for (int k = 0; k < input.length; k++) {
+                input[k] = random.nextFloat() * 2 - 1;
+            }
+            float[] target = new float[OUTPUTS];
+            target[i % OUTPUTS] = 1;
+            dataSet.add(new BasicDataSetItem(new Tensor(HEIGHT, WIDTH, DEPTH, input), target));
+        }
+        String[] columnNames = new String[WIDTH * HEIGHT * DEPTH + OUTPUTS];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnNames[i] = "col" + i;
+        }
+        dataSet.setColumnNames(columnNames);
+        return dataSet;
+    }
+
+    private static float[] valuesOf(Tensor[] tensors) {
+        float[] all = new float[tensors.length * tensors[0].size()];
+        for (int i = 0; i < tensors.length; i++) {
+            System.arraycopy(tensors[i].toArray(), 0, all, i * tensors[0].size(), tensors[0].size());
+        }
+        return all;
+    }
+
+    private static void assertClose(String message, float[] expected, float[] actual) {
+        float max = 0;
+        for (float value : expected) {
+            max = Math.max(max, Math.abs(value));
+        }
+        assertArrayEquals(message, expected, actual, TOLERANCE * max);
+    }
+
+}
@@ -0,0 +1,159 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.Layout;
+import deepnetts.util.Tensor;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that convolutional, grouped convolutional, max pooling and average pooling
+ * layers give the same outputs, deltas and delta weights in NHWC and NCHW layout.
+ * Tensors are compared by logical position [depth][row][col], whatever their layout in memory.
+ */
+public class LayoutTest {
+
+    private static final int WIDTH = 14, HEIGHT = 13, DEPTH = 3, OUTPUTS = 3;
+
+    /**
+     * Allowed difference relative to the largest expected value, since layouts add values in different order.
+     */
+    private static final float TOLERANCE = 1e-4f;
+
+    @Test
+    public void nhwcMatchesNchw() {
+        ConvolutionalNetwork nchw = network(Layout.NCHW);
+        ConvolutionalNetwork nhwc = network(Layout.NHWC);
+        copyWeights(nchw, nhwc);
+
+        Tensor input = input();
+        nchw.setInput(input);
+        nhwc.setInput(input);
+        float[] outputError = {0.4f, -0.3f, 0.2f};
+        nchw.setOutputError(outputError);
+        nhwc.setOutputError(outputError);
+        nchw.backward();
+        nhwc.backward();
+
+        for (int i = 1; i < nchw.getLayers().size(); i++) {
+            AbstractLayer expected = nchw.getLayers().get(i);
+            AbstractLayer actual = nhwc.getLayers().get(i);
+            String message = i + " " + expected.getClass().getSimpleName();
+            if (i < 7) { // layers before fully connected layer use specified layout
+                assertEquals(message, Layout.NHWC, actual.getOutputs().getLayout());
+                assertEquals(message, Layout.NCHW, expected.getOutputs().getLayout());
+            }
+            assertClose(message + " outputs", expected.getOutputs().toArray(), actual.getOutputs().toArray());
+            assertClose(message + " deltas", expected.getDeltas().toArray(), actual.getDeltas().toArray());
+            if (expected instanceof ConvolutionalLayer) {
+                assertClose(message + " delta weights", valuesOf(((ConvolutionalLayer) expected).getFilterDeltaWeights()),
+                                                        valuesOf(((ConvolutionalLayer) actual).getFilterDeltaWeights()));
+            } else if (expected instanceof GroupedConvolutionalLayer) {
+                assertClose(message + " delta weights", valuesOf(((GroupedConvolutionalLayer) expected).getFilterDeltaWeights()),
+                                                        valuesOf(((GroupedConvolutionalLayer) actual).getFilterDeltaWeights()));
+            }
+            if (expected.getDeltaBiases() != null) {
+                assertClose(message + " delta biases", expected.getDeltaBiases(), actual.getDeltaBiases());
+            }
+        }
+    }
+
+    /**
+     * Network with max pooling using 2x2 kernel and generic overlapping filter, and
+     * average pooling after grouped convolution, so each layer gets inputs in the same layout.
+     */
+    private static ConvolutionalNetwork network(Layout layout) {
+        return ConvolutionalNetwork.builder()
+                .randomSeed(123)
+                .addInputLayer(WIDTH, HEIGHT, DEPTH)
+                .addConvolutionalLayer(3, 3, 1, 8, ActivationType.TANH, ConvolutionAlgorithm.DIRECT)
+                .addMaxPoolingLayer(2, 2)
+                .addGroupedConvolutionalLayer(3, 3, 1, 8, 2, ActivationType.TANH)
+                .addAveragePoolingLayer(2, 1)
+                .addConvolutionalLayer(3, 3, 1, 6, ActivationType.RELU, ConvolutionAlgorithm.DIRECT)
+                .addMaxPoolingLayer(3, 2)
+                .addFullyConnectedLayer(7, ActivationType.TANH)
+                .addOutputLayer(OUTPUTS, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .layout(layout)
+                .build();
+    }
+
+    /**
+     * Copies filters, weights and biases by logical position, since random values
+     * are assigned to tensors in memory order, which depends on layout.
+     */
+    private static void copyWeights(ConvolutionalNetwork from, ConvolutionalNetwork to) {
+        for (int i = 1; i < from.getLayers().size(); i++) {
+            AbstractLayer src = from.getLayers().get(i);
+            AbstractLayer dest = to.getLayers().get(i);
+            if (src instanceof ConvolutionalLayer) {
+                copyAll(((ConvolutionalLayer) src).getFilters(), ((ConvolutionalLayer) dest).getFilters());
+            } else if (src instanceof GroupedConvolutionalLayer) {
+                copyAll(((GroupedConvolutionalLayer) src).getFilters(), ((GroupedConvolutionalLayer) dest).getFilters());
+            } else if (src.getWeights() != null) {
+                dest.getWeights().copyFrom(src.getWeights().toArray());
+            }
+            if (src.getBiases() != null) {
+                System.arraycopy(src.getBiases(), 0, dest.getBiases(), 0, src.getBiases().length);
+            }
+        }
+    }
+
+    private static void copyAll(Tensor[] from, Tensor[] to) {
+        for (int ch = 0; ch < from.length; ch++) {
+            to[ch].copyFrom(from[ch].toArray());
+        }
+    }
+
+    private static Tensor input() {
+        Random random = new Random(7);
+        float[] input = new float[WIDTH * HEIGHT * DEPTH];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = random.nextFloat() * 2 - 1;
+        }
+        return new Tensor(HEIGHT, WIDTH, DEPTH, input);
+    }
+
+    private static float[] valuesOf(Tensor[] tensors) {
+        float[] all = new float[tensors.length * tensors[0].size()];
+        for (int i = 0; i < tensors.length; i++) {
+            System.arraycopy(tensors[i].toArray(), 0, all, i * tensors[0].size(), tensors[0].size());
+        }
+        return all;
+    }
+
+    private static void assertClose(String message, float[] expected, float[] actual) {
+        float max = 0;
+        for (float value : expected) {
+            max = Math.max(max, Math.abs(value));
+        }
+        assertArrayEquals(message, expected, actual, TOLERANCE * max);
+    }
+
+}
@@ -0,0 +1,151 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.Parallel;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that max pooling calculated by previous convolutional layer for each tile of rows
+ * gives the same outputs and max indexes as max pooling calculated on its own.
+ */
+public class MaxPoolingLayerTest {
+
+    private static final int WIDTH = 13, HEIGHT = 11, DEPTH = 3, CHANNELS = 5;
+    private static final int THREADS = 4;
+
+    /**
+     * Allowed difference of deltas relative to the largest expected value, since fully connected
+     * layer after pooling uses matrix-vector product only on heap.
+     */
+    private static final float ROUNDING_TOLERANCE = 1e-5f;
+
+    private int threadCount, threshold;
+
+    @Before
+    public void saveSettings() {
+        threadCount = Parallel.getThreadCount();
+        threshold = Parallel.getThreshold();
+    }
+
+    @After
+    public void restoreSettings() {
+        Parallel.setThreadCount(threadCount);
+        Parallel.setThreshold(threshold);
+    }
+
+    /**
+     * Specialized kernel for 2x2 filter with stride 2.
+     */
+    @Test
+    public void fused2x2PoolingMatchesSeparatePooling() {
+        assertFusedMatchesSeparate(2, 2);
+    }
+
+    /**
+     * Generic loops, for filter positions which do not overlap and rows which are not split evenly by tiles.
+     */
+    @Test
+    public void fusedGenericPoolingMatchesSeparatePooling() {
+        assertFusedMatchesSeparate(3, 3);
+        assertFusedMatchesSeparate(2, 3);
+    }
+
+    private void assertFusedMatchesSeparate(int filterSize, int stride) {
+        Parallel.setThreshold(1); // convolutional layer is split into tiles, however small
+        for (int threads : new int[] {1, THREADS}) {
+            Parallel.setThreadCount(threads);
+            Result fused = run(StorageType.HEAP, filterSize, stride);
+            Result separate = run(StorageType.OFF_HEAP, filterSize, stride); // pooling of off-heap tensors is never fused
+            assertTrue(fused.fused);
+            assertFalse(separate.fused);
+
+            String message = filterSize + "x" + filterSize + " stride " + stride + ", " + threads + " threads";
+            assertArrayEquals(message + " conv outputs", separate.convOutputs, fused.convOutputs, 0);
+            assertArrayEquals(message + " outputs", separate.outputs, fused.outputs, 0);
+            assertArrayEquals(message + " max indexes", separate.maxIdx, fused.maxIdx);
+            assertClose(message + " conv deltas", separate.convDeltas, fused.convDeltas);
+        }
+    }
+
+    /**
+     * Runs forward and backward pass of network with max pooling after direct convolution.
+     */
+    private static Result run(StorageType storageType, int filterSize, int stride) {
+        ConvolutionalNetwork network = ConvolutionalNetwork.builder()
+                .randomSeed(123)
+                .addInputLayer(WIDTH, HEIGHT, DEPTH)
+                .addConvolutionalLayer(3, 3, 1, CHANNELS, ActivationType.RELU, ConvolutionAlgorithm.DIRECT)
+                .addMaxPoolingLayer(filterSize, stride)
+                .addFullyConnectedLayer(6, ActivationType.TANH)
+                .addOutputLayer(3, ActivationType.SIGMOID)
+                .lossFunction(LossType.MEAN_SQUARED_ERROR)
+                .storageType(storageType)
+                .build();
+
+        Random random = new Random(7);
+        float[] input = new float[WIDTH * HEIGHT * DEPTH];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = random.nextFloat() * 2 - 1;
+        }
+        network.setInput(new Tensor(HEIGHT, WIDTH, DEPTH, input));
+        network.setOutputError(new float[] {0.3f, -0.2f, 0.1f});
+        network.backward();
+
+        ConvolutionalLayer conv = (ConvolutionalLayer) network.getLayers().get(1);
+        MaxPoolingLayer pooling = (MaxPoolingLayer) network.getLayers().get(2);
+        Result result = new Result();
+        result.fused = conv.isPoolingFused();
+        result.convOutputs = conv.getOutputs().toArray();
+        result.outputs = pooling.getOutputs().toArray();
+        result.maxIdx = pooling.maxIdx.clone();
+        result.convDeltas = conv.getDeltas().toArray();
+        network.close();
+        return result;
+    }
+
+    private static void assertClose(String message, float[] expected, float[] actual) {
+        float max = 0;
+        for (float value : expected) {
+            max = Math.max(max, Math.abs(value));
+        }
+        assertArrayEquals(message, expected, actual, ROUNDING_TOLERANCE * max);
+    }
+
+    private static final class Result {
+        boolean fused;
+        float[] convOutputs, outputs, convDeltas;
+        int[] maxIdx;
+    }
+
+}
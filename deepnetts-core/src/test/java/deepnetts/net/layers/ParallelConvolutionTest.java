@@ -0,0 +1,178 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.data.BasicDataSet;
+import deepnetts.data.BasicDataSetItem;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.net.train.BackpropagationTrainer;
+import deepnetts.util.Parallel;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that direct convolution gives exactly the same results in one and in multiple threads:
+ * forward pass by tiles of output rows, deltas propagated to previous layer by its channels,
+ * and delta weights by channels of the layer.
+ */
+public class ParallelConvolutionTest {
+
+    private static final int WIDTH = 13, HEIGHT = 11, DEPTH = 3, OUTPUTS = 3;
+    private static final int THREADS = 4;
+
+    private int threadCount, threshold;
+
+    @Before
+    public void saveSettings() {
+        threadCount = Parallel.getThreadCount();
+        threshold = Parallel.getThreshold();
+    }
+
+    @After
+    public void restoreSettings() {
+        Parallel.setThreadCount(threadCount);
+        Parallel.setThreshold(threshold);
+    }
+
+    @Test
+    public void singlePassDoesNotDependOnThreadCount() {
+        for (StorageType storageType : new StorageType[] {StorageType.HEAP, StorageType.OFF_HEAP}) { // specialized kernels and generic loops
+            for (int filterSize : new int[] {3, 5}) {
+                for (int stride : new int[] {1, 2}) {
+                    String message = storageType + " " + filterSize + "x" + filterSize + " stride " + stride;
+                    float[][] single = singlePass(1, storageType, filterSize, stride);
+                    float[][] parallel = singlePass(THREADS, storageType, filterSize, stride);
+                    assertArrayEquals(message + " outputs", single[0], parallel[0], 0);
+                    assertArrayEquals(message + " input deltas", single[1], parallel[1], 0);
+                    assertArrayEquals(message + " delta weights", single[2], parallel[2], 0);
+                    assertArrayEquals(message + " delta biases", single[3], parallel[3], 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void trainingDoesNotDependOnThreadCount() {
+        for (boolean batchMode : new boolean[] {false, true}) {
+            float[][] single = train(1, batchMode);
+            float[][] parallel = train(THREADS, batchMode);
+            assertArrayEquals("batch mode " + batchMode + " filters", single[0], parallel[0], 0);
+            assertArrayEquals("batch mode " + batchMode + " biases", single[1], parallel[1], 0);
+        }
+    }
+
+    /**
+     * Runs forward and backward pass, and returns outputs of tested layer, deltas of previous
+     * convolutional layer, delta weights and delta biases of tested layer.
+     */
+    private static float[][] singlePass(int threads, StorageType storageType, int filterSize, int stride) {
+        Parallel.setThreadCount(threads);
+        Parallel.setThreshold(1); // every layer is split, however small
+        ConvolutionalNetwork network = network(storageType, filterSize, stride);
+        network.setInput(dataSet().get(0).getInput());
+        network.setOutputError(new float[] {0.3f, -0.2f, 0.1f});
+        network.backward();
+
+        ConvolutionalLayer previous = (ConvolutionalLayer) network.getLayers().get(1);
+        ConvolutionalLayer tested = (ConvolutionalLayer) network.getLayers().get(2);
+        float[][] result = {tested.getOutputs().toArray(), previous.getDeltas().toArray(),
+                            valuesOf(tested.getFilterDeltaWeights()), tested.getDeltaBiases().clone()};
+        network.close();
+        return result;
+    }
+
+    private static float[][] train(int threads, boolean batchMode) {
+        Parallel.setThreadCount(threads);
+        Parallel.setThreshold(1);
+        ConvolutionalNetwork network = network(StorageType.HEAP, 3, 1);
+        BackpropagationTrainer trainer = new BackpropagationTrainer(network);
+        trainer.setMaxEpochs(2)
+               .setLearningRate(0.1f)
+               .setBatchMode(batchMode)
+               .setBatchSize(4)
+               .setShuffle(false);
+        trainer.train(dataSet());
+
+        ConvolutionalLayer first = (ConvolutionalLayer) network.getLayers().get(1);
+        ConvolutionalLayer second = (ConvolutionalLayer) network.getLayers().get(2);
+        float[] biases = new float[first.getBiases().length + second.getBiases().length];
+        System.arraycopy(first.getBiases(), 0, biases, 0, first.getBiases().length);
+        System.arraycopy(second.getBiases(), 0, biases, first.getBiases().length, second.getBiases().length);
+        float[] firstFilters = valuesOf(first.getFilters()), secondFilters = valuesOf(second.getFilters());
+        float[] filters = new float[firstFilters.length + secondFilters.length];
+        System.arraycopy(firstFilters, 0, filters, 0, firstFilters.length);
+        System.arraycopy(secondFilters, 0, filters, firstFilters.length, secondFilters.length);
+        return new float[][] {filters, biases};
+    }
+
+    /**
+     * Network with tested layer after direct convolutional layer, so deltas propagated by tested layer are checked too.
+     */
+    private static ConvolutionalNetwork network(StorageType storageType, int filterSize, int stride) {
+        return ConvolutionalNetwork.builder()
+                .randomSeed(123)
+                .addInputLayer(WIDTH, HEIGHT, DEPTH)
+                .addConvolutionalLayer(3, 3, 1, 6, ActivationType.TANH, ConvolutionAlgorithm.DIRECT)
+                .addConvolutionalLayer(filterSize, filterSize, stride, 7, ActivationType.TANH, ConvolutionAlgorithm.DIRECT)
+                .addFullyConnectedLayer(6, ActivationType.TANH)
+                .addOutputLayer(OUTPUTS, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .storageType(storageType)
+                .build();
+    }
+
+    private static BasicDataSet dataSet() {
+        Random random = new Random(7);
+        BasicDataSet dataSet = new BasicDataSet(WIDTH * HEIGHT * DEPTH, OUTPUTS);
+        for (int i = 0; i < 8; i++) {
+            float[] input = new float[WIDTH * HEIGHT * DEPTH];
+            for (int k = 0; k < input.length; k++) {
+                input[k] = random.nextFloat() * 2 - 1;
+            }
+            float[] target = new float[OUTPUTS];
+            target[i % OUTPUTS] = 1;
+            dataSet.add(new BasicDataSetItem(new Tensor(HEIGHT, WIDTH, DEPTH, input), target));
+        }
+        String[] columnNames = new String[WIDTH * HEIGHT * DEPTH + OUTPUTS];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnNames[i] = "col" + i;
+        }
+        dataSet.setColumnNames(columnNames);
+        return dataSet;
+    }
+
+    private static float[] valuesOf(Tensor[] tensors) {
+        float[] all = new float[tensors.length * tensors[0].size()];
+        for (int i = 0; i < tensors.length; i++) {
+            System.arraycopy(tensors[i].toArray(), 0, all, i * tensors[0].size(), tensors[0].size());
+        }
+        return all;
+    }
+
+}
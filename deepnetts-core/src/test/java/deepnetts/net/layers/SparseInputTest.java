@@ -0,0 +1,183 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.layers;
+
+import deepnetts.data.BasicDataSet;
+import deepnetts.data.BasicDataSetItem;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.FeedForwardNetwork;
+import deepnetts.net.NeuralNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.net.train.BackpropagationTrainer;
+import deepnetts.util.SparseStorage;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that fully connected layers give the same results for sparse inputs
+ * as for the same inputs in dense tensors.
+ */
+public class SparseInputTest {
+
+    private static final int INPUTS = 300, OUTPUTS = 3, SAMPLES = 40;
+    private static final float TOLERANCE = 1e-5f;
+
+    @Test
+    public void sparseStorageKeepsValuesOfDenseArray() {
+        float[] dense = {0, 1.5f, 0, 0, -2, 0, 3};
+        SparseStorage sparse = SparseStorage.fromDense(dense);
+        assertEquals(3, sparse.getNonZeroCount());
+        assertArrayEquals(new int[] {1, 4, 6}, sparse.getIndices());
+        for (int i = 0; i < dense.length; i++) {
+            assertEquals(dense[i], sparse.get(i), 0);
+        }
+
+        sparse.set(2, 5);
+        sparse.set(4, 0);
+        assertEquals(5, sparse.get(2), 0);
+        assertEquals(0, sparse.get(4), 0);
+        assertArrayEquals(new int[] {1, 2, 6}, Arrays.copyOf(sparse.getIndices(), sparse.getNonZeroCount()));
+    }
+
+    @Test
+    public void convertedTensorKeepsValues() {
+        float[] dense = randomSparseValues(new Random(1), INPUTS);
+        Tensor tensor = new Tensor(dense.clone());
+        tensor.convertTo(StorageType.SPARSE);
+        assertEquals(StorageType.SPARSE, tensor.getStorageType());
+        assertArrayEquals(dense, tensor.toArray(), 0);
+    }
+
+    /**
+     * Sparse inputs skip zeros and add the remaining weighted inputs one by one, while
+     * dense inputs use matrix-vector product, so weights differ only by rounding.
+     */
+    @Test
+    public void onlineTrainingWithSparseInputsGivesSameWeights() {
+        float[] dense = train(feedForwardNetwork(), false, false);
+        float[] sparse = train(feedForwardNetwork(), true, false);
+        assertArrayEquals(dense, sparse, TOLERANCE);
+    }
+
+    @Test
+    public void onlineTrainingWithSparse3DInputsGivesSameWeights() {
+        float[] dense = train(convolutionalNetwork(), false, false);
+        float[] sparse = train(convolutionalNetwork(), true, false);
+        assertArrayEquals(dense, sparse, TOLERANCE);
+    }
+
+    /**
+     * Batches of dense inputs go through the network at once, while sparse inputs
+     * go one by one, so weight changes of a batch are added up in different order.
+     */
+    @Test
+    public void batchTrainingWithSparseInputsGivesSameWeights() {
+        float[] dense = train(feedForwardNetwork(), false, true);
+        float[] sparse = train(feedForwardNetwork(), true, true);
+        assertArrayEquals(dense, sparse, TOLERANCE);
+    }
+
+    private static NeuralNetwork<?> feedForwardNetwork() {
+        return FeedForwardNetwork.builder()
+                .randomSeed(3)
+                .addInputLayer(INPUTS)
+                .addFullyConnectedLayer(16, ActivationType.TANH)
+                .addFullyConnectedLayer(8, ActivationType.RELU)
+                .addOutputLayer(OUTPUTS, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .build();
+    }
+
+    /**
+     * Network with 3D input layer, which fully connected layer flattens.
+     */
+    private static NeuralNetwork<?> convolutionalNetwork() {
+        return ConvolutionalNetwork.builder()
+                .randomSeed(3)
+                .addInputLayer(15, 10, 2)
+                .addFullyConnectedLayer(16, ActivationType.TANH)
+                .addOutputLayer(OUTPUTS, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .build();
+    }
+
+    /**
+     * Trains network and returns weights of all layers.
+     */
+    private static float[] train(NeuralNetwork<?> network, boolean sparse, boolean batchMode) {
+        Tensor firstInput = network.getInputLayer().getOutputs();
+        Random random = new Random(5);
+        BasicDataSet dataSet = new BasicDataSet(INPUTS, OUTPUTS);
+        for (int i = 0; i < SAMPLES; i++) {
+            Tensor input = firstInput.copy();
+            input.copyFrom(randomSparseValues(random, INPUTS));
+            if (sparse) {
+                input.convertTo(StorageType.SPARSE);
+            }
+            float[] target = new float[OUTPUTS];
+            target[i % OUTPUTS] = 1;
+            dataSet.add(new BasicDataSetItem(input, target));
+        }
+        String[] columnNames = new String[INPUTS + OUTPUTS];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnNames[i] = "col" + i;
+        }
+        dataSet.setColumnNames(columnNames);
+
+        BackpropagationTrainer trainer = new BackpropagationTrainer(network);
+        trainer.setMaxEpochs(4)
+               .setLearningRate(0.1f)
+               .setBatchMode(batchMode)
+               .setBatchSize(7)
+               .setShuffle(false);
+        trainer.train(dataSet);
+
+        float[] weights = new float[0];
+        for (AbstractLayer layer : network.getLayers()) {
+            if (layer.getWeights() != null) {
+                float[] layerWeights = layer.getWeights().toArray();
+                float[] all = Arrays.copyOf(weights, weights.length + layerWeights.length);
+                System.arraycopy(layerWeights, 0, all, weights.length, layerWeights.length);
+                weights = all;
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Returns array with a few random non zero values.
+     */
+    private static float[] randomSparseValues(Random random, int size) {
+        float[] values = new float[size];
+        for (int k = 0; k < 5; k++) {
+            values[random.nextInt(size)] = random.nextFloat() + 0.1f;
+        }
+        return values;
+    }
+
+}
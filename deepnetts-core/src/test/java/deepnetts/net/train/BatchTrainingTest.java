@@ -0,0 +1,207 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.net.train;
+
+import deepnetts.data.BasicDataSet;
+import deepnetts.data.BasicDataSetItem;
+import deepnetts.data.DataSetItem;
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import deepnetts.net.layers.ConvolutionalLayer;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that passing whole batches through the network gives the same results
+ * as passing samples of a batch one by one.
+ */
+public class BatchTrainingTest {
+
+    private static final int WIDTH = 10, HEIGHT = 8, DEPTH = 2, OUTPUTS = 3;
+    private static final int SAMPLES = 12, BATCH_SIZE = 4;
+
+    /**
+     * Allowed difference relative to the largest expected value, since sums of
+     * all samples are added in different order.
+     */
+    private static final float TOLERANCE = 1e-4f;
+
+    @Test
+    public void batchPassMatchesPassesOfSingleSamples() {
+        BasicDataSet dataSet = dataSet();
+        ConvolutionalNetwork single = network(StorageType.HEAP);
+        ConvolutionalNetwork batch = network(StorageType.HEAP);
+        assertTrue(batch.isBatchSupported());
+        setBatchMode(single);
+        setBatchMode(batch);
+        float[] initialWeights = weightsOf(single);
+
+        Tensor batchInput = Tensor.create(StorageType.HEAP, BATCH_SIZE, DEPTH, HEIGHT, WIDTH);
+        float[] batchValues = batchInput.getValues();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            float[] input = dataSet.get(i).getInput().toArray();
+            System.arraycopy(input, 0, batchValues, i * input.length, input.length);
+        }
+        batch.setInputBatch(batchInput);
+
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            DataSetItem item = dataSet.get(i);
+            single.setInput(item.getInput());
+            float[] output = single.getOutputLayer().getOutputs().toArray();
+            assertClose("output of sample " + i, output, batch.getOutput(i), TOLERANCE);
+            single.setOutputError(single.getLossFunction().addPatternError(output, item.getTargetOutput()));
+            single.backward();
+            batch.setOutputError(i, batch.getLossFunction().addPatternError(batch.getOutput(i), item.getTargetOutput()));
+        }
+        batch.backwardBatch();
+
+        single.applyWeightChanges();
+        batch.applyWeightChanges();
+        assertClose("weight changes", changes(initialWeights, single), changes(initialWeights, batch), TOLERANCE);
+    }
+
+    /**
+     * Trainer passes whole batches through networks with heap storage, and samples
+     * one by one through networks which do not support batches, like off-heap ones.
+     */
+    @Test
+    public void batchTrainingMatchesTrainingWithSingleSamples() {
+        ConvolutionalNetwork batch = network(StorageType.HEAP);
+        ConvolutionalNetwork single = network(StorageType.OFF_HEAP);
+        assertTrue(batch.isBatchSupported());
+        assertTrue(!single.isBatchSupported());
+        float[] initialWeights = weightsOf(single);
+
+        train(batch);
+        train(single);
+        assertClose("weight changes", changes(initialWeights, single), changes(initialWeights, batch), TOLERANCE);
+        single.close();
+    }
+
+    private static void train(ConvolutionalNetwork network) {
+        BackpropagationTrainer trainer = new BackpropagationTrainer(network);
+        trainer.setMaxEpochs(2)
+               .setLearningRate(0.1f)
+               .setBatchMode(true)
+               .setBatchSize(BATCH_SIZE)
+               .setShuffle(false);
+        trainer.train(dataSet());
+    }
+
+    private static ConvolutionalNetwork network(StorageType storageType) {
+        return ConvolutionalNetwork.builder()
+                .randomSeed(123)
+                .addInputLayer(WIDTH, HEIGHT, DEPTH)
+                .addConvolutionalLayer(3, 4, ActivationType.TANH)
+                .addMaxPoolingLayer(2, 2)
+                .addFullyConnectedLayer(8, ActivationType.TANH)
+                .addOutputLayer(OUTPUTS, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .storageType(storageType)
+                .build();
+    }
+
+    private static void setBatchMode(ConvolutionalNetwork network) {
+        for (AbstractLayer layer : network.getLayers()) {
+            layer.setBatchMode(true);
+            layer.setBatchSize(BATCH_SIZE);
+        }
+    }
+
+    private static BasicDataSet dataSet() {
+        Random random = new Random(7);
+        BasicDataSet dataSet = new BasicDataSet(WIDTH * HEIGHT * DEPTH, OUTPUTS);
+        for (int i = 0; i < SAMPLES; i++) {
+            float[] input = new float[WIDTH * HEIGHT * DEPTH];
+            for (int k = 0; k < input.length; k++) {
+                input[k] = random.nextFloat();
+            }
+            float[] target = new float[OUTPUTS];
+            target[i % OUTPUTS] = 1;
+            dataSet.add(new BasicDataSetItem(new Tensor(HEIGHT, WIDTH, DEPTH, input), target));
+        }
+        String[] columnNames = new String[WIDTH * HEIGHT * DEPTH + OUTPUTS];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnNames[i] = "col" + i;
+        }
+        dataSet.setColumnNames(columnNames);
+        return dataSet;
+    }
+
+    /**
+     * Returns filters, weights and biases of all layers.
+     */
+    private static float[] weightsOf(ConvolutionalNetwork network) {
+        List<Float> values = new ArrayList<>();
+        for (AbstractLayer layer : network.getLayers()) {
+            if (layer instanceof ConvolutionalLayer) {
+                for (Tensor filter : ((ConvolutionalLayer) layer).getFilters()) {
+                    addAll(values, filter.toArray());
+                }
+            } else if (layer.getWeights() != null) {
+                addAll(values, layer.getWeights().toArray());
+            }
+            if (layer.getBiases() != null) {
+                addAll(values, layer.getBiases());
+            }
+        }
+        float[] all = new float[values.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = values.get(i);
+        }
+        return all;
+    }
+
+    /**
+     * Returns differences between current and initial weights of the network.
+     */
+    private static float[] changes(float[] initialWeights, ConvolutionalNetwork network) {
+        float[] changes = weightsOf(network);
+        for (int i = 0; i < changes.length; i++) {
+            changes[i] -= initialWeights[i];
+        }
+        return changes;
+    }
+
+    private static void addAll(List<Float> values, float[] array) {
+        for (float value : array) {
+            values.add(value);
+        }
+    }
+
+    private static void assertClose(String message, float[] expected, float[] actual, float tolerance) {
+        float max = 0;
+        for (float value : expected) {
+            max = Math.max(max, Math.abs(value));
+        }
+        assertArrayEquals(message, expected, actual, tolerance * max);
+    }
+
+}
@@ -0,0 +1,153 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks off-heap storage: serialization, sharing and mapping of direct buffers, and closing.
+ */
+public class DirectStorageTest {
+
+    @Test
+    public void serializedTensorKeepsValuesAndStorageType() throws IOException, ClassNotFoundException {
+        Tensor tensor = Tensor.create(StorageType.OFF_HEAP, 2, 3, 4);
+        for (int i = 0; i < tensor.size(); i++) {
+            tensor.set(i, i * 0.5f - 3);
+        }
+
+        Tensor copy = (Tensor) deserialize(serialize(tensor));
+        assertEquals(StorageType.OFF_HEAP, copy.getStorageType());
+        assertArrayEquals(tensor.getShape(), copy.getShape());
+        assertArrayEquals(tensor.toArray(), copy.toArray(), 0);
+
+        copy.set(0, 100);
+        assertEquals(-3, tensor.get(0), 0);
+        tensor.close();
+        copy.close();
+    }
+
+    @Test
+    public void copyToCopiesAllValues() {
+        DirectStorage storage = new DirectStorage(5);
+        for (int i = 0; i < 5; i++) {
+            storage.set(i, i + 1);
+        }
+        FloatBuffer dest = FloatBuffer.allocate(6);
+        dest.put(0);
+        storage.copyTo(dest);
+        assertArrayEquals(new float[] {0, 1, 2, 3, 4, 5}, dest.array(), 0);
+        storage.close();
+    }
+
+    @Test
+    public void wrappedBufferIsSharedAndNotReleased() {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(4 * Float.BYTES).order(ByteOrder.nativeOrder());
+        bytes.asFloatBuffer().put(2, 7);
+
+        DirectStorage storage = DirectStorage.wrap(bytes);
+        assertEquals(7, storage.get(2), 0);
+        storage.set(1, 3);
+        storage.close();
+        assertEquals(3, bytes.asFloatBuffer().get(1), 0);
+    }
+
+    @Test
+    public void mappedFileValuesAreLittleEndian() throws IOException {
+        Path file = Files.createTempFile("storage", ".bin");
+        try {
+            ByteBuffer bytes = ByteBuffer.allocate(3 * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.putFloat(1.5f).putFloat(-2).putFloat(4);
+            Files.write(file, bytes.array());
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                DirectStorage storage = DirectStorage.map(channel, FileChannel.MapMode.READ_ONLY, Float.BYTES, 2);
+                assertEquals(2, storage.size());
+                assertEquals(-2, storage.get(0), 0);
+                assertEquals(4, storage.get(1), 0);
+                storage.close();
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void closedStorageCannotBeUsed() throws IOException {
+        DirectStorage storage = new DirectStorage(3);
+        storage.close();
+        storage.close();
+        assertTrue(storage.isClosed());
+
+        try {
+            storage.get(0);
+            fail("get should fail on closed storage");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            storage.set(0, 1);
+            fail("set should fail on closed storage");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            storage.copyTo(FloatBuffer.allocate(3));
+            fail("copyTo should fail on closed storage");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            serialize(storage);
+            fail("closed storage should not be serialized");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static byte[] serialize(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(obj);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+}
@@ -0,0 +1,252 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import deepnetts.net.layers.ConvolutionAlgorithm;
+import deepnetts.net.layers.ConvolutionalLayer;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks conversion of floats to IEEE half precision and bfloat16 numbers, and
+ * networks which keep weights and activations in 16 bit storage.
+ */
+public class HalfStorageTest {
+
+    @Test
+    public void exactHalfValues() {
+        assertHalf(0x0000, 0f);
+        assertHalf(0x8000, -0f);
+        assertHalf(0x3c00, 1f);
+        assertHalf(0xc000, -2f);
+        assertHalf(0x3555, 1f / 3); // 0x3555.4 rounded down
+        assertHalf(0x7bff, 65504f); // max half value
+        assertHalf(0x0400, 0x1p-14f); // min normal
+        assertHalf(0x0001, 0x1p-24f); // min subnormal
+        assertHalf(0x03ff, 0x1p-14f - 0x1p-24f); // max subnormal
+        assertHalf(0x8001, -0x1p-24f);
+
+        assertEquals(0x1p-24f, HalfStorage.halfToFloat((short) 0x0001), 0);
+        assertEquals(1023 * 0x1p-24f, HalfStorage.halfToFloat((short) 0x03ff), 0);
+        assertEquals(65504f, HalfStorage.halfToFloat((short) 0x7bff), 0);
+        assertEquals(Float.floatToRawIntBits(-0f), Float.floatToRawIntBits(HalfStorage.halfToFloat((short) 0x8000)));
+    }
+
+    @Test
+    public void halfRoundsToNearestEven() {
+        assertHalf(0x3c00, 1 + 0x1p-11f);                  // halfway between 0x3c00 and 0x3c01, even is below
+        assertHalf(0x3c02, 1 + 3 * 0x1p-11f);              // halfway between 0x3c01 and 0x3c02, even is above
+        assertHalf(0x3c01, 1 + 0x1p-11f + 0x1p-20f);       // just above halfway
+        assertHalf(0x3c00, 1 + 0x1p-11f - 0x1p-20f);       // just below halfway
+        assertHalf(0x4000, 2 - 0x1p-12f);                  // rounding up carries into exponent
+
+        assertHalf(0x0000, 0x1p-25f);                      // halfway between zero and min subnormal
+        assertHalf(0x0001, 0x1p-25f + 0x1p-40f);
+        assertHalf(0x0002, 3 * 0x1p-25f);                  // halfway between subnormals 1 and 2
+        assertHalf(0x0000, 0x1p-26f);
+        assertHalf(0x0400, 0x1p-14f - 0x1p-25f);           // max subnormal rounds up to min normal
+    }
+
+    /**
+     * Each half value converts to float and back to itself, and float halfway between
+     * two consecutive half values rounds to the one with even mantissa.
+     */
+    @Test
+    public void allHalfValuesRoundTrip() {
+        for (int h = 0; h < 0x10000; h++) {
+            float value = HalfStorage.halfToFloat((short) h);
+            if ((h & 0x7c00) == 0x7c00 && (h & 0x3ff) != 0) {
+                assertTrue(Float.isNaN(value));
+                continue;
+            }
+            assertEquals("half " + Integer.toHexString(h), h, HalfStorage.floatToHalf(value) & 0xffff);
+
+            if ((h & 0x7fff) < 0x7bff) { // next value away from zero is h + 1, halfway above max half is checked for overflow
+                float next = HalfStorage.halfToFloat((short) (h + 1));
+                float halfway = (value + next) / 2; // exact, float has more precision
+                int even = (h & 1) == 0 ? h : h + 1;
+                assertEquals("halfway above " + Integer.toHexString(h), even, HalfStorage.floatToHalf(halfway) & 0xffff);
+                assertEquals(h, HalfStorage.floatToHalf(Math.nextAfter(halfway, 0)) & 0xffff);
+                assertEquals(h + 1, HalfStorage.floatToHalf(Math.nextAfter(halfway, halfway * 2)) & 0xffff);
+            }
+        }
+    }
+
+    /**
+     * Values which round to nearest even above 65504 become infinity, starting from 65520.
+     */
+    @Test
+    public void halfOverflowsToInfinity() {
+        assertHalf(0x7bff, 65519f);
+        assertHalf(0x7c00, 65520f);
+        assertHalf(0x7c00, 1e6f);
+        assertHalf(0x7c00, Float.MAX_VALUE);
+        assertHalf(0xfc00, -70000f);
+        assertHalf(0x7c00, Float.POSITIVE_INFINITY);
+        assertHalf(0xfc00, Float.NEGATIVE_INFINITY);
+        assertEquals(Float.POSITIVE_INFINITY, HalfStorage.halfToFloat((short) 0x7c00), 0);
+        assertEquals(Float.NEGATIVE_INFINITY, HalfStorage.halfToFloat((short) 0xfc00), 0);
+    }
+
+    @Test
+    public void nanStaysNan() {
+        for (float nan : new float[] {Float.NaN, Float.intBitsToFloat(0x7f800001), Float.intBitsToFloat(0xffc00000)}) {
+            short half = HalfStorage.floatToHalf(nan);
+            assertEquals(0x7c00, half & 0x7c00);
+            assertTrue((half & 0x3ff) != 0);
+            assertTrue(Float.isNaN(HalfStorage.halfToFloat(half)));
+
+            short bfloat = HalfStorage.floatToBFloat16(nan);
+            assertTrue(Float.isNaN(HalfStorage.bfloat16ToFloat(bfloat)));
+        }
+    }
+
+    @Test
+    public void bfloat16RoundsToNearestEven() {
+        assertBFloat16(0x3f80, 1f);
+        assertBFloat16(0xbfc0, -1.5f);
+        assertBFloat16(0x3f80, Float.intBitsToFloat(0x3f808000)); // halfway, even is below
+        assertBFloat16(0x3f82, Float.intBitsToFloat(0x3f818000)); // halfway, even is above
+        assertBFloat16(0x3f81, Float.intBitsToFloat(0x3f808001)); // just above halfway
+        assertBFloat16(0x3f80, Float.intBitsToFloat(0x3f807fff)); // just below halfway
+        assertBFloat16(0x0001, Float.intBitsToFloat(0x00010000)); // subnormals keep their bits
+        assertBFloat16(0x7f7f, Float.intBitsToFloat(0x7f7f7fff));
+        assertBFloat16(0x7f80, Float.MAX_VALUE);                  // rounds up to infinity
+        assertBFloat16(0xff80, Float.NEGATIVE_INFINITY);
+
+        for (int b = 0; b < 0x10000; b++) {
+            float value = HalfStorage.bfloat16ToFloat((short) b);
+            if (!Float.isNaN(value)) {
+                assertEquals(b, HalfStorage.floatToBFloat16(value) & 0xffff);
+            }
+        }
+    }
+
+    @Test
+    public void storageRoundsStoredValues() {
+        HalfStorage half = new HalfStorage(2, StorageType.FP16);
+        half.set(0, 1 + 0x1p-11f);
+        half.set(1, 100000);
+        assertEquals(1, half.get(0), 0);
+        assertEquals(Float.POSITIVE_INFINITY, half.get(1), 0);
+        assertEquals(StorageType.FP16, half.getType());
+
+        HalfStorage bfloat = new HalfStorage(1, StorageType.BF16);
+        bfloat.set(0, 100000);
+        assertEquals(99840, bfloat.get(0), 0);
+        assertEquals(StorageType.BF16, bfloat.getType());
+
+        try {
+            new HalfStorage(1, StorageType.HEAP);
+            fail("Only 16 bit storage types should be accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void networkWeightsRoundTripThroughHalfStorage() {
+        checkNetworkRoundTrip(StorageType.FP16, 0.01f);
+        checkNetworkRoundTrip(StorageType.BF16, 0.05f);
+    }
+
+    /**
+     * Moves network to 16 bit storage and back to float, and checks that weights are rounded
+     * once and outputs stay close to outputs of float network.
+     */
+    private static void checkNetworkRoundTrip(StorageType storageType, float tolerance) {
+        ConvolutionalNetwork network = ConvolutionalNetwork.builder()
+                .randomSeed(123)
+                .addInputLayer(8, 7, 2)
+                .addConvolutionalLayer(3, 3, 1, 4, ActivationType.TANH, ConvolutionAlgorithm.DIRECT)
+                .addMaxPoolingLayer(2, 2)
+                .addFullyConnectedLayer(6, ActivationType.TANH)
+                .addOutputLayer(3, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .build();
+        Random random = new Random(7);
+        float[] input = new float[8 * 7 * 2];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = random.nextFloat() * 2 - 1;
+        }
+        Tensor inputTensor = new Tensor(7, 8, 2, input);
+        network.setInput(inputTensor);
+        float[] floatOutput = network.getOutput().clone();
+        float[][] floatWeights = weightsOf(network);
+
+        network.setStorageType(storageType);
+        ConvolutionalLayer conv = (ConvolutionalLayer) network.getLayers().get(1);
+        assertEquals(storageType, conv.getFilters()[0].getStorageType());
+        assertEquals(storageType, network.getOutputLayer().getWeights().getStorageType());
+        network.setInput(inputTensor);
+        assertArrayEquals(storageType + " output", floatOutput, network.getOutput(), tolerance);
+
+        network.setStorageType(StorageType.HEAP);
+        assertEquals(StorageType.HEAP, conv.getFilters()[0].getStorageType());
+        float[][] weights = weightsOf(network);
+        for (int layer = 0; layer < weights.length; layer++) {
+            for (int i = 0; i < weights[layer].length; i++) {
+                float expected = storageType == StorageType.FP16 ? HalfStorage.halfToFloat(HalfStorage.floatToHalf(floatWeights[layer][i]))
+                                                                 : HalfStorage.bfloat16ToFloat(HalfStorage.floatToBFloat16(floatWeights[layer][i]));
+                assertEquals(storageType + " layer " + layer + " weight " + i, expected, weights[layer][i], 0);
+            }
+        }
+        network.setInput(inputTensor);
+        assertArrayEquals("float output after " + storageType, floatOutput, network.getOutput(), tolerance);
+    }
+
+    /**
+     * Returns filters of convolutional layers and weights of other layers.
+     */
+    private static float[][] weightsOf(ConvolutionalNetwork network) {
+        float[][] weights = new float[network.getLayers().size()][];
+        for (int i = 0; i < weights.length; i++) {
+            AbstractLayer layer = network.getLayers().get(i);
+            if (layer instanceof ConvolutionalLayer) {
+                Tensor[] filters = ((ConvolutionalLayer) layer).getFilters();
+                weights[i] = new float[filters.length * filters[0].size()];
+                for (int ch = 0; ch < filters.length; ch++) {
+                    System.arraycopy(filters[ch].toArray(), 0, weights[i], ch * filters[0].size(), filters[0].size());
+                }
+            } else {
+                weights[i] = layer.getWeights() != null ? layer.getWeights().toArray() : new float[0];
+            }
+        }
+        return weights;
+    }
+
+    private static void assertHalf(int expectedBits, float value) {
+        assertEquals("half of " + value, Integer.toHexString(expectedBits), Integer.toHexString(HalfStorage.floatToHalf(value) & 0xffff));
+    }
+
+    private static void assertBFloat16(int expectedBits, float value) {
+        assertEquals("bfloat16 of " + value, Integer.toHexString(expectedBits), Integer.toHexString(HalfStorage.floatToBFloat16(value) & 0xffff));
+    }
+
+}
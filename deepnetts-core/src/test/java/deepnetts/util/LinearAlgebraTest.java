@@ -0,0 +1,114 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks blocked matrix multiplication against simple loops, for sizes smaller
+ * and bigger than blocks and with all combinations of transposed matrices.
+ */
+public class LinearAlgebraTest {
+
+    private static final float TOLERANCE = 1e-4f;
+
+    private final Random random = new Random(1);
+
+    @Test
+    public void sgemmMatchesSimpleLoops() {
+        int[][] sizes = {{1, 1, 1}, {3, 5, 7}, {70, 33, 300}, {130, 260, 520}};
+        for (int[] size : sizes) {
+            for (boolean transA : new boolean[] {false, true}) {
+                for (boolean transB : new boolean[] {false, true}) {
+                    assertSgemm(size[0], size[1], size[2], transA, transB);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sgemvMatchesSimpleLoops() {
+        final int m = 37, n = 53, aOff = 2, xOff = 1, yOff = 3;
+        float[] a = randomArray(aOff + m * n);
+        for (boolean transA : new boolean[] {false, true}) {
+            final int xSize = transA ? m : n, ySize = transA ? n : m;
+            float[] x = randomArray(xOff + xSize);
+            float[] y = randomArray(yOff + ySize);
+            float[] expected = y.clone();
+            for (int i = 0; i < ySize; i++) {
+                double sum = 0;
+                for (int j = 0; j < xSize; j++) {
+                    sum += (transA ? a[aOff + j * n + i] : a[aOff + i * n + j]) * x[xOff + j];
+                }
+                expected[yOff + i] = (float) (0.5 * sum + 2 * y[yOff + i]);
+            }
+
+            LinearAlgebra.sgemv(transA, m, n, 0.5f, a, aOff, n, x, xOff, 2, y, yOff);
+            assertArrayEquals("transA " + transA, expected, y, TOLERANCE);
+        }
+    }
+
+    @Test
+    public void matmulMultipliesTransposedViews() {
+        Tensor a = new Tensor(new float[] {1, 2, 3, 4, 5, 6}).reshape(2, 3);
+        assertArrayEquals(new float[] {14, 32, 32, 77}, LinearAlgebra.matmul(a, a.transpose()).toArray(), 0);
+        assertArrayEquals(new float[] {17, 22, 27, 22, 29, 36, 27, 36, 45}, LinearAlgebra.matmul(a.transpose(), a).toArray(), 0);
+    }
+
+    private void assertSgemm(int m, int n, int k, boolean transA, boolean transB) {
+        final int aOff = 3, bOff = 5, cOff = 2;
+        final int lda = transA ? m : k, ldb = transB ? k : n;
+        float[] a = randomArray(aOff + m * k);
+        float[] b = randomArray(bOff + k * n);
+        float[] c = randomArray(cOff + m * n + 1);
+        float[] expected = c.clone();
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                double sum = 0;
+                for (int p = 0; p < k; p++) {
+                    float av = transA ? a[aOff + p * lda + i] : a[aOff + i * lda + p];
+                    float bv = transB ? b[bOff + j * ldb + p] : b[bOff + p * ldb + j];
+                    sum += av * bv;
+                }
+                expected[cOff + i * n + j] = (float) (0.5 * sum + 2 * c[cOff + i * n + j]);
+            }
+        }
+
+        LinearAlgebra.sgemm(transA, transB, m, n, k, 0.5f, a, aOff, lda, b, bOff, ldb, 2, c, cOff, n);
+        String message = m + "x" + n + "x" + k + " transA " + transA + " transB " + transB;
+        assertArrayEquals(message, expected, c, TOLERANCE * (float) Math.sqrt(k));
+        assertEquals(message + " value before C", expected[0], c[0], 0);
+        assertEquals(message + " value after C", expected[c.length - 1], c[c.length - 1], 0);
+    }
+
+    private float[] randomArray(int size) {
+        float[] values = new float[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = random.nextFloat() - 0.5f;
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,174 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that bulk tensor operations split into chunks give the same results for any number of threads.
+ */
+public class ParallelTest {
+
+    /**
+     * Several chunks, the last one partial.
+     */
+    private static final int SIZE = 7 * Parallel.CHUNK_SIZE + 321;
+
+    private static final int[] THREAD_COUNTS = {1, 2, 3, 8};
+
+    private int threadCount, threshold;
+
+    @Before
+    public void saveSettings() {
+        threadCount = Parallel.getThreadCount();
+        threshold = Parallel.getThreshold();
+    }
+
+    @After
+    public void restoreSettings() {
+        Parallel.setThreadCount(threadCount);
+        Parallel.setThreshold(threshold);
+    }
+
+    /**
+     * Partial sums of chunks are added in fixed order, so sums are exactly the same for any number of threads.
+     */
+    @Test
+    public void sumsDoNotDependOnThreadCount() {
+        Tensor t = randomTensor(SIZE, 1);
+        Parallel.setThreshold(1000);
+        float sumSqr = 0, sumAbs = 0;
+        for (int threads : THREAD_COUNTS) {
+            Parallel.setThreadCount(threads);
+            assertTrue(Parallel.isParallel(t.size()));
+            if (threads == 1) {
+                sumSqr = t.sumSqr();
+                sumAbs = t.sumAbs();
+            } else {
+                assertEquals(threads + " threads sumSqr", sumSqr, t.sumSqr(), 0);
+                assertEquals(threads + " threads sumAbs", sumAbs, t.sumAbs(), 0);
+            }
+        }
+
+        double expectedSqr = 0, expectedAbs = 0; // chunked sums differ from a single loop only by rounding
+        for (int i = 0; i < SIZE; i++) {
+            expectedSqr += (double) t.get(i) * t.get(i);
+            expectedAbs += Math.abs(t.get(i));
+        }
+        assertEquals(expectedSqr, sumSqr, expectedSqr * 1e-5);
+        assertEquals(expectedAbs, sumAbs, expectedAbs * 1e-5);
+    }
+
+    @Test
+    public void elementWiseOperationsDoNotDependOnThreadCount() {
+        Parallel.setThreshold(1000);
+        float[][] expected = null;
+        for (int threads : THREAD_COUNTS) {
+            Parallel.setThreadCount(threads);
+            float[][] actual = elementWiseOperations();
+            if (expected == null) {
+                expected = actual;
+            } else {
+                for (int i = 0; i < expected.length; i++) {
+                    assertArrayEquals(threads + " threads, operation " + i, expected[i], actual[i], 0);
+                }
+            }
+        }
+
+        Parallel.setThreshold(SIZE + 1); // the same operations without chunks
+        float[][] serial = elementWiseOperations();
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals("serial operation " + i, serial[i], expected[i], 0);
+        }
+    }
+
+    /**
+     * Returns results of add, sub, div, fill and copy over random tensors.
+     */
+    private static float[][] elementWiseOperations() {
+        Tensor a = randomTensor(SIZE, 2), b = randomTensor(SIZE, 3);
+        Tensor sum = a.copy();
+        sum.add(b);
+        Tensor diff = a.copy();
+        diff.sub(b);
+        Tensor quotient = a.copy();
+        quotient.div(3);
+        Tensor filled = a.copy();
+        filled.fill(0.25f);
+        Tensor copied = new Tensor(SIZE);
+        Tensor.copy(b, copied);
+        return new float[][] {sum.toArray(), diff.toArray(), quotient.toArray(), filled.toArray(), copied.toArray()};
+    }
+
+    @Test
+    public void rangeIsCoveredExactlyOnce() {
+        Parallel.setThreadCount(4);
+        AtomicIntegerArray visits = new AtomicIntegerArray(SIZE);
+        Parallel.forRange(SIZE, (from, to) -> {
+            assertTrue("chunk should not be larger than CHUNK_SIZE", to - from <= Parallel.CHUNK_SIZE);
+            for (int i = from; i < to; i++) {
+                visits.incrementAndGet(i);
+            }
+        });
+        AtomicIntegerArray tasks = new AtomicIntegerArray(37);
+        Parallel.forEach(tasks.length(), tasks::incrementAndGet);
+
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals(1, visits.get(i));
+        }
+        for (int i = 0; i < tasks.length(); i++) {
+            assertEquals(1, tasks.get(i));
+        }
+    }
+
+    @Test
+    public void invalidSettingsAreRejected() {
+        try {
+            Parallel.setThreadCount(0);
+            fail("Thread count below 1 should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Parallel.setThreshold(0);
+            fail("Threshold below 1 should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static Tensor randomTensor(int size, long seed) {
+        Random random = new Random(seed);
+        float[] values = new float[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = random.nextFloat() * 2 - 1;
+        }
+        return new Tensor(values);
+    }
+
+}
@@ -0,0 +1,122 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks symmetric int8 quantization with a scale for each channel.
+ */
+public class QuantizedStorageTest {
+
+    @Test
+    public void channelsOfConsecutiveValuesHaveOwnScales() {
+        float[] values = {0.5f, -1.27f, 0.01f, 100, -3, 42}; // 2 channels of 3 consecutive values
+        QuantizedStorage storage = QuantizedStorage.quantize(values, 2, 3);
+
+        assertArrayEquals(new float[] {1.27f / 127, 100f / 127}, storage.getScales(), 0);
+        assertArrayEquals(new byte[] {50, -127, 1, 127, -4, 53}, storage.getRawValues());
+        assertEquals(StorageType.INT8, storage.getType());
+        assertEquals(6, storage.size());
+        for (int i = 0; i < values.length; i++) {
+            float scale = storage.getScales()[i / 3];
+            assertEquals("value " + i, values[i], storage.get(i), scale / 2);
+        }
+        assertEquals(-1.27f, storage.get(1), 1e-6f); // max abs value of each channel is restored exactly
+        assertEquals(100, storage.get(3), 1e-4f);
+    }
+
+    @Test
+    public void interleavedChannelsHaveOwnScales() {
+        float[] values = {1, -20, 0.5f, 10, -0.25f, 5, 0, 0}; // [inputs][channel], 2 channels
+        QuantizedStorage storage = QuantizedStorage.quantize(values, 2, 1);
+
+        assertArrayEquals(new float[] {1f / 127, 20f / 127}, storage.getScales(), 0);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("value " + i, values[i], storage.get(i), storage.getScales()[i % 2] / 2);
+        }
+    }
+
+    @Test
+    public void channelOfZerosHasUnitScale() {
+        QuantizedStorage storage = QuantizedStorage.quantize(new float[] {0, 0, 3, -6}, 2, 2);
+        assertEquals(1, storage.getScales()[0], 0);
+        assertEquals(0, storage.get(0), 0);
+        assertEquals(0, storage.get(1), 0);
+        assertEquals(-6, storage.get(3), 0);
+    }
+
+    @Test
+    public void setClampsToRangeOfChannel() {
+        QuantizedStorage storage = QuantizedStorage.quantize(new float[] {1, -1}, 1, 2);
+        storage.set(0, 5);
+        storage.set(1, -5);
+        assertEquals(127, storage.getRawValues()[0]);
+        assertEquals(-127, storage.getRawValues()[1]);
+        storage.set(0, 0.5f);
+        assertEquals(0.5f, storage.get(0), 0.5f / 127);
+    }
+
+    @Test
+    public void inputsAreQuantizedWithZeroPoint() {
+        assertEquals(-128, QuantizedStorage.quantize(0, 0.1f, -128));
+        assertEquals(-118, QuantizedStorage.quantize(1, 0.1f, -128));
+        assertEquals(-123, QuantizedStorage.quantize(0.46f, 0.1f, -128)); // rounded to nearest
+        assertEquals(127, QuantizedStorage.quantize(1000, 0.1f, -128));   // clamped
+        assertEquals(-128, QuantizedStorage.quantize(-50, 0.1f, 0));
+    }
+
+    @Test
+    public void sizeMustMatchChannels() {
+        try {
+            QuantizedStorage.quantize(new float[7], 2, 3);
+            fail("Size which is not a multiple of channels and block should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            QuantizedStorage.quantize(new float[6], 0, 3);
+            fail("Zero channels should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void quantizedTensorConvertsBackToFloat() {
+        Tensor t = new Tensor(2, 4, new float[] {0.1f, -0.2f, 0.3f, -0.4f, 8, 6, -4, 2});
+        float[] values = t.toArray();
+        t.quantize(2, 4);
+        assertEquals(StorageType.INT8, t.getStorageType());
+        float[] quantized = t.toArray();
+        for (int i = 0; i < values.length; i++) {
+            float scale = (i < 4 ? 0.4f : 8) / 127;
+            assertEquals("value " + i, values[i], quantized[i], scale / 2);
+        }
+
+        t.convertTo(StorageType.HEAP);
+        assertEquals(StorageType.HEAP, t.getStorageType());
+        assertArrayEquals(quantized, t.toArray(), 0);
+    }
+
+}
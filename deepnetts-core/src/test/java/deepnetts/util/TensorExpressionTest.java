@@ -0,0 +1,189 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that fused expressions give exactly the same results as operations applied one by one.
+ */
+public class TensorExpressionTest {
+
+    /**
+     * Not a multiple of expression block size, so the last block is partial.
+     */
+    private static final int SIZE = 3000;
+
+    private final Random random = new Random(3);
+
+    @Test
+    public void chainOfOperationsMatchesStepByStep() {
+        Tensor a = randomTensor(SIZE), b = randomTensor(SIZE), c = randomTensor(SIZE);
+        Tensor result = a.expr().add(b).mul(2).sub(c).div(3).add(0.5f).sub(0.25f)
+                         .map(x -> x * x).zipWith(b, (x, y) -> x - y).mul(c).div(positive(b)).evaluate();
+
+        float[] expected = new float[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            float x = a.get(i);
+            x += b.get(i);
+            x *= 2;
+            x -= c.get(i);
+            x /= 3;
+            x += 0.5f;
+            x -= 0.25f;
+            x = x * x;
+            x = x - b.get(i);
+            x = x * c.get(i);
+            x = x / (Math.abs(b.get(i)) + 1);
+            expected[i] = x;
+        }
+        assertArrayEquals(expected, result.toArray(), 0);
+        assertArrayEquals(a.getShape(), result.getShape());
+    }
+
+    @Test
+    public void nestedExpressionsMatchStepByStep() {
+        Tensor a = randomTensor(SIZE), b = randomTensor(SIZE), c = randomTensor(SIZE);
+        Tensor result = a.expr().add(b.expr().mul(c.expr().sub(a).div(2)))
+                                .sub(c.expr().mul(3))
+                                .mul(b.expr().add(1))
+                                .evaluate();
+
+        float[] expected = new float[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            float inner = (c.get(i) - a.get(i)) / 2;
+            float x = a.get(i) + b.get(i) * inner;
+            x -= c.get(i) * 3;
+            x *= b.get(i) + 1;
+            expected[i] = x;
+        }
+        assertArrayEquals(expected, result.toArray(), 0);
+    }
+
+    @Test
+    public void resultIsWrittenToOperandOrOtherStorage() {
+        Tensor a = randomTensor(60, 50), b = randomTensor(60, 50);
+        float[] expected = new float[a.size()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (a.get(i) + b.get(i) / 4) * b.get(i);
+        }
+
+        Tensor offHeap = Tensor.create(StorageType.OFF_HEAP, 60, 50);
+        a.expr().add(b.expr().div(4)).mul(b).evaluateInto(offHeap);
+        assertArrayEquals(expected, offHeap.toArray(), 0);
+        offHeap.close();
+
+        a.expr().add(b.expr().div(4)).mul(b).evaluateInto(a);
+        assertArrayEquals(expected, a.toArray(), 0);
+    }
+
+    @Test
+    public void viewsAreReadInLogicalOrder() {
+        Tensor a = randomTensor(40, 70), b = randomTensor(70, 40);
+        Tensor transposed = a.transpose();
+        Tensor result = transposed.expr().sub(b).mul(transposed.expr().add(b)).evaluate();
+
+        assertArrayEquals(new int[] {70, 40}, result.getShape());
+        for (int row = 0; row < 70; row++) {
+            for (int col = 0; col < 40; col++) {
+                float expected = (a.get(col, row) - b.get(row, col)) * (a.get(col, row) + b.get(row, col));
+                assertEquals(expected, result.get(row, col), 0);
+            }
+        }
+    }
+
+    @Test
+    public void expressionCanBeEvaluatedAgainWithNewValues() {
+        Tensor a = randomTensor(SIZE), b = randomTensor(SIZE);
+        TensorExpression expression = a.expr().zipWith(b, (x, y) -> x * y).add(b.expr().mul(b));
+        Tensor result = new Tensor(SIZE);
+        int acquired = TensorPool.local().getAcquiredCount();
+
+        expression.evaluateInto(result);
+        b.fill(2);
+        expression.evaluateInto(result);
+        for (int i = 0; i < SIZE; i++) {
+            assertEquals(a.get(i) * 2 + 4, result.get(i), 0);
+        }
+        assertEquals("scratch blocks should be returned to pool", acquired, TensorPool.local().getAcquiredCount());
+    }
+
+    @Test
+    public void parallelEvaluationMatchesSingleThread() {
+        final int size = 5 * Parallel.CHUNK_SIZE + 123;
+        Tensor a = randomTensor(size), b = randomTensor(size), c = randomTensor(size);
+        TensorExpression expression = a.expr().mul(b.expr().sub(c.expr().div(3))).add(c).map(x -> x * 0.5f);
+        Tensor single = expression.evaluate();
+
+        final int threadCount = Parallel.getThreadCount();
+        final int threshold = Parallel.getThreshold();
+        try {
+            Parallel.setThreadCount(4);
+            Parallel.setThreshold(1000);
+            Tensor parallel = new Tensor(size);
+            expression.evaluateInto(parallel);
+            assertArrayEquals(single.toArray(), parallel.toArray(), 0);
+
+            expression.evaluateInto(a); // source is overwritten by chunks, each reads only its own values
+            assertArrayEquals(single.toArray(), a.toArray(), 0);
+        } finally {
+            Parallel.setThreadCount(threadCount);
+            Parallel.setThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void differentSizeIsRejected() {
+        Tensor a = randomTensor(10);
+        try {
+            a.expr().add(randomTensor(11));
+            fail("Tensor with different size should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            a.expr().evaluateInto(new Tensor(2, 6));
+            fail("Result tensor with different size should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static Tensor positive(Tensor t) {
+        Tensor result = Tensor.create(StorageType.HEAP, t.getShape());
+        for (int i = 0; i < t.size(); i++) {
+            result.set(i, Math.abs(t.get(i)) + 1);
+        }
+        return result;
+    }
+
+    private Tensor randomTensor(int... shape) {
+        Tensor tensor = Tensor.create(StorageType.HEAP, shape);
+        for (int i = 0; i < tensor.size(); i++) {
+            tensor.set(i, random.nextFloat() * 2 - 1);
+        }
+        return tensor;
+    }
+
+}
@@ -0,0 +1,159 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that tensors and network weights written in binary format are read back unchanged.
+ */
+public class TensorIOTest {
+
+    @Test
+    public void tensorsOfAllStorageTypesAreReadBack() throws IOException {
+        for (StorageType storageType : new StorageType[] {StorageType.HEAP, StorageType.OFF_HEAP, StorageType.FP16, StorageType.BF16}) {
+            Tensor tensor = randomTensor(storageType, 3, 4, 5);
+            Tensor read = TensorIO.read(Channels.newChannel(new ByteArrayInputStream(write(tensor, true))));
+
+            boolean half = storageType == StorageType.FP16 || storageType == StorageType.BF16;
+            assertEquals(storageType.toString(), half ? storageType : StorageType.HEAP, read.getStorageType());
+            assertArrayEquals(storageType.toString(), tensor.getShape(), read.getShape());
+            assertArrayEquals(storageType.toString(), tensor.toArray(), read.toArray(), 0);
+            tensor.close();
+        }
+    }
+
+    @Test
+    public void tensorsAreReadBackWithoutChecksum() throws IOException {
+        Tensor tensor = randomTensor(StorageType.HEAP, 7, 9);
+        Tensor read = TensorIO.read(Channels.newChannel(new ByteArrayInputStream(write(tensor, false))));
+        assertArrayEquals(tensor.toArray(), read.toArray(), 0);
+    }
+
+    @Test
+    public void viewsAreWrittenInLogicalOrder() throws IOException {
+        Tensor tensor = randomTensor(StorageType.HEAP, 6, 4);
+        Tensor transposed = tensor.transpose();
+        Tensor read = TensorIO.read(Channels.newChannel(new ByteArrayInputStream(write(transposed, true))));
+        assertArrayEquals(new int[] {4, 6}, read.getShape());
+        assertArrayEquals(transposed.toArray(), read.toArray(), 0);
+    }
+
+    @Test
+    public void severalTensorsAreReadFromTheSameChannel() throws IOException {
+        Tensor first = randomTensor(StorageType.HEAP, 10);
+        Tensor second = randomTensor(StorageType.HEAP, 2, 3, 4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TensorIO.write(first, Channels.newChannel(out));
+        TensorIO.write(second, Channels.newChannel(out));
+
+        Tensor firstCopy = new Tensor(10);
+        Tensor secondCopy = Tensor.create(StorageType.OFF_HEAP, 2, 3, 4);
+        ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(out.toByteArray()));
+        TensorIO.read(in, firstCopy);
+        TensorIO.read(in, secondCopy);
+        assertArrayEquals(first.toArray(), firstCopy.toArray(), 0);
+        assertArrayEquals(second.toArray(), secondCopy.toArray(), 0);
+        secondCopy.close();
+    }
+
+    @Test
+    public void changedValuesFailChecksum() throws IOException {
+        byte[] bytes = write(randomTensor(StorageType.HEAP, 5, 5), true);
+        bytes[bytes.length - 10] ^= 1; // a value, before the checksum
+        try {
+            TensorIO.read(Channels.newChannel(new ByteArrayInputStream(bytes)));
+            fail("Changed value should fail checksum");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void differentShapeIsRejected() throws IOException {
+        byte[] bytes = write(randomTensor(StorageType.HEAP, 4, 5), true);
+        try {
+            TensorIO.read(Channels.newChannel(new ByteArrayInputStream(bytes)), new Tensor(5, 4));
+            fail("Different shape should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void networkWeightsAreReadBack() throws IOException {
+        ConvolutionalNetwork network = network(1);
+        ConvolutionalNetwork copy = network(2);
+        Path file = Files.createTempFile("weights", ".dnnt");
+        try {
+            network.writeWeights(file);
+            copy.readWeights(file);
+        } finally {
+            Files.delete(file);
+        }
+
+        Tensor input = randomTensor(StorageType.HEAP, 2, 8, 10);
+        network.setInput(input);
+        copy.setInput(input);
+        assertArrayEquals(network.getOutput(), copy.getOutput(), 0);
+    }
+
+    private static ConvolutionalNetwork network(long seed) {
+        return ConvolutionalNetwork.builder()
+                .randomSeed(seed)
+                .addInputLayer(10, 8, 2)
+                .addConvolutionalLayer(3, 4, ActivationType.TANH)
+                .addMaxPoolingLayer(2, 2)
+                .addFullyConnectedLayer(6, ActivationType.TANH)
+                .addOutputLayer(3, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .build();
+    }
+
+    private static byte[] write(Tensor tensor, boolean checksum) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TensorIO.write(tensor, Channels.newChannel(out), checksum);
+        return out.toByteArray();
+    }
+
+    private static Tensor randomTensor(StorageType storageType, int... shape) {
+        Tensor tensor = Tensor.create(storageType, shape);
+        Random random = new Random(11);
+        for (int i = 0; i < tensor.size(); i++) {
+            tensor.set(i, random.nextFloat() * 2 - 1);
+        }
+        return tensor;
+    }
+
+}
@@ -0,0 +1,177 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks reuse of pooled tensors, release of tensors by scopes and leak detection in debug mode.
+ */
+public class TensorPoolTest {
+
+    @Test
+    public void releasedTensorIsReused() {
+        TensorPool pool = new TensorPool();
+        Tensor first = pool.acquire(3, 5);
+        first.fill(7);
+        pool.release(first);
+
+        Tensor second = pool.acquire(3, 5);
+        assertSame("tensor with the same shape should be reused", first, second);
+        assertArrayEquals(new float[15], second.toArray(), 0);
+        pool.release(second);
+
+        Tensor other = pool.acquire(4, 4); // same size class (16), different shape
+        assertNotSame(first, other);
+        assertSame("array of the same size class should be reused", first.getValues(), other.getValues());
+        assertArrayEquals(new int[] {4, 4}, other.getShape());
+
+        Tensor bigger = pool.acquire(17);
+        assertNotSame(other.getValues(), bigger.getValues());
+        assertEquals(32, bigger.getValues().length);
+        assertEquals(2, pool.getAcquiredCount());
+        pool.close();
+    }
+
+    @Test
+    public void copyAndArraysComeFromPool() {
+        TensorPool pool = new TensorPool();
+        Tensor src = new Tensor(new float[] {1, 2, 3, 4, 5, 6}, 2, 3);
+        Tensor copy = pool.copyOf(src.transpose());
+        assertArrayEquals(new int[] {3, 2}, copy.getShape());
+        assertArrayEquals(new float[] {1, 4, 2, 5, 3, 6}, copy.toArray(), 0);
+        pool.release(copy);
+
+        float[] array = pool.acquireArray(5);
+        assertSame(copy.getValues(), array);
+        pool.releaseArray(array);
+        assertEquals(0, pool.getAcquiredCount());
+
+        try {
+            pool.releaseArray(new float[8]);
+            fail("Array which is not from pool should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void tensorCannotBeReleasedTwice() {
+        TensorPool pool = new TensorPool();
+        Tensor tensor = pool.acquire(10);
+        pool.release(tensor);
+        try {
+            pool.release(tensor);
+            fail("Tensor should not be released twice");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            pool.release(new Tensor(10));
+            fail("Tensor which is not from pool should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void scopeReleasesTensorsAcquiredInIt() {
+        TensorPool pool = new TensorPool();
+        Tensor before = pool.acquire(4);
+        Tensor inner;
+        try (TensorPool.Scope outer = pool.scope()) {
+            pool.acquire(5);
+            try (TensorPool.Scope scope = pool.scope()) {
+                inner = pool.acquire(6);
+                pool.acquire(7);
+                assertEquals(4, pool.getAcquiredCount());
+            }
+            assertEquals(2, pool.getAcquiredCount());
+            assertSame("tensor released by scope should be reused", inner, pool.acquire(6));
+        }
+        assertEquals(1, pool.getAcquiredCount());
+        pool.release(before);
+        assertEquals(0, pool.getAcquiredCount());
+    }
+
+    @Test
+    public void scopeReleasesItsTensorsWhenOlderTensorIsReleasedInIt() {
+        TensorPool pool = new TensorPool();
+        pool.setDebug(true);
+        Tensor before = pool.acquire(4);
+        Tensor kept = pool.acquire(3);
+        try (TensorPool.Scope outer = pool.scope()) {
+            pool.acquire(5);
+            try (TensorPool.Scope scope = pool.scope()) {
+                pool.acquire(6);
+                pool.release(before);
+                pool.acquire(7);
+            }
+            assertEquals(2, pool.getAcquiredCount());
+        }
+        assertEquals(1, pool.getAcquiredCount());
+        pool.release(kept);
+        pool.close(); // reports leaks in debug mode
+    }
+
+    @Test
+    public void scopesMustBeClosedInReverseOrder() {
+        TensorPool pool = new TensorPool();
+        TensorPool.Scope outer = pool.scope();
+        TensorPool.Scope inner = pool.scope();
+        try {
+            outer.close();
+            fail("Outer scope should not be closed before inner scope");
+        } catch (IllegalStateException expected) {
+        }
+        inner.close();
+        inner.close(); // closing again does nothing
+        outer.close();
+        pool.close();
+    }
+
+    @Test
+    public void debugModeReportsLeaksAndMarksReleasedTensors() {
+        TensorPool pool = new TensorPool();
+        pool.setDebug(true);
+        Tensor released = pool.acquire(8);
+        released.fill(1);
+        pool.release(released);
+        assertTrue("released tensor should be filled with NaN", Float.isNaN(released.get(0)));
+
+        pool.acquire(2, 2);
+        pool.acquireArray(3);
+        try {
+            pool.close();
+            fail("Tensors which were not released should be reported");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("2 tensor(s)"));
+            assertNotNull("place where leaked tensor was acquired should be reported", expected.getCause());
+        }
+        assertEquals(0, pool.getAcquiredCount());
+    }
+
+}
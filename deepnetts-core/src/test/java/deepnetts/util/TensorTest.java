@@ -0,0 +1,232 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ *  This file is part of DeepNetts.
+ *
+ *  DeepNetts is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.package deepnetts.core;
+ */
+
+package deepnetts.util;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks shape, strides and offset of tensors and their views, and that views share values.
+ */
+public class TensorTest {
+
+    @Test
+    public void stridesAndIndexesFollowShape() {
+        Tensor t = range(2, 3, 4); // [depth, rows, cols]
+        assertArrayEquals(new int[] {2, 3, 4}, t.getShape());
+        assertArrayEquals(new int[] {12, 4, 1}, t.getStrides());
+        assertEquals(0, t.getOffset());
+        assertTrue(t.isContiguous());
+        assertEquals(3, t.getDimensions());
+
+        assertEquals(1 * 12 + 2 * 4 + 3, t.get(2, 3, 1), 0); // row, col, depth
+        assertEquals(1 * 12 + 2 * 4 + 3, t.get(new int[] {1, 2, 3}), 0);
+        t.set(new int[] {0, 1, 2}, -5);
+        assertEquals(-5, t.get(1, 2, 0), 0);
+        assertEquals(-5, t.get(6), 0);
+    }
+
+    @Test
+    public void reshapeSharesValues() {
+        Tensor t = range(2, 3);
+        Tensor r = t.reshape(3, -1);
+        assertArrayEquals(new int[] {3, 2}, r.getShape());
+        assertSame(t.getValues(), r.getValues());
+        assertArrayEquals(t.toArray(), r.toArray(), 0);
+
+        r.set(2, 1, 99);
+        assertEquals(99, t.get(1, 2), 0);
+        t.set(0, 0, -1);
+        assertEquals(-1, r.get(0), 0);
+        assertTrue(t.isShared());
+        assertTrue(r.isShared());
+
+        try {
+            t.reshape(4, 2);
+            fail("Reshape to different size should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void viewStartsAtPosition() {
+        Tensor t = range(4, 5);
+        Tensor v = t.view(7, 2, 3);
+        assertEquals(7, v.getOffset());
+        assertTrue(v.isContiguous());
+        assertArrayEquals(new float[] {7, 8, 9, 10, 11, 12}, v.toArray(), 0);
+
+        Tensor inner = v.view(2, 4); // view of a view adds offsets
+        assertEquals(9, inner.getOffset());
+        inner.set(0, 50);
+        assertEquals(50, t.get(1, 4), 0);
+
+        try {
+            t.view(18, 3);
+            fail("View out of bounds should be rejected");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            t.transpose().view(0, 2);
+            fail("View of non contiguous tensor should be rejected");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void sliceAndSelectKeepStrides() {
+        Tensor t = range(3, 4, 5);
+        Tensor rows = t.slice(1, 1, 3);
+        assertArrayEquals(new int[] {3, 2, 5}, rows.getShape());
+        assertArrayEquals(t.getStrides(), rows.getStrides());
+        assertEquals(5, rows.getOffset());
+        assertFalse(rows.isContiguous());
+        for (int z = 0; z < 3; z++) {
+            for (int row = 0; row < 2; row++) {
+                for (int col = 0; col < 5; col++) {
+                    assertEquals(t.get(row + 1, col, z), rows.get(row, col, z), 0);
+                }
+            }
+        }
+
+        Tensor crop = rows.slice(2, 2, 4); // random crop is slice of rows, then of cols
+        assertArrayEquals(new int[] {3, 2, 2}, crop.getShape());
+        assertEquals(7, crop.getOffset());
+        crop.set(1, 1, 2, -3);
+        assertEquals(-3, t.get(2, 3, 2), 0);
+
+        Tensor channel = t.select(0, 2);
+        assertArrayEquals(new int[] {4, 5}, channel.getShape());
+        assertEquals(40, channel.getOffset());
+        assertTrue(channel.isContiguous());
+        assertEquals(t.get(3, 4, 2), channel.get(3, 4), 0);
+
+        Tensor column = t.select(2, 1);
+        assertArrayEquals(new int[] {3, 4}, column.getShape());
+        assertArrayEquals(new int[] {20, 5}, column.getStrides());
+        assertEquals(t.get(2, 1, 1), column.get(1, 2), 0);
+    }
+
+    @Test
+    public void transposeAndPermuteSwapStrides() {
+        Tensor t = range(2, 3);
+        Tensor tr = t.transpose();
+        assertArrayEquals(new int[] {3, 2}, tr.getShape());
+        assertArrayEquals(new int[] {1, 3}, tr.getStrides());
+        assertFalse(tr.isContiguous());
+        assertArrayEquals(new float[] {0, 3, 1, 4, 2, 5}, tr.toArray(), 0);
+        assertEquals(4, tr.get(3), 0); // index in row major order of the view
+
+        tr.set(2, 1, 20);
+        assertEquals(20, t.get(1, 2), 0);
+
+        Tensor copy = tr.contiguous();
+        assertTrue(copy.isContiguous());
+        assertArrayEquals(tr.toArray(), copy.toArray(), 0);
+        copy.set(0, 100);
+        assertEquals(0, t.get(0), 0);
+
+        Tensor nchw = range(2, 3, 4);
+        Tensor nhwc = nchw.permute(1, 2, 0);
+        assertArrayEquals(new int[] {3, 4, 2}, nhwc.getShape());
+        assertArrayEquals(new int[] {4, 1, 12}, nhwc.getStrides());
+        assertEquals(nchw.get(new int[] {1, 2, 3}), nhwc.get(new int[] {2, 3, 1}), 0);
+
+        Tensor reshaped = tr.reshape(6); // non contiguous tensor is copied
+        assertArrayEquals(tr.toArray(), reshaped.toArray(), 0);
+        assertTrue(reshaped.isContiguous());
+        assertFalse(reshaped.isShared());
+    }
+
+    @Test
+    public void offHeapViewsShareStorage() {
+        Tensor t = Tensor.create(StorageType.OFF_HEAP, 3, 4);
+        for (int i = 0; i < t.size(); i++) {
+            t.set(i, i);
+        }
+        Tensor tr = t.transpose();
+        Tensor row = t.select(0, 1);
+        assertEquals(StorageType.OFF_HEAP, tr.getStorageType());
+        assertFalse(tr.hasArray());
+        assertEquals(6, tr.get(2, 1), 0);
+
+        row.set(3, 42);
+        assertEquals(42, t.get(1, 3), 0);
+        assertEquals(42, tr.get(3, 1), 0);
+        t.close();
+    }
+
+    @Test
+    public void storageOfSharedTensorCannotBeChanged() {
+        Tensor t = range(2, 3);
+        Tensor v = t.reshape(6);
+        try {
+            t.convertTo(StorageType.OFF_HEAP);
+            fail("Tensor with views should not be converted");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            v.convertTo(StorageType.FP16);
+            fail("View should not be converted");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            t.quantize(1, t.size());
+            fail("Tensor with views should not be quantized");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(StorageType.HEAP, t.getStorageType());
+        t.set(0, 0, 99);
+        assertEquals(99, v.get(0), 0);
+    }
+
+    @Test
+    public void convertedTensorKeepsValues() {
+        Tensor t = range(2, 3);
+        float[] values = t.toArray();
+        t.convertTo(StorageType.OFF_HEAP);
+        assertEquals(StorageType.OFF_HEAP, t.getStorageType());
+        assertArrayEquals(values, t.toArray(), 0);
+
+        Tensor v = t.transpose(); // views created after conversion share new storage
+        v.set(1, 0, 7);
+        assertEquals(7, t.get(0, 1), 0);
+        t.close();
+    }
+
+    /**
+     * Returns contiguous tensor with values 0, 1, 2... in row major order.
+     */
+    private static Tensor range(int... shape) {
+        Tensor tensor = Tensor.create(StorageType.HEAP, shape);
+        for (int i = 0; i < tensor.size(); i++) {
+            tensor.set(i, i);
+        }
+        return tensor;
+    }
+
+}
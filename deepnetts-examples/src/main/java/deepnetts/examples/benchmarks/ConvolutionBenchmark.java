@@ -0,0 +1,122 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ * This file is part of DeepNetts.
+ *
+ * DeepNetts is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package deepnetts.examples.benchmarks;
+
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.ConvolutionAlgorithm;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
+import java.util.Random;
+
+/**
+ * Compares speed of forward and backward pass through convolutional and max pooling layers
+ * with all convolution algorithms. Direct loops are also measured with FP16 storage,
+ * since other algorithms require heap storage. Depthwise separable network uses
+ * depthwise and 1x1 convolution instead of the second convolutional layer.
+ *
+ * Usage: ConvolutionBenchmark [size] [channels] [filterSize]
+ *
+ * @author Zoran Sevarac
+ */
+public class ConvolutionBenchmark {
+
+    private static final int SAMPLES = 20;
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        final int size = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        final int channels = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int filterSize = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        final Random rnd = new Random(123);
+        final Tensor[] inputs = new Tensor[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            inputs[i] = Tensor.zeros(3, size, size);
+            inputs[i].mapInPlace(x -> rnd.nextFloat());
+        }
+        final float[] outputError = new float[10];
+        outputError[0] = 0.1f;
+
+        System.out.printf("Input %dx%dx3, %d channels, %dx%d filters, %d samples%n", size, size, channels, filterSize, filterSize, SAMPLES);
+        System.out.printf("%-16s %12s %12s%n", "Algorithm", "Forward [ms]", "Backward [ms]");
+        for (ConvolutionAlgorithm algorithm : ConvolutionAlgorithm.values()) {
+            run(algorithm.name(), createNetwork(size, channels, filterSize, algorithm, StorageType.HEAP), inputs, outputError);
+        }
+        run("DIRECT (FP16)", createNetwork(size, channels, filterSize, ConvolutionAlgorithm.DIRECT, StorageType.FP16), inputs, outputError);
+        run("SEPARABLE", createSeparableNetwork(size, channels, filterSize), inputs, outputError);
+    }
+
+    private static ConvolutionalNetwork createNetwork(int size, int channels, int filterSize, ConvolutionAlgorithm algorithm, StorageType storageType) {
+        return ConvolutionalNetwork.builder()
+                .addInputLayer(size, size, 3)
+                .addConvolutionalLayer(filterSize, channels, ActivationType.RELU)
+                .addConvolutionalLayer(filterSize, channels, ActivationType.RELU)
+                .addMaxPoolingLayer(2, 2)
+                .addConvolutionalLayer(3, channels, ActivationType.RELU)
+                .addFullyConnectedLayer(10, ActivationType.RELU)
+                .addOutputLayer(10, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .convolutionAlgorithm(algorithm)
+                .storageType(storageType)
+                .randomSeed(123)
+                .build();
+    }
+
+    private static ConvolutionalNetwork createSeparableNetwork(int size, int channels, int filterSize) {
+        return ConvolutionalNetwork.builder()
+                .addInputLayer(size, size, 3)
+                .addConvolutionalLayer(filterSize, channels, ActivationType.RELU)
+                .addDepthwiseSeparableConvolutionalLayer(filterSize, filterSize, 1, channels, ActivationType.RELU)
+                .addMaxPoolingLayer(2, 2)
+                .addConvolutionalLayer(3, channels, ActivationType.RELU)
+                .addFullyConnectedLayer(10, ActivationType.RELU)
+                .addOutputLayer(10, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .randomSeed(123)
+                .build();
+    }
+
+    private static void run(String name, ConvolutionalNetwork neuralNet, Tensor[] inputs, float[] outputError) {
+        long bestForward = Long.MAX_VALUE, bestBackward = Long.MAX_VALUE;
+        for (int run = 0; run < WARMUP + RUNS; run++) {
+            long forward = 0, backward = 0;
+            for (Tensor input : inputs) {
+                final long start = System.nanoTime();
+                neuralNet.setInput(input);
+                final long mid = System.nanoTime();
+                neuralNet.setOutputError(outputError);
+                neuralNet.backward();
+                backward += System.nanoTime() - mid;
+                forward += mid - start;
+            }
+            if (run >= WARMUP) {
+                bestForward = Math.min(bestForward, forward);
+                bestBackward = Math.min(bestBackward, backward);
+            }
+        }
+        System.out.printf("%-16s %12.3f %12.3f%n", name, bestForward / 1e6, bestBackward / 1e6);
+    }
+
+}
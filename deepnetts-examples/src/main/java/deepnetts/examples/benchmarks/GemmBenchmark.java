@@ -0,0 +1,105 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ * This file is part of DeepNetts.
+ *
+ * DeepNetts is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package deepnetts.examples.benchmarks;
+
+import deepnetts.util.LinearAlgebra;
+import deepnetts.util.Tensor;
+import java.util.Random;
+
+/**
+ * Compares speed (in GFLOPS) of cache blocked matrix multiplication from LinearAlgebra
+ * with plain loops which were used in dense layers.
+ *
+ * Usage: GemmBenchmark [size]
+ *
+ * @author Zoran Sevarac
+ */
+public class GemmBenchmark {
+
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        final int size = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        final Random rnd = new Random(123);
+
+        // matrix vector, as in fully connected layer with [inputs][outputs] weights
+        final Tensor weights = randomTensor(rnd, size * 4, size * 4);
+        final Tensor inputs = randomTensor(rnd, size * 4);
+        final Tensor outputs = new Tensor(size * 4);
+        final long gemvFlops = 2L * weights.size();
+
+        report("GEMV loops", gemvFlops, () -> {
+            for (int outCol = 0; outCol < outputs.getCols(); outCol++) {
+                for (int inCol = 0; inCol < inputs.getCols(); inCol++) {
+                    outputs.add(outCol, inputs.get(inCol) * weights.get(inCol, outCol));
+                }
+            }
+        });
+        report("GEMV LinearAlgebra", gemvFlops, () -> LinearAlgebra.sgemv(true, inputs.getCols(), outputs.getCols(), 1,
+                weights.getValues(), 0, outputs.getCols(), inputs.getValues(), 0, 1, outputs.getValues(), 0));
+
+        // matrix matrix
+        final Tensor a = randomTensor(rnd, size, size);
+        final Tensor b = randomTensor(rnd, size, size);
+        final Tensor c = new Tensor(size, size);
+        final long gemmFlops = 2L * size * size * size;
+
+        report("GEMM loops", gemmFlops, () -> {
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    float sum = 0;
+                    for (int k = 0; k < size; k++) {
+                        sum += a.get(i, k) * b.get(k, j);
+                    }
+                    c.set(i, j, sum);
+                }
+            }
+        });
+
+        LinearAlgebra.setParallel(false);
+        report("GEMM LinearAlgebra", gemmFlops, () -> LinearAlgebra.matmul(a, b, 0, c));
+        LinearAlgebra.setParallel(true);
+        report("GEMM LinearAlgebra parallel", gemmFlops, () -> LinearAlgebra.matmul(a, b, 0, c));
+        report("GEMM LinearAlgebra transposed", gemmFlops, () -> LinearAlgebra.matmul(a.transpose(), b.transpose(), 0, c));
+    }
+
+    private static Tensor randomTensor(Random rnd, int... shape) {
+        final Tensor t = Tensor.zeros(shape);
+        t.mapInPlace(x -> rnd.nextFloat() - 0.5f);
+        return t;
+    }
+
+    private static void report(String name, long flops, Runnable op) {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            final long start = System.nanoTime();
+            op.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%-32s %10.3f ms %8.2f GFLOPS%n", name, best / 1e6, flops / (double) best);
+    }
+
+}
@@ -0,0 +1,139 @@
+/**
+ *  DeepNetts is pure Java Deep Learning Library with support for Backpropagation
+ *  based learning and image recognition.
+ *
+ *  Copyright (C) 2017  Zoran Sevarac <sevarac@gmail.com>
+ *
+ * This file is part of DeepNetts.
+ *
+ * DeepNetts is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package deepnetts.examples.benchmarks;
+
+import deepnetts.net.ConvolutionalNetwork;
+import deepnetts.net.layers.AbstractLayer;
+import deepnetts.net.layers.ConvolutionalLayer;
+import deepnetts.net.layers.activation.ActivationType;
+import deepnetts.net.loss.LossType;
+import deepnetts.util.StorageType;
+import deepnetts.util.Tensor;
+import java.util.Random;
+
+/**
+ * Compares memory used by weights and activations, inference speed and output
+ * accuracy of convolutional network with float, FP16 and BF16 storage.
+ * The same network is converted to 16 bit storage, as it would be after loading it from file.
+ *
+ * @author Zoran Sevarac
+ */
+public class HalfPrecisionBenchmark {
+
+    private static final int SAMPLES = 200;
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        final Random rnd = new Random(123);
+        final Tensor[] inputs = new Tensor[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            inputs[i] = Tensor.zeros(1, 28, 28);
+            inputs[i].mapInPlace(x -> rnd.nextFloat());
+        }
+
+        final ConvolutionalNetwork neuralNet = ConvolutionalNetwork.builder()
+                .addInputLayer(28, 28, 1)
+                .addConvolutionalLayer(5, 5, 8, ActivationType.RELU)
+                .addMaxPoolingLayer(2, 2)
+                .addConvolutionalLayer(3, 3, 16, ActivationType.RELU)
+                .addMaxPoolingLayer(2, 2)
+                .addFullyConnectedLayer(64, ActivationType.RELU)
+                .addOutputLayer(10, ActivationType.SOFTMAX)
+                .lossFunction(LossType.CROSS_ENTROPY)
+                .randomSeed(123)
+                .build();
+
+        final float[][] floatOutputs = predictAll(neuralNet, inputs);
+
+        System.out.printf("%-8s %12s %12s %14s %10s%n", "Storage", "Memory [KB]", "Time [ms]", "Max abs error", "Same class");
+        for (StorageType storageType : new StorageType[]{StorageType.HEAP, StorageType.FP16, StorageType.BF16}) {
+            neuralNet.setStorageType(storageType);
+
+            for (int i = 0; i < WARMUP; i++) {
+                predictAll(neuralNet, inputs);
+            }
+            long best = Long.MAX_VALUE;
+            float[][] outputs = null;
+            for (int i = 0; i < RUNS; i++) {
+                final long start = System.nanoTime();
+                outputs = predictAll(neuralNet, inputs);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+
+            float maxError = 0;
+            int sameClass = 0;
+            for (int i = 0; i < SAMPLES; i++) {
+                for (int j = 0; j < outputs[i].length; j++) {
+                    maxError = Math.max(maxError, Math.abs(outputs[i][j] - floatOutputs[i][j]));
+                }
+                if (indexOfMax(outputs[i]) == indexOfMax(floatOutputs[i])) {
+                    sameClass++;
+                }
+            }
+
+            System.out.printf("%-8s %12.1f %12.3f %14.6f %9.1f%%%n", storageType, memoryBytes(neuralNet) / 1024.0,
+                    best / 1e6, maxError, 100.0 * sameClass / SAMPLES);
+        }
+    }
+
+    private static float[][] predictAll(ConvolutionalNetwork neuralNet, Tensor[] inputs) {
+        final float[][] outputs = new float[inputs.length][];
+        for (int i = 0; i < inputs.length; i++) {
+            neuralNet.setInput(inputs[i]);
+            outputs[i] = neuralNet.getOutput().clone();
+        }
+        return outputs;
+    }
+
+    /**
+     * Returns number of bytes used by weights and outputs of all layers.
+     */
+    private static long memoryBytes(ConvolutionalNetwork neuralNet) {
+        long bytes = 0;
+        for (AbstractLayer layer : neuralNet.getLayers()) {
+            bytes += bytes(layer.getOutputs());
+            bytes += bytes(layer.getWeights());
+            if (layer instanceof ConvolutionalLayer) {
+                for (Tensor filter : ((ConvolutionalLayer) layer).getFilters()) {
+                    bytes += bytes(filter);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static long bytes(Tensor tensor) {
+        return tensor == null ? 0 : (long) tensor.size() * tensor.getStorageType().getBytesPerValue();
+    }
+
+    private static int indexOfMax(float[] array) {
+        int maxIdx = 0;
+        for (int i = 1; i < array.length; i++) {
+            if (array[i] > array[maxIdx]) {
+                maxIdx = i;
+            }
+        }
+        return maxIdx;
+    }
+
+}